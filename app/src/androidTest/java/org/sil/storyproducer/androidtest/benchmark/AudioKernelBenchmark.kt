@@ -0,0 +1,101 @@
+package org.sil.storyproducer.androidtest.benchmark
+
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.pipe.AudioMixKernel
+import org.sil.storyproducer.tools.media.pipe.PolyphaseResampler
+import kotlin.math.PI
+import kotlin.math.sin
+
+/**
+ * Times the audio kernels of the export pipeline on a device, logging how much faster than real
+ * time each runs under the tag "AudioKernelBenchmark". Like [ExportBenchmark] these are not part
+ * of the happy path tests, but they need no workspace.
+ */
+@RunWith(AndroidJUnit4::class)
+class AudioKernelBenchmark {
+
+    /**
+     * Mix 2, 4 and 8 sources of a minute of 44.1 kHz audio.
+     */
+    @Test
+    fun benchmarkMix() {
+        val bufferSamples = 4096
+        val totalSamples = SAMPLE_RATE * SECONDS
+
+        for (sourceCount in intArrayOf(2, 4, 8)) {
+            val sources = Array<ShortArray?>(sourceCount) { s -> sine(SAMPLE_RATE, 220.0 * (s + 1), bufferSamples, 1) }
+            val positions = IntArray(sourceCount)
+            val gains = IntArray(sourceCount) { AudioMixKernel.toFixedGain(0.8f) }
+            val dest = ShortArray(bufferSamples)
+            val accumulator = IntArray(bufferSamples)
+
+            //Warm up the JIT before timing.
+            for (i in 0 until 2000) {
+                AudioMixKernel.mix(dest, 0, sources, positions, gains, sourceCount, bufferSamples, accumulator)
+            }
+
+            val start = System.nanoTime()
+            var mixed = 0
+            while (mixed < totalSamples) {
+                AudioMixKernel.mix(dest, 0, sources, positions, gains, sourceCount, bufferSamples, accumulator)
+                mixed += bufferSamples
+            }
+            log("mixing $sourceCount sources", System.nanoTime() - start)
+        }
+    }
+
+    /**
+     * Resample a minute of audio for each common ratio, from mono and from stereo.
+     */
+    @Test
+    fun benchmarkResampler() {
+        val out = ShortArray(8192)
+        for (rates in arrayOf(intArrayOf(48000, 44100), intArrayOf(22050, 44100), intArrayOf(16000, 44100))) {
+            for (channels in intArrayOf(1, 2)) {
+                val input = sine(rates[0], 1000.0, rates[0] * SECONDS, channels)
+                //Warm up the JIT before timing.
+                resample(PolyphaseResampler(rates[0], rates[1], channels, 1), input, out)
+
+                val start = System.nanoTime()
+                resample(PolyphaseResampler(rates[0], rates[1], channels, 1), input, out)
+                log("resampling ${rates[0]} -> ${rates[1]} ($channels ch -> 1 ch)", System.nanoTime() - start)
+            }
+        }
+    }
+
+    private fun resample(resampler: PolyphaseResampler, input: ShortArray, out: ShortArray) {
+        var pos = 0
+        while (pos < input.size) {
+            val length = Math.min(out.size, input.size - pos)
+            resampler.write(input, pos, length)
+            pos += length
+            while (resampler.read(out, 0, out.size) > 0) {
+                //Only the time matters.
+            }
+        }
+        resampler.flush()
+        while (resampler.read(out, 0, out.size) > 0) {
+            //Only the time matters.
+        }
+    }
+
+    private fun sine(rate: Int, frequency: Double, frames: Int, channels: Int): ShortArray {
+        return ShortArray(frames * channels) { (12000 * sin(2 * PI * frequency * (it / channels) / rate)).toInt().toShort() }
+    }
+
+    private fun log(name: String, ns: Long) {
+        val seconds = ns / 1E9
+        Log.i(TAG, "$name: ${SECONDS}s of audio in " + MediaHelper.getDecimal(seconds) + "s ("
+                + MediaHelper.getDecimal(SECONDS / seconds) + "x real time)")
+    }
+
+    companion object {
+        private const val TAG = "AudioKernelBenchmark"
+        private const val SAMPLE_RATE = 44100
+        private const val SECONDS = 60
+    }
+}
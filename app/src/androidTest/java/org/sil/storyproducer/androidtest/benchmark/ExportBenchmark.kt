@@ -0,0 +1,172 @@
+package org.sil.storyproducer.androidtest.benchmark
+
+import android.content.Context
+import android.media.MediaMuxer
+import android.net.Uri
+import android.util.Log
+import androidx.test.core.app.ApplicationProvider.getApplicationContext
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.sil.storyproducer.model.PROJECT_DIR
+import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.media.AudioInfoIndex
+import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.story.AutoStoryMaker
+import org.sil.storyproducer.tools.media.story.PerfReport
+import org.sil.storyproducer.tools.media.story.SlideBitmapLoader
+import org.sil.storyproducer.tools.media.story.StoryFrameDrawer
+import org.sil.storyproducer.tools.media.story.StoryMaker
+import org.sil.storyproducer.tools.media.story.StoryPage
+import org.sil.storyproducer.tools.media.story.VideoSegmentStore
+import java.io.File
+
+/**
+ * Compares ways of exporting a story on a device, logging the results under the tag
+ * "ExportBenchmark". These are not part of the happy path tests: run this class on its own once
+ * a workspace with at least one story in it has been chosen (see WorkspaceSetter). The first
+ * story of the workspace is exported.
+ */
+@RunWith(AndroidJUnit4::class)
+class ExportBenchmark {
+
+    private lateinit var context: Context
+    private lateinit var story: Story
+    private lateinit var maker: AutoStoryMaker
+    private lateinit var pages: Array<StoryPage>
+    private lateinit var benchmarkFile: File
+
+    @Before
+    fun setUp() {
+        context = getApplicationContext()
+        val prefs = context.getSharedPreferences(Workspace.WORKSPACE_KEY, Context.MODE_PRIVATE)
+        Assume.assumeTrue(Workspace.setupWorkspacePath(context, Uri.parse(prefs.getString("workspace", ""))))
+        val title = Workspace.storyDirectories().firstOrNull()?.name
+        Assume.assumeNotNull(title)
+        story = Workspace.loadStory(context, title!!)!!
+        maker = AutoStoryMaker(context, story)
+        pages = maker.generatePages()!!
+        benchmarkFile = File(context.filesDir, "benchmark.mp4")
+    }
+
+    @After
+    fun tearDown() {
+        benchmarkFile.delete()
+        PerfReport.getFile(benchmarkFile).delete()
+    }
+
+    /**
+     * Render the story with a single video encoder and with segment encoders working in parallel.
+     */
+    @Test
+    fun compareVideoModes() {
+        for (workers in intArrayOf(1, AutoStoryMaker.VIDEO_WORKERS)) {
+            val storyMaker = createStoryMaker(pages)
+            storyMaker.videoWorkers = workers
+            val ms = time { storyMaker.churn() }
+            log("$workers video worker(s)", ms, storyMaker)
+        }
+    }
+
+    /**
+     * Export the story into an empty segment store, again unchanged, and again after lengthening
+     * the narration of one slide.
+     */
+    @Test
+    fun benchmarkReexport() {
+        val store = VideoSegmentStore(context, "$PROJECT_DIR/${VideoSegmentStore.SEGMENT_DIR}_benchmark", mDirRoot = story.title)
+        store.clear()
+
+        val edited = pages.copyOf()
+        val i = pages.size / 2
+        val page = pages[i]
+        edited[i] = StoryPage(page.imRelPath, page.narrationAudioPath, page.audioDuration + 1000000, page.kenBurnsEffect,
+                page.textOverlay, page.soundtrackAudioPath, page.soundtrackVolume, page.sType, page.dirRoot)
+
+        try {
+            for ((name, run) in listOf("full export" to pages, "unchanged re-export" to pages, "re-export after editing slide $i" to edited)) {
+                val storyMaker = createStoryMaker(run)
+                storyMaker.videoWorkers = AutoStoryMaker.VIDEO_WORKERS
+                storyMaker.segmentStore = store
+                val ms = time { storyMaker.churn() }
+                log("$name reusing ${storyMaker.reusedSegmentCount} of ${storyMaker.segmentCount} segments", ms, storyMaker)
+            }
+        } finally {
+            store.clear()
+        }
+    }
+
+    /**
+     * Render the story with slide images decoded on the drawing thread and decoded ahead of time,
+     * logging the frame time percentiles of each.
+     */
+    @Test
+    fun compareSlidePrefetch() {
+        val lookAhead = StoryFrameDrawer.slideLookAhead
+        try {
+            for (slides in intArrayOf(0, SlideBitmapLoader.LOOK_AHEAD)) {
+                StoryFrameDrawer.slideLookAhead = slides
+                val storyMaker = createStoryMaker(pages)
+                val ms = time { storyMaker.churn() }
+                log("decoding $slides slides ahead", ms, storyMaker)
+                val drawer = storyMaker.perfReport?.getComponent(StoryFrameDrawer.TAG) ?: continue
+                Log.i(TAG, "decoding $slides slides ahead: frame time p50 ${drawer.workP50Ms} ms, "
+                        + "p90 ${drawer.workP90Ms} ms, p99 ${drawer.workP99Ms} ms over ${drawer.buffers} frames")
+            }
+        } finally {
+            StoryFrameDrawer.slideLookAhead = lookAhead
+        }
+    }
+
+    /**
+     * Read the duration of every narration by opening the file, from the audio index as saved in
+     * the story and from the index once loaded, logging the time per slide of each.
+     */
+    @Test
+    fun benchmarkDurations() {
+        val paths = pages.map { it.narrationAudioPath }.filter { it != "" }
+        Assume.assumeFalse(paths.isEmpty())
+        AudioInfoIndex.unload()
+        val runs = listOf<Pair<String, (String) -> Long>>(
+                "opening every file" to { path -> MediaHelper.getAudioDuration(context, getStoryUri(path, story.title)!!) },
+                "saved audio index" to { path -> AudioInfoIndex.getDuration(context, path, story.title) },
+                "loaded audio index" to { path -> AudioInfoIndex.getDuration(context, path, story.title) })
+        for ((name, getDuration) in runs) {
+            val start = System.nanoTime()
+            for (path in paths) {
+                getDuration(path)
+            }
+            val ms = (System.nanoTime() - start) / 1000000.0
+            Log.i(TAG, "durations of ${paths.size} slides by $name took "
+                    + MediaHelper.getDecimal(ms) + " ms (" + MediaHelper.getDecimal(ms / paths.size) + " ms per slide)")
+        }
+    }
+
+    private fun createStoryMaker(pages: Array<StoryPage>): StoryMaker {
+        benchmarkFile.delete()
+        return StoryMaker(context, benchmarkFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4,
+                maker.generateVideoFormat(), maker.generateAudioFormat(), pages,
+                AutoStoryMaker.AUDIO_TRANSITION_US, AutoStoryMaker.SLIDE_CROSS_FADE_US)
+    }
+
+    private fun time(run: () -> Unit): Long {
+        val start = System.currentTimeMillis()
+        run()
+        return System.currentTimeMillis() - start
+    }
+
+    private fun log(name: String, ms: Long, storyMaker: StoryMaker) {
+        val report = storyMaker.perfReport
+        Log.i(TAG, "$name: " + MediaHelper.getDecimal(ms / 1000.0) + " seconds for ${pages.size} pages"
+                + " (success: ${storyMaker.isSuccess}, cpu ${report?.cpuMs} ms)")
+    }
+
+    companion object {
+        private const val TAG = "ExportBenchmark"
+    }
+}
@@ -2,6 +2,11 @@ package org.sil.storyproducer
 
 import android.app.Application
 import android.content.Context
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleObserver
+import androidx.lifecycle.OnLifecycleEvent
+import androidx.lifecycle.ProcessLifecycleOwner
+import org.sil.storyproducer.service.PersistenceService
 import timber.log.Timber
 
 class App : Application() {
@@ -14,6 +19,14 @@ class App : Application() {
         super.onCreate()
         appContext = applicationContext
         initTimber()
+
+        //Write unsaved changes when the app goes to the background, where it may be killed.
+        ProcessLifecycleOwner.get().lifecycle.addObserver(object : LifecycleObserver {
+            @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
+            fun onBackground() {
+                PersistenceService.flushAsync()
+            }
+        })
     }
 
     fun initTimber() {
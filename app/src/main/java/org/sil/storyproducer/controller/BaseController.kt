@@ -2,14 +2,24 @@ package org.sil.storyproducer.controller
 
 import android.content.Context
 import androidx.documentfile.provider.DocumentFile
+import io.reactivex.Flowable
 import io.reactivex.Single
 import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.CompositeDisposable
 import io.reactivex.schedulers.Schedulers
 import org.sil.storyproducer.App
+import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StorySummary
+import org.sil.storyproducer.model.StorySummaryIndex
 import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.model.isZipped
+import org.sil.storyproducer.model.readStoryOrTemplate
+import org.sil.storyproducer.service.ExportQueue
 import org.sil.storyproducer.view.BaseActivityView
 import timber.log.Timber
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 open class BaseController(
         val view: BaseActivityView,
@@ -17,6 +27,7 @@ open class BaseController(
 ) {
 
     protected val subscriptions = CompositeDisposable()
+    @Volatile
     private var cancelUpdate = false
 
     fun cancelUpdate() {
@@ -25,65 +36,118 @@ open class BaseController(
     }
 
     fun updateStories(migrate: Boolean = false) {
-        Workspace.asyncAddedStories.clear() // used for adding stories asynchronously
+        cancelUpdate = false
+        Workspace.unloadStories()   // read the full Stories again when they are opened
 
         val storyFiles = Workspace.storyFilesToScanOrUnzipOrMove(migrate)
 
         if (storyFiles.size > 0) {
             updateStoriesAsync(1, storyFiles.size, storyFiles)
         } else {
+            Workspace.Stories.clear()
             onLastStoryUpdated()
         }
     }
 
+    /**
+     * Read the stories of [files] in the background, a few at a time, adding the summary of each
+     * one to [Workspace.Stories] (on the main thread) as soon as it is ready.
+     *
+     * Each story goes through three stages: unpacking (moving it from an old workspace or
+     * unzipping it), parsing, and writing its story.json. Each stage has its own limit on how
+     * many stories it works on at once, so a slow unzip does not hold up parsing. Stories whose
+     * summary is still valid (see [StorySummaryIndex]) skip all three.
+     */
     fun updateStoriesAsync(current: Int, total: Int, files: List<DocumentFile>) {
         view.showReadingTemplatesDialog(this)
-        updateStoryAsync(files, 0, current, total)
-    }
+        Workspace.Stories.clear()   // the Stories are added back as they are read
 
-    fun updateStoryAsync(files: List<DocumentFile>, index: Int, current: Int, total: Int) {
-        val file = files.get(index)
-        view.updateReadingTemplatesDialog(current, total, file.name.orEmpty())
+        val stats = ImportStats()
+        var done = current - 1
         subscriptions.add(
-                Single.fromCallable {   // this code creates a background thread for adding Stories
-                    Workspace.buildStory(context, file)?.also { // build or unzip a story in the background
-                        Workspace.asyncAddedStories.add(it) // Add a Story in this background thread
-                    }
-                }
-                        .subscribeOn(Schedulers.io())
+                Flowable.fromIterable(files)
+                        .takeWhile { !cancelUpdate }
+                        .flatMapSingle({ item -> inBackground { unpackStory(ImportItem(item), stats) } }, false, UNPACK_THREADS)
+                        .flatMapSingle({ item -> inBackground { parseStory(item, stats) } }, false, PARSE_THREADS)
+                        .flatMapSingle({ item -> inBackground { saveStory(item, stats) } }, false, SAVE_THREADS)
+                        .doOnComplete { saveSummaries(files) }
                         .observeOn(AndroidSchedulers.mainThread())
-                        .subscribe({ onUpdateStoryAsync(files, index, current, total) }, { onUpdateStoryAsyncError(it, files, index, current, total) })
+                        .subscribe({ item ->
+                            done++
+                            view.updateReadingTemplatesDialog(done, total, item.file.name.orEmpty())
+                            item.summary?.also { Workspace.Stories.add(it) }
+                        }, {
+                            Timber.e(it)
+                            onLastStoryUpdated()
+                        }, {
+                            stats.log(done - current + 1)
+                            onLastStoryUpdated()
+                        })
         )
     }
 
-    private fun onUpdateStoryAsync(files: List<DocumentFile>, index: Int, current: Int, total: Int) {
-        val nextIndex = index + 1
-        if (!cancelUpdate && nextIndex < files.size) {
-            updateStoryAsync(files, nextIndex, current + 1, total)
-        } else {
-            onLastStoryUpdated()
+    private fun inBackground(stage: () -> ImportItem): Single<ImportItem> {
+        return Single.fromCallable { stage() }.subscribeOn(Schedulers.io())
+    }
+
+    private fun unpackStory(item: ImportItem, stats: ImportStats): ImportItem {
+        if (!cancelUpdate) {
+            stats.time(stats.unpackNanos, item) {
+                // an installed story that has not changed since it was last read
+                item.summary = item.file.name?.let { StorySummaryIndex.getValid(context, it) }
+                if (item.summary != null) {
+                    stats.indexed.incrementAndGet()
+                } else {
+                    item.folder = Workspace.unpackStory(context, item.file)
+                }
+            }
         }
+        return item
     }
 
-    private fun onUpdateStoryAsyncError(th: Throwable, files: List<DocumentFile>, index: Int, current: Int, total: Int) {
-        Timber.e(th)
-        onUpdateStoryAsync(files, index, current, total)
+    private fun parseStory(item: ImportItem, stats: ImportStats): ImportItem {
+        val folder = item.folder ?: return item
+        stats.time(stats.parseNanos, item) {
+            readStoryOrTemplate(context, folder)?.also { (story, isNew) ->
+                item.story = story
+                item.isNew = isNew
+            }
+        }
+        return item
     }
 
-    private fun onLastStoryUpdated() {
-        // now update Stories on the main thread to prevent crash
-        Workspace.Stories.clear()   // clear the visible list of Stories
-        for (story in Workspace.asyncAddedStories) {
-            Workspace.Stories.add(story)    // add individual found Stories
+    private fun saveStory(item: ImportItem, stats: ImportStats): ImportItem {
+        val story = item.story ?: return item
+        stats.time(stats.saveNanos, item) {
+            Workspace.saveStory(context, story, item.isNew)?.also {
+                item.summary = StorySummaryIndex.put(context, it)
+            }
         }
-        Workspace.asyncAddedStories.clear() // clear the async Stories for next time
+        return item
+    }
 
+    /**
+     * Save the summaries of the stories read, dropping those of stories no longer there.
+     */
+    private fun saveSummaries(files: List<DocumentFile>) {
+        if (!cancelUpdate) {
+            // zipped stories are unzipped into a folder named after the zip file
+            StorySummaryIndex.retain(context, files.mapNotNull { file ->
+                file.name?.let { if (isZipped(it)) it.substringBeforeLast(".") else it }
+            })
+        }
+        StorySummaryIndex.save(context)
+    }
+
+    private fun onLastStoryUpdated() {
         Workspace.sortStoriesByTitle()
         Workspace.phases = Workspace.buildPhases()
         Workspace.activePhaseIndex = 0
 
         Workspace.importWordLinks(App.appContext)   // import word links if just migrated
 
+        ExportQueue.resume(App.appContext)  // finish videos queued before the app was closed
+
         view.hideReadingTemplatesDialog()
 
         onStoriesUpdated()
@@ -103,4 +167,54 @@ open class BaseController(
         view.showMain()
     }
 
+    companion object {
+        //Unpacking and saving mostly wait on storage; parsing Bloom books also decodes images.
+        private const val UNPACK_THREADS = 2
+        private val PARSE_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2))
+        private const val SAVE_THREADS = 2
+    }
+
+    /**
+     * A story file on its way through the stages of [updateStoriesAsync].
+     */
+    private class ImportItem(val file: DocumentFile) {
+        var folder: DocumentFile? = null
+        var story: Story? = null
+        var isNew = false
+        var summary: StorySummary? = null
+    }
+
+    /**
+     * Time spent in each stage of reading the stories, added up over all the stories.
+     */
+    private class ImportStats {
+        private val startTime = System.nanoTime()
+        val unpackNanos = AtomicLong()
+        val parseNanos = AtomicLong()
+        val saveNanos = AtomicLong()
+        val indexed = AtomicInteger()
+
+        /**
+         * Run a stage of [item], adding its time to [total]. A failure leaves the item as it was.
+         */
+        fun time(total: AtomicLong, item: ImportItem, stage: () -> Unit) {
+            val start = System.nanoTime()
+            try {
+                stage()
+            } catch (e: Exception) {
+                Timber.e(e, "Unable to read story %s", item.file.name)
+            } finally {
+                total.addAndGet(System.nanoTime() - start)
+            }
+        }
+
+        fun log(count: Int) {
+            val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)
+            Timber.i("Read %d stories (%d from their summaries) in %d ms (%.1f per minute); unpacking %d ms, parsing %d ms, saving %d ms",
+                    count, indexed.get(), elapsedMs, if (elapsedMs > 0) count * 60000.0 / elapsedMs else 0.0,
+                    TimeUnit.NANOSECONDS.toMillis(unpackNanos.get()),
+                    TimeUnit.NANOSECONDS.toMillis(parseNanos.get()),
+                    TimeUnit.NANOSECONDS.toMillis(saveNanos.get()))
+        }
+    }
 }
@@ -29,7 +29,7 @@ import org.sil.storyproducer.controller.storylist.StoryPageAdapter
 import org.sil.storyproducer.controller.storylist.StoryPageTab
 import org.sil.storyproducer.model.Phase
 import org.sil.storyproducer.model.PhaseType
-import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StorySummary
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.tools.Network.ConnectivityStatus
 import org.sil.storyproducer.tools.Network.VolleySingleton
@@ -147,7 +147,13 @@ class MainActivity : BaseActivity(), Serializable {
     /**
      * move to the chosen story
      */
-    fun switchToStory(story: Story) {
+    fun switchToStory(summary: StorySummary) {
+        // only the summary of a story is read for the list; read the rest of it now
+        val story = Workspace.loadStory(this, summary.title)
+        if (story == null) {
+            Snackbar.make(findViewById(R.id.drawer_layout), R.string.story_open_error, Snackbar.LENGTH_LONG).show()
+            return
+        }
         Workspace.activeStory = story
         val intent = Intent(this.applicationContext, Workspace.activePhase.getTheClass())
         startActivity(intent)
@@ -10,7 +10,7 @@ import android.view.View
 import android.view.ViewGroup
 import android.widget.*
 import org.sil.storyproducer.R
-import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StorySummary
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.service.SlideService
 
@@ -51,7 +51,7 @@ class StoryListFrag : androidx.fragment.app.Fragment() {
 
 }
 
-class ListAdapter(context: Context, private val resourceId: Int, private val stories: MutableList<Story>) : ArrayAdapter<Story>(context, resourceId, stories) {
+class ListAdapter(context: Context, private val resourceId: Int, private val stories: MutableList<StorySummary>) : ArrayAdapter<StorySummary>(context, resourceId, stories) {
 
     override fun getView(position: Int, convertView: View?, parent: ViewGroup): View {
         var row = convertView
@@ -72,8 +72,8 @@ class ListAdapter(context: Context, private val resourceId: Int, private val sto
             holder.txtTitle.text = story.title
             //TODO put th number 8 in some configuration.  What if the images are different sizes?
             //Use the "second" image, because the first is just for the title screen.
-            holder.imgIcon.setImageBitmap(SlideService(context).getImage(1, 8, story))
-            holder.txtSubTitle.text = story.slides[0].subtitle
+            holder.imgIcon.setImageBitmap(SlideService(context).getImage(8, story))
+            holder.txtSubTitle.text = story.subtitle
             holder.txtLangCode.text = story.langCode
         }
 
@@ -22,8 +22,14 @@ import org.sil.storyproducer.model.logging.saveLog
 import org.sil.storyproducer.tools.file.*
 import org.sil.storyproducer.tools.media.AudioPlayer
 import org.sil.storyproducer.tools.toolbar.RecordingToolbar
+import org.sil.storyproducer.view.WaveformView
 
-class RecordingsListAdapter(val values: MutableList<String>?, private val listeners: ClickListeners) : RecyclerView.Adapter<RecordingsListAdapter.ViewHolder>() {
+/**
+ * @param audioPaths story relative paths of the recordings, in the order of [values], to show
+ * their waveforms.
+ */
+class RecordingsListAdapter(val values: MutableList<String>?, private val listeners: ClickListeners,
+                            private val audioPaths: List<String>? = null) : RecyclerView.Adapter<RecordingsListAdapter.ViewHolder>() {
 
     interface ClickListeners {
         fun onRowClick(pos: Int)
@@ -59,6 +65,12 @@ class RecordingsListAdapter(val values: MutableList<String>?, private val listen
         }
     }
 
+    override fun onViewRecycled(holder: ViewHolder) {
+        //Don't decode a recording that has scrolled away.
+        holder.itemView.findViewById<WaveformView>(R.id.audio_comment_waveform).clear()
+        super.onViewRecycled(holder)
+    }
+
     inner class ViewHolder(itemView: View) : RecyclerView.ViewHolder(itemView) {
 
         fun bindView(text: String) {
@@ -75,6 +87,16 @@ class RecordingsListAdapter(val values: MutableList<String>?, private val listen
             val messageButton = itemView.findViewById<TextView>(R.id.audio_comment_title)
             messageButton.text = text
 
+            val waveform = itemView.findViewById<WaveformView>(R.id.audio_comment_waveform)
+            val audioPath = audioPaths?.getOrNull(adapterPosition)
+            if (audioPath != null) {
+                waveform.visibility = View.VISIBLE
+                waveform.setRecording(audioPath)
+            } else {
+                waveform.visibility = View.GONE
+                waveform.clear()
+            }
+
             val playButton = itemView.findViewById<ImageButton>(R.id.audio_comment_play_button)
             playButton.setOnClickListener {
                 listeners.onPlayClick(adapterPosition, it as ImageButton)
@@ -146,6 +168,7 @@ class RecordingsListAdapter(val values: MutableList<String>?, private val listen
         private var rootView: ViewGroup? = null
         private var dialog: AlertDialog? = null
         private var displayNames: MutableList<String> = mutableListOf()
+        private var audioPaths: MutableList<String> = mutableListOf()
         internal var recyclerView: androidx.recyclerview.widget.RecyclerView? = null
         private val audioPlayer: AudioPlayer = AudioPlayer()
         private var currentPlayingButton: ImageButton? = null
@@ -182,7 +205,7 @@ class RecordingsListAdapter(val values: MutableList<String>?, private val listen
             recyclerView = rootView?.findViewById(R.id.recordings_list)
 
             resetRecordingList()
-            recyclerView?.adapter = RecordingsListAdapter(displayNames, this)
+            recyclerView?.adapter = RecordingsListAdapter(displayNames, this, audioPaths)
             recyclerView?.addItemDecoration(androidx.recyclerview.widget.DividerItemDecoration(context, androidx.recyclerview.widget.DividerItemDecoration.VERTICAL))
             recyclerView?.layoutManager = androidx.recyclerview.widget.LinearLayoutManager(context)
 
@@ -215,7 +238,8 @@ class RecordingsListAdapter(val values: MutableList<String>?, private val listen
             val newNames = getRecordedDisplayNames(slideNum) ?:  mutableListOf()
             if(!displayNames.equals(newNames)) {
                 displayNames = newNames
-                recyclerView?.adapter = RecordingsListAdapter(displayNames, this)
+                audioPaths = getRecordedAudioFiles(slideNum)
+                recyclerView?.adapter = RecordingsListAdapter(displayNames, this, audioPaths)
             }
         }
 
@@ -264,6 +288,9 @@ class RecordingsListAdapter(val values: MutableList<String>?, private val listen
                 deleteAudioFileFromList(context,pos)
             }
             displayNames.removeAt(pos)
+            if (pos < audioPaths.size) {
+                audioPaths.removeAt(pos)
+            }
             recyclerView?.adapter!!.notifyDataSetChanged()
             if ("${Workspace.activeDir}/$name" == getChosenDisplayName()) {
                 if (displayNames.size > 0) {
@@ -15,12 +15,13 @@ import org.sil.storyproducer.R
 import org.sil.storyproducer.controller.phase.PhaseBaseActivity
 import org.sil.storyproducer.model.VIDEO_DIR
 import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.service.ExportJob
+import org.sil.storyproducer.service.ExportQueue
 import org.sil.storyproducer.tools.file.workspaceRelPathExists
-import org.sil.storyproducer.tools.media.story.AutoStoryMaker
 import org.sil.storyproducer.tools.stripForFilename
 
 
-class FinalizeActivity : PhaseBaseActivity() {
+class FinalizeActivity : PhaseBaseActivity(), ExportQueue.Listener {
 
     private lateinit var mEditTextTitle: EditText
     private lateinit var mLayoutConfiguration: View
@@ -48,41 +49,8 @@ class FinalizeActivity : PhaseBaseActivity() {
         return "$num${name}_$ethno$fx$px$mv$tx$sg.mp4"
     }
 
-    private var mProgressUpdater: Thread? = null
-
-    private val PROGRESS_UPDATER = Runnable {
-        var isDone = false
-        while (!isDone) {
-            try {
-                Thread.sleep(100)
-            } catch (e: InterruptedException) {
-                //If progress updater is interrupted, just stop.
-                return@Runnable
-            }
-
-            var progress: Double
-            synchronized(storyMakerLock) {
-                //Stop if storyMaker was cancelled by someone else.
-                if (storyMaker == null) {
-                    updateProgress(0)
-                    return@Runnable
-                }
-
-                progress = storyMaker!!.progress
-                isDone = storyMaker!!.isDone
-            }
-            updateProgress((progress * PROGRESS_MAX).toInt())
-        }
-        val isSuccess = storyMaker!!.isSuccess
-
-        runOnUiThread {
-            stopExport()
-            if(isSuccess)
-                Toast.makeText(baseContext, "Video created!", Toast.LENGTH_LONG).show()
-            else
-                Toast.makeText(baseContext, "Error!", Toast.LENGTH_LONG).show()
-        }
-    }
+    //The export of this story in the ExportQueue, while it is queued or running.
+    private var mJobId: String? = null
 
     /**
      * Unlock the start/cancel buttons after a brief time period.
@@ -101,8 +69,6 @@ class FinalizeActivity : PhaseBaseActivity() {
         }
     }
 
-    private var storyMaker: AutoStoryMaker? = null
-
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_finalize)
@@ -119,7 +85,6 @@ class FinalizeActivity : PhaseBaseActivity() {
     override fun onResume() {
         super.onResume()
         loadPreferences()
-        toggleVisibleElements()
         watchProgress()
 
         //attach the listeners after everything else is setup.
@@ -130,7 +95,7 @@ class FinalizeActivity : PhaseBaseActivity() {
     }
 
     override fun onPause() {
-        mProgressUpdater!!.interrupt()
+        ExportQueue.removeListener(this)
         savePreferences()
 
         super.onPause()
@@ -290,12 +255,9 @@ class FinalizeActivity : PhaseBaseActivity() {
     private fun toggleVisibleElements(currentCheckbox: CheckBox? = null) {
         var visibilityPreExport = View.VISIBLE
         var visibilityWhileExport = View.GONE
-        synchronized(storyMakerLock) {
-            if (storyMaker != null) {
-
-                visibilityPreExport = View.GONE
-                visibilityWhileExport = View.VISIBLE
-            }
+        if (mJobId != null) {
+            visibilityPreExport = View.GONE
+            visibilityWhileExport = View.VISIBLE
         }
 
         mLayoutConfiguration.visibility = visibilityPreExport
@@ -401,45 +363,65 @@ class FinalizeActivity : PhaseBaseActivity() {
 
     private fun startExport() {
         savePreferences()
-        synchronized(storyMakerLock) {
-            storyMaker = AutoStoryMaker(this)
-
-            storyMaker!!.mIncludeBackgroundMusic = mCheckboxSoundtrack.isChecked
-            storyMaker!!.mIncludePictures = mCheckboxPictures.isChecked
-            storyMaker!!.mIncludeText = mCheckboxText.isChecked
-            storyMaker!!.mIncludeKBFX = mCheckboxKBFX.isChecked
-            storyMaker!!.mIncludeSong = mCheckboxSong.isChecked
-
-            storyMaker!!.videoRelPath = mOutputPath
+        //The video is made by the ExportService, which keeps going if this screen is left.
+        val job = ExportJob(Workspace.activeStory.title, mOutputPath,
+                includeBackgroundMusic = mCheckboxSoundtrack.isChecked,
+                includePictures = mCheckboxPictures.isChecked,
+                includeText = mCheckboxText.isChecked,
+                includeKBFX = mCheckboxKBFX.isChecked,
+                includeSong = mCheckboxSong.isChecked)
+        if (!ExportQueue.enqueue(this, job)) {
+            Toast.makeText(this, getString(R.string.export_already_queued), Toast.LENGTH_LONG).show()
         }
-
-        storyMaker!!.start()
         watchProgress()
     }
 
     private fun stopExport() {
-        synchronized(storyMakerLock) {
-            if (storyMaker != null) {
-                storyMaker!!.close()
-                storyMaker = null
-            }
+        val jobId = mJobId
+        mJobId = null
+        if (jobId != null) {
+            ExportQueue.cancel(this, jobId)
         }
+        updateProgress(0.0)
         //update the list view
         toggleVisibleElements()
     }
 
+    /**
+     * Follow the export of this story, if it has one queued or running.
+     */
     private fun watchProgress() {
-        mProgressUpdater = Thread(PROGRESS_UPDATER)
-        mProgressUpdater!!.start()
+        ExportQueue.addListener(this)
+        val job = ExportQueue.getUnfinishedJob(this, Workspace.activeStory.title)
+        mJobId = job?.id
+        updateProgress(if (job == null) 0.0 else ExportQueue.getProgress(job))
+        toggleVisibleElements()
+    }
+
+    override fun onExportJobChanged(job: ExportJob) {
+        if (job.id != mJobId) {
+            return
+        }
+        if (!job.isFinished) {
+            updateProgress(ExportQueue.getProgress(job))
+            return
+        }
+
+        mJobId = null
+        updateProgress(0.0)
         toggleVisibleElements()
+        if (job.status == ExportJob.Status.DONE)
+            Toast.makeText(baseContext, "Video created!", Toast.LENGTH_LONG).show()
+        else if (job.status == ExportJob.Status.FAILED)
+            Toast.makeText(baseContext, "Error!", Toast.LENGTH_LONG).show()
     }
 
-    private fun updateProgress(progress: Int) {
-        runOnUiThread { mProgressBar.progress = progress }
+    private fun updateProgress(progress: Double) {
+        mProgressBar.progress = (progress * PROGRESS_MAX).toInt()
     }
 
     /**
-     * Lock the start/cancel buttons temporarily to give the StoryMaker some time to get started/stopped.
+     * Lock the start/cancel buttons temporarily to give the export some time to get started/stopped.
      */
     private fun lockButtons() {
         buttonLocked = true
@@ -467,6 +449,5 @@ class FinalizeActivity : PhaseBaseActivity() {
 
         @Volatile
         private var buttonLocked = false
-        private val storyMakerLock = Any()
     }
 }
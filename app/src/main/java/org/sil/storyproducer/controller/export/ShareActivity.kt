@@ -14,6 +14,8 @@ import org.sil.storyproducer.R
 import org.sil.storyproducer.controller.phase.PhaseBaseActivity
 import org.sil.storyproducer.model.VIDEO_DIR
 import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.service.ExportJob
+import org.sil.storyproducer.service.ExportQueue
 import org.sil.storyproducer.tools.file.getChildDocuments
 import org.sil.storyproducer.tools.file.getWorkspaceUri
 import com.hbisoft.pickit.Utils
@@ -23,7 +25,7 @@ import com.hbisoft.pickit.Utils
  * Created by annmcostantino on 10/1/2017.
  */
 //TODO: Cleanup all the useless stuff here
-class ShareActivity : PhaseBaseActivity(), RefreshViewListener {
+class ShareActivity : PhaseBaseActivity(), RefreshViewListener, ExportQueue.Listener {
 
     private var mShareSection: LinearLayout? = null
     private var mNoVideosText: TextView? = null
@@ -61,6 +63,24 @@ class ShareActivity : PhaseBaseActivity(), RefreshViewListener {
         }
     }
 
+    override fun onResume() {
+        super.onResume()
+        //Show videos made by the export queue while this screen was away.
+        ExportQueue.addListener(this)
+        refreshViews()
+    }
+
+    override fun onPause() {
+        ExportQueue.removeListener(this)
+        super.onPause()
+    }
+
+    override fun onExportJobChanged(job: ExportJob) {
+        if (job.storyTitle == story.title && job.status == ExportJob.Status.DONE) {
+            refreshViews()
+        }
+    }
+
     private fun initView() {
         //Initialize sectionViews[] with the integer id's of the various LinearLayouts
         //Add the listeners to the LinearLayouts's header section.
@@ -16,10 +16,9 @@ import org.sil.storyproducer.model.SlideType
 import org.sil.storyproducer.model.Story
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.model.logging.saveLearnLog
-import org.sil.storyproducer.tools.file.getStoryUri
 import org.sil.storyproducer.tools.file.storyRelPathExists
+import org.sil.storyproducer.tools.media.AudioInfoIndex
 import org.sil.storyproducer.tools.media.AudioPlayer
-import org.sil.storyproducer.tools.media.MediaHelper
 import org.sil.storyproducer.tools.toolbar.PlayBackRecordingToolbar
 import java.io.File
 import java.util.*
@@ -108,8 +107,8 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
             if (s.slideType in arrayOf(SlideType.FRONTCOVER, SlideType.NUMBEREDPAGE)) {
                 numOfSlides++
                 if (s.narrationFile.isNotEmpty()) {
-                    slideDurations.add((MediaHelper.getAudioDuration(this,
-                            getStoryUri(Story.getFilename(s.narrationFile))!!) / 1000).toInt())
+                    slideDurations.add((AudioInfoIndex.getDuration(this,
+                            Story.getFilename(s.narrationFile)) / 1000).toInt())
                 } else {
                     slideDurations.add(AudioPlayer.dummyDurationInMilliseconds) // Add a dummy 2s slide for missing audio message
                 }
@@ -118,6 +117,7 @@ class LearnActivity : PhaseBaseActivity(), PlayBackRecordingToolbar.ToolbarMedia
                 break
             }
         }
+        AudioInfoIndex.save(this)
         videoSeekBar?.max = slideStartTimes.last()
 
         // Adjust the Guideline control to scale the video view for 4:3 videos (also used for 16:9 videos)
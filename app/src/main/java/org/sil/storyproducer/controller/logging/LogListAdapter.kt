@@ -11,6 +11,7 @@ import android.widget.TextView
 import org.sil.storyproducer.R
 import org.sil.storyproducer.model.PhaseType
 import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.model.logging.ActivityLog
 import org.sil.storyproducer.model.logging.LogEntry
 
 import java.util.ArrayList
@@ -20,16 +21,23 @@ internal class LogListAdapter(private val context: Context, slide: Int) : BaseAd
     private val allEntries = ArrayList<LogEntry>()
     private var displayEntries = ArrayList<LogEntry>()
 
+    //The phases last chosen, applied again once the entries are read.
+    private var learn = true
+    private var transRevise = true
+    private var commWork = true
+
     init {
-        for (le in Workspace.activeStory.activityLogs) {
-            if (le.appliesToSlideNum(slide)) {
-                allEntries.add(le)
-            }
+        //Read off the main thread; the list fills in once the log has been read.
+        ActivityLog.getEntries(context, Workspace.activeStory, slide) { entries ->
+            allEntries.addAll(entries)
+            updateList(learn, transRevise, commWork)
         }
-        displayEntries = allEntries
     }
 
     fun updateList(learn: Boolean, transRevise: Boolean, commWork: Boolean) {
+        this.learn = learn
+        this.transRevise = transRevise
+        this.commWork = commWork
         displayEntries = ArrayList()
         for (le in allEntries) {
             when(le.phase.phaseType){
@@ -22,7 +22,7 @@ import org.sil.storyproducer.activities.BaseActivity
 import org.sil.storyproducer.model.Phase
 import org.sil.storyproducer.model.Story
 import org.sil.storyproducer.model.Workspace
-import org.sil.storyproducer.model.toJson
+import org.sil.storyproducer.service.PersistenceService
 import org.sil.storyproducer.service.SlideService
 import org.sil.storyproducer.tools.BitmapScaler
 import org.sil.storyproducer.tools.DrawerItemClickListener
@@ -68,8 +68,8 @@ abstract class PhaseBaseActivity : BaseActivity(), AdapterView.OnItemSelectedLis
 
         // Issue #503, it is possible for the user to change workspaces causing a rouge story
         // to save. Instead, ensure that the story exists in the current workspace before saving.
-        if(Workspace.Stories.contains(story)) {
-            Thread(Runnable { story.toJson(this) }).start()
+        if(Workspace.isStoryLoaded(story)) {
+            PersistenceService.saveStoryLater(this, story)
         }
     }
 
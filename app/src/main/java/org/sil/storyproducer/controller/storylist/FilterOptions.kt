@@ -2,6 +2,7 @@ package org.sil.storyproducer.controller.storylist
 
 import org.sil.storyproducer.R
 import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StorySummary
 import org.sil.storyproducer.model.Workspace
 
 /**
@@ -12,7 +13,7 @@ import org.sil.storyproducer.model.Workspace
  * Example:
  *
  * Film(R.string.film_toolbar) {
- *  override fun getStoryList(): List<Story> {
+ *  override fun getStoryList(): List<StorySummary> {
  *
  *  // Tells what stories should be added when clicked
  *      return Workspace.Stories.filter { story ->
@@ -45,7 +46,7 @@ enum class FilterOptions(val nameId: Int) {
     // These names "Other", "OT" & "NT" are define in strings.xml
 
     Other(R.string.other_toolbar) {
-        override fun getStoryList(): List<Story> {
+        override fun getStoryList(): List<StorySummary> {
             return Workspace.Stories.filter { story ->
                 story.type == Story.StoryType.OTHER
             }
@@ -53,7 +54,7 @@ enum class FilterOptions(val nameId: Int) {
     },
 
     OT(R.string.ot_toolbar) {
-        override fun getStoryList(): List<Story> {
+        override fun getStoryList(): List<StorySummary> {
             return Workspace.Stories.filter { story ->
                 story.type == Story.StoryType.OLD_TESTAMENT
             }
@@ -61,7 +62,7 @@ enum class FilterOptions(val nameId: Int) {
     },
 
     NT(R.string.nt_toolbar) {
-        override fun getStoryList(): List<Story> {
+        override fun getStoryList(): List<StorySummary> {
             return Workspace.Stories.filter { story ->
                 story.type == Story.StoryType.NEW_TESTAMENT
             }
@@ -70,5 +71,5 @@ enum class FilterOptions(val nameId: Int) {
 
 
 
-    abstract fun getStoryList() : List<Story>
+    abstract fun getStoryList() : List<StorySummary>
 }
\ No newline at end of file
@@ -8,7 +8,7 @@ import androidx.fragment.app.Fragment
 import com.google.android.material.chip.Chip
 import com.google.android.material.chip.ChipGroup
 import org.sil.storyproducer.R
-import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StorySummary
 
 /**
  * FilterToolbarFrag is the child filter element that is contained in a StoryListFragment.
@@ -48,7 +48,7 @@ class FilterToolbarFrag(): Fragment() {
     }
 
     private fun registerFilterChanged() {
-        var newStoryList = mutableListOf<Story>()
+        var newStoryList = mutableListOf<StorySummary>()
 
         filterChipGroup.checkedChipIds.forEach { id ->
             val filterStoryList = FilterOptions.values()[id].getStoryList()
@@ -13,7 +13,7 @@ import androidx.fragment.app.Fragment
 import androidx.fragment.app.FragmentTransaction
 import org.sil.storyproducer.R
 import org.sil.storyproducer.controller.MainActivity
-import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StorySummary
 import org.sil.storyproducer.service.SlideService
 
 /**
@@ -40,7 +40,7 @@ class StoryPageFragment : Fragment() {
     // via updateStoryList.  So, we stash a copy of the story list in CurrentStoryList so that
     // when a click is performed on a story, we know which story was actually clicked on.
     // CurrentStoryList is used below to start a new activity on a selected story
-    private var CurrentStoryList: List<Story> = emptyList()
+    private var CurrentStoryList: List<StorySummary> = emptyList()
 
     companion object {
         const val ARG_POSITION = "position"
@@ -111,7 +111,7 @@ class StoryPageFragment : Fragment() {
      * are used.
      * @param storyList List of new stories to be used in the ListAdapter
      */
-    fun updateStoryList(storyList: List<Story>) {
+    fun updateStoryList(storyList: List<StorySummary>) {
         // DKH - 07/10/2021 - Issue 407: Add filtering to SP's 'Story Templates' List
         // Updated while integrating pull request #561 into current sillsdev baseline
         //
@@ -136,8 +136,8 @@ class StoryPageFragment : Fragment() {
 
 class ListAdapter(context: Context,
                   private val resourceId: Int,
-                  private val stories: List<Story>,
-                  private val storyPageTab: StoryPageTab) : ArrayAdapter<Story>(context, resourceId, stories) {
+                  private val stories: List<StorySummary>,
+                  private val storyPageTab: StoryPageTab) : ArrayAdapter<StorySummary>(context, resourceId, stories) {
 
     override fun getView(position: Int, convertView: View?, parent: ViewGroup): View {
         var row = convertView
@@ -181,8 +181,8 @@ class ListAdapter(context: Context,
 
             //TODO put th number 8 in some configuration.  What if the images are different sizes?
             //Use the "second" image, because the first is just for the title screen.
-            holder.imgIcon.setImageBitmap(SlideService(context).getImage(1, 8, story))
-            holder.txtSubTitle.text = story.slides[0].subtitle
+            holder.imgIcon.setImageBitmap(SlideService(context).getImage(8, story))
+            holder.txtSubTitle.text = story.subtitle
             holder.txtLangCode.text = story.langCode
 
             // Handle graying out text when story is completed
@@ -1,7 +1,7 @@
 package org.sil.storyproducer.controller.storylist
 
 import org.sil.storyproducer.R
-import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StorySummary
 import org.sil.storyproducer.model.Workspace
 
 /**
@@ -15,13 +15,13 @@ enum class StoryPageTab(val nameId: Int,
                         val hasFilterToolbar : Boolean) {
 
     ALL_STORIES(R.string.all_stories_tab, R.string.stories_not_found_body, true) {
-        override fun getStoryList(): List<Story> {
+        override fun getStoryList(): List<StorySummary> {
             return Workspace.Stories
         }
     },
 
     IN_PROGRESS(R.string.in_progress_tab, R.string.stories_not_found_in_progress, false) {
-        override fun getStoryList(): List<Story> {
+        override fun getStoryList(): List<StorySummary> {
             return Workspace.Stories.filter {
                 story -> story.inProgress && !story.isComplete
             }
@@ -29,7 +29,7 @@ enum class StoryPageTab(val nameId: Int,
     },
 
     COMPLETED(R.string.completed_tab, R.string.stories_not_found_completed, false) {
-        override fun getStoryList(): List<Story> {
+        override fun getStoryList(): List<StorySummary> {
             return Workspace.Stories.filter {
                 story -> story.isComplete
             }
@@ -38,5 +38,5 @@ enum class StoryPageTab(val nameId: Int,
 
     // Allow the story list to be dynamically generated each time
     // this allows the story to be updated
-    abstract fun getStoryList() : List<Story>
+    abstract fun getStoryList() : List<StorySummary>
 }
\ No newline at end of file
@@ -23,7 +23,7 @@ import org.sil.storyproducer.R
 import org.sil.storyproducer.tools.dpToPx
 import org.sil.storyproducer.controller.adapter.RecordingsListAdapter
 import org.sil.storyproducer.model.*
-import org.sil.storyproducer.tools.file.toJson
+import org.sil.storyproducer.service.PersistenceService
 import org.sil.storyproducer.tools.toolbar.PlayBackRecordingToolbar
 import java.util.*
 
@@ -250,6 +250,6 @@ class WordLinksActivity : AppCompatActivity(), PlayBackRecordingToolbar.ToolbarM
     private fun saveWordLink() {
         Workspace.termToWordLinkMap[Workspace.activeWordLink.term] = Workspace.activeWordLink
         val wordLinkList = WordLinkList(Workspace.termToWordLinkMap.values.toList())
-        Thread(Runnable{ let { wordLinkList.toJson(it) } }).start()
+        PersistenceService.saveWordLinksLater(this, wordLinkList)
     }
 }
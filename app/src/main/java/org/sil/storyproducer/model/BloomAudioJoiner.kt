@@ -0,0 +1,63 @@
+package org.sil.storyproducer.model
+
+import android.content.Context
+import android.util.Log
+import androidx.documentfile.provider.DocumentFile
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Joins the sentence audio of the pages of a Bloom book on a few threads while the rest of the
+ * book is parsed (see [parseAndConcatenatePageAudio]). Each page is written to its own file, so
+ * the pages do not depend on each other.
+ */
+class BloomAudioJoiner(private val context: Context) {
+
+    private val mExecutor = Executors.newFixedThreadPool(THREADS)
+    private val mJobs = ArrayList<Pair<String, Future<Boolean>>>()
+
+    /** Narration files that could not be made, once [finish] has returned. */
+    val failed: MutableSet<String> = HashSet()
+
+    /** Number of narration files joined or being joined. */
+    val count: Int
+        get() = mJobs.size
+
+    /**
+     * Join the sentence files of a page into its narration file in the background.
+     * @param narrationFile story relative path of [output], to report if it fails.
+     */
+    fun join(inputs: List<DocumentFile>, output: DocumentFile, narrationFile: String) {
+        mJobs.add(narrationFile to mExecutor.submit(Callable { joinPageAudio(context, inputs, output) }))
+    }
+
+    /**
+     * Wait for every page to be joined, and stop the threads.
+     */
+    fun finish() {
+        try {
+            for ((narrationFile, job) in mJobs) {
+                val success = try {
+                    job.get()
+                } catch (e: ExecutionException) {
+                    Log.w(TAG, "Unable to join $narrationFile", e.cause)
+                    false
+                }
+                if (!success) {
+                    failed.add(narrationFile)
+                }
+            }
+        } finally {
+            mExecutor.shutdown()
+        }
+    }
+
+    companion object {
+        private val TAG = "BloomAudioJoiner"
+
+        //Joining is mostly waiting on storage, which copes with a few files at once.
+        private const val THREADS = 3
+    }
+}
@@ -6,6 +6,8 @@ import org.jsoup.nodes.Element
 
 class NumberedPageSlideBuilder : SlideBuilder() {
 
+    // Image of a page without audio, shown on the next page of the same book
+    var prevPageImage = ""
 
     fun build(context: Context,
                 storyPath: DocumentFile,
@@ -13,13 +15,14 @@ class NumberedPageSlideBuilder : SlideBuilder() {
                 storyAudioMap: MutableMap<String, DocumentFile>,
                 page: Element,
                 lang: String,
-                isSPAuthored: Boolean): Slide? {
+                isSPAuthored: Boolean,
+                audioJoiner: BloomAudioJoiner? = null): Slide? {
 
         val slide = Slide()
         slide.slideType = SlideType.NUMBEREDPAGE
 
         slide.prevPageImageFile = prevPageImage
-        if (!parsePage(context, false, page, slide, storyPath, storyAudioPath, storyAudioMap, lang)) {
+        if (!parsePage(context, false, page, slide, storyPath, storyAudioPath, storyAudioMap, lang, audioJoiner)) {
             prevPageImage = slide.imageFile // no audio in this page but maybe an image file for next page
             return null
         }
@@ -69,8 +72,6 @@ class NumberedPageSlideBuilder : SlideBuilder() {
         const val BLOOM_EDITABLE = "bloom-editable"
         const val BLOOM_TRANSLATION_GROUP = "bloom-translationGroup"
         const val BLOOM_IMAGE_DESCRIPTION = "bloom-imageDescription"
-
-        var prevPageImage = ""
     }
 
 }
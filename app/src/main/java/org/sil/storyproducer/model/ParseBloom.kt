@@ -13,11 +13,16 @@ import org.jsoup.select.Elements
 import org.sil.storyproducer.BuildConfig
 import org.sil.storyproducer.R
 import org.sil.storyproducer.tools.file.*
+import org.sil.storyproducer.tools.media.Mp3Concatenator
+import org.sil.storyproducer.tools.media.story.AutoStoryMaker
+import java.io.BufferedOutputStream
 import java.io.File
+import java.io.FileNotFoundException
 import java.util.*
 
 
 fun parseBloomHTML(context: Context, storyPath: DocumentFile): Story? {
+    val startTime = System.currentTimeMillis()
     //See if there is a BLOOM html file there
     val childDocs = storyPath.listFiles()
     var html_name = ""
@@ -68,12 +73,24 @@ fun parseBloomHTML(context: Context, storyPath: DocumentFile): Story? {
     var slide = Slide()
     val pages = soup.getElementsByAttributeValueContaining("class","numberedPage")
     if(pages.size <= 2) return null
-    NumberedPageSlideBuilder.prevPageImage = "" // no previous images
-
-    for (page in pages) {
-        NumberedPageSlideBuilder()
-                .build(context, storyPath, storyAudioPath, storyAudioMap, page, lang, isSPAuthored)?.also {
-            slides.add(it)
+    // one builder for the whole book, as it carries images over to the next page
+    // (books may be parsed at the same time, so nothing is shared between them)
+    val pageBuilder = NumberedPageSlideBuilder()
+
+    // The sentence audio of each page is joined in the background while the pages are parsed
+    val audioJoiner = BloomAudioJoiner(context)
+    try {
+        for (page in pages) {
+            pageBuilder.build(context, storyPath, storyAudioPath, storyAudioMap, page, lang, isSPAuthored, audioJoiner)?.also {
+                slides.add(it)
+            }
+        }
+    } finally {
+        audioJoiner.finish()
+    }
+    for (s in slides) {
+        if (audioJoiner.failed.contains(s.narrationFile)) {
+            s.narrationFile = ""
         }
     }
 
@@ -103,13 +120,15 @@ fun parseBloomHTML(context: Context, storyPath: DocumentFile): Story? {
         slides.add(slide)
     }
 
+    Log.i("ParseBloom", "Imported ${story.title}: ${slides.size} slides, ${audioJoiner.count} joined narrations, in "
+            + (System.currentTimeMillis() - startTime) + " ms")
     return story
 }
 
 //Image and transition pattern
 val reRect = "([0-9.]+) ([0-9.]+) ([0-9.]+) ([0-9.]+)".toRegex()
 
-fun parsePage(context: Context, frontCoverGraphicProvided: Boolean, page: Element, slide: Slide, storyPath: DocumentFile, storyAudioPath: DocumentFile, storyAudioMap: MutableMap<String, DocumentFile>, lang: String): Boolean {
+fun parsePage(context: Context, frontCoverGraphicProvided: Boolean, page: Element, slide: Slide, storyPath: DocumentFile, storyAudioPath: DocumentFile, storyAudioMap: MutableMap<String, DocumentFile>, lang: String, audioJoiner: BloomAudioJoiner? = null): Boolean {
     val bmOptions = BitmapFactory.Options()
     bmOptions.inJustDecodeBounds = true
 
@@ -119,7 +138,7 @@ fun parsePage(context: Context, frontCoverGraphicProvided: Boolean, page: Elemen
     if (slide.narrationFile.isEmpty()) {
         if (audios.size >= 1) {
             // find first or concatinate all audio sentenses into one narration audio file
-            slide.narrationFile = parseAndConcatenatePageAudio(context, storyAudioPath, storyAudioMap, lang, audios)
+            slide.narrationFile = parseAndConcatenatePageAudio(context, storyAudioPath, storyAudioMap, lang, audios, audioJoiner)
         } else {
             // no audio in this page but maybe an image file for next page
             val images = page.getElementsByAttributeValueContaining("class", "bloom-imageContainer")
@@ -210,11 +229,14 @@ fun parsePage(context: Context, frontCoverGraphicProvided: Boolean, page: Elemen
 
 
 
-fun parseAndConcatenatePageAudio(context: Context, storyAudioPath: DocumentFile, storyAudioMap: MutableMap<String, DocumentFile>, lang: String, audios: Elements): String {
-    // Using ffmpeg to concatenate multiple sentences in one page
-    // ffmpeg -f concat -safe 0 -i mylist.txt -c copy output.mp3
-    // but first we need to copy the source audio files to internal storage
-    // so that ffmpeg can access them.
+/**
+ * Find the sentence audio of a page, joining the sentences into one narration file if there are
+ * several.
+ * @param audioJoiner joins the sentences in the background, or null to join them before returning.
+ * @return story relative path of the narration file, or "" if there is none.
+ */
+fun parseAndConcatenatePageAudio(context: Context, storyAudioPath: DocumentFile, storyAudioMap: MutableMap<String, DocumentFile>, lang: String, audios: Elements,
+                                 audioJoiner: BloomAudioJoiner? = null): String {
     var narrationFile = ""
     var totalInputAudioFiles = 0
     var firstInputAudioFile = ""
@@ -240,12 +262,80 @@ fun parseAndConcatenatePageAudio(context: Context, storyAudioPath: DocumentFile,
         totalInputAudioFiles++
     }
     if (totalInputAudioFiles > 1) {
-        val concatTempFolder = File(context.filesDir, "temp_concat")
-        concatTempFolder.deleteRecursively()
-        concatTempFolder.mkdirs()
+        // search for the output file for all the concatenated files
+        val audioStoryConcatDocFind = storyAudioMap[outputAudioFileName]
+
+        // delete the output file if it already exists (prevents numbered versions being created)
+        if (audioStoryConcatDocFind != null) {
+            storyAudioMap.remove(outputAudioFileName)
+            audioStoryConcatDocFind.delete()
+        }
+
+        // create the concatination output file
+        val audioStoryConcatDoc = storyAudioPath.createFile("", outputAudioFileName)
+        if (audioStoryConcatDoc != null) {
+            // add the concatenated file to the map of "audio" sub-folder files
+            storyAudioMap[outputAudioFileName] = audioStoryConcatDoc
+            narrationFile = "audio/${outputAudioFileName}"
+            if (audioJoiner != null) {
+                audioJoiner.join(audioConcatDocs, audioStoryConcatDoc, narrationFile)
+            } else if (!joinPageAudio(context, audioConcatDocs, audioStoryConcatDoc)) {
+                storyAudioMap.remove(outputAudioFileName)
+                narrationFile = ""
+            }
+        }
+    } else if (totalInputAudioFiles == 1) {
+        narrationFile = firstInputAudioFile   // select the first valid audio filename
+    }
+
+    return narrationFile
+}
+
+/**
+ * Join the sentence files of a page into one narration file, straight from the book's files.
+ * @return true if the narration file was written; if not, it is deleted.
+ */
+fun joinPageAudio(context: Context, inputs: List<DocumentFile>, output: DocumentFile): Boolean {
+    var joined = false
+    try {
+        // If the sentences differ in format (or are not plain mp3s), let FFmpeg try.
+        joined = joinPageFrames(context, inputs, output) || concatenateWithFFmpeg(context, inputs, output)
+    } finally {
+        // Leave no empty or partial narration file in the story's audio folder.
+        if (!joined) {
+            output.delete()
+        }
+    }
+    return joined
+}
+
+private fun joinPageFrames(context: Context, inputs: List<DocumentFile>, output: DocumentFile): Boolean {
+    try {
+        val oStream = context.contentResolver.openOutputStream(output.uri, "wt") ?: return false
+        return BufferedOutputStream(oStream).use { stream ->
+            Mp3Concatenator.concatenate(inputs.map { doc -> {
+                context.contentResolver.openInputStream(doc.uri) ?: throw FileNotFoundException(doc.uri.toString())
+            } }, stream)
+        }
+    } catch (e: Exception) {
+        Log.w("ParseBloom", "Unable to join the frames of ${output.name}", e)
+        return false
+    }
+}
+
+private fun concatenateWithFFmpeg(context: Context, inputs: List<DocumentFile>, output: DocumentFile): Boolean {
+    // Using ffmpeg to concatenate multiple sentences in one page
+    // ffmpeg -f concat -safe 0 -i mylist.txt -c copy output.mp3
+    // but first we need to copy the source audio files to internal storage
+    // so that ffmpeg can access them.
+    // Each page has its own folder, as pages are joined in parallel.
+    val concatTempFolder = File(File(context.filesDir, "temp_concat"), output.name!!)
+    concatTempFolder.deleteRecursively()
+    concatTempFolder.mkdirs()
+    try {
         val concatTempFile = File(concatTempFolder, "temp_audio_concat_list.txt")
         var totalInputFiles = 0
-        for (audioStoryDoc in audioConcatDocs) {
+        for (audioStoryDoc in inputs) {
             val audioFileOut = File(concatTempFolder, audioStoryDoc.name!!)
             // Copy all the individual files to be concatenated to internal storage
             // This is so that the FFmpeg extension can access all the input and output files
@@ -258,47 +348,34 @@ fun parseAndConcatenatePageAudio(context: Context, storyAudioPath: DocumentFile,
                 totalInputFiles++
             }
         }
-        if (totalInputFiles > 0) {
-            val ffmpegArgs: MutableList<String> = mutableListOf()
-            ffmpegArgs.add("-f")
-            ffmpegArgs.add("concat")
-            ffmpegArgs.add("-safe")
-            ffmpegArgs.add("0")
-            ffmpegArgs.add("-i")
-            ffmpegArgs.add(concatTempFile.absolutePath)
-            ffmpegArgs.add("-c")
-            ffmpegArgs.add("copy")
-            val concatTempOutputFileStr = "${concatTempFolder.path}/${outputAudioFileName}"
-            ffmpegArgs.add(concatTempOutputFileStr)
+        if (totalInputFiles == 0) {
+            return false
+        }
+        val ffmpegArgs: MutableList<String> = mutableListOf()
+        ffmpegArgs.add("-f")
+        ffmpegArgs.add("concat")
+        ffmpegArgs.add("-safe")
+        ffmpegArgs.add("0")
+        ffmpegArgs.add("-i")
+        ffmpegArgs.add(concatTempFile.absolutePath)
+        ffmpegArgs.add("-c")
+        ffmpegArgs.add("copy")
+        val concatTempOutputFile = File(concatTempFolder, "output.mp3")
+        ffmpegArgs.add(concatTempOutputFile.path)
+        synchronized(AutoStoryMaker.FFMPEG_LOCK) {
             FFmpeg.execute(ffmpegArgs.toTypedArray())
             Log.w("ParseBloom.parsePage", FFmpeg.getLastCommandOutput()
                     ?: "No FFMPEG output")
-
-            // search for the output file for all the concatenated files
-            val audioStoryConcatDocFind = storyAudioMap[outputAudioFileName]
-
-            // delete the output file if it already exists (prevents numbered versions being created)
-            if (audioStoryConcatDocFind != null) {
-                storyAudioMap.remove(outputAudioFileName)
-                audioStoryConcatDocFind.delete()
-            }
-
-            // create the concatination output file
-            val audioStoryConcatDoc = storyAudioPath.createFile("", outputAudioFileName)
-            if (audioStoryConcatDoc != null) {
-                // add the concatenated file to the map of "audio" sub-folder files
-                storyAudioMap[outputAudioFileName] = audioStoryConcatDoc
-                // now copy the concatenated output file to the Story 'audio' subfolder
-                copyFromFilesDir(context, File(concatTempOutputFileStr), audioStoryConcatDoc.uri)
-                narrationFile = "audio/${outputAudioFileName}"
-            }
         }
+        if (!concatTempOutputFile.exists() || concatTempOutputFile.length() == 0L) {
+            return false
+        }
+        // now copy the concatenated output file to the Story 'audio' subfolder
+        copyFromFilesDir(context, concatTempOutputFile, output.uri)
+        return true
+    } finally {
         concatTempFolder.deleteRecursively()
-    } else if (totalInputAudioFiles == 1) {
-        narrationFile = firstInputAudioFile   // select the first valid audio filename
     }
-
-    return narrationFile
 }
 
 fun parseImageFromElement(slide: Slide, frontCoverGraphicProvided: Boolean, images: Elements) : String {
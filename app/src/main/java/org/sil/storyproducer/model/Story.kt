@@ -39,6 +39,7 @@ class Story(var title: String, var slides: List<Slide>){
     var isApproved: Boolean = false
     var learnAudioFile = ""
     var wholeStoryBackTAudioFile = ""
+    // Only read from stories saved by older versions (see ActivityLog.migrate)
     var activityLogs: MutableList<LogEntry> = ArrayList()
     var outputVideos: MutableList<String> = ArrayList()
     var lastPhaseType: PhaseType = PhaseType.LEARN
@@ -61,17 +62,7 @@ class Story(var title: String, var slides: List<Slide>){
     }
 
     val type : StoryType get() {
-        return try {
-            // Get number from story
-            when (title.split("")[1].toInt()) {
-                0 -> StoryType.OTHER
-                1 -> StoryType.OLD_TESTAMENT
-                2 -> StoryType.NEW_TESTAMENT
-                else -> StoryType.OTHER
-            }
-        } catch(e : NumberFormatException) {
-            StoryType.OTHER
-        }
+        return getStoryType(title)
     }
 
     val shortTitle: String get() {
@@ -99,6 +90,19 @@ class Story(var title: String, var slides: List<Slide>){
     }
 
     companion object{
+        fun getStoryType(title: String): StoryType {
+            return try {
+                // Get number from story
+                when (title.split("")[1].toInt()) {
+                    0 -> StoryType.OTHER
+                    1 -> StoryType.OLD_TESTAMENT
+                    2 -> StoryType.NEW_TESTAMENT
+                    else -> StoryType.OTHER
+                }
+            } catch(e : NumberFormatException) {
+                StoryType.OTHER
+            }
+        }
         fun getDisplayName(combName:String): String {
             val match = RE_DISPLAY_NAME.find(combName)
             return if(match != null){ match.groupValues[1] } else {""}
@@ -4,11 +4,12 @@ import android.content.Context
 import android.os.Environment
 import androidx.documentfile.provider.DocumentFile
 import com.google.firebase.crashlytics.FirebaseCrashlytics
-import com.squareup.moshi.Moshi
 import net.lingala.zip4j.ZipFile
 import org.sil.storyproducer.App
 import org.sil.storyproducer.BuildConfig
 import org.sil.storyproducer.R
+import org.sil.storyproducer.model.logging.ActivityLog
+import org.sil.storyproducer.service.PersistenceService
 import org.sil.storyproducer.tools.file.*
 import timber.log.Timber
 import java.io.ByteArrayOutputStream
@@ -17,7 +18,12 @@ import java.text.SimpleDateFormat
 import java.util.*
 
 
-fun Story.toJson(context: Context){
+/**
+ * Write the story.json of a story.
+ * @param saveSummary whether to save the story list's summary of the story now, rather than
+ * leaving it to whoever saves many stories at once.
+ */
+fun Story.toJson(context: Context, saveSummary: Boolean = true){
     // DKH - Updated 06/02/2021  for Issue 555: Report Story Parse Exceptions and Handle them appropriately
     // Each time we write out a story file, record timestamp and the Story Producer version name & code
     storyToJasonAppVersionCode = BuildConfig.VERSION_CODE  // should be an integer, eg: 23
@@ -25,18 +31,11 @@ fun Story.toJson(context: Context){
     storyToJasonTimeStamp = SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Date()) // eg: 2021-06-04 15:07:03
 
     val filePath = "$PROJECT_DIR/$PROJECT_FILE" // location of file
-    val moshi = Moshi
-            .Builder()
-            .add(RectAdapter())
-            .add(UriAdapter())
-            .build()
-    val adapter = Story.jsonAdapter(moshi)
-    val oStream = getStoryChildOutputStream(context,
-            filePath,"",this.title)
-    if(oStream != null) {
-        try {
-            oStream.write(adapter.toJson(this).toByteArray(Charsets.UTF_8))
-        }catch(e:java.lang.Exception){
+    val adapter = Story.jsonAdapter(PersistenceService.moshi)
+    var written = false
+    try {
+        written = PersistenceService.writeJson(context, filePath, this.title, adapter, this)
+    }catch(e:java.lang.Exception){
             // DKH - Updated 06/02/2021  for Issue 555: Report Story Parse Exceptions and Handle them appropriately
             // If we get here, there was an exception thrown while writing the story.json file
             // Create a suitable error string.  Use  method name, File location, story title & the error
@@ -55,8 +54,12 @@ fun Story.toJson(context: Context){
             // (i.e., to view message during debug, create a Logcat filter for "Log Message:"
             // looking for "SP::")
             Timber.e("SP::(%s)", errInfo) // uses Kotlin Log class with severity level: Error
-        }
-        finally{oStream.close()}
+    }
+    if(written) {
+        // keep the story list's summary of this story up to date
+        StorySummaryIndex.put(context, this)
+        if (saveSummary)
+            StorySummaryIndex.save(context)
     }
 }
 
@@ -72,12 +75,7 @@ fun storyFromJson(context: Context, storyPath: DocumentFile, validateOnly: Boole
 
     try {
         // use Moshi to restore all information associated with this story
-        val moshi = Moshi
-                .Builder()
-                .add(RectAdapter())
-                .add(UriAdapter())
-                .build()
-        val adapter = Story.jsonAdapter(moshi)
+        val adapter = Story.jsonAdapter(PersistenceService.moshi)
         fileContents = getDocumentText(context, storyFilePath)
                 ?: return null
         return adapter.fromJson(fileContents)
@@ -169,6 +167,18 @@ fun isValidStory(context: Context, storyPath: DocumentFile) : Boolean {
 }
 
 fun parseStoryIfPresent(context: Context, storyPath: DocumentFile, validateOnly: Boolean = false): Story? {
+    val (story, isNew) = readStoryOrTemplate(context, storyPath, validateOnly) ?: return null
+    //write the story to json.
+    if (isNew && !validateOnly)
+        story.toJson(context)   // No need to write json if validating only
+    return story
+}
+
+/**
+ * Read the story.json of a story folder, or failing that parse its PhotoStory or Bloom template.
+ * @return the story, and true if it was parsed from a template (so has no story.json yet).
+ */
+fun readStoryOrTemplate(context: Context, storyPath: DocumentFile, validateOnly: Boolean = false): Pair<Story, Boolean>? {
     var story: Story? = null
     //Check if path is path
     if(!storyPath.isDirectory) return null
@@ -178,7 +188,7 @@ fun parseStoryIfPresent(context: Context, storyPath: DocumentFile, validateOnly:
         //parse the project file, if there is one.
         story = storyFromJson(context, storyPath, validateOnly)
         //if there is a story from the file, do not try to read any templates, just return.
-        if(story != null) return story
+        if(story != null) return Pair(story, false)
     }
     try {
         story = parsePhotoStoryXML(context, storyPath)
@@ -196,13 +206,7 @@ fun parseStoryIfPresent(context: Context, storyPath: DocumentFile, validateOnly:
             story = null
         }
     }
-    //write the story (if it is not null) to json.
-    if(story != null) {
-        if (!validateOnly)
-            story.toJson(context)   // No need to write json if validating only
-        return story
-    }
-    return null
+    return story?.let { Pair(it, true) }
 }
 
 fun migrateStory(context: Context, story: Story): Story? {
@@ -223,6 +227,8 @@ fun migrateStory(context: Context, story: Story): Story? {
             break
         }
     }
+    // Move the activity log out of the story.json, where older versions kept it
+    ActivityLog.migrate(context, story)
     return story
 }
 
@@ -0,0 +1,157 @@
+package org.sil.storyproducer.model
+
+import android.content.Context
+import android.util.Log
+import com.squareup.moshi.JsonClass
+import org.sil.storyproducer.service.PersistenceService
+import org.sil.storyproducer.tools.file.getChildInputStream
+import org.sil.storyproducer.tools.file.getChildOutputStream
+import org.sil.storyproducer.tools.file.getStoryFileStats
+
+/**
+ * What the story list shows of a story, as of the size and modification time its story.json had
+ * when the summary was made. The full [Story] is only read when it is opened
+ * (see [Workspace.loadStory]).
+ */
+@JsonClass(generateAdapter = true)
+class StorySummary(var title: String) {
+    var langCode = ""
+    var subtitle = ""   // subtitle of the title slide
+    var imageFile = ""  // image of the first page, shown as the thumbnail
+    var isComplete = false
+    var inProgress = false
+    var size = 0L
+    var modified = 0L
+
+    val type: Story.StoryType get() = Story.getStoryType(title)
+
+    /**
+     * Whether this still summarizes a story.json with the given (size, last modified) stats.
+     */
+    fun matches(stats: LongArray): Boolean {
+        return stats[0] == size && stats[1] == modified
+    }
+
+    /**
+     * Copy what the list shows from the full story.
+     */
+    fun update(story: Story) {
+        langCode = story.langCode
+        subtitle = story.slides.getOrNull(0)?.subtitle ?: ""
+        imageFile = story.slides.getOrNull(1)?.imageFile ?: ""
+        isComplete = story.isComplete
+        inProgress = story.inProgress
+    }
+
+    companion object
+}
+
+/**
+ * The summaries of the stories of a workspace (used for saving the index in a single file)
+ */
+@JsonClass(generateAdapter = true)
+class StorySummaryList(val stories: List<StorySummary> = ArrayList()) {
+    companion object
+}
+
+/**
+ * Index of the summaries of the stories of the workspace, kept in a file at the top of the
+ * workspace folder.
+ *
+ * Reading a story.json means parsing every slide, recording list and log entry of the story,
+ * while the story list only needs a few fields and the size and modification time of a file are a
+ * cheap query. A story is only read again when its story.json has changed, and stories update
+ * their summary whenever they are saved (see [Story.toJson]). [save] writes the index out.
+ */
+object StorySummaryIndex {
+    private val TAG = "StorySummaryIndex"
+
+    const val INDEX_FILE = "story_summaries.json"
+    private const val STORY_FILE = "$PROJECT_DIR/$PROJECT_FILE"
+
+    //Summaries by story title, of the workspace they were read from.
+    private val mSummaries = HashMap<String, StorySummary>()
+    private var mWorkspace: String? = null
+    private var mIsDirty = false
+
+    /**
+     * Get the summary of a story, if its story.json has not changed since it was made.
+     */
+    fun getValid(context: Context, title: String): StorySummary? {
+        val stats = getStoryFileStats(context, STORY_FILE, title) ?: return null
+        synchronized(this) {
+            val summary = getSummaries(context)[title] ?: return null
+            return if (summary.matches(stats)) summary else null
+        }
+    }
+
+    /**
+     * Summarize a story whose story.json was just read or written. The summary of a story already
+     * in the index is updated in place, so lists showing it see the change.
+     */
+    fun put(context: Context, story: Story): StorySummary {
+        val stats = getStoryFileStats(context, STORY_FILE, story.title)
+        synchronized(this) {
+            val summaries = getSummaries(context)
+            val summary = summaries.getOrPut(story.title) { StorySummary(story.title) }
+            summary.update(story)
+            summary.size = stats?.get(0) ?: 0
+            summary.modified = stats?.get(1) ?: 0
+            mIsDirty = true
+            return summary
+        }
+    }
+
+    /**
+     * Drop the summaries of stories that are no longer in the workspace.
+     */
+    @Synchronized
+    fun retain(context: Context, titles: Collection<String>) {
+        if (getSummaries(context).keys.retainAll(titles)) {
+            mIsDirty = true
+        }
+    }
+
+    /**
+     * Write the index if it has changed since it was loaded or last saved.
+     */
+    fun save(context: Context) {
+        val json = synchronized(this) {
+            if (!mIsDirty) {
+                return
+            }
+            mIsDirty = false
+            StorySummaryList.jsonAdapter(PersistenceService.moshi).toJson(StorySummaryList(ArrayList(mSummaries.values)))
+        }
+        try {
+            val oStream = getChildOutputStream(context, INDEX_FILE, "", "wt") ?: return
+            oStream.use { it.write(json.toByteArray(Charsets.UTF_8)) }
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to save story summaries", e)
+        }
+    }
+
+    /**
+     * Get the summaries of the current workspace, reading them the first time. Called holding
+     * the lock.
+     */
+    private fun getSummaries(context: Context): HashMap<String, StorySummary> {
+        val workspace = Workspace.workdocfile.uri.toString()
+        if (workspace == mWorkspace) {
+            return mSummaries
+        }
+        mSummaries.clear()
+        mWorkspace = workspace
+        mIsDirty = false
+        try {
+            getChildInputStream(context, INDEX_FILE)?.use { iStream ->
+                val list = StorySummaryList.jsonAdapter(PersistenceService.moshi).fromJson(iStream.reader().readText())
+                list?.stories?.forEach { mSummaries[it.title] = it }
+            }
+        } catch (e: Exception) {
+            //It is only an index; the stories are read again.
+            Log.w(TAG, "Discarding unreadable story summaries", e)
+        }
+        return mSummaries
+    }
+}
@@ -15,8 +15,10 @@ import androidx.documentfile.provider.DocumentFile
 import com.google.firebase.analytics.FirebaseAnalytics
 import org.sil.storyproducer.App
 import org.sil.storyproducer.R
+import org.sil.storyproducer.service.PersistenceService
 import org.sil.storyproducer.tools.*
 import org.sil.storyproducer.tools.file.*
+import org.sil.storyproducer.tools.media.story.PerfReport
 import java.io.File
 import java.io.IOException
 import java.io.InputStreamReader
@@ -66,8 +68,8 @@ object Workspace {
             field = value
             prefs?.edit()?.putString("workspace", field.uri.toString())?.apply()
         }
-    val Stories: MutableList<Story> = mutableListOf()   // the main list of Stories
-    val asyncAddedStories: MutableList<Story> = mutableListOf() // Used for adding Stories in a background thread
+    val Stories: MutableList<StorySummary> = mutableListOf()   // the main list of Stories
+    private val loadedStories: MutableMap<String, Story> = mutableMapOf() // Stories read so far, by title
     var registration: Registration = Registration()
     var phases: List<Phase> = ArrayList()
     var activePhaseIndex: Int = -1
@@ -229,8 +231,12 @@ object Workspace {
             return false
 
         try {
+            // Changes waiting to be saved belong in the workspace they were made in.
+            PersistenceService.flush()
+
             // Issue 539 - Reset Story info to detach from current Story, if any
             activeStory = emptyStory()
+            unloadStories()
 
             // Remember previous workdocfile location - for story migration
             if (!fullInit)
@@ -544,12 +550,68 @@ object Workspace {
         return dlFilesList
     }
 
-    fun buildStory(context: Context, storyPath: DocumentFile): Story? {
+    // The steps of buildStory(), which BaseController runs as separate stages when importing
+    // many stories at once.
+
+    /**
+     * Move a story from the old workspace and unzip it, if need be.
+     * @return the story folder in this workspace, or null if there is none.
+     */
+    fun unpackStory(context: Context, storyPath: DocumentFile): DocumentFile? {
         return copyOldStory(context, storyPath, workdocfile, previousWorkDocFile)
                 ?.let { oldStoryPath -> unzipIfZipped(context, oldStoryPath, workdocfile.listFiles()) }
                 ?.let { storyFolder -> pathOf(storyFolder) }
-                ?.let { storyPath1 -> parseStoryIfPresent(context, storyPath1) }
-                ?.let { story -> migrateStory(context, story) }
+    }
+
+    /**
+     * Write the story.json of a story just parsed from its template, and bring the story up to
+     * date.
+     */
+    fun saveStory(context: Context, story: Story, isNew: Boolean): Story? {
+        if (isNew) {
+            story.toJson(context, false)
+        }
+        return migrateStory(context, story)
+    }
+
+    /**
+     * Get the full story of a story in the list, reading it the first time.
+     * @return the story, or null if it cannot be read.
+     */
+    fun loadStory(context: Context, title: String): Story? {
+        synchronized(loadedStories) {
+            loadedStories[title]?.let { return it }
+            val story = pathOf(title)
+                    ?.let { storyPath -> parseStoryIfPresent(context, storyPath) }
+                    ?.let { story -> migrateStory(context, story) }
+                    ?: return null
+            loadedStories[title] = story
+            return story
+        }
+    }
+
+    /**
+     * Whether a story is the one read for its title from this workspace (see [loadStory]).
+     */
+    fun isStoryLoaded(story: Story): Boolean {
+        synchronized(loadedStories) {
+            return loadedStories[story.title] === story
+        }
+    }
+
+    /**
+     * Forget the stories read so far, so they are read again when opened.
+     */
+    fun unloadStories() {
+        synchronized(loadedStories) {
+            loadedStories.clear()
+        }
+    }
+
+    fun buildStory(context: Context, storyPath: DocumentFile): Story? {
+        return unpackStory(context, storyPath)
+                ?.let { storyPath1 -> readStoryOrTemplate(context, storyPath1) }
+                ?.let { (story, isNew) -> saveStory(context, story, isNew) }
         /*  Daniel March and BW figured this is what the lambdas are doing...
         var OldStoryPath = copyOldStory(context, storyPath, workdocfile, previousWorkDocFile)
         if (OldStoryPath != null)
@@ -581,6 +643,7 @@ object Workspace {
     fun deleteVideo(context: Context, path: String){
         activeStory.outputVideos.remove(path)
         deleteWorkspaceFile(context, "$VIDEO_DIR/$path")
+        deleteWorkspaceFile(context, "$VIDEO_DIR/$path${PerfReport.EXTENSION}")
     }
 
     fun isLocalCreditsChanged(context: Context) : Boolean {
@@ -0,0 +1,200 @@
+package org.sil.storyproducer.model.logging
+
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import org.sil.storyproducer.model.PROJECT_DIR
+import org.sil.storyproducer.model.Phase
+import org.sil.storyproducer.model.PhaseType
+import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.service.PersistenceService
+import org.sil.storyproducer.tools.file.getStoryText
+
+/**
+ * The activity logs of the stories, each kept in a file of its own next to the story.json.
+ *
+ * Entries are only ever added to the end of the file, one line each, so logging an entry costs
+ * the same however long a team has worked on a story, and the story.json no longer grows with
+ * use. The log of the story being checked is read once and indexed by slide, so the accuracy check
+ * can show the entries of a slide without going through the whole log.
+ *
+ * Stories saved by older versions keep their log in the story.json; [migrate] moves it out.
+ */
+object ActivityLog {
+    private val TAG = "ActivityLog"
+
+    internal const val LOG_FILE = "$PROJECT_DIR/activity_log.txt"
+
+    private const val SEPARATOR = '\t'
+    private const val FIELD_COUNT = 5
+
+    //Entries of the story last read by slide, in the order they were logged.
+    private val mBySlide = HashMap<Int, MutableList<LogEntry>>()
+    private var mStoryKey: String? = null
+
+    private val mMainHandler = Handler(Looper.getMainLooper())
+
+    /**
+     * Add an entry to the log of a story.
+     */
+    fun add(context: Context, story: Story, entry: LogEntry) {
+        val appContext = context.applicationContext
+        val key = keyOf(story)
+        val line = encode(entry) + "\n"
+        //Index on the write thread too, so an entry added while getEntries is reading the log is
+        //either in the file it reads or indexed after it.
+        PersistenceService.runLater {
+            PersistenceService.append(appContext, LOG_FILE, story.title, line)
+            synchronized(this) {
+                if (mStoryKey == key) {
+                    index(entry)
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the entries of a story that apply to a slide (see [LogEntry.appliesToSlideNum]),
+     * oldest first. The first time for a story its log is read on the write thread, after the
+     * entries still waiting to be added, so [onLoaded] is always called later on the main thread.
+     */
+    fun getEntries(context: Context, story: Story, slideNum: Int, onLoaded: (List<LogEntry>) -> Unit) {
+        val appContext = context.applicationContext
+        val key = keyOf(story)
+        synchronized(this) {
+            if (mStoryKey == key) {
+                val entries = ArrayList(mBySlide[slideNum] ?: emptyList<LogEntry>())
+                mMainHandler.post { onLoaded(entries) }
+                return
+            }
+        }
+        PersistenceService.runLater {
+            val read = read(appContext, story.title)
+            val entries = synchronized(this) {
+                mBySlide.clear()
+                mStoryKey = key
+                read.forEach { index(it) }
+                ArrayList(mBySlide[slideNum] ?: emptyList<LogEntry>())
+            }
+            mMainHandler.post { onLoaded(entries) }
+        }
+    }
+
+    /**
+     * Move the log saved in the story.json of an older version into the log file of the story,
+     * ahead of anything logged since. The log only leaves the story, which is then saved, once
+     * the log file has been written; if that fails, the log stays in the story.json for next time.
+     */
+    fun migrate(context: Context, story: Story) {
+        if (story.activityLogs.isEmpty()) {
+            return
+        }
+        val appContext = context.applicationContext
+        val moved = story.activityLogs.joinToString("") { encode(it) + "\n" }
+        PersistenceService.runLater {
+            //If the story was not saved after moving its log last time, the log is already there.
+            val logged = getStoryText(appContext, LOG_FILE, story.title) ?: ""
+            if (!logged.startsWith(moved) && !PersistenceService.writeText(appContext, LOG_FILE, story.title, moved + logged)) {
+                Log.w(TAG, "Unable to move the log of ${story.title} out of its story.json")
+                return@runLater
+            }
+            story.activityLogs = ArrayList()
+            PersistenceService.saveStoryLater(appContext, story)
+            synchronized(this) {
+                if (mStoryKey == keyOf(story)) {
+                    mStoryKey = null
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the log entries in a log file, skipping lines that cannot be read.
+     */
+    private fun read(context: Context, title: String): List<LogEntry> {
+        val text = getStoryText(context, LOG_FILE, title) ?: return emptyList()
+        val entries = ArrayList<LogEntry>()
+        for (line in text.lineSequence()) {
+            if (line.isEmpty()) {
+                continue
+            }
+            val entry = decode(line)
+            if (entry == null) {
+                Log.w(TAG, "Skipping unreadable entry in the log of $title")
+            } else {
+                entries.add(entry)
+            }
+        }
+        return entries
+    }
+
+    /**
+     * Add an entry to the slide index. Called holding the lock.
+     */
+    private fun index(entry: LogEntry) {
+        for (slideNum in entry.slideNums) {
+            mBySlide.getOrPut(slideNum) { ArrayList() }.add(entry)
+        }
+    }
+
+    private fun keyOf(story: Story): String {
+        return Workspace.workdocfile.uri.toString() + "/" + story.title
+    }
+
+    /**
+     * Write an entry as one line of tab separated fields: the time, phase, start and end slide
+     * and description.
+     */
+    internal fun encode(entry: LogEntry): String {
+        return listOf(escape(entry.dateTimeString), entry.phase.phaseType.name,
+                entry.startSlideNum.toString(), entry.endSlideNum.toString(),
+                escape(entry.description)).joinToString(SEPARATOR.toString())
+    }
+
+    /**
+     * Read an entry written by [encode].
+     * @return null if the line is not a whole entry, such as when the app stopped while adding it.
+     */
+    internal fun decode(line: String): LogEntry? {
+        val fields = line.split(SEPARATOR)
+        if (fields.size != FIELD_COUNT) {
+            return null
+        }
+        val phaseType = PhaseType.values().firstOrNull { it.name == fields[1] } ?: return null
+        val startSlideNum = fields[2].toIntOrNull() ?: return null
+        val endSlideNum = fields[3].toIntOrNull() ?: return null
+        return LogEntry(unescape(fields[0]), unescape(fields[4]), Phase(phaseType),
+                startSlideNum, endSlideNum)
+    }
+
+    private fun escape(text: String): String {
+        return text.replace("\\", "\\\\").replace("\t", "\\t")
+                .replace("\n", "\\n").replace("\r", "\\r")
+    }
+
+    private fun unescape(text: String): String {
+        if (!text.contains('\\')) {
+            return text
+        }
+        val result = StringBuilder(text.length)
+        var i = 0
+        while (i < text.length) {
+            val c = text[i]
+            if (c == '\\' && i + 1 < text.length) {
+                i++
+                result.append(when (text[i]) {
+                    't' -> '\t'
+                    'n' -> '\n'
+                    'r' -> '\r'
+                    else -> text[i]
+                })
+            } else {
+                result.append(c)
+            }
+            i++
+        }
+        return result.toString()
+    }
+}
@@ -2,6 +2,7 @@ package org.sil.storyproducer.model.logging
 
 import android.content.Context
 import com.squareup.moshi.JsonClass
+import org.sil.storyproducer.App
 import org.sil.storyproducer.R
 import org.sil.storyproducer.model.Phase
 import org.sil.storyproducer.model.PhaseType
@@ -23,6 +24,16 @@ class LogEntry(var dateTimeString: String,
         return false
     }
 
+    /**
+     * The slides this entry applies to (see [appliesToSlideNum]).
+     */
+    val slideNums: IntRange get() {
+        return if (phase.phaseType == PhaseType.LEARN)
+            Math.min(startSlideNum, endSlideNum)..Math.max(startSlideNum, endSlideNum)
+        else
+            startSlideNum..startSlideNum
+    }
+
 }
 
 fun saveLearnLog(context: Context, startSlide: Int, endSlide: Int, duration: Long, isRecording: Boolean = false){
@@ -57,5 +68,5 @@ fun saveLog(description: String,startSlideNum: Int = Workspace.activeSlideNum, e
 
     val le = LogEntry(dateTimeString,
             description, phase, startSlideNum,endSlideNum)
-    Workspace.activeStory.activityLogs.add(le)
+    ActivityLog.add(App.appContext, Workspace.activeStory, le)
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package org.sil.storyproducer.service
+
+import com.squareup.moshi.JsonClass
+import java.util.*
+
+/**
+ * One story video waiting in, or done by, the [ExportQueue].
+ *
+ * The options are those of the export screen (see [org.sil.storyproducer.tools.media.story.AutoStoryMaker]).
+ * Times are from [System.currentTimeMillis], or 0 if the job has not got that far.
+ *
+ * @param storyTitle title of the story to export.
+ * @param videoRelPath name of the video in the videos directory.
+ * @param id unique id of the job, also the name of its scratch directory.
+ */
+@JsonClass(generateAdapter = true)
+class ExportJob(val storyTitle: String,
+                val videoRelPath: String,
+                val includeBackgroundMusic: Boolean = true,
+                val includePictures: Boolean = true,
+                val includeText: Boolean = false,
+                val includeKBFX: Boolean = true,
+                val includeSong: Boolean = false,
+                val id: String = UUID.randomUUID().toString()) {
+
+    enum class Status {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+    }
+
+    var status = Status.QUEUED
+    /** Number of times the export has been started. */
+    var attempts = 0
+    /** Why the last attempt failed, if it did. */
+    var error = ""
+    var queuedAt = 0L
+    var startedAt = 0L
+    var finishedAt = 0L
+
+    val isFinished: Boolean
+        get() = status == Status.DONE || status == Status.FAILED || status == Status.CANCELLED
+
+    companion object
+}
+
+/**
+ * The jobs of the [ExportQueue] (used for saving the whole queue in a single file)
+ */
+@JsonClass(generateAdapter = true)
+class ExportJobList(val jobs: List<ExportJob>) {
+    companion object
+}
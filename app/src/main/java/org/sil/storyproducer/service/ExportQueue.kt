@@ -0,0 +1,306 @@
+package org.sil.storyproducer.service
+
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Story videos to be made in the background by [ExportService], one [ExportJob] each.
+ *
+ * The queue is saved in the app's files, so jobs not yet done when the app is closed are run the
+ * next time the stories are loaded (see [resume]). A job that fails is put back at the end of the
+ * queue until it has been tried [MAX_ATTEMPTS] times. Finished jobs stay in the queue for the
+ * screens following them until the next job is queued or the queue is resumed.
+ *
+ * Screens follow the jobs with a [Listener]; listeners are called on the main thread.
+ */
+object ExportQueue {
+    private val TAG = "ExportQueue"
+
+    private const val QUEUE_FILE = "export_queue.json"
+
+    /** Number of times a job is started before it is given up as failed. */
+    const val MAX_ATTEMPTS = 3
+
+    interface Listener {
+        /**
+         * A job was added, started, finished or made progress.
+         */
+        fun onExportJobChanged(job: ExportJob)
+    }
+
+    private val mJobs = ArrayList<ExportJob>()
+    private val mProgress = HashMap<String, Double>()
+    //The exports running now, so they can be cancelled.
+    private val mRunning = HashMap<String, Closeable>()
+    private var mIsLoaded = false
+
+    private val mListeners = CopyOnWriteArrayList<Listener>()
+    private val mMainHandler = Handler(Looper.getMainLooper())
+
+    fun addListener(listener: Listener) {
+        mListeners.addIfAbsent(listener)
+    }
+
+    fun removeListener(listener: Listener) {
+        mListeners.remove(listener)
+    }
+
+    /**
+     * Add a job to the end of the queue and make sure the export service is running.
+     * @return false if the story already has a job queued or running, in which case the job is
+     * not added: both would build the video in the same segment directory.
+     */
+    fun enqueue(context: Context, job: ExportJob): Boolean {
+        synchronized(this) {
+            load(context)
+            if (mJobs.any { it.storyTitle == job.storyTitle && !it.isFinished }) {
+                Log.i(TAG, "Not queueing ${job.storyTitle} again while its last export is unfinished")
+                return false
+            }
+            removeFinished()
+            job.status = ExportJob.Status.QUEUED
+            job.queuedAt = System.currentTimeMillis()
+            mJobs.add(job)
+            save(context)
+        }
+        notifyChanged(job)
+        ExportService.start(context)
+        return true
+    }
+
+    /**
+     * Get the job of a story that is queued or running, if there is one.
+     */
+    fun getUnfinishedJob(context: Context, storyTitle: String): ExportJob? {
+        return getJobs(context, storyTitle).firstOrNull { !it.isFinished }
+    }
+
+    /**
+     * Start the export service if jobs were left in the queue, e.g. by the app being closed.
+     */
+    fun resume(context: Context) {
+        synchronized(this) {
+            load(context)
+            if (removeFinished()) {
+                save(context)
+            }
+            if (mJobs.none { it.status == ExportJob.Status.QUEUED }) {
+                return
+            }
+        }
+        ExportService.start(context)
+    }
+
+    /**
+     * Get every job, in queue order, including finished ones.
+     */
+    @Synchronized
+    fun getJobs(context: Context): List<ExportJob> {
+        load(context)
+        return ArrayList(mJobs)
+    }
+
+    /**
+     * Get the jobs of one story.
+     */
+    fun getJobs(context: Context, storyTitle: String): List<ExportJob> {
+        return getJobs(context).filter { it.storyTitle == storyTitle }
+    }
+
+    /**
+     * @return progress of a running job from 0 to 1, 1 for a finished job, or 0.
+     */
+    @Synchronized
+    fun getProgress(job: ExportJob): Double {
+        if (job.status == ExportJob.Status.DONE) {
+            return 1.0
+        }
+        return mProgress[job.id] ?: 0.0
+    }
+
+    /**
+     * Cancel a job, stopping its export if it is running.
+     */
+    fun cancel(context: Context, id: String) {
+        var running: Closeable? = null
+        val job = synchronized(this) {
+            load(context)
+            val match = mJobs.firstOrNull { it.id == id } ?: return
+            if (match.isFinished) {
+                return
+            }
+            match.status = ExportJob.Status.CANCELLED
+            match.finishedAt = System.currentTimeMillis()
+            running = mRunning.remove(id)
+            mProgress.remove(id)
+            save(context)
+            match
+        }
+        running?.close()
+        notifyChanged(job)
+    }
+
+    @Synchronized
+    internal fun hasQueued(context: Context): Boolean {
+        load(context)
+        return mJobs.any { it.status == ExportJob.Status.QUEUED }
+    }
+
+    /**
+     * Take the first queued job and mark it running.
+     * @return the job, or null if none are queued.
+     */
+    internal fun takeNext(context: Context): ExportJob? {
+        val job = synchronized(this) {
+            load(context)
+            val next = mJobs.firstOrNull { it.status == ExportJob.Status.QUEUED } ?: return null
+            next.status = ExportJob.Status.RUNNING
+            next.attempts++
+            next.startedAt = System.currentTimeMillis()
+            next.error = ""
+            mProgress[next.id] = 0.0
+            save(context)
+            next
+        }
+        notifyChanged(job)
+        return job
+    }
+
+    /**
+     * Keep the export of a running job so it can be cancelled, or forget it once it is done.
+     * @return false if the job was cancelled already, in which case the export should not start.
+     */
+    @Synchronized
+    internal fun setRunning(job: ExportJob, export: Closeable?): Boolean {
+        if (export == null) {
+            mRunning.remove(job.id)
+            return true
+        }
+        if (job.status != ExportJob.Status.RUNNING) {
+            return false
+        }
+        mRunning[job.id] = export
+        return true
+    }
+
+    internal fun setProgress(job: ExportJob, progress: Double) {
+        synchronized(this) {
+            if (job.status != ExportJob.Status.RUNNING) {
+                return
+            }
+            mProgress[job.id] = progress
+        }
+        notifyChanged(job)
+    }
+
+    /**
+     * Record the end of an attempt. A failed job is queued again unless it has run out of
+     * attempts, [canRetry] is false or it was cancelled.
+     */
+    internal fun finish(context: Context, job: ExportJob, success: Boolean, error: String, canRetry: Boolean = true) {
+        synchronized(this) {
+            mProgress.remove(job.id)
+            mRunning.remove(job.id)
+            if (job.status == ExportJob.Status.CANCELLED) {
+                return
+            }
+            job.error = error
+            if (success) {
+                job.status = ExportJob.Status.DONE
+                job.finishedAt = System.currentTimeMillis()
+            } else if (canRetry && job.attempts < MAX_ATTEMPTS) {
+                Log.w(TAG, "Export of ${job.storyTitle} failed (attempt ${job.attempts}), retrying: $error")
+                //Retry after the rest of the queue, in case the failure was down to the moment.
+                job.status = ExportJob.Status.QUEUED
+                mJobs.remove(job)
+                mJobs.add(job)
+            } else {
+                Log.e(TAG, "Export of ${job.storyTitle} failed after ${job.attempts} attempt(s): $error")
+                job.status = ExportJob.Status.FAILED
+                job.finishedAt = System.currentTimeMillis()
+            }
+            save(context)
+        }
+        notifyChanged(job)
+    }
+
+    /**
+     * Forget the jobs in memory, so they are read from the saved queue again.
+     */
+    @Synchronized
+    internal fun unload() {
+        mJobs.clear()
+        mProgress.clear()
+        mRunning.clear()
+        mIsLoaded = false
+    }
+
+    /**
+     * Remove every finished job from the queue, so the saved queue does not grow with each
+     * export. Called holding the lock.
+     * @return true if any were removed.
+     */
+    private fun removeFinished(): Boolean {
+        return mJobs.removeAll { it.isFinished }
+    }
+
+    private fun notifyChanged(job: ExportJob) {
+        if (mListeners.isEmpty()) {
+            return
+        }
+        mMainHandler.post {
+            for (listener in mListeners) {
+                listener.onExportJobChanged(job)
+            }
+        }
+    }
+
+    /**
+     * Read the saved queue the first time it is needed. Called holding the lock.
+     */
+    private fun load(context: Context) {
+        if (mIsLoaded) {
+            return
+        }
+        mIsLoaded = true
+        val file = File(context.filesDir, QUEUE_FILE)
+        if (!file.exists()) {
+            return
+        }
+        try {
+            val list = ExportJobList.jsonAdapter(PersistenceService.moshi).fromJson(file.readText()) ?: return
+            for (job in list.jobs) {
+                //The app was closed in the middle of this one; start it again.
+                if (job.status == ExportJob.Status.RUNNING) {
+                    job.status = ExportJob.Status.QUEUED
+                }
+                mJobs.add(job)
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to read export queue", e)
+        }
+    }
+
+    /**
+     * Write the queue, under a temporary name first so a crash never leaves half a file. Called
+     * holding the lock.
+     */
+    private fun save(context: Context) {
+        val file = File(context.filesDir, QUEUE_FILE)
+        val temp = File(context.filesDir, "$QUEUE_FILE.tmp")
+        try {
+            temp.writeText(ExportJobList.jsonAdapter(PersistenceService.moshi).toJson(ExportJobList(mJobs)))
+            if (!temp.renameTo(file)) {
+                throw IOException("Unable to rename ${temp.name}")
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Unable to save export queue", e)
+        }
+    }
+}
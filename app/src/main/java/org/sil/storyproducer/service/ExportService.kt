@@ -0,0 +1,249 @@
+package org.sil.storyproducer.service
+
+import android.app.Notification
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.app.Service
+import android.content.Context
+import android.content.Intent
+import android.os.Build
+import android.os.Handler
+import android.os.IBinder
+import android.os.Looper
+import android.os.PowerManager
+import android.util.Log
+import androidx.core.app.NotificationCompat
+import androidx.core.content.ContextCompat
+import androidx.preference.PreferenceManager
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import org.sil.storyproducer.R
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.story.AutoStoryMaker
+import java.io.File
+
+/**
+ * Foreground service that makes the videos of the [ExportQueue], so a long queue keeps going
+ * with the screen off or the app in the background.
+ *
+ * Up to [getConcurrency] jobs run at once, each on its own thread with its own scratch directory.
+ * The service stops itself once the queue is empty.
+ */
+class ExportService : Service() {
+
+    private val mRunners = ArrayList<Thread>()
+    private var mWakeLock: PowerManager.WakeLock? = null
+    private var mLastStartId = 0
+
+    //Throughput of the videos made since the service started.
+    private var mStartTime = 0L
+    private var mExportCount = 0
+    private var mFailCount = 0
+
+    override fun onBind(intent: Intent?): IBinder? {
+        return null
+    }
+
+    override fun onCreate() {
+        super.onCreate()
+        mStartTime = System.currentTimeMillis()
+        createChannel()
+        startForeground(NOTIFICATION_ID, buildNotification())
+
+        val powerManager = getSystemService(Context.POWER_SERVICE) as PowerManager
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "StoryProducer:$TAG")
+        mWakeLock!!.acquire()
+    }
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        synchronized(this) {
+            mLastStartId = startId
+        }
+        startRunners()
+        //The queue is saved, and resumed when the app next loads its stories.
+        return START_NOT_STICKY
+    }
+
+    override fun onDestroy() {
+        //The stories of the finished exports may still be waiting to be saved.
+        PersistenceService.flushAsync()
+        mWakeLock?.release()
+        mWakeLock = null
+        super.onDestroy()
+    }
+
+    @Synchronized
+    private fun startRunners() {
+        val concurrency = getConcurrency(this)
+        while (mRunners.size < concurrency) {
+            val runner = Thread(Runnable { runJobs() }, "$TAG-${mRunners.size}")
+            mRunners.add(runner)
+            runner.start()
+        }
+    }
+
+    private fun runJobs() {
+        while (true) {
+            val job = ExportQueue.takeNext(this)
+            if (job != null) {
+                runJob(job)
+                continue
+            }
+            //A job may have been queued since, while this runner still counted as running.
+            synchronized(this) {
+                if (!ExportQueue.hasQueued(this)) {
+                    mRunners.remove(Thread.currentThread())
+                    if (mRunners.isEmpty()) {
+                        onQueueDone(mLastStartId)
+                    }
+                    return
+                }
+            }
+        }
+    }
+
+    private fun runJob(job: ExportJob) {
+        val story = Workspace.loadStory(this, job.storyTitle)
+        if (story == null) {
+            ExportQueue.finish(this, job, false, "Story not found", false)
+            onJobDone(false)
+            return
+        }
+
+        val workDir = File(File(filesDir, WORK_DIR), job.id)
+        workDir.deleteRecursively()
+        workDir.mkdirs()
+        Log.i(TAG, "Exporting ${job.storyTitle} to ${job.videoRelPath} (attempt ${job.attempts})")
+
+        var success = false
+        var error = ""
+        val maker = AutoStoryMaker(this, story, workDir)
+        try {
+            maker.mIncludeBackgroundMusic = job.includeBackgroundMusic
+            maker.mIncludePictures = job.includePictures
+            maker.mIncludeText = job.includeText
+            maker.mIncludeKBFX = job.includeKBFX
+            maker.mIncludeSong = job.includeSong
+            maker.videoRelPath = job.videoRelPath
+
+            if (!ExportQueue.setRunning(job, maker)) {
+                //Cancelled before it started.
+                return
+            }
+            maker.start()
+            while (maker.isAlive) {
+                maker.join(PROGRESS_INTERVAL_MS)
+                ExportQueue.setProgress(job, maker.progress)
+                updateNotification()
+            }
+            success = maker.isSuccess
+            if (success) {
+                //Through the writer, so this never overlaps a save of the story from a screen.
+                PersistenceService.saveStoryLater(this, story)
+            } else {
+                error = "Unable to make the video"
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Export of ${job.storyTitle} failed", e)
+            FirebaseCrashlytics.getInstance().recordException(e)
+            error = e.toString()
+        } finally {
+            maker.close()
+            ExportQueue.setRunning(job, null)
+            workDir.deleteRecursively()
+        }
+
+        ExportQueue.finish(this, job, success, error)
+        onJobDone(success)
+    }
+
+    private fun onJobDone(success: Boolean) {
+        synchronized(this) {
+            if (success) {
+                mExportCount++
+            } else {
+                mFailCount++
+            }
+        }
+        logThroughput()
+        updateNotification()
+    }
+
+    @Synchronized
+    private fun logThroughput() {
+        val hours = (System.currentTimeMillis() - mStartTime) / 3600000.0
+        val perHour = if (hours > 0) mExportCount / hours else 0.0
+        Log.i(TAG, "Exported $mExportCount stories ($mFailCount failed attempts) in "
+                + MediaHelper.getDecimal(hours * 60) + " minutes: "
+                + MediaHelper.getDecimal(perHour) + " stories per hour")
+    }
+
+    /**
+     * Called by the last runner to finish, holding the lock.
+     */
+    private fun onQueueDone(startId: Int) {
+        logThroughput()
+        Handler(Looper.getMainLooper()).post {
+            //Does nothing if the service was started again meanwhile.
+            stopSelf(startId)
+        }
+    }
+
+    private fun createChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            val channel = NotificationChannel(CHANNEL_ID, getString(R.string.export_queue_channel),
+                    NotificationManager.IMPORTANCE_LOW)
+            val manager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+            manager.createNotificationChannel(channel)
+        }
+    }
+
+    private fun buildNotification(): Notification {
+        val jobs = ExportQueue.getJobs(this)
+        //Only count the jobs of this run, not ones finished before it.
+        val current = jobs.filter { !it.isFinished || it.finishedAt >= mStartTime }
+        val done = current.count { it.isFinished }
+        val progress = current.sumByDouble { if (it.isFinished) 1.0 else ExportQueue.getProgress(it) }
+
+        return NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_video_call_white_48dp)
+                .setContentTitle(getString(R.string.export_queue_title))
+                .setContentText(getString(R.string.export_queue_progress, done, current.size))
+                .setProgress(PROGRESS_MAX, if (current.isEmpty()) 0 else (progress * PROGRESS_MAX / current.size).toInt(), false)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build()
+    }
+
+    private fun updateNotification() {
+        val manager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+        manager.notify(NOTIFICATION_ID, buildNotification())
+    }
+
+    companion object {
+        private val TAG = "ExportService"
+
+        private const val CHANNEL_ID = "export"
+        private const val NOTIFICATION_ID = 1
+        private const val PROGRESS_MAX = 1000
+        private const val PROGRESS_INTERVAL_MS = 1000L
+
+        //Scratch directories of running jobs, under the app's files.
+        private const val WORK_DIR = "export"
+
+        const val PREF_KEY_CONCURRENCY = "export_concurrency"
+
+        fun start(context: Context) {
+            ContextCompat.startForegroundService(context, Intent(context, ExportService::class.java))
+        }
+
+        /**
+         * The number of jobs to run at once: the setting, within what the device's codecs allow.
+         */
+        fun getConcurrency(context: Context): Int {
+            val prefs = PreferenceManager.getDefaultSharedPreferences(context)
+            val wanted = prefs.getInt(PREF_KEY_CONCURRENCY, 1)
+            return Math.max(1, Math.min(wanted, AutoStoryMaker.getMaxConcurrentExports()))
+        }
+    }
+}
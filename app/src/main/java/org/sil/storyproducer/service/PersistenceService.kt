@@ -0,0 +1,279 @@
+package org.sil.storyproducer.service
+
+import android.content.Context
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
+import com.squareup.moshi.JsonAdapter
+import com.squareup.moshi.Moshi
+import okio.BufferedSink
+import okio.Okio
+import org.sil.storyproducer.model.RectAdapter
+import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.UriAdapter
+import org.sil.storyproducer.model.WordLinkList
+import org.sil.storyproducer.model.toJson
+import org.sil.storyproducer.tools.file.getChildOutputStream
+import org.sil.storyproducer.tools.file.getStoryChildOutputStream
+import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.file.isUriAutomaticallyCreated
+import org.sil.storyproducer.tools.file.toJson
+import java.io.File
+import java.io.FileOutputStream
+import java.io.FilterOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Writes the story.json and wordlinks.json files, and the activity logs of the stories.
+ *
+ * Screens mark what has changed ([saveStoryLater], [saveWordLinksLater]) rather than writing it
+ * themselves. The changes are written on one background thread once they stop coming for a
+ * moment, so a burst of changes to a story is written once, and two writes of the same file never
+ * overlap. Whatever is still waiting is written when the app goes to the background (see
+ * [org.sil.storyproducer.App]).
+ *
+ * Files are serialized straight into the output stream. In app-specific storage they are written
+ * to a temporary file that then replaces the old one, so a crash never leaves half a file; the
+ * storage access framework cannot rename over a file, so there it is truncated and rewritten.
+ */
+object PersistenceService {
+    private val TAG = "PersistenceService"
+
+    //Wait this long after the last change before writing...
+    internal const val DEBOUNCE_MS = 2000L
+    //...but no longer than this after the first one.
+    private const val MAX_DELAY_MS = 10000L
+
+    private const val TEMP_EXTENSION = ".tmp"
+
+    /** The Moshi instance for everything the app reads and writes as JSON. */
+    val moshi: Moshi = Moshi.Builder()
+            .add(RectAdapter())
+            .add(UriAdapter())
+            .build()
+
+    private val mExecutor = ScheduledThreadPoolExecutor(1) { runnable ->
+        val thread = Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+            runnable.run()
+        }, TAG)
+        thread.isDaemon = true
+        thread
+    }
+
+    //Writes waiting to run, by the file they write; a newer change replaces an older one.
+    private val mPending = LinkedHashMap<String, () -> Unit>()
+    private var mFirstChangeTime = 0L
+    private var mWriteTask: ScheduledFuture<*>? = null
+
+    //Held while writing a file, so a file written right away does not overlap a pending write.
+    private val mWriteLock = Any()
+
+    private val mWriteCount = AtomicInteger()
+    private val mBytesWritten = AtomicLong()
+    private val mCoalescedCount = AtomicInteger()
+
+    /** Number of files written since the app started. */
+    val writeCount: Int
+        get() = mWriteCount.get()
+
+    /** Number of bytes written since the app started. */
+    val bytesWritten: Long
+        get() = mBytesWritten.get()
+
+    /** Number of changes that did not need a write of their own since the app started. */
+    val coalescedCount: Int
+        get() = mCoalescedCount.get()
+
+    /**
+     * Write the story.json of a story soon.
+     */
+    fun saveStoryLater(context: Context, story: Story) {
+        val appContext = context.applicationContext
+        markChanged("story:${story.title}") { story.toJson(appContext) }
+    }
+
+    /**
+     * Write wordlinks.json soon.
+     */
+    fun saveWordLinksLater(context: Context, wordLinkList: WordLinkList) {
+        val appContext = context.applicationContext
+        markChanged("wordlinks") { wordLinkList.toJson(appContext) }
+    }
+
+    /**
+     * Write everything that is waiting, in the background.
+     */
+    fun flushAsync() {
+        mExecutor.execute(Runnable { writePending() })
+    }
+
+    /**
+     * Write everything that is waiting, and wait for it. Not for the write thread, and only for
+     * the main thread when it must not go on before the files are written, such as when the
+     * workspace is about to change.
+     */
+    fun flush() {
+        mExecutor.submit(Runnable { writePending() }).get()
+    }
+
+    /**
+     * Add text to the end of a story file. Call from a task on the write thread (see [runLater]),
+     * so the text is added in order with the reads and writes queued around it.
+     * @return false if the text could not be added.
+     */
+    fun append(context: Context, relPath: String, dirRoot: String, text: String): Boolean {
+        try {
+            synchronized(mWriteLock) {
+                val oStream = getChildOutputStream(context, "$dirRoot/$relPath", "", "wa")
+                if (oStream == null) {
+                    Log.w(TAG, "Unable to open $relPath of $dirRoot")
+                    return false
+                }
+                mBytesWritten.addAndGet(write(oStream) { sink -> sink.writeUtf8(text) })
+                mWriteCount.incrementAndGet()
+                return true
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Unable to append to $relPath of $dirRoot", e)
+            return false
+        }
+    }
+
+    /**
+     * Run a task on the write thread soon, after everything queued before it.
+     */
+    fun runLater(task: () -> Unit) {
+        mExecutor.execute(Runnable {
+            try {
+                task()
+            } catch (e: Exception) {
+                Log.e(TAG, "Unable to save", e)
+            }
+        })
+    }
+
+    /**
+     * Serialize a value into a story file, replacing the file in one step where the storage allows.
+     * @return false if the file could not be opened.
+     */
+    @Throws(IOException::class)
+    fun <T> writeJson(context: Context, relPath: String, dirRoot: String, adapter: JsonAdapter<T>, value: T): Boolean {
+        return writeFile(context, relPath, dirRoot) { sink -> adapter.toJson(sink, value) }
+    }
+
+    /**
+     * Write text to a story file, replacing the file in one step where the storage allows.
+     * @return false if the file could not be opened.
+     */
+    @Throws(IOException::class)
+    fun writeText(context: Context, relPath: String, dirRoot: String, text: String): Boolean {
+        return writeFile(context, relPath, dirRoot) { sink -> sink.writeUtf8(text) }
+    }
+
+    private fun writeFile(context: Context, relPath: String, dirRoot: String, writeTo: (BufferedSink) -> Unit): Boolean {
+        synchronized(mWriteLock) {
+            val uri = getStoryUri(relPath, dirRoot) ?: return false
+            val file = if (isUriAutomaticallyCreated(uri)) File(uri.path!!) else null
+            val bytes = if (file != null && file.parentFile?.isDirectory == true) {
+                writeAtomically(file, writeTo)
+            } else {
+                val oStream = getStoryChildOutputStream(context, relPath, "", dirRoot) ?: return false
+                write(oStream, writeTo = writeTo)
+            }
+            mWriteCount.incrementAndGet()
+            mBytesWritten.addAndGet(bytes)
+            return true
+        }
+    }
+
+    /**
+     * Run [write] once no change has been marked for [DEBOUNCE_MS], replacing any write waiting
+     * under the same key.
+     */
+    @Synchronized
+    internal fun markChanged(key: String, write: () -> Unit) {
+        val now = SystemClock.uptimeMillis()
+        if (mPending.isEmpty()) {
+            mFirstChangeTime = now
+        }
+        if (mPending.put(key, write) != null) {
+            mCoalescedCount.incrementAndGet()
+        }
+        mWriteTask?.cancel(false)
+        val delay = Math.min(DEBOUNCE_MS, Math.max(0, mFirstChangeTime + MAX_DELAY_MS - now))
+        mWriteTask = mExecutor.schedule(Runnable { writePending() }, delay, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Run the waiting writes. Called on the write thread.
+     */
+    private fun writePending() {
+        val writes = synchronized(this) {
+            val writes = ArrayList(mPending.values)
+            mPending.clear()
+            writes
+        }
+        if (writes.isEmpty()) {
+            return
+        }
+        for (write in writes) {
+            try {
+                write()
+            } catch (e: Exception) {
+                Log.e(TAG, "Unable to save", e)
+            }
+        }
+        Log.i(TAG, "$writeCount files ($bytesWritten bytes) written this session, $coalescedCount changes coalesced")
+    }
+
+    private fun writeAtomically(file: File, writeTo: (BufferedSink) -> Unit): Long {
+        val temp = File(file.parentFile, file.name + TEMP_EXTENSION)
+        try {
+            val fStream = FileOutputStream(temp)
+            val bytes = write(fStream, { fStream.fd.sync() }, writeTo)
+            if (!temp.renameTo(file)) {
+                throw IOException("Unable to replace ${file.name}")
+            }
+            return bytes
+        } finally {
+            temp.delete()
+        }
+    }
+
+    /**
+     * Write into a stream and close it.
+     * @param beforeClose called once everything is flushed to the stream.
+     * @return the number of bytes written.
+     */
+    private fun write(oStream: OutputStream, beforeClose: () -> Unit = {}, writeTo: (BufferedSink) -> Unit): Long {
+        val counter = CountingOutputStream(oStream)
+        Okio.buffer(Okio.sink(counter)).use { sink ->
+            writeTo(sink)
+            sink.flush()
+            beforeClose()
+        }
+        return counter.count
+    }
+
+    private class CountingOutputStream(stream: OutputStream) : FilterOutputStream(stream) {
+        var count = 0L
+            private set
+
+        override fun write(b: Int) {
+            out.write(b)
+            count++
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            out.write(b, off, len)
+            count += len
+        }
+    }
+}
@@ -5,6 +5,7 @@ import android.graphics.*
 import androidx.preference.PreferenceManager
 import org.sil.storyproducer.R
 import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.StorySummary
 import org.sil.storyproducer.tools.file.getStoryChildInputStream
 
 class SlideService(val context: Context) {
@@ -19,12 +20,26 @@ class SlideService(val context: Context) {
         }
     }
 
+    /**
+     * Get the thumbnail of a story in the story list.
+     */
+    fun getImage(sampleSize: Int, summary: StorySummary): Bitmap {
+        if (summary.title.isEmpty() || summary.imageFile.isEmpty()) {
+            return genDefaultImage()
+        }
+        return getImage(summary.imageFile, sampleSize, false, summary.title)
+    }
+
     fun shouldShowDefaultImage(slideNum: Int, story: Story): Boolean {
         return story.title.isNullOrEmpty()
                 || story.slides.getOrNull(slideNum)?.imageFile.isNullOrEmpty()
     }
 
     fun getImage(relPath: String, sampleSize: Int = 1, useAllPixels: Boolean = false, story: Story): Bitmap {
+        return getImage(relPath, sampleSize, useAllPixels, story.title)
+    }
+
+    fun getImage(relPath: String, sampleSize: Int, useAllPixels: Boolean, dirRoot: String): Bitmap {
         // DKH - Updated 03/13/2021 to fix Issue 548: In Android 11 Story Producer crashes in Finalize
         //                         phase and no video is produced
         // This routine is called for every slide in a story during FINALIZE.  "relPath" is the name of
@@ -40,7 +55,7 @@ class SlideService(val context: Context) {
         // iStream.available() can throw an exception, so a try/catch was added.
         // restructure routine for better flow
         if(relPath != "") {
-            val iStream = getStoryChildInputStream(context, relPath, story.title)
+            val iStream = getStoryChildInputStream(context, relPath, dirRoot)
 
             try {
                 if (iStream !== null && iStream.available() != 0) {
@@ -100,17 +115,7 @@ class SlideService(val context: Context) {
         val canvas = Canvas(newBitmap)
 
         val paint = Paint()
-        val prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        val altBgImageColor = prefs.getString("bloom_bgimage_color", "")?.trim();
-        if (altBgImageColor != null && altBgImageColor.isNotEmpty()) {
-            try {
-                paint.color = Color.parseColor(altBgImageColor)
-            } catch (e: IllegalArgumentException) {
-                paint.color = Color.LTGRAY
-            }
-        }
-        else
-            paint.color = Color.LTGRAY
+        paint.color = getLetterboxColor()
         paint.style = Paint.Style.FILL
 
         canvas.drawRect(0f, 0f, newWidth.toFloat(), newHeight.toFloat(), paint)
@@ -124,6 +129,22 @@ class SlideService(val context: Context) {
         return newBitmap
     }
 
+    /**
+     * The color of the bars around images that do not fit the video aspect ratio.
+     */
+    fun getLetterboxColor(): Int {
+        val prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        val altBgImageColor = prefs.getString("bloom_bgimage_color", "")?.trim();
+        if (altBgImageColor != null && altBgImageColor.isNotEmpty()) {
+            try {
+                return Color.parseColor(altBgImageColor)
+            } catch (e: IllegalArgumentException) {
+                return Color.LTGRAY
+            }
+        }
+        return Color.LTGRAY
+    }
+
     fun shouldScaleForAspectRatio(width: Int, height: Int, desiredAspectRatio: Float): Boolean {
 
         val actualAspectRatio = width.toFloat() / height.toFloat()
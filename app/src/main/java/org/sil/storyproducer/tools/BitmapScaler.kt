@@ -44,4 +44,20 @@ object BitmapScaler {
         }
     }
 
+    /**
+     * The rect that shows a whole [bw] x [bh] bitmap centered in a [w] x [h] frame, leaving bars
+     * on two sides.
+     */
+    fun centerFitRectF(bh: Int, bw: Int, h: Int, w: Int) : RectF {
+        return if (bw*1f/bh > w*1f/h){
+            //more width - scale to width and bar the top and bottom
+            val hBar = (h - bh*w/bw*1f)/2f
+            RectF(0f, hBar, w*1f, h-hBar)
+        }else{
+            //more height - scale to height and bar the sides
+            val wBar = (w - bw*h/bh*1f)/2f
+            RectF(wBar, 0f, w-wBar, h*1f)
+        }
+    }
+
 }
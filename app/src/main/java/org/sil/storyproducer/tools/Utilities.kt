@@ -12,6 +12,7 @@ import android.os.Environment
 import androidx.core.content.ContextCompat
 import org.sil.storyproducer.App
 import java.io.File
+import java.security.MessageDigest
 
 fun Context.hideKeyboard(view: View) {
     val inputMethodManager = getSystemService(Activity.INPUT_METHOD_SERVICE) as InputMethodManager
@@ -133,3 +134,18 @@ fun getMaxFreeExtMemoryFile(): File? {
     return maxFreeDir
 }
 
+
+/**
+ * Get the SHA-1 hash of a string in hex, for keys and cache file names.
+ */
+fun sha1Hex(text: String): String {
+    return MessageDigest.getInstance("SHA-1").digest(text.toByteArray()).toHex()
+}
+
+fun ByteArray.toHex(): String {
+    val sb = StringBuilder(size * 2)
+    for (b in this) {
+        sb.append(String.format("%02x", b))
+    }
+    return sb.toString()
+}
@@ -174,6 +174,31 @@ fun getStoryUri(relPath: String, dirRoot: String = Workspace.activeDirRoot) : Ur
             Uri.encode("/$dirRoot/$relPath"))
 }
 
+/**
+ * Get the size and modification time of a story file without opening it.
+ * @return an array of (size, last modified) or null if they are not available.
+ */
+fun getStoryFileStats(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot) : LongArray? {
+    val uri = getStoryUri(relPath, dirRoot) ?: return null
+    try {
+        if (isUriAutomaticallyCreated(uri)) {
+            val file = File(uri.path!!)
+            return if (file.isFile) longArrayOf(file.length(), file.lastModified()) else null
+        }
+
+        context.contentResolver.query(uri,
+                arrayOf(DocumentsContract.Document.COLUMN_SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED),
+                null, null, null)?.use { cursor ->
+            if (cursor.moveToFirst() && !cursor.isNull(0) && !cursor.isNull(1)) {
+                return longArrayOf(cursor.getLong(0), cursor.getLong(1))
+            }
+        }
+    } catch (e: Exception) {
+        //Treat the file as having unknown stats.
+    }
+    return null
+}
+
 fun getWorkspaceUri(relPath: String) : Uri? {
     return Uri.parse(Workspace.workdocfile.uri.toString() + Uri.encode("/$relPath"))
 }
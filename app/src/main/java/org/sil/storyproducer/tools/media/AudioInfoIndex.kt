@@ -0,0 +1,187 @@
+package org.sil.storyproducer.tools.media
+
+import android.content.Context
+import android.media.MediaMetadataRetriever
+import android.os.Build
+import android.util.Log
+import com.squareup.moshi.JsonClass
+import org.sil.storyproducer.model.PROJECT_DIR
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.service.PersistenceService
+import org.sil.storyproducer.tools.file.getStoryChildInputStream
+import org.sil.storyproducer.tools.file.getStoryChildOutputStream
+import org.sil.storyproducer.tools.file.getStoryFileStats
+import org.sil.storyproducer.tools.file.getStoryUri
+
+/**
+ * Duration and format of one audio file of a story, as of the size and modification time it
+ * had when it was probed.
+ *
+ * @param durationUs duration in microseconds, or 0 if it could not be read.
+ * @param sampleRate sample rate, or 0 if unknown (only read from Android 12).
+ */
+@JsonClass(generateAdapter = true)
+class AudioInfo(val size: Long,
+                val modified: Long,
+                val durationUs: Long,
+                val mimeType: String = "",
+                val bitRate: Int = 0,
+                val sampleRate: Int = 0) {
+
+    /**
+     * Whether this is still the info of a file with the given (size, last modified) stats.
+     */
+    fun matches(stats: LongArray): Boolean {
+        return stats[0] == size && stats[1] == modified
+    }
+
+    companion object
+}
+
+/**
+ * The audio info of a story by story relative path (used for saving the index in a single file)
+ */
+@JsonClass(generateAdapter = true)
+class AudioInfoList(val files: Map<String, AudioInfo> = HashMap()) {
+    companion object
+}
+
+/**
+ * Index of the durations and formats of the audio files of each story, kept in the story's
+ * project directory next to the story file.
+ *
+ * Opening a file with [MediaMetadataRetriever] costs tens of milliseconds on an SD card, while
+ * the size and modification time of a file are a cheap query. A file is only probed again when
+ * those have changed, and recordings are indexed as soon as they are written (see [update]).
+ * Lookups add to the index in memory; [save] writes it out.
+ */
+object AudioInfoIndex {
+    private val TAG = "AudioInfoIndex"
+
+    const val INDEX_FILE = "audio_index.json"
+
+    private class Index(val files: HashMap<String, AudioInfo>) {
+        var isDirty = false
+    }
+
+    //Loaded indexes by story directory.
+    private val mIndexes = HashMap<String, Index>()
+
+    /**
+     * Get the duration of a story audio file in microseconds, or 0 if it cannot be read.
+     */
+    fun getDuration(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot): Long {
+        return getInfo(context, relPath, dirRoot)?.durationUs ?: 0
+    }
+
+    /**
+     * Get the duration and format of a story audio file, probing it only if it is not indexed
+     * or has changed since.
+     * @return the info, or null if there is no story directory.
+     */
+    fun getInfo(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot): AudioInfo? {
+        val stats = getStoryFileStats(context, relPath, dirRoot)
+        if (stats == null) {
+            //No stats to check an entry against, so nothing can be kept.
+            val uri = getStoryUri(relPath, dirRoot) ?: return null
+            return AudioInfo(0, 0, MediaHelper.getAudioDuration(context, uri))
+        }
+        synchronized(this) {
+            val info = getIndex(context, dirRoot).files[relPath]
+            if (info != null && info.matches(stats)) {
+                return info
+            }
+        }
+        return probe(context, relPath, dirRoot, stats)
+    }
+
+    /**
+     * Index a file that was just written, and save the index.
+     */
+    fun update(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot) {
+        val stats = getStoryFileStats(context, relPath, dirRoot) ?: return
+        probe(context, relPath, dirRoot, stats)
+        save(context, dirRoot)
+    }
+
+    /**
+     * Write the index of a story if it has changed since it was loaded or last saved.
+     */
+    fun save(context: Context, dirRoot: String = Workspace.activeDirRoot) {
+        val json = synchronized(this) {
+            val index = mIndexes[dirRoot]
+            if (index == null || !index.isDirty) {
+                return
+            }
+            index.isDirty = false
+            AudioInfoList.jsonAdapter(PersistenceService.moshi).toJson(AudioInfoList(HashMap(index.files)))
+        }
+        try {
+            val oStream = getStoryChildOutputStream(context, "$PROJECT_DIR/$INDEX_FILE", "", dirRoot) ?: return
+            oStream.use { it.write(json.toByteArray(Charsets.UTF_8)) }
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to save audio index of $dirRoot", e)
+        }
+    }
+
+    /**
+     * Forget the indexes in memory, so they are read from the stories again.
+     */
+    @Synchronized
+    internal fun unload() {
+        mIndexes.clear()
+    }
+
+    private fun probe(context: Context, relPath: String, dirRoot: String, stats: LongArray): AudioInfo? {
+        val uri = getStoryUri(relPath, dirRoot) ?: return null
+        val mmr = MediaMetadataRetriever()
+        val info = try {
+            mmr.setDataSource(context, uri)
+            AudioInfo(stats[0], stats[1],
+                    (mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)?.toLongOrNull() ?: 0) * 1000,
+                    mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE) ?: "",
+                    mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE)?.toIntOrNull() ?: 0,
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+                        mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_SAMPLERATE)?.toIntOrNull() ?: 0
+                    else 0)
+        } catch (e: Exception) {
+            //Not readable (yet); don't index it so it is tried again.
+            Log.w(TAG, "Unable to read $relPath", e)
+            return AudioInfo(stats[0], stats[1], 0)
+        } finally {
+            mmr.release()
+        }
+
+        synchronized(this) {
+            val index = getIndex(context, dirRoot)
+            index.files[relPath] = info
+            index.isDirty = true
+        }
+        return info
+    }
+
+    /**
+     * Get the index of a story, reading it the first time. Called holding the lock.
+     */
+    private fun getIndex(context: Context, dirRoot: String): Index {
+        val loaded = mIndexes[dirRoot]
+        if (loaded != null) {
+            return loaded
+        }
+        val files = HashMap<String, AudioInfo>()
+        try {
+            getStoryChildInputStream(context, "$PROJECT_DIR/$INDEX_FILE", dirRoot)?.use { iStream ->
+                val list = AudioInfoList.jsonAdapter(PersistenceService.moshi).fromJson(iStream.reader().readText())
+                if (list != null) {
+                    files.putAll(list.files)
+                }
+            }
+        } catch (e: Exception) {
+            //It is only an index; the files are probed again.
+            Log.w(TAG, "Discarding unreadable audio index of $dirRoot", e)
+        }
+        val index = Index(files)
+        mIndexes[dirRoot] = index
+        return index
+    }
+}
@@ -11,17 +11,30 @@ import androidx.core.app.ActivityCompat
 import androidx.core.content.ContextCompat
 import android.util.Log
 import android.widget.Toast
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry
 import com.google.firebase.crashlytics.FirebaseCrashlytics
+import com.googlecode.mp4parser.FileDataSourceImpl
+import com.googlecode.mp4parser.authoring.Movie
+import com.googlecode.mp4parser.authoring.Track
+import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator
+import com.googlecode.mp4parser.authoring.tracks.AppendTrack
+import com.googlecode.mp4parser.boxes.mp4.ESDescriptorBox
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.DecoderConfigDescriptor
 import org.sil.storyproducer.R
 import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.tools.file.copyToWorkspacePath
 import org.sil.storyproducer.tools.file.getStoryFileDescriptor
-import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.file.getStoryPFD
 import org.sil.storyproducer.tools.media.story.AutoStoryMaker
 import org.sil.storyproducer.tools.media.story.StoryMaker
 import org.sil.storyproducer.tools.media.story.StoryPage
 import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
 import java.io.IOException
+import java.nio.channels.FileChannel
+import java.util.Arrays
 
 
 //See https://developer.android.com/guide/topics/media/media-formats.html for supported formats.
@@ -68,26 +81,124 @@ abstract class AudioRecorder(val activity: Activity) {
 
             val tempDestPath  = "${context.filesDir}/temp.mp4"
 
+            val start = System.currentTimeMillis()
+            val remuxed = appendByRemuxing(context, orgAudioRelPath, appendAudioRelPath, File(tempDestPath))
+            if (!remuxed) {
+                appendByReencoding(context, orgAudioRelPath, appendAudioRelPath, File(tempDestPath))
+            }
+            Log.i(AUDIO_RECORDER, "Appended $appendAudioRelPath to $orgAudioRelPath by "
+                    + (if (remuxed) "copying the AAC samples" else "re-encoding") + " in "
+                    + (System.currentTimeMillis() - start) + " ms")
 
+            copyToWorkspacePath(context, Uri.fromFile(File(tempDestPath)),
+                    "${Workspace.activeDirRoot}/$orgAudioRelPath")
+            File(tempDestPath).delete()
+            AudioInfoIndex.update(context, orgAudioRelPath)
+            WaveformStore.generate(context, orgAudioRelPath)
+        }
+
+        /**
+         * Join two recordings by copying the AAC samples of the second after those of the first,
+         * without decoding them. The audio is not changed, so appending any number of times loses
+         * nothing.
+         * @return false if the recordings could not be joined this way, e.g. as their formats differ.
+         */
+        private fun appendByRemuxing(context: Context, orgAudioRelPath: String, appendAudioRelPath: String, dest: File): Boolean {
+            val orgPfd = getStoryPFD(context, orgAudioRelPath) ?: return false
+            val appendPfd = getStoryPFD(context, appendAudioRelPath)
+            if (appendPfd == null) {
+                orgPfd.close()
+                return false
+            }
+            try {
+                //The samples are read from the recordings while the joined file is written.
+                return appendByRemuxing(FileInputStream(orgPfd.fileDescriptor).channel,
+                        FileInputStream(appendPfd.fileDescriptor).channel, dest)
+            } catch (e: Exception) {
+                Log.w(AUDIO_RECORDER, "Unable to append $appendAudioRelPath without re-encoding", e)
+                dest.delete()
+                return false
+            } finally {
+                orgPfd.close()
+                appendPfd.close()
+            }
+        }
+
+        /**
+         * Write the recording in [org] followed by the one in [append] to [dest], copying the AAC
+         * samples of both.
+         * @return false if the recordings cannot be joined this way, leaving [dest] unwritten.
+         */
+        @Throws(IOException::class)
+        internal fun appendByRemuxing(org: FileChannel, append: FileChannel, dest: File): Boolean {
+            val orgTrack = getOnlyAudioTrack(MovieCreator.build(FileDataSourceImpl(org))) ?: return false
+            val appendTrack = getOnlyAudioTrack(MovieCreator.build(FileDataSourceImpl(append))) ?: return false
+            if (!canAppend(orgTrack, appendTrack)) {
+                return false
+            }
+
+            val movie = Movie()
+            movie.addTrack(AppendTrack(orgTrack, appendTrack))
+            val container = DefaultMp4Builder().build(movie)
+            FileOutputStream(dest).channel.use { container.writeContainer(it) }
+            return true
+        }
+
+        /**
+         * Get the audio track of a recording, or null if it has any other tracks.
+         */
+        private fun getOnlyAudioTrack(movie: Movie): Track? {
+            val track = movie.tracks.singleOrNull() ?: return null
+            return if (track.handler == "soun") track else null
+        }
+
+        /**
+         * Whether the samples of [second] can follow those of [first] in the same track: the same
+         * codec, sample rate, channel count and time scale, and the same decoder config, as the
+         * joined track only keeps that of [first].
+         */
+        private fun canAppend(first: Track, second: Track): Boolean {
+            val firstEntry = first.sampleDescriptionBox.sampleEntry as? AudioSampleEntry ?: return false
+            val secondEntry = second.sampleDescriptionBox.sampleEntry as? AudioSampleEntry ?: return false
+            val firstConfig = getDecoderConfig(firstEntry) ?: return false
+            val secondConfig = getDecoderConfig(secondEntry) ?: return false
+            val firstAudioConfig = firstConfig.audioSpecificInfo?.configBytes ?: return false
+            val secondAudioConfig = secondConfig.audioSpecificInfo?.configBytes ?: return false
+            return firstEntry.type == secondEntry.type
+                    && firstEntry.sampleRate == secondEntry.sampleRate
+                    && firstEntry.channelCount == secondEntry.channelCount
+                    && first.trackMetaData.timescale == second.trackMetaData.timescale
+                    && firstConfig.objectTypeIndication == secondConfig.objectTypeIndication
+                    && Arrays.equals(firstAudioConfig, secondAudioConfig)
+        }
+
+        /**
+         * Get the decoder config of the ESDS box of an audio sample entry, or null if it has none.
+         */
+        private fun getDecoderConfig(entry: AudioSampleEntry): DecoderConfigDescriptor? {
+            val esds = entry.getBoxes(ESDescriptorBox::class.java).firstOrNull() ?: return null
+            return esds.esDescriptor?.decoderConfigDescriptor
+        }
+
+        /**
+         * Join two recordings by decoding both and encoding them again as one.
+         */
+        private fun appendByReencoding(context: Context, orgAudioRelPath: String, appendAudioRelPath: String, dest: File) {
             val outputFormat = MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4
             val audioFormat = AutoStoryMaker(context).generateAudioFormat()
             val pages: MutableList<StoryPage> = mutableListOf()
 
-            var duration = MediaHelper.getAudioDuration(context, getStoryUri(orgAudioRelPath)!!)
+            var duration = AudioInfoIndex.getDuration(context, orgAudioRelPath)
             pages.add(StoryPage("",orgAudioRelPath,duration,null,null))
-            duration = MediaHelper.getAudioDuration(context, getStoryUri(appendAudioRelPath)!!)
+            duration = AudioInfoIndex.getDuration(context, appendAudioRelPath)
             pages.add(StoryPage("",appendAudioRelPath,duration,null,null))
 
             //If pages weren't generated, exit.
-            val mStoryMaker = StoryMaker(context, File(tempDestPath), outputFormat, null, audioFormat,
+            val mStoryMaker = StoryMaker(context, dest, outputFormat, null, audioFormat,
                     pages.toTypedArray(), 10000, 10000)
 
             mStoryMaker.churn()
             mStoryMaker.close()
-
-            copyToWorkspacePath(context, Uri.fromFile(File(tempDestPath)),
-                    "${Workspace.activeDirRoot}/$orgAudioRelPath")
-            File(tempDestPath).delete()
         }
     }
 }
@@ -96,6 +207,9 @@ abstract class AudioRecorder(val activity: Activity) {
 class AudioRecorderMP4(activity: Activity) : AudioRecorder(activity) {
 
     private var mRecorder = MediaRecorder()
+    //The file being recorded, to index once it is written.
+    private var mRelPath = ""
+    private var mDirRoot = ""
 
     private fun initRecorder(){
         mRecorder.release()
@@ -111,6 +225,8 @@ class AudioRecorderMP4(activity: Activity) : AudioRecorder(activity) {
     override fun startNewRecording(relPath: String){
         initRecorder()
         mRecorder.setOutputFile(getStoryFileDescriptor(activity, relPath,"","w"))
+        mRelPath = relPath
+        mDirRoot = Workspace.activeDirRoot
         isRecording = true
         try{
             mRecorder.prepare()
@@ -133,6 +249,8 @@ class AudioRecorderMP4(activity: Activity) : AudioRecorder(activity) {
             mRecorder.reset()
             mRecorder.release()
             isRecording = false
+            AudioInfoIndex.update(activity, mRelPath, mDirRoot)
+            WaveformStore.generate(activity, mRelPath, mDirRoot)
         } catch (stopException: RuntimeException) {
             Toast.makeText(activity, R.string.recording_toolbar_error_recording, Toast.LENGTH_SHORT).show()
             FirebaseCrashlytics.getInstance().recordException(stopException)
@@ -0,0 +1,319 @@
+package org.sil.storyproducer.tools.media
+
+import java.io.BufferedInputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * Joins MP3 files by copying their frames one after the other, without decoding them.
+ *
+ * Only MPEG audio layer III is handled. ID3 tags and anything else between frames are dropped,
+ * as is the Xing/Info/VBRI frame of each input; the output starts with a new Info frame holding
+ * the total frame count, so players get the duration right for variable bit rate files too.
+ */
+object Mp3Concatenator {
+
+    //Largest layer III frame: 320 kbit/s at 32 kHz (MPEG-1) with padding is 1441 bytes.
+    internal const val MAX_FRAME_SIZE = 1441
+
+    private const val XING_FLAG_FRAMES = 1
+    private const val XING_FLAG_BYTES = 2
+
+    private val MPEG1_BITRATES = intArrayOf(0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320)
+    private val MPEG2_BITRATES = intArrayOf(0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160)
+    private val MPEG1_SAMPLE_RATES = intArrayOf(44100, 48000, 32000)
+
+    private const val VERSION_MPEG1 = 3
+    private const val VERSION_MPEG2 = 2
+    private const val CHANNEL_MODE_MONO = 3
+
+    /**
+     * Join MP3 streams into one. Each input is opened twice: once to check and count the frames,
+     * once to copy them.
+     * @param inputs opens each input, in order.
+     * @return false, having written nothing, if the inputs have no frames or are not all layer III
+     * audio of the same MPEG version, sample rate and channel count.
+     */
+    @Throws(IOException::class)
+    fun concatenate(inputs: List<() -> InputStream>, output: OutputStream): Boolean {
+        val body = ByteArray(MAX_FRAME_SIZE)
+
+        var firstHeader = 0
+        var frameCount = 0
+        var byteCount = 0L
+        val bitrates = HashSet<Int>()
+        for (open in inputs) {
+            Mp3FrameReader(open()).use { reader ->
+                while (reader.next()) {
+                    if (firstHeader == 0) {
+                        firstHeader = reader.header
+                    } else if (getFormatKey(reader.header) != getFormatKey(firstHeader)) {
+                        return false
+                    }
+                    if (reader.frameIndex == 0 && isInfoFrame(reader.header, body, reader.readBody(body))) {
+                        continue
+                    }
+                    frameCount++
+                    byteCount += reader.frameLength
+                    bitrates.add(getBitrateIndex(reader.header))
+                }
+            }
+        }
+        if (frameCount == 0) {
+            return false
+        }
+
+        val info = createInfoFrame(firstHeader, frameCount, byteCount, bitrates.size > 1)
+        output.write(info)
+        for (open in inputs) {
+            Mp3FrameReader(open()).use { reader ->
+                while (reader.next()) {
+                    val length = reader.readBody(body)
+                    if (reader.frameIndex == 0 && isInfoFrame(reader.header, body, length)) {
+                        continue
+                    }
+                    writeInt(output, reader.header)
+                    output.write(body, 0, length)
+                }
+            }
+        }
+        output.flush()
+        return true
+    }
+
+    internal fun isValidHeader(header: Int): Boolean {
+        return (header ushr 21) == 0x7FF
+                && getVersion(header) != 1
+                //Layer III
+                && ((header ushr 17) and 3) == 1
+                && getBitrateIndex(header) in 1..14
+                && ((header ushr 10) and 3) != 3
+    }
+
+    /**
+     * Length of a frame in bytes, including its header.
+     */
+    internal fun getFrameLength(header: Int): Int {
+        val isMpeg1 = getVersion(header) == VERSION_MPEG1
+        val bitrate = (if (isMpeg1) MPEG1_BITRATES else MPEG2_BITRATES)[getBitrateIndex(header)] * 1000
+        val padding = (header ushr 9) and 1
+        return (if (isMpeg1) 144 else 72) * bitrate / getSampleRate(header) + padding
+    }
+
+    internal fun getSampleRate(header: Int): Int {
+        val rate = MPEG1_SAMPLE_RATES[(header ushr 10) and 3]
+        return when (getVersion(header)) {
+            VERSION_MPEG1 -> rate
+            VERSION_MPEG2 -> rate / 2
+            else -> rate / 4
+        }
+    }
+
+    private fun getVersion(header: Int) = (header ushr 19) and 3
+
+    private fun getBitrateIndex(header: Int) = (header ushr 12) and 0xF
+
+    //The protection bit is clear when a CRC follows the header.
+    private fun hasCrc(header: Int) = ((header ushr 16) and 1) == 0
+
+    private fun isMono(header: Int) = ((header ushr 6) and 3) == CHANNEL_MODE_MONO
+
+    /**
+     * What must match for frames to follow each other: version, sample rate and mono or not.
+     */
+    private fun getFormatKey(header: Int): Int {
+        return (getVersion(header) shl 3) or (((header ushr 10) and 3) shl 1) or (if (isMono(header)) 1 else 0)
+    }
+
+    /**
+     * Size of the side information that follows the header (without CRC) of a layer III frame.
+     */
+    private fun getSideInfoSize(header: Int): Int {
+        return if (getVersion(header) == VERSION_MPEG1) {
+            if (isMono(header)) 17 else 32
+        } else {
+            if (isMono(header)) 9 else 17
+        }
+    }
+
+    /**
+     * Whether a frame holds a Xing, Info or VBRI tag rather than audio.
+     * @param body the frame after its header.
+     */
+    private fun isInfoFrame(header: Int, body: ByteArray, length: Int): Boolean {
+        //The side information comes after the CRC, if the frame has one.
+        val offset = getSideInfoSize(header) + (if (hasCrc(header)) 2 else 0)
+        return hasTag(body, length, offset, "Xing") || hasTag(body, length, offset, "Info")
+                || hasTag(body, length, 32, "VBRI")
+    }
+
+    private fun hasTag(body: ByteArray, length: Int, offset: Int, tag: String): Boolean {
+        if (offset + tag.length > length) {
+            return false
+        }
+        for (i in tag.indices) {
+            if (body[offset + i] != tag[i].toByte()) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Make a silent frame in the format of [template] holding a Xing ("Info" for constant bit
+     * rate) tag with the frame and byte counts of the whole file.
+     * @param frameCount number of audio frames that follow.
+     * @param byteCount number of bytes of the audio frames that follow.
+     */
+    internal fun createInfoFrame(template: Int, frameCount: Int, byteCount: Long, isVbr: Boolean): ByteArray {
+        val tagOffset = 4 + getSideInfoSize(template)
+        val needed = tagOffset + 16
+        for (bitrateIndex in 1..14) {
+            //No CRC, no padding, and the smallest bit rate with room for the tag.
+            val header = (template and (0xF000 or 0x200).inv()) or 0x10000 or (bitrateIndex shl 12)
+            val length = getFrameLength(header)
+            if (length < needed) {
+                continue
+            }
+            val frame = ByteArray(length)
+            putInt(frame, 0, header)
+            val tag = if (isVbr) "Xing" else "Info"
+            for (i in tag.indices) {
+                frame[tagOffset + i] = tag[i].toByte()
+            }
+            putInt(frame, tagOffset + 4, XING_FLAG_FRAMES or XING_FLAG_BYTES)
+            putInt(frame, tagOffset + 8, frameCount)
+            putInt(frame, tagOffset + 12, (byteCount + length).toInt())
+            return frame
+        }
+        throw IllegalArgumentException("No bit rate has room for the info tag")
+    }
+
+    private fun putInt(array: ByteArray, offset: Int, value: Int) {
+        array[offset] = (value ushr 24).toByte()
+        array[offset + 1] = (value ushr 16).toByte()
+        array[offset + 2] = (value ushr 8).toByte()
+        array[offset + 3] = value.toByte()
+    }
+
+    private fun writeInt(output: OutputStream, value: Int) {
+        output.write(value ushr 24)
+        output.write(value ushr 16)
+        output.write(value ushr 8)
+        output.write(value)
+    }
+
+    /**
+     * Reads the layer III frames of a stream one at a time, skipping an ID3v2 tag at the start and
+     * anything that is not a frame header.
+     */
+    private class Mp3FrameReader(stream: InputStream) : Closeable {
+        private val mStream = BufferedInputStream(stream, 16 * 1024)
+        private var mBodyLeft = 0
+
+        /** Header of the current frame. */
+        var header = 0
+            private set
+        /** Length of the current frame, including its header. */
+        var frameLength = 0
+            private set
+        /** Index of the current frame in the stream, from 0. */
+        var frameIndex = -1
+            private set
+
+        /**
+         * Move to the next frame, skipping the rest of the current one.
+         * @return false at the end of the stream.
+         */
+        fun next(): Boolean {
+            skipFully(mBodyLeft)
+            mBodyLeft = 0
+            if (frameIndex < 0) {
+                skipId3()
+            }
+
+            var value = 0
+            var count = 0
+            while (true) {
+                val b = mStream.read()
+                if (b < 0) {
+                    return false
+                }
+                value = (value shl 8) or b
+                if (++count >= 4 && isValidHeader(value)) {
+                    break
+                }
+            }
+            header = value
+            frameLength = getFrameLength(value)
+            mBodyLeft = frameLength - 4
+            frameIndex++
+            return true
+        }
+
+        /**
+         * Read the rest of the current frame.
+         * @return number of bytes read, less than the frame if the stream ended early.
+         */
+        fun readBody(buffer: ByteArray): Int {
+            var read = 0
+            while (read < mBodyLeft) {
+                val n = mStream.read(buffer, read, mBodyLeft - read)
+                if (n < 0) {
+                    break
+                }
+                read += n
+            }
+            mBodyLeft = 0
+            return read
+        }
+
+        override fun close() {
+            mStream.close()
+        }
+
+        private fun skipId3() {
+            mStream.mark(10)
+            val tag = ByteArray(10)
+            var read = 0
+            while (read < 10) {
+                val n = mStream.read(tag, read, 10 - read)
+                if (n < 0) {
+                    break
+                }
+                read += n
+            }
+            if (read < 10 || tag[0] != 'I'.toByte() || tag[1] != 'D'.toByte() || tag[2] != '3'.toByte()) {
+                mStream.reset()
+                return
+            }
+            //Sync safe size: 7 bits per byte.
+            var size = 0
+            for (i in 6..9) {
+                size = (size shl 7) or (tag[i].toInt() and 0x7F)
+            }
+            //A footer repeats the header.
+            if ((tag[5].toInt() and 0x10) != 0) {
+                size += 10
+            }
+            skipFully(size)
+        }
+
+        private fun skipFully(count: Int) {
+            var left = count.toLong()
+            while (left > 0) {
+                val n = mStream.skip(left)
+                if (n <= 0) {
+                    if (mStream.read() < 0) {
+                        return
+                    }
+                    left--
+                } else {
+                    left -= n
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.sil.storyproducer.tools.media
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import org.sil.storyproducer.tools.media.pipe.PipedMediaByteBufferSource
+import org.sil.storyproducer.tools.media.pipe.SourceClosedException
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * Lowest and highest sample of each of a fixed number of equal slices of a recording, enough to
+ * draw its waveform without decoding it again.
+ *
+ * Peaks are kept to 8 bits (the top byte of the 16 bit samples), so the peaks of a recording take
+ * a few hundred bytes however long it is.
+ *
+ * @param durationUs duration of the recording in microseconds.
+ * @param min lowest sample of each slice, from -128 to 0.
+ * @param max highest sample of each slice, from 0 to 127.
+ */
+class WaveformPeaks(val durationUs: Long, val min: ByteArray, val max: ByteArray) {
+
+    /** Number of slices. */
+    val size: Int
+        get() = min.size
+
+    @Throws(IOException::class)
+    fun write(stream: OutputStream) {
+        val data = DataOutputStream(stream)
+        data.writeInt(MAGIC)
+        data.writeLong(durationUs)
+        data.writeShort(size)
+        data.write(min)
+        data.write(max)
+        data.flush()
+    }
+
+    companion object {
+        //"WFP1": version 1 of the peaks file.
+        private const val MAGIC = 0x57465031
+
+        /** Number of slices a recording is divided into. */
+        const val DEFAULT_SIZE = 200
+
+        /**
+         * Read peaks written by [write].
+         * @return the peaks, or null if the stream does not hold peaks of this version.
+         */
+        @Throws(IOException::class)
+        fun read(stream: InputStream): WaveformPeaks? {
+            val data = DataInputStream(stream)
+            if (data.readInt() != MAGIC) {
+                return null
+            }
+            val durationUs = data.readLong()
+            val size = data.readUnsignedShort()
+            val min = ByteArray(size)
+            val max = ByteArray(size)
+            data.readFully(min)
+            data.readFully(max)
+            return WaveformPeaks(durationUs, min, max)
+        }
+
+        /**
+         * Find the peaks of decoded 16 bit audio, one buffer at a time. Samples of every channel
+         * count towards the same peaks.
+         * @param source source of raw audio that has been set up. It is read to the end but not closed.
+         * @param durationUs duration of the audio, which decides the slice each sample falls in.
+         * Samples past it count towards the last slice.
+         * @param isCancelled checked between buffers.
+         * @return the peaks, or null if cancelled.
+         */
+        @Throws(SourceClosedException::class)
+        fun extract(source: PipedMediaByteBufferSource, durationUs: Long, size: Int = DEFAULT_SIZE,
+                    isCancelled: () -> Boolean = { false }): WaveformPeaks? {
+            val format = source.outputFormat
+            val sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+            val channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+            val totalFrames = Math.max(1L, durationUs * sampleRate / 1000000)
+
+            val min = ByteArray(size)
+            val max = ByteArray(size)
+            val info = MediaCodec.BufferInfo()
+            var frame = 0L
+            while (!source.isDone) {
+                if (isCancelled()) {
+                    return null
+                }
+                val buffer = source.getBuffer(info) ?: break
+                val shorts = MediaHelper.getShortBuffer(buffer)
+                var channel = 0
+                while (shorts.hasRemaining()) {
+                    val slice = Math.min(size - 1L, frame * size / totalFrames).toInt()
+                    //Top byte of the sample, rounded towards zero.
+                    val peak = (shorts.get() / 256).toByte()
+                    if (peak < min[slice]) {
+                        min[slice] = peak
+                    } else if (peak > max[slice]) {
+                        max[slice] = peak
+                    }
+                    if (++channel == channelCount) {
+                        channel = 0
+                        frame++
+                    }
+                }
+                source.releaseBuffer(buffer)
+            }
+            return WaveformPeaks(durationUs, min, max)
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.sil.storyproducer.tools.media
+
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.os.Process
+import android.util.Log
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.getStoryFileStats
+import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.media.pipe.PipedAudioDecoderMaverick
+import org.sil.storyproducer.tools.sha1Hex
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Waveform peaks of recordings (see [WaveformPeaks]), kept in the app's cache.
+ *
+ * Peaks are found by decoding the recording once, when it is saved or first shown, and are keyed
+ * by its URI, size and modification time so a changed recording gets new peaks. The work runs on
+ * a small pool of background threads; screens cancel what they no longer show.
+ */
+object WaveformStore {
+    private val TAG = "WaveformStore"
+
+    private const val DIR_NAME = "waveforms"
+    private const val EXTENSION = ".peaks"
+    private const val TEMP_EXTENSION = ".tmp"
+    //A peaks file is a few hundred bytes, so this is well under a megabyte.
+    private const val MAX_FILES = 2000
+
+    private const val POOL_THREADS = 2
+
+    private val mExecutor = ThreadPoolExecutor(POOL_THREADS, POOL_THREADS, 30, TimeUnit.SECONDS,
+            LinkedBlockingQueue<Runnable>(), { runnable ->
+        val thread = Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+            runnable.run()
+        }, TAG)
+        thread.isDaemon = true
+        thread
+    })
+
+    private val mMainHandler = Handler(Looper.getMainLooper())
+
+    init {
+        mExecutor.allowCoreThreadTimeOut(true)
+    }
+
+    /**
+     * Find the peaks of a recording in the background, e.g. once it has been saved.
+     */
+    fun generate(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot) {
+        val appContext = context.applicationContext
+        mExecutor.execute { get(appContext, relPath, dirRoot) }
+    }
+
+    /**
+     * Get the peaks of a recording in the background.
+     * @param onLoaded called on the main thread with the peaks, unless the request was
+     * cancelled or the recording could not be decoded.
+     * @return the request, to be cancelled (with interruption) if the peaks are no longer needed.
+     */
+    fun load(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot,
+             onLoaded: (WaveformPeaks) -> Unit): Future<*> {
+        val appContext = context.applicationContext
+        lateinit var task: FutureTask<Unit>
+        task = FutureTask<Unit>(Callable<Unit> {
+            val peaks = get(appContext, relPath, dirRoot) { Thread.currentThread().isInterrupted }
+            if (peaks != null) {
+                mMainHandler.post {
+                    if (!task.isCancelled) {
+                        onLoaded(peaks)
+                    }
+                }
+            }
+        })
+        mExecutor.execute(task)
+        return task
+    }
+
+    /**
+     * Get the peaks of a recording, decoding it if they are not stored yet. Blocks.
+     * @param isCancelled checked while decoding.
+     * @return the peaks, or null if cancelled or the recording cannot be read.
+     */
+    fun get(context: Context, relPath: String, dirRoot: String = Workspace.activeDirRoot,
+            isCancelled: () -> Boolean = { false }): WaveformPeaks? {
+        val uri = getStoryUri(relPath, dirRoot) ?: return null
+        val stats = getStoryFileStats(context, relPath, dirRoot) ?: return null
+        val dir = getDir(context)
+        val file = File(dir, sha1Hex("$uri|${stats[0]}|${stats[1]}") + EXTENSION)
+
+        if (file.exists()) {
+            try {
+                val peaks = BufferedInputStream(FileInputStream(file)).use { WaveformPeaks.read(it) }
+                if (peaks != null) {
+                    return peaks
+                }
+            } catch (e: IOException) {
+                Log.w(TAG, "Discarding unreadable peaks of $relPath", e)
+            }
+            file.delete()
+        }
+
+        val peaks = extract(context, relPath, dirRoot, isCancelled) ?: return null
+        //Written under a temporary name and renamed, so readers never see a partial file.
+        val temp = File(dir, file.name + "." + Thread.currentThread().id + TEMP_EXTENSION)
+        try {
+            BufferedOutputStream(FileOutputStream(temp)).use { peaks.write(it) }
+            if (!temp.renameTo(file)) {
+                throw IOException("Unable to rename ${temp.name}")
+            }
+            trim(dir)
+        } catch (e: IOException) {
+            Log.w(TAG, "Unable to store peaks of $relPath", e)
+            temp.delete()
+        }
+        return peaks
+    }
+
+    /**
+     * Delete every stored peaks file.
+     */
+    @Synchronized
+    fun clear(context: Context) {
+        getDir(context).listFiles()?.forEach { it.delete() }
+    }
+
+    private fun extract(context: Context, relPath: String, dirRoot: String, isCancelled: () -> Boolean): WaveformPeaks? {
+        val durationUs = AudioInfoIndex.getDuration(context, relPath, dirRoot)
+        if (durationUs <= 0) {
+            return null
+        }
+        try {
+            //Keep the recording's own sample rate and channels; nothing is gained by resampling.
+            val source = PipedAudioDecoderMaverick.createDecodePipeline(context, relPath, 0, 0, 1f, dirRoot)
+            try {
+                source.setup()
+                return WaveformPeaks.extract(source, durationUs, WaveformPeaks.DEFAULT_SIZE, isCancelled)
+            } finally {
+                source.close()
+            }
+        } catch (e: Exception) {
+            if (!isCancelled()) {
+                Log.w(TAG, "Unable to find peaks of $relPath", e)
+            }
+            return null
+        }
+    }
+
+    /**
+     * Delete the oldest peaks files once there are more than [MAX_FILES].
+     */
+    @Synchronized
+    private fun trim(dir: File) {
+        val files = dir.listFiles() ?: return
+        if (files.size <= MAX_FILES) {
+            return
+        }
+        files.sortBy { it.lastModified() }
+        for (i in 0 until files.size - MAX_FILES) {
+            files[i].delete()
+        }
+    }
+
+    private fun getDir(context: Context): File {
+        val dir = File(context.cacheDir, DIR_NAME)
+        if (!dir.isDirectory) {
+            dir.mkdirs()
+        }
+        return dir
+    }
+}
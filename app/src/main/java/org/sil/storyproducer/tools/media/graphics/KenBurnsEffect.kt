@@ -43,6 +43,13 @@ class KenBurnsEffect
         dBottom = mEnd.bottom - mStart.bottom
     }
 
+    /**
+     * Describe both crops, so changes to the effect can be detected between exports.
+     */
+    fun getFingerprint(): String {
+        return mStart.flattenToString() + ";" + mEnd.flattenToString()
+    }
+
     /**
      * Obtain an intermediary crop from the Ken Burns effect.
      * @param position time-step between 0 and 1 (inclusive)
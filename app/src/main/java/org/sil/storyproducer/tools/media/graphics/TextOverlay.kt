@@ -1,5 +1,6 @@
 package org.sil.storyproducer.tools.media.graphics
 
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
@@ -7,6 +8,13 @@ import android.text.Layout
 import android.text.StaticLayout
 import android.text.TextPaint
 
+/**
+ * Text drawn over a slide, with a black outline and an optional grey background.
+ *
+ * In rasterized mode (see [setRasterized]) the outlined text is drawn once into a layer bitmap the
+ * size of the text, and each [draw] only blits that layer with the current alpha. The layer is
+ * redrawn only when the text layout changes, i.e. the font size, padding, alignment or canvas size.
+ */
 class TextOverlay(private val mText: String) {
     private var mFontSize = 18
     private var mAlpha = 1f
@@ -38,6 +46,17 @@ class TextOverlay(private val mText: String) {
     // 2/22/2022 - DKH, Issue 456: Add grey rectangle to backdrop text "sub titles"
     private var mDrawTextBG: Boolean = false    // set default to false
 
+    private var mIsRasterized = false
+    private var mLayer: Bitmap? = null
+    private var mLayerX: Float = 0f
+    private var mLayerY: Float = 0f
+    private var mLayerPaint: Paint? = null
+    private var mBgPaint: Paint? = null
+
+    /** Number of times the layer has been drawn, to check when it is reused. */
+    internal var layerBuildCount = 0
+        private set
+
     fun draw(canvas: Canvas) {
         if (mCanvasWidth != canvas.width || mCanvasHeight != canvas.height) {
             mCanvasWidth = canvas.width
@@ -48,6 +67,10 @@ class TextOverlay(private val mText: String) {
         if (mIsDirty) {
             setup()
         }
+        if (mIsRasterized) {
+            drawLayer(canvas)
+            return
+        }
         canvas.save()
         canvas.translate(mTranslateX, mTranslateY)
         // 2/22/2022 - DKH, Issue 456: Add grey rectangle to backdrop text "sub titles"
@@ -77,8 +100,22 @@ class TextOverlay(private val mText: String) {
      * @param fontSize
      */
     fun setFontSize(fontSize: Int) {
-        mFontSize = fontSize
-        mIsDirty = true
+        if (mFontSize != fontSize) {
+            mFontSize = fontSize
+            mIsDirty = true
+        }
+    }
+
+    /**
+     * Draw the text from a layer bitmap that is only redrawn when the layout changes, rather
+     * than laying out and stroking the text on every [draw]. Meant for video frames, where the
+     * same overlay is drawn many times.
+     */
+    fun setRasterized(rasterized: Boolean) {
+        if (mIsRasterized != rasterized) {
+            mIsRasterized = rasterized
+            mIsDirty = true
+        }
     }
 
     // 2/22/2022 - DKH, Issue 456: Add grey rectangle to backdrop text "sub titles"
@@ -89,22 +126,85 @@ class TextOverlay(private val mText: String) {
     }
 
     fun setAlpha(alpha: Float) {
+        //Alpha does not change the layout, so the paints are updated in place.
         mAlpha = alpha
-        mIsDirty = true
         if (mTextPaint != null && mTextOutlinePaint != null) {
             mTextPaint!!.alpha = (mAlpha * 255).toInt()
             mTextOutlinePaint!!.alpha = (mAlpha * 255).toInt()
         }
     }
 
+    /**
+     * Describe the text and everything that affects its layout, so changes to the overlay can be
+     * detected between exports.
+     */
+    fun getFingerprint(): String {
+        return "$mText|$mFontSize|$mPadding|$mHorizontalAlign|$mVerticalAlign"
+    }
+
     fun setPadding(padding: Int) {
-        mPadding = padding
-        mIsDirty = true
+        if (mPadding != padding) {
+            mPadding = padding
+            mIsDirty = true
+        }
     }
 
     fun setVerticalAlign(align: Layout.Alignment) {
-        mVerticalAlign = align
-        mIsDirty = true
+        if (mVerticalAlign != align) {
+            mVerticalAlign = align
+            mIsDirty = true
+        }
+    }
+
+    private fun drawLayer(canvas: Canvas) {
+        if (mText.length > 0 && mDrawTextBG) {
+            //Same rectangle as the unrasterized background: from the text origin to past the canvas.
+            canvas.drawRect(mTranslateX, mTranslateY, mTranslateX + mCanvasWidth, mTranslateY + mCanvasHeight, mBgPaint!!)
+            mDrawTextBG = false  // reset to default of no background color
+        }
+        val layer = mLayer ?: return
+        mLayerPaint!!.alpha = (mAlpha * 255).toInt()
+        canvas.drawBitmap(layer, mLayerX, mLayerY, mLayerPaint)
+    }
+
+    /**
+     * Draw the outline and text, fully opaque, into a bitmap covering just the lines of text and
+     * the outline stroke around them.
+     */
+    private fun setupLayer() {
+        val textLayout = mTextLayout!!
+        val margin = Math.ceil(mTextOutlinePaint!!.strokeWidth.toDouble()).toInt() + 1
+        var left = Float.MAX_VALUE
+        var right = -Float.MAX_VALUE
+        for (line in 0 until textLayout.lineCount) {
+            if (textLayout.getLineWidth(line) > 0) {
+                left = Math.min(left, textLayout.getLineLeft(line))
+                right = Math.max(right, textLayout.getLineRight(line))
+            }
+        }
+        mLayer?.recycle()
+        mLayer = null
+        layerBuildCount++
+        if (left >= right || textLayout.height <= 0) {
+            return
+        }
+        val layerLeft = Math.floor(left.toDouble()).toInt() - margin
+        val width = Math.ceil(right.toDouble()).toInt() + margin - layerLeft
+        val height = textLayout.height + 2 * margin
+
+        val layer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        val layerCanvas = Canvas(layer)
+        layerCanvas.translate(-layerLeft.toFloat(), margin.toFloat())
+        mTextPaint!!.alpha = 255
+        mTextOutlinePaint!!.alpha = 255
+        mTextOutlineLayout!!.draw(layerCanvas)
+        textLayout.draw(layerCanvas)
+        mTextPaint!!.alpha = (mAlpha * 255).toInt()
+        mTextOutlinePaint!!.alpha = (mAlpha * 255).toInt()
+
+        mLayer = layer
+        mLayerX = mTranslateX + layerLeft
+        mLayerY = mTranslateY - margin
     }
 
     private fun setup() {
@@ -152,6 +252,17 @@ class TextOverlay(private val mText: String) {
             else -> mTranslateY = mPaddingActual.toFloat()
         }
 
+        if (mIsRasterized) {
+            mLayerPaint = Paint(Paint.FILTER_BITMAP_FLAG)
+            mBgPaint = Paint()
+            mBgPaint!!.color = mTextBgColor
+            mBgPaint!!.alpha = mBgAlpha
+            setupLayer()
+        } else {
+            mLayer?.recycle()
+            mLayer = null
+        }
+
         mIsDirty = false
     }
 
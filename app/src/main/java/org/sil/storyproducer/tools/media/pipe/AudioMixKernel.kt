@@ -0,0 +1,74 @@
+package org.sil.storyproducer.tools.media.pipe
+
+/**
+ *
+ * Allocation-free kernel for mixing any number of 16-bit PCM sources into one.
+ *
+ * Gains are applied in 8-bit fixed point and the sum is accumulated in 32-bit integers,
+ * so the only rounding happens once, when the result is saturated back to 16 bits.
+ * Callers own all arrays (including the accumulator) so nothing is allocated per call.
+ */
+object AudioMixKernel {
+    private const val GAIN_SHIFT = 8
+    private const val GAIN_ONE = 1 shl GAIN_SHIFT
+
+    /** Gains above this would let few enough sources overflow the 32-bit accumulator to matter. */
+    const val MAX_GAIN = 16f
+
+    /**
+     * Convert a floating point gain to the fixed point gain used by [mix].
+     */
+    fun toFixedGain(gain: Float): Int {
+        return (gain.coerceIn(0f, MAX_GAIN) * GAIN_ONE + 0.5f).toInt()
+    }
+
+    /**
+     * Mix [length] samples from each source into [dest], saturating to 16 bits.
+     * @param dest output samples.
+     * @param destPos first index written in [dest].
+     * @param sources sample arrays; only the first [sourceCount] are used.
+     * @param sourcePos first index read from each source.
+     * @param fixedGains per-source gain from [toFixedGain].
+     * @param sourceCount number of sources to mix.
+     * @param length number of samples to mix.
+     * @param accumulator scratch space of at least [length] ints.
+     */
+    fun mix(dest: ShortArray, destPos: Int,
+            sources: Array<ShortArray?>, sourcePos: IntArray, fixedGains: IntArray, sourceCount: Int,
+            length: Int, accumulator: IntArray) {
+        if (sourceCount == 0) {
+            dest.fill(0, destPos, destPos + length)
+            return
+        }
+
+        //Source-major order keeps each inner loop a simple, vectorizable pass over one array.
+        var src = sources[0]!!
+        var pos = sourcePos[0]
+        var gain = fixedGains[0]
+        if (gain == GAIN_ONE) {
+            for (i in 0 until length) accumulator[i] = src[pos + i].toInt() shl GAIN_SHIFT
+        } else {
+            for (i in 0 until length) accumulator[i] = src[pos + i] * gain
+        }
+
+        for (s in 1 until sourceCount) {
+            src = sources[s]!!
+            pos = sourcePos[s]
+            gain = fixedGains[s]
+            if (gain == GAIN_ONE) {
+                for (i in 0 until length) accumulator[i] += src[pos + i].toInt() shl GAIN_SHIFT
+            } else {
+                for (i in 0 until length) accumulator[i] += src[pos + i] * gain
+            }
+        }
+
+        for (i in 0 until length) {
+            val sample = accumulator[i] shr GAIN_SHIFT
+            dest[destPos + i] = when {
+                sample > Short.MAX_VALUE -> Short.MAX_VALUE
+                sample < Short.MIN_VALUE -> Short.MIN_VALUE
+                else -> sample.toShort()
+            }
+        }
+    }
+}
@@ -3,18 +3,37 @@ package org.sil.storyproducer.tools.media.pipe;
 import org.sil.storyproducer.tools.media.MediaHelper;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Provides a pool of ByteBuffers to preserve memory. This class is <b>not</b> thread-safe,
- * but it does provide thread-safe operations through the static "shared" functions.
+ * <p>Provides a pool of ByteBuffers to preserve memory. This class is thread-safe; getting and
+ * releasing buffers is lock-free.</p>
+ * <p>Buffers are grouped into power-of-two size classes, so a buffer may have more capacity than
+ * was requested. Pools may optionally allocate direct (off-heap) buffers, which is preferable for
+ * buffers handed to {@link android.media.MediaCodec} or {@link android.media.MediaExtractor}.</p>
  */
 
 public class ByteBufferPool {
     private final int mCapacity;
+    private final boolean mDirect;
 
-    private final ArrayList<ByteBuffer> buffers = new ArrayList<>(4);
-    private final ArrayList<Boolean> bufferAvailable = new ArrayList<>(4);
+    //One free list per size class, indexed by log2 of the class's capacity. Created lazily.
+    private final AtomicReferenceArray<ConcurrentLinkedQueue<Entry>> mFreeLists =
+            new AtomicReferenceArray<>(Integer.SIZE);
+
+    //Identity lookup table from buffer to entry, so ownership checks don't scan.
+    //Only written while holding mRegisterLock; read without locking.
+    private final Object mRegisterLock = new Object();
+    private volatile AtomicReferenceArray<Entry> mEntries = new AtomicReferenceArray<>(16);
+    private int mEntryCount = 0;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicInteger mOutstanding = new AtomicInteger();
 
     private static final ByteBufferPool SINGLETON = new ByteBufferPool();
 
@@ -22,50 +41,55 @@ public class ByteBufferPool {
         this(MediaHelper.INSTANCE.getMAX_INPUT_BUFFER_SIZE());
     }
     public ByteBufferPool(int capacity) {
+        this(capacity, false);
+    }
+    public ByteBufferPool(int capacity, boolean direct) {
         mCapacity = capacity;
+        mDirect = direct;
     }
 
     /**
      * Get a {@link ByteBuffer} from the shared pool.
      * @return
      */
-    public static synchronized ByteBuffer getShared() {
+    public static ByteBuffer getShared() {
         return SINGLETON.get();
     }
 
     /**
-     * Get a {@link ByteBuffer} from the pool.
+     * Get a {@link ByteBuffer} with the pool's default capacity from the pool.
      * @return
      */
     public ByteBuffer get() {
-        ByteBuffer buffer;
-
-        for(int i = 0; i < bufferAvailable.size(); i++) {
-            buffer = buffers.get(i);
-            if(buffer == null) {
-                buffer = ByteBuffer.allocate(mCapacity);
-                buffers.set(i, buffer);
-                bufferAvailable.set(i, false);
-                return buffer;
-            }
+        return get(mCapacity);
+    }
 
-            if(bufferAvailable.get(i)) {
-                bufferAvailable.set(i, false);
-                return buffer;
-            }
+    /**
+     * Get a {@link ByteBuffer} from the pool with at least the given capacity.
+     * @param minCapacity the minimum capacity of the returned buffer.
+     * @return
+     */
+    public ByteBuffer get(int minCapacity) {
+        int sizeClass = sizeClassOf(minCapacity);
+        Entry entry = freeList(sizeClass).poll();
+        if(entry != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+            int capacity = 1 << sizeClass;
+            entry = new Entry(mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity), sizeClass);
+            register(entry);
         }
-
-        buffer = ByteBuffer.allocate(mCapacity);
-        buffers.add(buffer);
-        bufferAvailable.add(false);
-        return buffer;
+        entry.inUse = 1;
+        mOutstanding.incrementAndGet();
+        return entry.buffer;
     }
 
     /**
      * Return a {@link ByteBuffer} to the shared pool.
      * @return
      */
-    public static synchronized void releaseShared(ByteBuffer buffer) throws InvalidBufferException {
+    public static void releaseShared(ByteBuffer buffer) throws InvalidBufferException {
         SINGLETON.release(buffer);
     }
 
@@ -74,13 +98,119 @@ public class ByteBufferPool {
      * @return
      */
     public void release(ByteBuffer buffer) throws InvalidBufferException {
-        for(int i = 0; i < buffers.size(); i++) {
-            if(buffers.get(i) == buffer) {
-                buffer.clear();
-                bufferAvailable.set(i, true);
-                return;
+        Entry entry = lookup(buffer);
+        if(entry == null) {
+            throw new InvalidBufferException("I don't own that buffer!");
+        }
+        if(!IN_USE.compareAndSet(entry, 1, 0)) {
+            throw new InvalidBufferException("That buffer was already released!");
+        }
+        buffer.clear();
+        mOutstanding.decrementAndGet();
+        freeList(entry.sizeClass).offer(entry);
+    }
+
+    /**
+     * Check whether a {@link ByteBuffer} was allocated by this pool.
+     * @param buffer
+     * @return
+     */
+    public boolean owns(ByteBuffer buffer) {
+        return lookup(buffer) != null;
+    }
+
+    /**
+     * @return number of buffers handed out from a free list.
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return number of buffers which had to be allocated.
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return number of buffers currently handed out and not yet released.
+     */
+    public int getOutstandingCount() {
+        return mOutstanding.get();
+    }
+
+    private ConcurrentLinkedQueue<Entry> freeList(int sizeClass) {
+        ConcurrentLinkedQueue<Entry> list = mFreeLists.get(sizeClass);
+        if(list == null) {
+            mFreeLists.compareAndSet(sizeClass, null, new ConcurrentLinkedQueue<Entry>());
+            list = mFreeLists.get(sizeClass);
+        }
+        return list;
+    }
+
+    private static int sizeClassOf(int capacity) {
+        if(capacity <= 1) {
+            return 0;
+        }
+        return Integer.SIZE - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private Entry lookup(ByteBuffer buffer) {
+        AtomicReferenceArray<Entry> entries = mEntries;
+        int mask = entries.length() - 1;
+        int i = System.identityHashCode(buffer) & mask;
+        Entry entry;
+        //Entries are never removed, so the probe chain for a registered buffer never changes.
+        while((entry = entries.get(i)) != null) {
+            if(entry.buffer == buffer) {
+                return entry;
             }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private void register(Entry entry) {
+        synchronized (mRegisterLock) {
+            AtomicReferenceArray<Entry> entries = mEntries;
+            //Keep the table at most half full so probe chains stay short.
+            if((mEntryCount + 1) * 2 > entries.length()) {
+                AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<>(entries.length() * 2);
+                for(int i = 0; i < entries.length(); i++) {
+                    Entry e = entries.get(i);
+                    if(e != null) {
+                        insert(grown, e);
+                    }
+                }
+                entries = grown;
+            }
+            insert(entries, entry);
+            mEntryCount++;
+            mEntries = entries;
+        }
+    }
+
+    private static void insert(AtomicReferenceArray<Entry> entries, Entry entry) {
+        int mask = entries.length() - 1;
+        int i = System.identityHashCode(entry.buffer) & mask;
+        while(entries.get(i) != null) {
+            i = (i + 1) & mask;
+        }
+        entries.set(i, entry);
+    }
+
+    private static final AtomicIntegerFieldUpdater<Entry> IN_USE =
+            AtomicIntegerFieldUpdater.newUpdater(Entry.class, "inUse");
+
+    private static final class Entry {
+        final ByteBuffer buffer;
+        final int sizeClass;
+        volatile int inUse;
+
+        Entry(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
         }
-        throw new InvalidBufferException("I don't own that buffer!");
     }
 }
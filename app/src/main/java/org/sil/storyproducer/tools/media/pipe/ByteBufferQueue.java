@@ -6,28 +6,44 @@ import android.util.Log;
 import org.sil.storyproducer.tools.media.MediaHelper;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * ByteBufferQueue is a producer-consumer data structure specialized for ByteBuffers.
- * The idea is to allow one thread to fill empty buffers and another to use filled buffers.
+ * <p>ByteBufferQueue is a producer-consumer data structure specialized for ByteBuffers.
+ * The idea is to allow one thread to fill empty buffers and another to use filled buffers.</p>
+ * <p>Internally, this is a pair of single-producer/single-consumer rings: one carrying filled
+ * buffers from the producer to the consumer and one carrying used buffers back. A thread which
+ * must wait parks itself and is unparked directly by the other side, so no thread ever
+ * sleep-polls. Only one producer thread and one consumer thread may use a queue at a time.</p>
  */
 public class ByteBufferQueue {
     private static final String TAG = "ByteBufferQueue";
 
-    private final Object mLock = new Object();
-
     private final int mBufferCount;
 
     //This value is somewhat arbitrary, intended to be smaller than MediaHelper.MAX_INPUT_BUFFER_SIZE.
     private static final int BUFFER_CAPACITY_DEFAULT = 16 * 1024;
     private final ByteBufferPool mBufferPool;
 
-    private int mBuffersOut = 0;
+    //Number of buffers this queue has taken from its pool. Only the producer changes this.
+    private int mOwnedCount = 0;
+
+    //Filled ring (producer -> consumer). Slots are preallocated so sending doesn't allocate.
+    private final MediaBuffer[] mFilledSlots;
+    private volatile long mFilledHead = 0;
+    private volatile long mFilledTail = 0;
+
+    //Empty ring (consumer -> producer).
+    private final ByteBuffer[] mEmptySlots;
+    private volatile long mEmptyHead = 0;
+    private volatile long mEmptyTail = 0;
 
-    private final BlockingQueue<MediaBuffer> mFilledBuffers;
+    private volatile Thread mWaitingProducer;
+    private volatile Thread mWaitingConsumer;
+    private volatile Runnable mReleaseListener;
+
+    private static final long FILLED_BUFFER_LOG_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
 
     public ByteBufferQueue(int bufferCount) {
         this(bufferCount, BUFFER_CAPACITY_DEFAULT);
@@ -35,7 +51,11 @@ public class ByteBufferQueue {
     public ByteBufferQueue(int bufferCount, int bufferCapacity) {
         mBufferCount = bufferCount;
         mBufferPool = new ByteBufferPool(bufferCapacity);
-        mFilledBuffers = new ArrayBlockingQueue<>(bufferCount);
+        mEmptySlots = new ByteBuffer[bufferCount];
+        mFilledSlots = new MediaBuffer[bufferCount];
+        for(int i = 0; i < bufferCount; i++) {
+            mFilledSlots[i] = new MediaBuffer(null, new MediaCodec.BufferInfo());
+        }
     }
 
     /**
@@ -43,7 +63,15 @@ public class ByteBufferQueue {
      * @return whether the queue contains any filled buffers
      */
     public boolean isEmpty() {
-        return mFilledBuffers.isEmpty();
+        return mFilledHead == mFilledTail;
+    }
+
+    /**
+     * (Producer operation) Get the number of filled buffers waiting for the consumer.
+     * @return filled buffer count, from 0 up to the queue's buffer count
+     */
+    public int getFilledCount() {
+        return (int) (mFilledTail - mFilledHead);
     }
 
     /**
@@ -53,62 +81,113 @@ public class ByteBufferQueue {
      * @return empty buffer
      */
     public ByteBuffer getEmptyBuffer(long timeoutUs) {
-        long loops = timeoutUs / 1000;
-
-        for(long i = 0; i < loops; i++) {
-            synchronized (mLock) {
-                boolean bufferIsAvailable = mBuffersOut < mBufferCount;
-                if (bufferIsAvailable) {
-                    mBuffersOut++;
-                    return mBufferPool.get();
-                }
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+
+        while(true) {
+            ByteBuffer buffer = pollEmptyBuffer();
+            if(buffer != null) {
+                return buffer;
             }
 
-            //If unable to get a buffer, wait a little bit and try again.
-            try {
-                Thread.sleep(1, 0);
-            } catch (InterruptedException e) {
-                Log.d(TAG, "interrupted while getting empty buffer", e);
+            long remainingNs = deadline - System.nanoTime();
+            if(remainingNs <= 0) {
+                return null;
+            }
+
+            //Announce ourselves before re-checking so a concurrent release cannot be missed.
+            mWaitingProducer = Thread.currentThread();
+            if(mEmptyHead == mEmptyTail) {
+                LockSupport.parkNanos(this, remainingNs);
+            }
+            mWaitingProducer = null;
+
+            if(Thread.interrupted()) {
+                Log.d(TAG, "interrupted while getting empty buffer");
                 return null;
             }
         }
+    }
+
+    /**
+     * (Producer operation) Pull an empty buffer from the queue without waiting. A producer which
+     * does not want to block should register a release listener before it polls.
+     * @return empty buffer, or null if all buffers are in use
+     */
+    public ByteBuffer pollEmptyBuffer() {
+        long head = mEmptyHead;
+        if(head != mEmptyTail) {
+            int slot = (int) (head % mBufferCount);
+            ByteBuffer buffer = mEmptySlots[slot];
+            mEmptySlots[slot] = null;
+            mEmptyHead = head + 1;
+            return buffer;
+        }
+
+        //Lazily grow up to the buffer count, just like the pool used to.
+        if(mOwnedCount < mBufferCount) {
+            mOwnedCount++;
+            return mBufferPool.get();
+        }
 
         return null;
     }
 
+    /**
+     * Set a listener to be called, on the consumer's thread, each time a used buffer is released.
+     * @param listener listener, or null to remove it
+     */
+    public void setReleaseListener(Runnable listener) {
+        mReleaseListener = listener;
+    }
+
     /**
      * (Producer operation) Pass a filled buffer from the producer to the consumer.
      * @param buffer filled buffer
      * @param info filled buffer metadata
      */
     public void sendFilledBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
-        try {
-            mFilledBuffers.put(new MediaBuffer(buffer, info));
-        } catch (InterruptedException e) {
-            Log.e(TAG, "interrupted while sending filled buffer", e);
+        long tail = mFilledTail;
+        //The ring has a slot for every buffer, so it can never be full.
+        MediaBuffer mb = mFilledSlots[(int) (tail % mBufferCount)];
+        mb.buffer = buffer;
+        MediaHelper.INSTANCE.copyBufferInfo(info, mb.info);
+        mFilledTail = tail + 1;
+
+        Thread consumer = mWaitingConsumer;
+        if(consumer != null) {
+            LockSupport.unpark(consumer);
         }
     }
 
     /**
      * (Consumer operation) Pull a filled buffer from the queue, blocking until one becomes available.
      * @param info filled buffer metadata (filled by function)
-     * @return filled buffer
+     * @return filled buffer, or null if the thread was interrupted while waiting
      */
     public ByteBuffer getFilledBuffer(MediaCodec.BufferInfo info) {
-        MediaBuffer mb = null;
-        try {
-            while(mb == null) {
-                mb = mFilledBuffers.poll(1, TimeUnit.SECONDS);
-                if(MediaHelper.INSTANCE.getVERBOSE() && mb == null) {
-                    Log.d(TAG, "filled buffer unavailable");
-                }
+        while(mFilledHead == mFilledTail) {
+            mWaitingConsumer = Thread.currentThread();
+            if(mFilledHead == mFilledTail) {
+                LockSupport.parkNanos(this, FILLED_BUFFER_LOG_INTERVAL_NS);
+            }
+            mWaitingConsumer = null;
+
+            if(Thread.interrupted()) {
+                Log.e(TAG, "interrupted while getting filled buffer");
+                return null;
+            }
+            if(MediaHelper.INSTANCE.getVERBOSE() && mFilledHead == mFilledTail) {
+                Log.d(TAG, "filled buffer unavailable");
             }
-        } catch (InterruptedException e) {
-            Log.e(TAG, "interrupted while getting filled buffer", e);
-            return null;
         }
+
+        long head = mFilledHead;
+        MediaBuffer mb = mFilledSlots[(int) (head % mBufferCount)];
+        ByteBuffer buffer = mb.buffer;
+        mb.buffer = null;
         MediaHelper.INSTANCE.copyBufferInfo(mb.info, info);
-        return mb.buffer;
+        mFilledHead = head + 1;
+        return buffer;
     }
 
     /**
@@ -117,9 +196,22 @@ public class ByteBufferQueue {
      * @throws InvalidBufferException if buffer does not belong to queue
      */
     public void releaseUsedBuffer(ByteBuffer buffer) throws InvalidBufferException {
-        synchronized (mLock) {
-            mBufferPool.release(buffer);
-            mBuffersOut--;
+        if(!mBufferPool.owns(buffer)) {
+            throw new InvalidBufferException("I don't own that buffer!");
+        }
+        buffer.clear();
+
+        long tail = mEmptyTail;
+        mEmptySlots[(int) (tail % mBufferCount)] = buffer;
+        mEmptyTail = tail + 1;
+
+        Thread producer = mWaitingProducer;
+        if(producer != null) {
+            LockSupport.unpark(producer);
+        }
+        Runnable listener = mReleaseListener;
+        if(listener != null) {
+            listener.run();
         }
     }
 }
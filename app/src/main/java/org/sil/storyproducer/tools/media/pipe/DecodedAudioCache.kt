@@ -0,0 +1,148 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.content.Context
+import android.util.Log
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.getStoryFileStats
+import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.sha1Hex
+import java.io.File
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ *
+ * Disk cache of decoded (and resampled) audio, so exporting a story again does not run
+ * MediaCodec for audio files that have not changed.
+ *
+ * Entries are keyed by the source URI, its size and modification time, the target sample rate,
+ * channel count and volume. Each entry is a PCM file read back through [PipedPcmFileSource].
+ * The least recently used entries are deleted once the cache grows past [maxBytes].
+ */
+object DecodedAudioCache {
+    private val TAG = "DecodedAudioCache"
+
+    private const val DIR_NAME = "decoded_pcm"
+    private const val EXTENSION = ".pcm"
+    private const val TEMP_EXTENSION = ".tmp"
+    //Unfinished files older than this were left behind by a crash.
+    private const val STALE_TEMP_MS = 24 * 60 * 60 * 1000L
+
+    const val DEFAULT_MAX_BYTES = 256L * 1024 * 1024
+
+    /** Whether sources are read from and written to the cache. */
+    @Volatile
+    var isEnabled = true
+
+    /** Byte budget for the whole cache. */
+    @Volatile
+    var maxBytes = DEFAULT_MAX_BYTES
+
+    private val mHitCount = AtomicLong()
+    private val mMissCount = AtomicLong()
+
+    val hitCount: Long get() = mHitCount.get()
+    val missCount: Long get() = mMissCount.get()
+
+    /**
+     * Get a source for the decoded audio of a story file. If the file is not cached yet, the source
+     * decodes it and fills the cache as the audio streams through (see [PipedPcmCacheWriter]).
+     * @param path story relative path of the audio file.
+     * @param sampleRate desired sample rate, or 0 to keep the file's rate.
+     * @param channelCount desired channel count, or 0 to keep the file's channel count.
+     * @param volume volume scaling factor.
+     * @param dirRoot story directory the path is relative to.
+     * @return a source that has not been set up, or null if the file cannot be cached.
+     */
+    fun getSource(context: Context, path: String, sampleRate: Int, channelCount: Int, volume: Float,
+                  dirRoot: String = Workspace.activeDirRoot): PipedMediaByteBufferSource? {
+        if (!isEnabled) {
+            return null
+        }
+
+        val uri = getStoryUri(path, dirRoot) ?: return null
+        val stats = getStoryFileStats(context, path, dirRoot) ?: return null
+        val dir = getCacheDir(context)
+        val file = File(dir, sha1Hex("$uri|${stats[0]}|${stats[1]}|$sampleRate|$channelCount|$volume") + EXTENSION)
+
+        if (file.exists()) {
+            mHitCount.incrementAndGet()
+            //Modification time doubles as the access time for LRU eviction.
+            file.setLastModified(System.currentTimeMillis())
+            return PipedPcmFileSource(file)
+        }
+
+        mMissCount.incrementAndGet()
+        val temp = File(dir, file.name + "." + Thread.currentThread().id + TEMP_EXTENSION)
+        return try {
+            PipedPcmCacheWriter(PipedAudioDecoderMaverick.createDecodePipeline(context, path, sampleRate, channelCount, volume, dirRoot),
+                    temp, file)
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to decode $path", e)
+            null
+        }
+    }
+
+    /**
+     * Remove an entry that turned out to be unreadable.
+     */
+    fun invalidate(source: PipedMediaByteBufferSource) {
+        if (source is PipedPcmCacheWriter) {
+            source.close()
+        } else if (source is PipedPcmFileSource) {
+            source.close()
+            source.file.delete()
+        }
+    }
+
+    /**
+     * Delete every cached file.
+     */
+    @Synchronized
+    fun clear(context: Context) {
+        getCacheDir(context).listFiles()?.forEach { it.delete() }
+    }
+
+    /**
+     * Delete the least recently used cache files until the total size is within the budget.
+     * @param dir cache directory.
+     * @param budget maximum number of bytes to keep.
+     */
+    @Synchronized
+    fun trimToSize(dir: File, budget: Long) {
+        val now = System.currentTimeMillis()
+        val files = ArrayList<File>()
+        var total = 0L
+        for (f in dir.listFiles() ?: return) {
+            if (f.name.endsWith(EXTENSION)) {
+                files.add(f)
+                total += f.length()
+            } else if (f.name.endsWith(TEMP_EXTENSION) && now - f.lastModified() > STALE_TEMP_MS) {
+                f.delete()
+            }
+        }
+        if (total <= budget) {
+            return
+        }
+
+        files.sortBy { it.lastModified() }
+        for (f in files) {
+            if (total <= budget) {
+                break
+            }
+            val length = f.length()
+            if (f.delete()) {
+                total -= length
+                if (MediaHelper.DEBUG) Log.d(TAG, "Evicted ${f.name} ($length bytes)")
+            }
+        }
+    }
+
+    private fun getCacheDir(context: Context): File {
+        val dir = File(context.cacheDir, DIR_NAME)
+        if (!dir.isDirectory) {
+            dir.mkdirs()
+        }
+        return dir
+    }
+}
@@ -0,0 +1,258 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+
+/**
+ *
+ * The encoded samples of one piece of a video stream, spooled to a scratch file.
+ *
+ * Presentation times are kept relative to the start of the segment, so a segment that was
+ * encoded for one export can be placed at a different time in the next (see [startUs]).
+ * Segments can be written to and read back from a stream, which is how they are kept
+ * between exports.
+ */
+class EncodedVideoSegment private constructor(private val mPath: File, startUs: Long) {
+
+    /** Presentation time, in microseconds, at which the segment starts. */
+    var startUs: Long = startUs
+
+    var format: MediaFormat? = null
+        private set
+
+    private var mFile: RandomAccessFile? = RandomAccessFile(mPath, "rw")
+    private var mLength: Long = 0
+
+    var count = 0
+        private set
+    private var mOffsets = LongArray(INITIAL_SAMPLES)
+    private var mSizes = IntArray(INITIAL_SAMPLES)
+    private var mRelativeTimesUs = LongArray(INITIAL_SAMPLES)
+    private var mFlags = IntArray(INITIAL_SAMPLES)
+
+    fun getSize(index: Int): Int {
+        return mSizes[index]
+    }
+
+    fun getPresentationTimeUs(index: Int): Long {
+        return startUs + mRelativeTimesUs[index]
+    }
+
+    fun getFlags(index: Int): Int {
+        return mFlags[index]
+    }
+
+    /**
+     * Read one sample into [dest], which must have room for [getSize] bytes.
+     * The buffer is flipped, ready to be read.
+     */
+    @Throws(IOException::class)
+    fun readSample(index: Int, dest: ByteBuffer) {
+        val channel = (mFile ?: throw IOException("Segment was deleted")).channel
+        dest.clear()
+        dest.limit(mSizes[index])
+        var position = mOffsets[index]
+        while (dest.hasRemaining()) {
+            val read = channel.read(dest, position)
+            if (read < 0) throw IOException("Segment file is truncated")
+            position += read
+        }
+        dest.flip()
+    }
+
+    @Throws(IOException::class)
+    private fun append(buffer: ByteBuffer, relativeTimeUs: Long, sampleFlags: Int) {
+        val channel = (mFile ?: throw IOException("Segment was deleted")).channel
+        if (count == mSizes.size) {
+            mOffsets = mOffsets.copyOf(count * 2)
+            mSizes = mSizes.copyOf(count * 2)
+            mRelativeTimesUs = mRelativeTimesUs.copyOf(count * 2)
+            mFlags = mFlags.copyOf(count * 2)
+        }
+        mOffsets[count] = mLength
+        mSizes[count] = buffer.remaining()
+        mRelativeTimesUs[count] = relativeTimeUs
+        mFlags[count] = sampleFlags
+        count++
+        while (buffer.hasRemaining()) {
+            mLength += channel.write(buffer, mLength)
+        }
+    }
+
+    /**
+     * Write the format, sample table and samples to a stream. The stream is not closed.
+     */
+    @Throws(IOException::class)
+    fun write(output: OutputStream) {
+        val format = format ?: throw IOException("Segment has no format")
+        val out = DataOutputStream(output)
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+        out.writeUTF(format.getString(MediaFormat.KEY_MIME))
+        out.writeInt(format.getInteger(MediaFormat.KEY_WIDTH))
+        out.writeInt(format.getInteger(MediaFormat.KEY_HEIGHT))
+        for (key in CODEC_DATA_KEYS) {
+            val data = if (format.containsKey(key)) format.getByteBuffer(key) else null
+            if (data == null) {
+                out.writeInt(-1)
+            } else {
+                val bytes = ByteArray(data.remaining())
+                data.duplicate().get(bytes)
+                out.writeInt(bytes.size)
+                out.write(bytes)
+            }
+        }
+
+        out.writeInt(count)
+        for (i in 0 until count) {
+            out.writeInt(mSizes[i])
+            out.writeLong(mRelativeTimesUs[i])
+            out.writeInt(mFlags[i])
+        }
+        val buffer = ByteArray(COPY_BUFFER_SIZE)
+        val file = mFile ?: throw IOException("Segment was deleted")
+        file.seek(0)
+        var remaining = mLength
+        while (remaining > 0) {
+            val read = file.read(buffer, 0, Math.min(remaining, buffer.size.toLong()).toInt())
+            if (read < 0) throw IOException("Segment file is truncated")
+            out.write(buffer, 0, read)
+            remaining -= read
+        }
+        out.writeInt(END_MAGIC)
+        out.flush()
+    }
+
+    /**
+     * Close and delete the scratch file.
+     */
+    @Synchronized
+    fun delete() {
+        try {
+            mFile?.close()
+        } catch (e: IOException) {
+            //Nothing useful to do here.
+        }
+        mFile = null
+        mPath.delete()
+    }
+
+    companion object {
+        private val TAG = "EncodedVideoSegment"
+
+        private const val MAGIC = 0x53454731 //"SEG1"
+        private const val END_MAGIC = 0x53454745 //"SEGE"
+        private const val VERSION = 1
+
+        private const val INITIAL_SAMPLES = 1024
+        private const val COPY_BUFFER_SIZE = 64 * 1024
+
+        private val CODEC_DATA_KEYS = arrayOf("csd-0", "csd-1", "csd-2")
+
+        /**
+         * Run an encoded source to completion. The calling thread may be interrupted to cancel.
+         * @param source encoded video source that has not been set up. It is closed afterwards.
+         * @param scratchDir directory for the sample file.
+         * @param startUs presentation time at which the segment starts.
+         */
+        @Throws(IOException::class, SourceUnacceptableException::class, SourceClosedException::class)
+        fun encode(source: PipedMediaByteBufferSource, scratchDir: File, startUs: Long): EncodedVideoSegment {
+            val segment = EncodedVideoSegment(File.createTempFile("segment", ".h264", scratchDir), startUs)
+            try {
+                source.setup()
+                segment.format = source.outputFormat
+
+                val info = MediaCodec.BufferInfo()
+                while (!source.isDone) {
+                    if (Thread.currentThread().isInterrupted) {
+                        throw SourceClosedException()
+                    }
+                    val buffer = source.getBuffer(info) ?: break
+                    if (info.size > 0 && (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        segment.append(buffer, info.presentationTimeUs - startUs,
+                                info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM.inv())
+                    }
+                    source.releaseBuffer(buffer)
+                }
+            } catch (e: Exception) {
+                segment.delete()
+                throw e
+            } finally {
+                source.close()
+            }
+            return segment
+        }
+
+        /**
+         * Read a segment written by [write].
+         * @param input stream positioned at the start of the segment. It is not closed.
+         * @param scratchDir directory for the sample file.
+         * @param startUs presentation time at which the segment starts.
+         */
+        @Throws(IOException::class)
+        fun read(input: InputStream, scratchDir: File, startUs: Long): EncodedVideoSegment {
+            val data = DataInputStream(input)
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw IOException("Not a video segment")
+            }
+            val mime = data.readUTF()
+            val width = data.readInt()
+            val height = data.readInt()
+            val format = MediaFormat.createVideoFormat(mime, width, height)
+            for (key in CODEC_DATA_KEYS) {
+                val size = data.readInt()
+                if (size >= 0) {
+                    val bytes = ByteArray(size)
+                    data.readFully(bytes)
+                    format.setByteBuffer(key, ByteBuffer.wrap(bytes))
+                }
+            }
+
+            val segment = EncodedVideoSegment(File.createTempFile("segment", ".h264", scratchDir), startUs)
+            try {
+                segment.format = format
+                val count = data.readInt()
+                if (count < 0) throw IOException("Bad sample count")
+                val sizes = IntArray(count)
+                val times = LongArray(count)
+                val flags = IntArray(count)
+                for (i in 0 until count) {
+                    sizes[i] = data.readInt()
+                    times[i] = data.readLong()
+                    flags[i] = data.readInt()
+                }
+
+                var buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE)
+                for (i in 0 until count) {
+                    if (sizes[i] > buffer.capacity()) {
+                        buffer = ByteBuffer.allocate(sizes[i])
+                    }
+                    data.readFully(buffer.array(), 0, sizes[i])
+                    buffer.clear()
+                    buffer.limit(sizes[i])
+                    segment.append(buffer, times[i], flags[i])
+                }
+
+                //A segment cut short while it was being saved is useless.
+                if (data.readInt() != END_MAGIC) {
+                    throw IOException("Video segment is incomplete")
+                }
+            } catch (e: Exception) {
+                segment.delete()
+                throw e
+            }
+            if (MediaHelper.VERBOSE) Log.v(TAG, "Read segment of ${segment.count} samples")
+            return segment
+        }
+    }
+}
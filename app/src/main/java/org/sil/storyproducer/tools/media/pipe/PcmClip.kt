@@ -0,0 +1,124 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.nio.channels.FileChannel
+
+/**
+ *
+ * A fully decoded piece of 16-bit interleaved audio that can be read from any position.
+ *
+ * Short clips are held in a heap array. Longer clips are spilled to a temporary file which is
+ * memory-mapped and then unlinked, so the data stays out of the Java heap and the file disappears
+ * as soon as the mapping is collected.
+ *
+ * Not thread-safe.
+ */
+class PcmClip private constructor(private val mSamples: ShortBuffer, val sampleRate: Int, val channelCount: Int, val isMapped: Boolean) {
+
+    /** Number of samples (not frames) in the clip. */
+    val sampleCount: Int get() = mSamples.capacity()
+
+    /**
+     * Copy samples out of the clip.
+     * @param position index of the first sample to read.
+     * @param dest destination array.
+     * @param offset index of the first sample written in [dest].
+     * @param length number of samples to copy.
+     */
+    fun read(position: Int, dest: ShortArray, offset: Int, length: Int) {
+        mSamples.position(position)
+        mSamples.get(dest, offset, length)
+    }
+
+    companion object {
+        private val TAG = "PcmClip"
+
+        /** Clips larger than this many bytes are spilled to a mapped file. */
+        const val DEFAULT_SPILL_BYTES = 8 * 1024 * 1024
+
+        private const val INITIAL_CAPACITY = 64 * 1024
+
+        /**
+         * Read a raw audio source to the end.
+         * @param source source that has already been set up. It is not closed.
+         * @param spillDir directory for the spill file, or null to always keep the clip on the heap.
+         * @param spillBytes size above which the clip is spilled.
+         */
+        @Throws(IOException::class, SourceClosedException::class)
+        @JvmOverloads
+        fun decode(source: PipedMediaByteBufferSource, spillDir: File?, spillBytes: Int = DEFAULT_SPILL_BYTES): PcmClip {
+            val format = source.outputFormat
+            val sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+            val channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+
+            var samples = ShortArray(INITIAL_CAPACITY)
+            var count = 0
+            var spillFile: File? = null
+            var spill: RandomAccessFile? = null
+
+            try {
+                val info = MediaCodec.BufferInfo()
+                while (!source.isDone) {
+                    val buffer = source.getBuffer(info) ?: break
+                    if (spill == null) {
+                        val shorts = MediaHelper.getShortBuffer(buffer)
+                        val length = shorts.remaining()
+                        if (spillDir != null && (count + length) * 2L > spillBytes) {
+                            spillFile = File.createTempFile("loop", ".pcm", spillDir)
+                            spill = RandomAccessFile(spillFile, "rw")
+                            writeShorts(spill.channel, samples, count)
+                            write(spill.channel, buffer)
+                        } else {
+                            if (count + length > samples.size) {
+                                samples = samples.copyOf(Math.max(samples.size * 2, count + length))
+                            }
+                            shorts.get(samples, count, length)
+                            count += length
+                        }
+                    } else {
+                        write(spill.channel, buffer)
+                    }
+                    source.releaseBuffer(buffer)
+                }
+
+                if (spill != null) {
+                    val channel = spill.channel
+                    val frameBytes = channel.size() / (2 * channelCount) * (2 * channelCount)
+                    val mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, frameBytes)
+                    mapped.order(ByteOrder.nativeOrder())
+                    return PcmClip(mapped.asShortBuffer(), sampleRate, channelCount, true)
+                }
+
+                //Drop a trailing partial frame.
+                count = count / channelCount * channelCount
+                return PcmClip(ShortBuffer.wrap(samples, 0, count).slice(), sampleRate, channelCount, false)
+            } finally {
+                //The mapping stays valid after the file is closed and deleted.
+                spill?.close()
+                spillFile?.delete()
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun writeShorts(channel: FileChannel, samples: ShortArray, count: Int) {
+            val bytes = ByteBuffer.allocate(count * 2).order(ByteOrder.nativeOrder())
+            bytes.asShortBuffer().put(samples, 0, count)
+            write(channel, bytes)
+        }
+
+        @Throws(IOException::class)
+        private fun write(channel: FileChannel, buffer: ByteBuffer) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+        }
+    }
+}
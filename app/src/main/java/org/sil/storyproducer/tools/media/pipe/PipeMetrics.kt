@@ -0,0 +1,234 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import com.squareup.moshi.JsonClass
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ *
+ * Counters describing the work of one media pipeline component (see [PipedMediaSource.getMetrics]).
+ *
+ * The component updates them from its own threads while they may be read from any other.
+ * Components register their metrics with the current [PipelineScheduler.Group] when they are
+ * set up, so the group of an export knows every component that took part in it.
+ */
+class PipeMetrics(val name: String) {
+    private val mBuffers = AtomicLong()
+    private val mBytes = AtomicLong()
+    private val mUpstreamWaitNs = AtomicLong()
+    private val mDownstreamWaitNs = AtomicLong()
+    private val mWorkNs = AtomicLong()
+
+    private val mQueueSamples = AtomicLong()
+    private val mQueueFilledTotal = AtomicLong()
+    private val mQueueFilledMax = AtomicInteger()
+    @Volatile
+    private var mQueueCapacity = 0
+
+    private val mFirstBufferNs = AtomicLong()
+    @Volatile
+    private var mLastBufferNs: Long = 0
+
+    //Distribution of the durations passed to addWorkSample, if any.
+    @Volatile
+    private var mWorkHistogram: AtomicIntegerArray? = null
+
+    /** Number of buffers (or frames) this component has put out. */
+    val buffers: Long get() = mBuffers.get()
+
+    /** Number of bytes this component has put out. */
+    val bytes: Long get() = mBytes.get()
+
+    /** Time spent blocked waiting for the preceding component. */
+    val upstreamWaitNs: Long get() = mUpstreamWaitNs.get()
+
+    /** Time spent blocked waiting for the following component to take or return buffers. */
+    val downstreamWaitNs: Long get() = mDownstreamWaitNs.get()
+
+    /**
+     * Register this component with the pipeline it is being set up in.
+     */
+    fun register() {
+        PipelineScheduler.currentGroup.register(this)
+    }
+
+    /**
+     * Count one buffer put out by the component.
+     */
+    fun addBuffer(size: Int) {
+        val now = System.nanoTime()
+        mFirstBufferNs.compareAndSet(0, now)
+        mLastBufferNs = now
+        mBuffers.incrementAndGet()
+        if (size > 0) {
+            mBytes.addAndGet(size.toLong())
+        }
+    }
+
+    fun addUpstreamWait(ns: Long) {
+        mUpstreamWaitNs.addAndGet(ns)
+    }
+
+    fun addDownstreamWait(ns: Long) {
+        mDownstreamWaitNs.addAndGet(ns)
+    }
+
+    /**
+     * Add time spent producing output, such as drawing a frame.
+     */
+    fun addWork(ns: Long) {
+        mWorkNs.addAndGet(ns)
+    }
+
+    /**
+     * Add the time spent producing one buffer, such as drawing one frame, keeping its duration
+     * for the percentiles in [getStats].
+     */
+    fun addWorkSample(ns: Long) {
+        addWork(ns)
+        var histogram = mWorkHistogram
+        if (histogram == null) {
+            synchronized(this) {
+                histogram = mWorkHistogram ?: AtomicIntegerArray(HISTOGRAM_BUCKETS)
+                mWorkHistogram = histogram
+            }
+        }
+        histogram!!.incrementAndGet(Math.min(HISTOGRAM_BUCKETS - 1L, ns / HISTOGRAM_BUCKET_NS).toInt())
+    }
+
+    /**
+     * Record how many buffers of an output queue are filled and waiting for the consumer.
+     */
+    fun sampleQueue(filled: Int, capacity: Int) {
+        mQueueCapacity = capacity
+        mQueueSamples.incrementAndGet()
+        mQueueFilledTotal.addAndGet(filled.toLong())
+        while (true) {
+            val max = mQueueFilledMax.get()
+            if (filled <= max || mQueueFilledMax.compareAndSet(max, filled)) break
+        }
+    }
+
+    /**
+     * Take a snapshot of the counters.
+     */
+    fun getStats(): PipeStats {
+        val samples = mQueueSamples.get()
+        val first = mFirstBufferNs.get()
+        val activeNs = if (first == 0L) 0 else mLastBufferNs - first
+        val stats = PipeStats(name, 1, mBuffers.get(), mBytes.get(),
+                toMs(mUpstreamWaitNs.get()), toMs(mDownstreamWaitNs.get()), toMs(activeNs), toMs(mWorkNs.get()),
+                mQueueCapacity, samples, if (samples == 0L) 0.0 else mQueueFilledTotal.get() / samples.toDouble(),
+                mQueueFilledMax.get(), PipeStats.getRate(mBuffers.get(), mWorkNs.get()))
+        val histogram = mWorkHistogram
+        if (histogram != null) {
+            setPercentiles(stats, IntArray(HISTOGRAM_BUCKETS) { histogram.get(it) })
+        }
+        return stats
+    }
+
+    companion object {
+        //Work samples are counted in buckets of 0.1 ms up to 200 ms; longer ones share the last bucket.
+        private const val HISTOGRAM_BUCKET_NS = 100000L
+        private const val HISTOGRAM_BUCKETS = 2000
+
+        private fun toMs(ns: Long): Long {
+            return ns / 1000000
+        }
+
+        private fun setPercentiles(stats: PipeStats, counts: IntArray) {
+            stats.workP50Ms = getPercentileMs(counts, 0.5)
+            stats.workP90Ms = getPercentileMs(counts, 0.9)
+            stats.workP99Ms = getPercentileMs(counts, 0.99)
+        }
+
+        /**
+         * @return the upper edge, in milliseconds, of the bucket holding the given fraction of samples.
+         */
+        private fun getPercentileMs(counts: IntArray, fraction: Double): Double {
+            val total = counts.sum()
+            if (total == 0) return 0.0
+            val target = Math.ceil(total * fraction).toLong()
+            var seen = 0L
+            for (i in counts.indices) {
+                seen += counts[i]
+                if (seen >= target) {
+                    return (i + 1) * HISTOGRAM_BUCKET_NS / 1E6
+                }
+            }
+            return HISTOGRAM_BUCKETS * HISTOGRAM_BUCKET_NS / 1E6
+        }
+
+        /**
+         * Combine the stats of every instance of each component into one entry per component name.
+         * @return one entry per name, in the order the names first appear.
+         */
+        fun aggregate(metrics: List<PipeMetrics>): List<PipeStats> {
+            val byName = LinkedHashMap<String, PipeStats>()
+            val histograms = HashMap<String, IntArray>()
+            for (m in metrics) {
+                val stats = m.getStats()
+                val previous = byName[stats.name]
+                byName[stats.name] = if (previous == null) stats else previous.plus(stats)
+
+                //Percentiles cannot be summed, so merge the samples behind them.
+                val histogram = m.mWorkHistogram ?: continue
+                val counts = histograms.getOrPut(stats.name) { IntArray(HISTOGRAM_BUCKETS) }
+                for (i in counts.indices) {
+                    counts[i] += histogram.get(i)
+                }
+            }
+            for ((name, counts) in histograms) {
+                setPercentiles(byName[name]!!, counts)
+            }
+            return byName.values.toList()
+        }
+    }
+}
+
+/**
+ * The counters of one component, or of every instance of a component, as reported in a perf report.
+ * Times are in milliseconds and summed over instances. The work percentiles are over the single
+ * samples of every instance (see [PipeMetrics.addWorkSample]).
+ */
+@JsonClass(generateAdapter = true)
+class PipeStats(var name: String,
+                var instances: Int = 1,
+                var buffers: Long = 0,
+                var bytes: Long = 0,
+                var upstreamWaitMs: Long = 0,
+                var downstreamWaitMs: Long = 0,
+                var activeMs: Long = 0,
+                var workMs: Long = 0,
+                var queueCapacity: Int = 0,
+                var queueSamples: Long = 0,
+                var queueMeanFilled: Double = 0.0,
+                var queueMaxFilled: Int = 0,
+                var buffersPerWorkSecond: Double = 0.0,
+                var workP50Ms: Double = 0.0,
+                var workP90Ms: Double = 0.0,
+                var workP99Ms: Double = 0.0) {
+
+    fun plus(other: PipeStats): PipeStats {
+        val samples = queueSamples + other.queueSamples
+        val meanFilled = if (samples == 0L) 0.0
+                else (queueMeanFilled * queueSamples + other.queueMeanFilled * other.queueSamples) / samples
+        return PipeStats(name, instances + other.instances, buffers + other.buffers, bytes + other.bytes,
+                upstreamWaitMs + other.upstreamWaitMs, downstreamWaitMs + other.downstreamWaitMs,
+                activeMs + other.activeMs, workMs + other.workMs,
+                Math.max(queueCapacity, other.queueCapacity), samples, meanFilled,
+                Math.max(queueMaxFilled, other.queueMaxFilled),
+                //Weight each instance by its share of the work.
+                getRate(buffers + other.buffers, (workMs + other.workMs) * 1000000))
+    }
+
+    companion object {
+        /**
+         * Buffers put out per second of work, e.g. frames drawn per second, or 0 if work was not measured.
+         */
+        fun getRate(buffers: Long, workNs: Long): Double {
+            return if (workNs <= 0) 0.0 else buffers * 1E9 / workNs
+        }
+    }
+}
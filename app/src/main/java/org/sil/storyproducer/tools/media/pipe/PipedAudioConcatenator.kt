@@ -3,7 +3,8 @@ package org.sil.storyproducer.tools.media.pipe
 import android.content.Context
 import android.media.MediaFormat
 import android.util.Log
-import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.media.AudioInfoIndex
 import org.sil.storyproducer.tools.media.MediaHelper
 import java.io.IOException
 import java.util.*
@@ -160,12 +161,14 @@ class PipedAudioConcatenator
      *
      * @param sourcePath source audio path.
      * @param duration expected duration of the source audio stream.
+     * @param dirRoot story directory the path is relative to.
      */
     @Throws(SourceUnacceptableException::class)
     @JvmOverloads
-    fun addSourcePath(sourcePath: String?, duration: Long = 0, volume: Float = 1.0f) {
+    fun addSourcePath(sourcePath: String?, duration: Long = 0, volume: Float = 1.0f, dirRoot: String = Workspace.activeDirRoot) {
         if (sourcePath != null) {
-            addSource(PipedAudioDecoderMaverick(context,sourcePath), duration, volume)
+            //Decode straight to the output format so cached audio needs no further resampling.
+            addSource(PipedAudioDecoderMaverick(context, sourcePath, mSampleRate, mChannelCount, 1f, true, dirRoot), duration, volume)
         } else {
             addSource(null, duration)
         }
@@ -186,16 +189,17 @@ class PipedAudioConcatenator
      *
      * @param sourcePath source audio path.
      * @param duration expected duration of the source audio stream.
+     * @param dirRoot story directory the path is relative to.
      */
     @Throws(SourceUnacceptableException::class)
-    fun addLoopingSourcePath(sourcePath: String?, duration: Long, volume: Float = 1.0f) {
+    fun addLoopingSourcePath(sourcePath: String?, duration: Long, volume: Float = 1.0f, dirRoot: String = Workspace.activeDirRoot) {
         if (sourcePath != null) {
-            val sourceDuration: Long = MediaHelper.getAudioDuration(context,getStoryUri(sourcePath)!!)
+            val sourceDuration: Long = AudioInfoIndex.getDuration(context, sourcePath, dirRoot)
             if (sourceDuration < duration) {
                 //Only add a looper if necessary
-                addSource(PipedAudioLooper(context,sourcePath, duration), duration, volume)
+                addSource(PipedAudioLooper(context, sourcePath, duration, mSampleRate, mChannelCount, 1f, dirRoot), duration, volume)
             } else {
-                addSourcePath(sourcePath, duration, volume)
+                addSourcePath(sourcePath, duration, volume, dirRoot)
             }
         } else {
             addSource(null, duration, volume)
@@ -359,7 +363,7 @@ class PipedAudioConcatenator
         }
 
         //buffer of bytes
-        val buffer = mSource!!.getBuffer(mInfo)
+        val buffer = getSourceBuffer(mSource!!)
         //buffer of shorts (16-bit samples)
         val sBuffer = MediaHelper.getShortBuffer(buffer)
 
@@ -3,7 +3,9 @@ package org.sil.storyproducer.tools.media.pipe
 import android.content.Context
 import android.media.MediaCodec
 import android.media.MediaFormat
+import android.util.Log
 
+import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.tools.media.MediaHelper
 
 import java.io.IOException
@@ -13,6 +15,7 @@ import java.nio.ByteBuffer
  *
  * This media pipeline component is a thin wrapper for the commonly used triumvirate of
  * [PipedMediaExtractor], [PipedMediaDecoder], and [PipedAudioResampler].
+ * Unchanged files are served from [DecodedAudioCache] instead of being decoded again.
  */
 class PipedAudioDecoderMaverick
 /**
@@ -21,8 +24,11 @@ class PipedAudioDecoderMaverick
  * @param mSampleRate desired sample rate.
  * @param mChannelCount desired channel count.
  * @param mVolumeModifier volume scaling factor.
+ * @param mUseCache whether decoded audio may be read from and saved to [DecodedAudioCache].
+ * @param mDirRoot story directory the path is relative to.
  */
-@JvmOverloads constructor(private val context: Context, private val mPath: String, private val mSampleRate: Int = 0, private val mChannelCount: Int = 0, private val mVolumeModifier: Float = 1f) : PipedMediaByteBufferSource {
+@JvmOverloads constructor(private val context: Context, private val mPath: String, private val mSampleRate: Int = 0, private val mChannelCount: Int = 0, private val mVolumeModifier: Float = 1f, private val mUseCache: Boolean = true,
+                          private val mDirRoot: String = Workspace.activeDirRoot) : PipedMediaByteBufferSource {
 
     private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
 
@@ -40,6 +46,11 @@ class PipedAudioDecoderMaverick
         return mSource!!.isDone
     }
 
+    //The cached file or the end of the decode pipeline, whichever was used.
+    override fun getMetrics(): PipeMetrics? {
+        return mSource?.metrics
+    }
+
     @Throws(SourceClosedException::class)
     override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
         mSource!!.fillBuffer(buffer, info)
@@ -61,21 +72,26 @@ class PipedAudioDecoderMaverick
             return
         }
 
-        val extractor = PipedMediaExtractor(context, mPath, MediaHelper.MediaType.AUDIO)
-
-        val decoder = PipedMediaDecoder()
-        decoder.addSource(extractor)
-        decoder.setup()
+        if (mUseCache) {
+            val cached = DecodedAudioCache.getSource(context, mPath, mSampleRate, mChannelCount, mVolumeModifier, mDirRoot)
+            if (cached != null) {
+                try {
+                    cached.setup()
+                    mSource = cached
+                } catch (e: IOException) {
+                    Log.w(TAG, "Discarding unreadable cache entry for $mPath", e)
+                    DecodedAudioCache.invalidate(cached)
+                } catch (e: SourceUnacceptableException) {
+                    Log.w(TAG, "Discarding unreadable cache entry for $mPath", e)
+                    DecodedAudioCache.invalidate(cached)
+                }
+            }
+        }
 
-        if (Math.abs(mVolumeModifier - 1) < 0.001) {
-            mSource = PipedAudioResampler.correctSampling(decoder, mSampleRate, mChannelCount)
-        } else {
-            val resampler = PipedAudioResampler(mSampleRate, mChannelCount)
-            resampler.setVolumeModifier(mVolumeModifier)
-            resampler.addSource(decoder)
-            mSource = resampler
+        if (mSource == null) {
+            mSource = createDecodePipeline(context, mPath, mSampleRate, mChannelCount, mVolumeModifier, mDirRoot)
+            mSource!!.setup()
         }
-        mSource!!.setup()
 
         mComponentState = PipedMediaSource.State.SETUP
     }
@@ -89,5 +105,28 @@ class PipedAudioDecoderMaverick
 
     companion object {
         private val TAG = "PipedAudioMaverick"
+
+        /**
+         * Build the extractor, decoder and (if needed) resampler for an audio file, bypassing the cache.
+         * The decoder is set up; the returned source is not.
+         */
+        @Throws(IOException::class, SourceUnacceptableException::class)
+        fun createDecodePipeline(context: Context, path: String, sampleRate: Int, channelCount: Int, volumeModifier: Float,
+                                 dirRoot: String = Workspace.activeDirRoot): PipedMediaByteBufferSource {
+            val extractor = PipedMediaExtractor(context, path, MediaHelper.MediaType.AUDIO, dirRoot)
+
+            val decoder = PipedMediaDecoder()
+            decoder.addSource(extractor)
+            decoder.setup()
+
+            if (Math.abs(volumeModifier - 1) < 0.001) {
+                return PipedAudioResampler.correctSampling(decoder, sampleRate, channelCount)
+            } else {
+                val resampler = PipedAudioResampler(sampleRate, channelCount)
+                resampler.setVolumeModifier(volumeModifier)
+                resampler.addSource(decoder)
+                return resampler
+            }
+        }
     }
 }
\ No newline at end of file
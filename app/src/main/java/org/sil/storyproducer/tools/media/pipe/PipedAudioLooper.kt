@@ -2,27 +2,51 @@ package org.sil.storyproducer.tools.media.pipe
 
 import android.content.Context
 import android.media.MediaFormat
-import android.util.Log
+import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.File
 import java.io.IOException
+import kotlin.math.ceil
+import kotlin.math.min
 
 /**
  *
  * This media pipeline component loops a single audio file for a specified amount of time.
+ *
+ * The file is decoded only once, into a [PcmClip], and the loop is played from that clip,
+ * so repeats are sample-accurate and never create another codec.
  */
 class PipedAudioLooper
 /**
- * Create looper from an audio file with specified duration, resampling the audio stream.
- * @param mPath path of the audio file.
+ * Create looper from a source factory with specified duration.
+ * @param mSourceFactory creates the raw audio source to loop. It is called exactly once.
+ * @param mSpillDir directory for clips too large to keep on the heap, or null to never spill.
  * @param mDurationUs desired duration in microseconds.
- * @param sampleRate desired sample rate.
- * @param channelCount desired channel count.
- * @param mVolumeModifier volume scaling factor.
+ * @param sampleRate desired sample rate (must match the source if not 0).
+ * @param channelCount desired channel count (must match the source if not 0).
  */
-@JvmOverloads constructor(private val context: Context, private val mPath: String, private val mDurationUs: Long, sampleRate: Int = 0, channelCount: Int = 0, private val mVolumeModifier: Float = 1f) : PipedAudioShortManipulator() {
+(private val mSourceFactory: () -> PipedMediaByteBufferSource, private val mSpillDir: File?, private val mDurationUs: Long,
+ sampleRate: Int, channelCount: Int) : PipedAudioShortManipulator() {
+
+    /**
+     * Create looper from an audio file with specified duration, resampling the audio stream.
+     * @param path path of the audio file.
+     * @param durationUs desired duration in microseconds.
+     * @param sampleRate desired sample rate.
+     * @param channelCount desired channel count.
+     * @param volumeModifier volume scaling factor.
+     * @param dirRoot story directory the path is relative to.
+     */
+    @JvmOverloads constructor(context: Context, path: String, durationUs: Long, sampleRate: Int = 0, channelCount: Int = 0, volumeModifier: Float = 1f,
+                              dirRoot: String = Workspace.activeDirRoot)
+            : this({ PipedAudioDecoderMaverick(context, path, sampleRate, channelCount, volumeModifier, true, dirRoot) }, context.cacheDir, durationUs, sampleRate, channelCount)
 
     private var mOutputFormat: MediaFormat? = null
 
+    private var mClip: PcmClip? = null
+    private var mClipPos = 0
+    private var mTotalSamples: Long = 0
+
     override val componentName: String = TAG
 
     init {
@@ -40,21 +64,26 @@ class PipedAudioLooper
             return
         }
 
-        mSource = PipedAudioDecoderMaverick(context, mPath, mSampleRate, mChannelCount, mVolumeModifier)
-        mSource!!.setup()
-
-        validateSource(mSource!!)
-
+        val source = mSourceFactory()
         try {
-            fetchSourceBuffer()
+            source.setup()
+            validateSource(source)
+            mClip = PcmClip.decode(source, mSpillDir)
         } catch (e: SourceClosedException) {
-            //This case should not happen.
-            throw SourceUnacceptableException("First fetchSourceBuffer failed! Strange", e)
+            throw SourceUnacceptableException("Source closed while decoding the loop!", e)
+        } finally {
+            source.close()
         }
 
-        val sourceOutputFormat = mSource!!.outputFormat
-        mSampleRate = sourceOutputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
-        mChannelCount = sourceOutputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+        val clip = mClip!!
+        if (clip.sampleCount == 0) {
+            throw SourceUnacceptableException("Nothing to loop in the source!")
+        }
+        mSampleRate = clip.sampleRate
+        mChannelCount = clip.channelCount
+        //Same time base as mSeekTime, rounded up to whole frames.
+        mTotalSamples = ceil(mDurationUs * mSampleRate / 1000000.0).toLong()
+        mTotalSamples = (mTotalSamples + mChannelCount - 1) / mChannelCount * mChannelCount
 
         mOutputFormat = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
         mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
@@ -65,43 +94,34 @@ class PipedAudioLooper
         start()
     }
 
-    @Throws(SourceClosedException::class)
     override fun loadSamples(): Boolean {
+        val clip = mClip ?: return false
+        val remaining = mTotalSamples - mAbsoluteSampleIndex
         //Component is done if duration is exceeded.
-        if (mSeekTime >= mDurationUs) {
-            mSource!!.close()
-            mSource = null
+        if (remaining <= 0) {
             return false
         }
 
-        if (srcHasBuffer && srcPos >= srcEnd) {
-            fetchSourceBuffer()
-        }
-        if (!srcHasBuffer) {
-            mSource!!.close()
-            mSource = PipedAudioDecoderMaverick(context, mPath, mSampleRate, mChannelCount, mVolumeModifier)
-
-            try {
-                mSource!!.setup()
-                fetchSourceBuffer()
-            } catch (e: IOException) {
-                Log.e(TAG, "Source setup failed!", e)
-                mSource!!.close()
-                mSource = null
-                return false
-            } catch (e: SourceUnacceptableException) {
-                Log.e(TAG, "Source setup failed!", e)
-                mSource!!.close()
-                mSource = null
-                return false
-            }
+        //Both lengths are whole frames, so the loop point never splits a frame.
+        val length = min(min(srcBuffer.size, clip.sampleCount - mClipPos).toLong(), remaining).toInt()
+        clip.read(mClipPos, srcBuffer, 0, length)
+        srcPos = 0
+        srcEnd = length
+        srcHasBuffer = true
 
+        mClipPos += length
+        if (mClipPos >= clip.sampleCount) {
+            mClipPos = 0
         }
-
         return true
     }
 
+    override fun close() {
+        super.close()
+        mClip = null
+    }
+
     companion object {
         private val TAG = "PipedAudioLooper"
     }
-}
\ No newline at end of file
+}
@@ -4,14 +4,14 @@ import android.media.MediaFormat
 import android.util.Log
 import org.sil.storyproducer.tools.media.MediaHelper
 import java.io.IOException
-import java.util.*
 import kotlin.math.min
 
 /**
  *
  * This media pipeline component mixes raw audio streams together.
  *
- * This component also optionally changes the volume of the raw audio stream.
+ * This component also optionally changes the volume of each raw audio stream, and saturates
+ * (rather than wrapping) when the mix exceeds 16 bits.
  */
 class PipedAudioMixer : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
     override val componentName: String
@@ -20,28 +20,45 @@ class PipedAudioMixer : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
     private var mOutputFormat: MediaFormat? = null
 
     private val mixSources = ArrayList<PipedMediaByteBufferSource>()
-    private val mixBuffers = ArrayList<ShortArray>()
-    private val mixPoss = ArrayList<Int>()
-    private val mixEnds = ArrayList<Int>()
+    private val mixVolumes = ArrayList<Float>()
 
-    private var mCurrentSample: ShortArray? = null
+    //Parallel arrays over the sources which still have data; the first mixCount entries are live.
+    private var mixCount = 0
+    private var mixActive: Array<PipedMediaByteBufferSource?> = arrayOf()
+    private var mixBuffers: Array<ShortArray?> = arrayOf()
+    private var mixPoss = IntArray(0)
+    private var mixEnds = IntArray(0)
+    private var mixGains = IntArray(0)
+    private val mixAccumulator = IntArray(MediaHelper.MAX_INPUT_BUFFER_SIZE / 2)
 
     override fun getOutputFormat(): MediaFormat? {
         return mOutputFormat
     }
 
     /**
-     * Specify a predecessor of this component in the pipeline with a specified volume scaling factor.
+     * Specify a predecessor of this component in the pipeline.
      * @param src the preceding component of the pipeline.
      * @throws SourceUnacceptableException if source is null.
      */
     @Throws(SourceUnacceptableException::class)
     override fun addSource(src: PipedMediaByteBufferSource?) {
+        addSource(src, 1f)
+    }
+
+    /**
+     * Specify a predecessor of this component in the pipeline with a specified volume scaling factor.
+     * @param src the preceding component of the pipeline.
+     * @param volume gain applied to this source while mixing.
+     * @throws SourceUnacceptableException if source is null.
+     */
+    @Throws(SourceUnacceptableException::class)
+    fun addSource(src: PipedMediaByteBufferSource?, volume: Float) {
         if (src == null) {
             throw SourceUnacceptableException("Source cannot be null!")
         }
 
         mixSources.add(src)
+        mixVolumes.add(volume)
     }
 
     @Throws(IOException::class, SourceUnacceptableException::class)
@@ -54,7 +71,14 @@ class PipedAudioMixer : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
             throw SourceUnacceptableException("No sources specified!")
         }
 
-        for (i in mixSources.indices) {
+        val count = mixSources.size
+        mixActive = arrayOfNulls(count)
+        mixBuffers = arrayOfNulls(count)
+        mixPoss = IntArray(count)
+        mixEnds = IntArray(count)
+        mixGains = IntArray(count)
+
+        for (i in 0 until count) {
             val source = mixSources[i]
             source.setup()
             validateSource(source, mChannelCount, mSampleRate)
@@ -67,24 +91,25 @@ class PipedAudioMixer : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
                 mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
             }
 
-            mixBuffers.add(ShortArray(MediaHelper.MAX_INPUT_BUFFER_SIZE / 2))
-            mixPoss.add(0)
-            mixEnds.add(0)
+            mixActive[i] = source
+            mixBuffers[i] = ShortArray(MediaHelper.MAX_INPUT_BUFFER_SIZE / 2)
+            mixGains[i] = AudioMixKernel.toFixedGain(mixVolumes[i])
+        }
+        mixCount = count
+
+        for (i in count - 1 downTo 0) {
             try {
                 fetchSourceBuffer(i)
             } catch (e: SourceClosedException) {
                 //This case should not happen.
                 throw SourceUnacceptableException("First fetchSourceBuffer failed! Strange", e)
             }
-
         }
 
         mOutputFormat = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
         mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
         mOutputFormat!!.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount)
 
-        mCurrentSample = ShortArray(mChannelCount)
-
         mComponentState = PipedMediaSource.State.SETUP
 
         start()
@@ -92,53 +117,26 @@ class PipedAudioMixer : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
 
     @Throws(SourceClosedException::class)
     override fun loadSamples(): Boolean {
-        for (i in 0 until mChannelCount) {
-            mCurrentSample!![i] = 0
-        }
-
-        //Loop through all sources and fetch buffers if we need to
-        var iSource = 0
-        var allLength = 1000000
-        while (iSource < mixSources.size) {
-            if (mixPoss[iSource] >= mixEnds[iSource] && mixBuffers.getOrNull(iSource) != null) {
+        //Loop through all sources and fetch buffers if we need to.
+        //Go backwards so depleted sources can be removed without disturbing the indices left to visit.
+        var allLength = srcBuffer.size
+        for (iSource in mixCount - 1 downTo 0) {
+            if (mixPoss[iSource] >= mixEnds[iSource]) {
                 fetchSourceBuffer(iSource)
             }
-            //The source is depleted!
-            if (mixBuffers.getOrNull(iSource) == null) {
-                //Remove depleted sources from the lists.
-                mixSources.removeAt(iSource)
-                mixPoss.removeAt(iSource)
-                mixEnds.removeAt(iSource)
-                continue
-            }
-            allLength = min(allLength,mixEnds[iSource] - mixPoss[iSource])
-            iSource++
+        }
+        for (iSource in 0 until mixCount) {
+            allLength = min(allLength, mixEnds[iSource] - mixPoss[iSource])
         }
 
-        if(mixSources.isEmpty()) return false
-
-        //prep srcBuffer with the mixing of all channels available.
-
-        //do the first channel
-        //grab the buffer
-
-        //setup the data as a source.  Copy the buffer
-
-        srcBuffer = mixBuffers[0].copyOfRange(mixPoss[0],mixPoss[0]+allLength)
-        mixPoss[0] += allLength
-
-        //do all other channels
-        iSource = 1
-        while (iSource < mixSources.size) {
-            //grab the buffer
-            val pos = mixPoss[iSource]
-            val mb = mixBuffers[iSource].sliceArray(pos..pos+allLength)
+        if (mixCount == 0) return false
 
-            //setup the data as a source.  Copy the buffer
-            srcBuffer.forEachIndexed { index, sh ->  srcBuffer[index] = (sh + mb[index]).toShort()}
+        //Mix only the range every source can provide, straight into srcBuffer.
+        AudioMixKernel.mix(srcBuffer, 0, mixBuffers, mixPoss, mixGains, mixCount,
+                allLength, mixAccumulator)
 
+        for (iSource in 0 until mixCount) {
             mixPoss[iSource] += allLength
-            iSource++
         }
 
         srcPos = 0
@@ -147,17 +145,21 @@ class PipedAudioMixer : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
         return true
     }
 
+    /**
+     * Refill the buffer of a source, removing (and closing) the source if it is depleted.
+     */
     @Throws(SourceClosedException::class)
     fun fetchSourceBuffer(sourceIndex: Int) {
-        val source = mixSources[sourceIndex]
+        val source = mixActive[sourceIndex]!!
         if (source.isDone) {
             source.close()
-            mixBuffers.removeAt(sourceIndex)
+            mixSources.remove(source)
+            removeSource(sourceIndex)
             return
         }
 
         //buffer of bytes
-        val buffer = source.getBuffer(mInfo)
+        val buffer = getSourceBuffer(source)
         //buffer of shorts (16-bit samples)
         val sBuffer = MediaHelper.getShortBuffer(buffer)
 
@@ -170,7 +172,7 @@ class PipedAudioMixer : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
         val pos = 0
         val size = sBuffer.remaining()
         //Copy ShortBuffer to array of shorts in hopes of speedup.
-        sBuffer.get(mixBuffers[sourceIndex], pos, size)
+        sBuffer.get(mixBuffers[sourceIndex]!!, pos, size)
         mixPoss[sourceIndex] = pos
         mixEnds[sourceIndex] = size
 
@@ -178,15 +180,31 @@ class PipedAudioMixer : PipedAudioShortManipulator(), PipedMediaByteBufferDest {
         source.releaseBuffer(buffer)
     }
 
+    private fun removeSource(sourceIndex: Int) {
+        //Move the last live source into the hole; keep the freed ShortArray out of the way.
+        val last = mixCount - 1
+        val freedBuffer = mixBuffers[sourceIndex]
+        mixActive[sourceIndex] = mixActive[last]
+        mixBuffers[sourceIndex] = mixBuffers[last]
+        mixPoss[sourceIndex] = mixPoss[last]
+        mixEnds[sourceIndex] = mixEnds[last]
+        mixGains[sourceIndex] = mixGains[last]
+        mixActive[last] = null
+        mixBuffers[last] = freedBuffer
+        mixCount = last
+    }
+
     override fun close() {
         super.close()
         while (!mixSources.isEmpty()) {
             val source = mixSources.removeAt(0)
             source.close()
         }
+        mixActive.fill(null)
+        mixCount = 0
     }
 
     companion object {
         private val TAG = "PipedAudioMixer"
     }
-}
\ No newline at end of file
+}
@@ -4,12 +4,11 @@ import android.media.MediaFormat
 import android.util.Log
 import org.sil.storyproducer.tools.media.MediaHelper
 import java.io.IOException
-import kotlin.math.floor
-import kotlin.math.max
 
 /**
  *
- * This media pipeline component resamples (converts sample rate of) raw audio using linear interpolation.
+ * This media pipeline component resamples (converts sample rate of) raw audio using a
+ * [PolyphaseResampler] (windowed-sinc interpolation).
  *
  * This component also optionally changes the channel count and/or volume of the raw audio stream.
  */
@@ -29,16 +28,11 @@ class PipedAudioResampler
 
     private var orgFormat: MediaFormat? = null
     protected val orgBuffer = ShortArray(MediaHelper.MAX_INPUT_BUFFER_SIZE / 2) //short = 2 bytes
-    protected var orgPos: Int = 0
-    protected var orgEnd: Int = 0
     private var orgSampleRate: Int = 0
-    private var orgCumBufferEnd: Int = 0
     private var orgChannelCount: Int = 0
-    private val orgBufferEndTime: Long get() {
-        if(orgSampleRate == 0) return 0
-        return (orgCumBufferEnd * 1000000.0 / orgSampleRate / orgChannelCount).toLong()
-    }
-    private var orgBufferStartTime: Long = 0
+
+    private var mResampler: PolyphaseResampler? = null
+    private var mSourceDrained = false
 
     init {
         mSampleRate = sampleRate
@@ -86,6 +80,11 @@ class PipedAudioResampler
         if (mChannelCount == 0) {
             mChannelCount = orgChannelCount
         }
+        if (mSampleRate == 0) {
+            mSampleRate = orgSampleRate
+        }
+
+        mResampler = PolyphaseResampler(orgSampleRate, mSampleRate, orgChannelCount, mChannelCount, mVolumeModifier)
 
         mOutputFormat = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
         mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
@@ -98,78 +97,41 @@ class PipedAudioResampler
 
     @Throws(SourceClosedException::class)
     override fun loadSamples(): Boolean {
-        //grab the last sample for interpolation before the first sample of the new data
-        val last = ShortArray(orgChannelCount)
-        var ch = 0
-        if(orgEnd > 0) { // don't populate if it is the first run through, where orgEnd == 0.
-            for (index in orgEnd - orgChannelCount until orgEnd) {
-                last[ch++] = orgBuffer[index]
-            }
-        }
-        //grab the new buffer into org buffer
-        //prepend the "last" samples.
-        fetchSourceBufferWithPrepend(last)
-        //There is no new data.  Return.
-        if (!srcHasBuffer) {
-            mSource!!.close()
-            mSource = null
-            return false
-        }
-        //Or, there is data.
-        //Find out how many interpolated samples we can actually make based on the available time.
-        //add one to capture the last element.
-        srcPos = 0
-        srcEnd = max(0,floor(((orgBufferEndTime - mSeekTime) * mSampleRate / 1000000.0 + 1).toFloat()).toInt() * mChannelCount)
-
-        //convert all the samples
-        val relStartTime = mSeekTime - orgBufferStartTime
-        val srMult = (1000000.0 / mSampleRate).toFloat()
-        val ssrMult = (orgSampleRate / 1000000.0).toFloat()
-        if (mChannelCount == 2 && orgChannelCount == 2) {
-            for (i in 0 until srcEnd) {
-                val cChannel = i % 2
-                val fSample = (relStartTime + (i / 2) * srMult) * ssrMult
-                val si = floor(fSample).toInt() * 2 + cChannel  // first index
-                val sw = fSample - floor(fSample) //weight of second term
-                srcBuffer[i] = (mVolumeModifier * (orgBuffer[si] * (1 - sw) + orgBuffer[si + 2] * sw)).toShort()
+        val resampler = mResampler!!
+        while (true) {
+            //Drain whatever the buffered input allows before asking for more.
+            srcPos = 0
+            srcEnd = resampler.read(srcBuffer, 0, srcBuffer.size)
+            if (srcEnd > 0) {
+                return true
             }
-        } else if (mChannelCount == 1 && orgChannelCount == 2) {
-            for (i in 0 until srcEnd) {
-                val fSample = (relStartTime + i * srMult) * ssrMult
-                val si = floor(fSample).toInt() * 2  // first index
-                val sw = fSample - floor(fSample) //weight of second term
-                srcBuffer[i] = (mVolumeModifier *
-                        ((orgBuffer[si] + orgBuffer[si + 1]) * (1 - sw) +
-                                (orgBuffer[si + 2] + orgBuffer[si + 3]) * sw) * 0.5).toShort()
-            }
-        } else if (mChannelCount == 2 && orgChannelCount == 1) {
-            for (i in 0 until srcEnd step 2) {
-                val fSample = (relStartTime + (i / 2) * srMult) * ssrMult
-                val si = floor(fSample).toInt() // first index
-                val sw = fSample - si //weight of second term
-                srcBuffer[i] = (mVolumeModifier * (orgBuffer[si] * (1 - sw) + orgBuffer[si + 1] * sw)).toShort()
-                srcBuffer[i + 1] = srcBuffer[i]
+
+            if (mSourceDrained) {
+                //There is no new data.  Return.
+                mSource!!.close()
+                mSource = null
+                return false
             }
-        } else {//1,1
-            for (i in 0 until srcEnd) {
-                val fSample = (relStartTime + i * srMult) * ssrMult
-                val si = floor(fSample).toInt() // first index
-                val sw = fSample - si //weight of second term
-                srcBuffer[i] = (mVolumeModifier * (orgBuffer[si] * (1 - sw) + orgBuffer[si + 1] * sw)).toShort()
+
+            fetchSourceBuffer()
+            if (srcHasBuffer) {
+                resampler.write(orgBuffer, 0, mInfo.size / 2) //short = 2 bytes
+            } else {
+                resampler.flush()
+                mSourceDrained = true
             }
         }
-        return true
     }
 
     @Throws(SourceClosedException::class)
-    fun fetchSourceBufferWithPrepend(prependSamples : ShortArray) {
+    override fun fetchSourceBuffer() {
         if (mSource!!.isDone) {
             srcHasBuffer = false
             return
         }
 
         //buffer of bytes
-        val buffer = mSource!!.getBuffer(mInfo)
+        val buffer = getSourceBuffer(mSource!!)
         //buffer of shorts (16-bit samples)
         val sBuffer = MediaHelper.getShortBuffer(buffer)
 
@@ -179,20 +141,14 @@ class PipedAudioResampler
                     + " with" + (if (buffer.hasArray()) "" else "out") + " array")
         }
 
-        for (i in 0 until prependSamples.size)
-            orgBuffer[i] = prependSamples[i]
-
-        orgBufferStartTime = orgBufferEndTime
-        orgPos = prependSamples.size
-        orgEnd = sBuffer.remaining() + prependSamples.size
-        orgCumBufferEnd += sBuffer.remaining()
         //Copy ShortBuffer to array of shorts in hopes of speedup.
-        sBuffer.get(orgBuffer, orgPos, sBuffer.remaining())
+        val size = sBuffer.remaining()
+        sBuffer.get(orgBuffer, 0, size)
+        mInfo.size = size * 2 //short = 2 bytes
 
         //Release buffer since data was copied.
         mSource!!.releaseBuffer(buffer)
 
-
         srcHasBuffer = true
     }
 
@@ -31,7 +31,8 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
 
     protected abstract val componentName: String
 
-    private var mThread: Thread? = null
+    @Volatile
+    private var mTask: PipelineScheduler.Task? = null
 
     //Any caller of isDone needs to be immediately aware of changes to the mIsDone variable,
     //even in another thread.
@@ -39,10 +40,13 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
     private var mIsDone = false
     private var mNonvolatileIsDone = false
 
-    //Although this is cross-thread, it isn't important for the input thread to immediately stop;
-    //so no volatile keyword.
+    //A waiting spinInput task is woken on close and must see the new state.
+    @Volatile
     protected var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
     private val mBufferQueue = ByteBufferQueue(BUFFER_COUNT)
+    private val mMetrics: PipeMetrics by lazy { PipeMetrics(componentName) }
+    //When the task last gave up its thread for lack of an empty buffer, or 0.
+    private var mWaitStartNs: Long = 0
     private val mShortBuffer = ShortArray(MAX_BUFFER_CAPACITY / 2) //short = 2 bytes
 
     protected var mSampleRate: Int = 0
@@ -65,19 +69,26 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
         return MediaHelper.MediaType.AUDIO
     }
 
+    override fun getMetrics(): PipeMetrics {
+        return mMetrics
+    }
+
     override fun isDone(): Boolean {
         return mIsDone && mBufferQueue.isEmpty || mComponentState == PipedMediaSource.State.CLOSED
     }
 
+    @Throws(SourceClosedException::class)
     override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
-        val myBuffer = mBufferQueue.getFilledBuffer(info)
+        val myBuffer = getBuffer(info)
         buffer.clear()
         buffer.put(myBuffer)
         mBufferQueue.releaseUsedBuffer(myBuffer)
     }
 
-    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer? {
-        return mBufferQueue.getFilledBuffer(info)
+    @Throws(SourceClosedException::class)
+    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+        //The queue gives up waiting when the pipeline is cancelled.
+        return mBufferQueue.getFilledBuffer(info) ?: throw SourceClosedException()
     }
 
     @Throws(InvalidBufferException::class)
@@ -94,34 +105,44 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
             throw SourceUnacceptableException("$componentName: Channel count not specified!")
         }
 
-        mThread = Thread(Runnable {
-            try {
-                spinInput()
-            } catch (e: Exception) {
-                Log.w(TAG, "spinInput stopped prematurely", e)
-            }
-        })
         mComponentState = PipedMediaSource.State.RUNNING
-        mThread!!.start()
-    }
+        mMetrics.register()
+        if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput starting")
 
-    @Throws(SourceClosedException::class)
-    private fun spinInput() {
+        //Each released buffer wakes the producer, which gives up its thread while the queue is full.
+        mBufferQueue.setReleaseListener(Runnable { mTask?.wake() })
+        val task = PipelineScheduler.launchCooperative(componentName) { spinInput() }
+        mTask = task
+        //Cover a release that happened before the task was assigned.
+        task.wake()
+    }
 
-        if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput starting")
+    /**
+     * Fill one output buffer, if one is free.
+     */
+    private fun spinInput(): PipelineScheduler.Step {
+        if (mComponentState == PipedMediaSource.State.CLOSED || mIsDone) {
+            if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput complete!")
+            return PipelineScheduler.Step.DONE
+        }
+        if (mWaitStartNs != 0L) {
+            mMetrics.addDownstreamWait(System.nanoTime() - mWaitStartNs)
+            mWaitStartNs = 0
+        }
 
-        while (mComponentState != PipedMediaSource.State.CLOSED && !mIsDone) {
+        try {
             var durationNs: Long = 0
             val info = MediaCodec.BufferInfo()
             if (MediaHelper.DEBUG) {
                 durationNs = -System.nanoTime()
             }
             //Prepare outBuffer
-            val outBuffer = mBufferQueue.getEmptyBuffer(MediaHelper.TIMEOUT_USEC)
+            val outBuffer = mBufferQueue.pollEmptyBuffer()
             if (outBuffer == null) {
                 if (MediaHelper.VERBOSE)
                     Log.d(TAG, "$componentName.spinInput: empty buffer unavailable")
-                continue
+                mWaitStartNs = System.nanoTime()
+                return PipelineScheduler.Step.WAIT
             }
 
             outBuffer.clear()
@@ -166,6 +187,8 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
             }
 
             mBufferQueue.sendFilledBuffer(outBuffer, info)
+            mMetrics.addBuffer(info.size)
+            mMetrics.sampleQueue(mBufferQueue.filledCount, BUFFER_COUNT)
 
             if (MediaHelper.DEBUG) {
                 durationNs += System.nanoTime()
@@ -174,8 +197,11 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
                         + MediaHelper.getDecimal(sec) + " seconds: size " + info.size
                         + " for time " + info.presentationTimeUs)
             }
+        } catch (e: SourceClosedException) {
+            Log.w(TAG, "spinInput stopped prematurely", e)
+            return PipelineScheduler.Step.DONE
         }
-        if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput complete!")
+        return PipelineScheduler.Step.CONTINUE
     }
 
     /**
@@ -230,7 +256,7 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
         }
 
         //buffer of bytes
-        val buffer = mSource!!.getBuffer(mInfo)
+        val buffer = getSourceBuffer(mSource!!)
         //buffer of shorts (16-bit samples)
         val sBuffer = MediaHelper.getShortBuffer(buffer)
 
@@ -251,21 +277,34 @@ abstract class PipedAudioShortManipulator : PipedMediaByteBufferSource {
         srcHasBuffer = true
     }
 
+    /**
+     * Get the next buffer of a source into [mInfo], counting the time spent waiting for it.
+     */
+    @Throws(SourceClosedException::class)
+    protected fun getSourceBuffer(source: PipedMediaByteBufferSource): ByteBuffer {
+        val start = System.nanoTime()
+        val buffer = source.getBuffer(mInfo)
+        mMetrics.addUpstreamWait(System.nanoTime() - start)
+        return buffer
+    }
+
     override fun close() {
-        //Force the spinInput thread to shutdown.
+        //Force the spinInput task to finish, waking it if it is waiting for a free buffer.
         mComponentState = PipedMediaSource.State.CLOSED
         if (mSource != null) {
             mSource!!.close()
             mSource = null
         }
-        if (mThread != null) {
+        val task = mTask
+        if (task != null) {
+            task.wake()
             try {
-                mThread!!.join()
+                task.join()
             } catch (e: InterruptedException) {
-                Log.w(TAG, "$componentName: Failed to stop input thread!", e)
+                Log.w(TAG, "$componentName: Failed to stop input task!", e)
             }
 
-            mThread = null
+            mTask = null
         }
     }
 
@@ -2,25 +2,35 @@ package org.sil.storyproducer.tools.media.pipe
 
 import android.media.MediaCodec
 import android.media.MediaFormat
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
 import android.util.Log
+import android.view.Surface
 import org.sil.storyproducer.tools.media.MediaHelper
 import java.lang.Exception
 import java.nio.ByteBuffer
 import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
 
 /**
  *
  * This abstract media pipeline component provides a base for components which encode or decode
  * media streams. This class primarily encapsulates a [MediaCodec].
  *
- * Note: This class is spawns a child thread which keeps churning input while other calling code
- * pulls output.
+ * Note: This class launches a [PipelineScheduler] task which keeps churning input while other
+ * calling code pulls output.
+ *
+ * Where available (see [useAsyncMode]), the codec runs in asynchronous mode: [MediaCodec.Callback]
+ * delivers input and output buffer indices into queues, and [dequeueInputBuffer] and the output
+ * loop wait on those queues instead of polling the codec with a timeout.
  */
 abstract class PipedMediaCodec : PipedMediaByteBufferSource {
 
     protected abstract val componentName: String
 
-    internal var mThread: Thread? = null
+    internal var mTask: PipelineScheduler.Task? = null
 
     @Volatile
     protected var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
@@ -37,6 +47,19 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
 
     private val mInfo = MediaCodec.BufferInfo()
 
+    private var mIsAsync = false
+    private val mInputIndices = LinkedBlockingQueue<Int>()
+    private val mOutputEvents = LinkedBlockingQueue<OutputEvent>()
+
+    /** Whether the codec was configured in asynchronous mode. */
+    val isAsync: Boolean get() = mIsAsync
+
+    protected val mMetrics: PipeMetrics by lazy { PipeMetrics(componentName) }
+
+    override fun getMetrics(): PipeMetrics {
+        return mMetrics
+    }
+
     override fun getOutputFormat(): MediaFormat {
         if (mOutputFormat == null) {
             try {
@@ -79,18 +102,63 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
         return
     }
 
+    /**
+     * Configure [mCodec], in asynchronous mode if it is enabled.
+     */
+    protected fun configureCodec(format: MediaFormat, surface: Surface?, flags: Int) {
+        val codec = mCodec!!
+        mIsAsync = false
+        if (useAsyncMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            codec.setCallback(Callback(), callbackHandler)
+            mIsAsync = true
+        }
+        codec.configure(format, surface, null, flags)
+    }
+
+    /**
+     * Get the index of a free input buffer.
+     * @return the index, or [MediaCodec.INFO_TRY_AGAIN_LATER] if none came free within the timeout.
+     */
+    protected fun dequeueInputBuffer(timeoutUs: Long): Int {
+        val start = System.nanoTime()
+        val index = if (!mIsAsync) {
+            mCodec!!.dequeueInputBuffer(timeoutUs)
+        } else {
+            mInputIndices.poll(timeoutUs, TimeUnit.MICROSECONDS) ?: MediaCodec.INFO_TRY_AGAIN_LATER
+        }
+        //No free input buffer means the codec is waiting for its output to be taken.
+        if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            mMetrics.addDownstreamWait(System.nanoTime() - start)
+        }
+        return index
+    }
+
+    private fun dequeueOutputBuffer(info: MediaCodec.BufferInfo, timeoutUs: Long): Int {
+        if (!mIsAsync) {
+            return mCodec!!.dequeueOutputBuffer(info, timeoutUs)
+        }
+        val event = mOutputEvents.poll(timeoutUs, TimeUnit.MICROSECONDS) ?: return MediaCodec.INFO_TRY_AGAIN_LATER
+        if (event.error != null) {
+            throw event.error
+        }
+        if (event.index >= 0) {
+            MediaHelper.copyBufferInfo(event.info!!, info)
+        }
+        return event.index
+    }
+
     protected fun start() {
+        mMetrics.register()
         mCodec!!.start()
 
-        mThread = Thread(Runnable {
+        mComponentState = PipedMediaSource.State.RUNNING
+        mTask = PipelineScheduler.launch(componentName) {
             try {
                 spinInput()
             } catch (e: SourceClosedException) {
                 Log.w(TAG, "spinInput stopped prematurely", e)
             }
-        })
-        mComponentState = PipedMediaSource.State.RUNNING
-        mThread!!.start()
+        }
     }
 
     @Throws(SourceClosedException::class)
@@ -103,6 +171,7 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
         if (!getFormat && !mBuffersBeforeFormat.isEmpty()) {
             val tempBuffer = mBuffersBeforeFormat.remove()
             MediaHelper.copyBufferInfo(tempBuffer.info, info)
+            mMetrics.addBuffer(info.size)
             return tempBuffer.buffer
         }
 
@@ -111,7 +180,7 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
                 throw SourceClosedException()
             }
             try {
-                outputBufferId = mCodec!!.dequeueOutputBuffer(
+                outputBufferId = dequeueOutputBuffer(
                         info, MediaHelper.TIMEOUT_USEC)
             } catch (e : Exception) {
                 mIsDone = true
@@ -154,6 +223,7 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
                         MediaHelper.copyBufferInfo(info, tempInfo)
                         mBuffersBeforeFormat.add(MediaBuffer(buffer, tempInfo))
                     } else {
+                        mMetrics.addBuffer(info.size)
                         return buffer
                     }
                 }
@@ -186,7 +256,7 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
     protected abstract fun spinInput()
 
     override fun close() {
-        //Shutdown child thread
+        //Shutdown input task
         mComponentState = PipedMediaSource.State.CLOSED
 
         //Wait for two times the length of the timeout in the pullBuffer loop to ensure the codec
@@ -197,14 +267,14 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
             Log.w(TAG, "sleep interrupted", e)
         }
 
-        if (mThread != null) {
+        if (mTask != null) {
             try {
-                mThread!!.join()
+                mTask!!.join()
             } catch (e: InterruptedException) {
-                Log.w(TAG, "$componentName: Failed to close input thread!", e)
+                Log.w(TAG, "$componentName: Failed to close input task!", e)
             }
 
-            mThread = null
+            mTask = null
         }
 
         //Shutdown MediaCodec
@@ -218,9 +288,51 @@ abstract class PipedMediaCodec : PipedMediaByteBufferSource {
             }
             mCodec = null
         }
+        mInputIndices.clear()
+        mOutputEvents.clear()
+    }
+
+    private class OutputEvent(val index: Int, val info: MediaCodec.BufferInfo?, val error: Exception?)
+
+    /**
+     * Hands buffer indices from the codec to the pipeline threads.
+     */
+    private inner class Callback : MediaCodec.Callback() {
+        override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {
+            mInputIndices.add(index)
+        }
+
+        override fun onOutputBufferAvailable(codec: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+            val copy = MediaCodec.BufferInfo()
+            MediaHelper.copyBufferInfo(info, copy)
+            mOutputEvents.add(OutputEvent(index, copy, null))
+        }
+
+        override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+            mOutputEvents.add(OutputEvent(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, null, null))
+        }
+
+        override fun onError(codec: MediaCodec, e: MediaCodec.CodecException) {
+            Log.e(TAG, "$componentName: codec error", e)
+            mOutputEvents.add(OutputEvent(MediaCodec.INFO_TRY_AGAIN_LATER, null, e))
+        }
     }
 
     companion object {
         private val TAG = "PipedMediaCodec"
+
+        /**
+         * Whether new codecs use [MediaCodec.Callback] (on Android M and later) rather than polling.
+         */
+        @JvmStatic
+        @Volatile
+        var useAsyncMode = true
+
+        //Callbacks only enqueue indices, so one thread serves every codec.
+        private val callbackHandler: Handler by lazy {
+            val thread = HandlerThread("codec-callbacks")
+            thread.start()
+            Handler(thread.looper)
+        }
     }
 }
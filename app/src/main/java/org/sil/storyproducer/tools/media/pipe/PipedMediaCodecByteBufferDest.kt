@@ -34,7 +34,7 @@ abstract class PipedMediaCodecByteBufferDest : PipedMediaCodec(), PipedMediaByte
         if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput starting")
 
         while (mComponentState != PipedMediaSource.State.CLOSED && !mSource!!.isDone) {
-            val pollCode = mCodec!!.dequeueInputBuffer(MediaHelper.TIMEOUT_USEC)
+            val pollCode = dequeueInputBuffer(MediaHelper.TIMEOUT_USEC)
             if (pollCode == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 if (MediaHelper.VERBOSE) Log.v(TAG, "$componentName.spinInput: no input buffer")
                 //Do nothing.
@@ -47,7 +47,9 @@ abstract class PipedMediaCodecByteBufferDest : PipedMediaCodec(), PipedMediaByte
                 }
 
                 val inputBuffer = mCodec!!.getInputBuffer(pollCode)
+                val fillStart = System.nanoTime()
                 mSource!!.fillBuffer(inputBuffer, mInfo)
+                mMetrics.addUpstreamWait(System.nanoTime() - fillStart)
                 mCodec!!.queueInputBuffer(pollCode, 0, mInfo.size, mInfo.presentationTimeUs, mInfo.flags)
 
                 if (MediaHelper.DEBUG) {
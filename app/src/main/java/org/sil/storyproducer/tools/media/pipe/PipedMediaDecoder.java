@@ -40,7 +40,7 @@ public class PipedMediaDecoder extends PipedMediaCodecByteBufferDest {
         getMSource().setup();
         mSourceFormat = getMSource().getOutputFormat();
         setMCodec(MediaCodec.createDecoderByType(mSourceFormat.getString(MediaFormat.KEY_MIME)));
-        getMCodec().configure(mSourceFormat, null, null, 0);
+        configureCodec(mSourceFormat, null, 0);
 
         setMComponentState(State.SETUP);
 
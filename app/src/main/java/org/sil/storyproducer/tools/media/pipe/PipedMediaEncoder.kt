@@ -52,7 +52,7 @@ class PipedMediaEncoder(private val mConfigureFormat: MediaFormat) : PipedMediaC
         mConfigureFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MediaHelper.MAX_INPUT_BUFFER_SIZE)
 
         mCodec = MediaCodec.createByCodecName(selectCodec(mConfigureFormat.getString(MediaFormat.KEY_MIME)!!)!!.name)
-        mCodec!!.configure(mConfigureFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        configureCodec(mConfigureFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
 
         mComponentState = PipedMediaSource.State.SETUP
 
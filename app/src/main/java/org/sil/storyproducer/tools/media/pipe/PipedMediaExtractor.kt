@@ -6,6 +6,7 @@ import android.media.MediaExtractor
 import android.media.MediaFormat
 import android.os.Build
 import android.util.Log
+import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.tools.file.getStoryFileDescriptor
 
 import org.sil.storyproducer.tools.media.MediaHelper
@@ -23,8 +24,10 @@ class PipedMediaExtractor
  * Create extractor from specified file.
  * @param mPath path of the media file.
  * @param mType (audio/video) track to select from file.
+ * @param mDirRoot story directory the path is relative to.
  */
-(private val context: Context, private val mPath: String, private val mType: MediaHelper.MediaType) : PipedMediaByteBufferSource {
+(private val context: Context, private val mPath: String, private val mType: MediaHelper.MediaType,
+ private val mDirRoot: String = Workspace.activeDirRoot) : PipedMediaByteBufferSource {
 
     private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
 
@@ -34,7 +37,10 @@ class PipedMediaExtractor
 
     private var mIsDone = false
 
-    private val mBufferPool = ByteBufferPool()
+    //Direct buffers, since MediaExtractor reads into them and MediaCodec consumes them natively.
+    private val mBufferPool = ByteBufferPool(MediaHelper.MAX_INPUT_BUFFER_SIZE, true)
+
+    private val mMetrics = PipeMetrics(TAG)
 
     @Throws(IOException::class, SourceUnacceptableException::class)
     override fun setup() {
@@ -43,7 +49,7 @@ class PipedMediaExtractor
         }
 
         mExtractor = MediaExtractor()
-        mExtractor!!.setDataSource(getStoryFileDescriptor(context, mPath,"","r")!!)
+        mExtractor!!.setDataSource(getStoryFileDescriptor(context, mPath,"","r", mDirRoot)!!)
 
         var foundTrack = false
 
@@ -60,12 +66,17 @@ class PipedMediaExtractor
         }
 
         mComponentState = PipedMediaSource.State.SETUP
+        mMetrics.register()
     }
 
     override fun getMediaType(): MediaHelper.MediaType {
         return mType
     }
 
+    override fun getMetrics(): PipeMetrics {
+        return mMetrics
+    }
+
     override fun getOutputFormat(): MediaFormat? {
         return mFormat
     }
@@ -96,6 +107,7 @@ class PipedMediaExtractor
 
         buffer.clear()
 
+        val start = System.nanoTime()
         info.offset = 0
         info.size = mExtractor!!.readSampleData(buffer, 0)
         info.presentationTimeUs = mExtractor!!.sampleTime
@@ -123,6 +135,8 @@ class PipedMediaExtractor
             buffer.position(info.offset)
             buffer.limit(info.offset + info.size)
             mExtractor!!.advance()
+            mMetrics.addWork(System.nanoTime() - start)
+            mMetrics.addBuffer(info.size)
         } else {
             if (MediaHelper.VERBOSE) Log.v(TAG, "pullBuffer: EOS")
             info.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
@@ -131,6 +145,9 @@ class PipedMediaExtractor
     }
 
     override fun close() {
+        if (mBufferPool.outstandingCount > 0) {
+            Log.w(TAG, "Closing with " + mBufferPool.outstandingCount + " buffers still out")
+        }
         if (mExtractor != null) {
             mExtractor!!.release()
             mExtractor = null
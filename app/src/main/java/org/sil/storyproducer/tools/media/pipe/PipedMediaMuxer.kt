@@ -39,17 +39,22 @@ class PipedMediaMuxer
     private var mAudioTrackIndex = -1
     private var mAudioOutputFormat: MediaFormat? = null
     private val mAudioBitrate = -1
-    private var mAudioThread: StreamThread? = null
+    private var mAudioStream: Stream? = null
 
     private var mVideoSource: PipedMediaByteBufferSource? = null
     private var mVideoTrackIndex = -1
     private var mVideoOutputFormat: MediaFormat? = null
     private val mVideoBitrate = -1
-    private var mVideoThread: StreamThread? = null
+    private var mVideoStream: Stream? = null
 
     @Volatile
     private var mAbnormallyEnded = false
 
+    //Per muxer, so several muxers fed by one pipeline can start at the same time.
+    private val audioLock = Any()
+    private val videoLock = Any()
+    private val muxerLock = Any()
+
     /**
      * Get approximate current progress of the audio track (i.e. the latest timestamp in microseconds).
      * @return approximate microseconds of completed audio
@@ -82,8 +87,8 @@ class PipedMediaMuxer
     }
 
     private fun getAudioProgress(allowDeflect: Boolean): Long {
-        return if (mAudioThread != null) {
-            mAudioThread!!.progress
+        return if (mAudioStream != null) {
+            mAudioStream!!.progress
         } else if (allowDeflect) {
             //If there is no audio channel, use the video progress as audio progress.
             getVideoProgress(false)
@@ -93,8 +98,8 @@ class PipedMediaMuxer
     }
 
     private fun getVideoProgress(allowDeflect: Boolean): Long {
-        return if (mVideoThread != null) {
-            mVideoThread!!.progress
+        return if (mVideoStream != null) {
+            mVideoStream!!.progress
         } else if (allowDeflect) {
             //If there is no video channel, use the audio progress as video progress.
             getAudioProgress(false)
@@ -115,32 +120,32 @@ class PipedMediaMuxer
 
         synchronized(audioLock) {
             if (mAudioSource != null) {
-                mAudioThread = StreamThread(mMuxer!!, mAudioSource!!, mAudioTrackIndex, mAudioBitrate)
-                mAudioThread!!.start()
+                mAudioStream = Stream(mMuxer!!, mAudioSource!!, mAudioTrackIndex, mAudioBitrate, "audio")
+                mAudioStream!!.start()
             }
         }
 
         synchronized(videoLock) {
             if (mVideoSource != null) {
-                mVideoThread = StreamThread(mMuxer!!, mVideoSource!!, mVideoTrackIndex, mVideoBitrate)
-                mVideoThread!!.start()
+                mVideoStream = Stream(mMuxer!!, mVideoSource!!, mVideoTrackIndex, mVideoBitrate, "video")
+                mVideoStream!!.start()
             }
         }
 
-        if (mAudioThread != null) {
+        if (mAudioStream != null) {
             try {
-                mAudioThread!!.join()
+                mAudioStream!!.join()
             } catch (e: InterruptedException) {
-                Log.w(TAG, "Audio thread did not end!", e)
+                Log.w(TAG, "Audio stream did not end!", e)
             }
 
         }
 
-        if (mVideoThread != null) {
+        if (mVideoStream != null) {
             try {
-                mVideoThread!!.join()
+                mVideoStream!!.join()
             } catch (e: InterruptedException) {
-                Log.w(TAG, "Video thread did not end!", e)
+                Log.w(TAG, "Video stream did not end!", e)
             }
 
         }
@@ -188,16 +193,35 @@ class PipedMediaMuxer
         }
     }
 
-    private inner class StreamThread(private val mMuxer: MediaMuxer, private val mSource: PipedMediaByteBufferSource, private val mTrackIndex: Int, private val mBitrate: Int) : Thread() {
+    private inner class Stream(private val mMuxer: MediaMuxer, private val mSource: PipedMediaByteBufferSource, private val mTrackIndex: Int, private val mBitrate: Int,
+                               type: String) {
+        @Volatile
         var progress: Long = 0
             private set
 
-        override fun run() {
+        private var mTask: PipelineScheduler.Task? = null
+
+        private val mMetrics = PipeMetrics("$TAG[$type]")
+
+        fun start() {
+            mMetrics.register()
+            mTask = PipelineScheduler.launch("$TAG[track $mTrackIndex]") { run() }
+        }
+
+        @Throws(InterruptedException::class)
+        fun join() {
+            mTask?.join()
+        }
+
+        private fun run() {
             var buffer: ByteBuffer
             val info = MediaCodec.BufferInfo()
             try {
                 while (!mSource.isDone && mComponentState != PipedMediaSource.State.CLOSED) {
+                    val waitStart = System.nanoTime()
                     buffer = mSource.getBuffer(info)
+                    val writeStart = System.nanoTime()
+                    mMetrics.addUpstreamWait(writeStart - waitStart)
                     if (MediaHelper.VERBOSE)
                         Log.v(TAG, "[track " + mTrackIndex + "] writing output buffer of size "
                                 + info.size + " for time " + info.presentationTimeUs)
@@ -213,6 +237,8 @@ class PipedMediaMuxer
                     synchronized(mMuxer) {
                         mMuxer.writeSampleData(mTrackIndex, buffer, info)
                     }
+                    mMetrics.addWork(System.nanoTime() - writeStart)
+                    mMetrics.addBuffer(info.size)
                     mSource.releaseBuffer(buffer)
                 }
             } catch (e: Exception) {
@@ -265,9 +291,5 @@ class PipedMediaMuxer
 
     companion object {
         private val TAG = "PipedMediaMuxer"
-
-        private val audioLock = Any()
-        private val videoLock = Any()
-        private val muxerLock = Any()
     }
 }
@@ -39,6 +39,16 @@ public interface PipedMediaSource extends Closeable {
      */
     boolean isDone();
 
+    /**
+     * <p>Get the counters describing the work this component has done so far.</p>
+     * <p>Components register their metrics with the current {@link PipelineScheduler.Group}
+     * during {@link #setup()}.</p>
+     * @return the metrics, or null if this component does not keep any.
+     */
+    default PipeMetrics getMetrics() {
+        return null;
+    }
+
     //TODO: add reset method
 
     /**
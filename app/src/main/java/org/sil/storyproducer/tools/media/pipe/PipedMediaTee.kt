@@ -0,0 +1,279 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ *
+ * This media pipeline component hands every buffer of one source to several consumers, so one
+ * pass of decoding, mixing or encoding can feed several outputs (e.g. the MP4 and 3GP exports of
+ * a story). It works with any [PipedMediaByteBufferSource], raw or encoded.
+ *
+ * Buffers are not copied. Each [branch][addBranch] gets its own view of the source's buffer, which
+ * it must not modify. The buffer is only released to the source, and the next one fetched, once
+ * every branch has released it, so branches move in lockstep at the pace of the slowest consumer.
+ * A branch which is closed stops holding the others back; the source is closed with the last one.
+ */
+class PipedMediaTee : PipedMediaByteBufferDest {
+
+    private val mLock = ReentrantLock()
+    private val mChanged = mLock.newCondition()
+
+    private var mSource: PipedMediaByteBufferSource? = null
+    private val mBranches = ArrayList<Branch>()
+    private var mIsSetup = false
+    private var mIsClosed = false
+    //The source's output format, read once while setting up: reading it may pull from a codec,
+    //which the branches must not do from their own threads.
+    @Volatile
+    private var mOutputFormat: MediaFormat? = null
+
+    //The buffer the branches are currently given, its number and how many branches still need it.
+    private var mBuffer: ByteBuffer? = null
+    private val mInfo = MediaCodec.BufferInfo()
+    private var mSequence = -1L
+    private var mHolders = 0
+    private var mIsFetching = false
+
+    private val mMetrics = PipeMetrics(TAG)
+
+    @Throws(SourceUnacceptableException::class)
+    override fun addSource(src: PipedMediaByteBufferSource) {
+        if (mSource != null) {
+            throw SourceUnacceptableException("I already got a source")
+        }
+        mSource = src
+    }
+
+    /**
+     * Add a consumer of the source. All branches must be added before any of them is set up.
+     */
+    fun addBranch(): PipedMediaByteBufferSource {
+        mLock.lock()
+        try {
+            val branch = Branch()
+            mBranches.add(branch)
+            return branch
+        } finally {
+            mLock.unlock()
+        }
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    private fun setup() {
+        mLock.lock()
+        try {
+            if (mIsSetup) {
+                return
+            }
+            val source = mSource ?: throw SourceUnacceptableException("No source provided!")
+            mMetrics.register()
+            source.setup()
+            mOutputFormat = source.outputFormat
+            mIsSetup = true
+        } finally {
+            mLock.unlock()
+        }
+    }
+
+    @Throws(SourceClosedException::class)
+    private fun getBuffer(branch: Branch, info: MediaCodec.BufferInfo): ByteBuffer {
+        mLock.lock()
+        try {
+            while (true) {
+                if (mIsClosed || branch.isClosed) {
+                    throw SourceClosedException()
+                }
+                val buffer = mBuffer
+                if (buffer != null && branch.next == mSequence) {
+                    branch.next++
+                    branch.isHolding = true
+                    MediaHelper.copyBufferInfo(mInfo, info)
+                    return buffer.duplicate()
+                }
+                if (buffer == null && !mIsFetching && branch.next == mSequence + 1) {
+                    fetch()
+                    continue
+                }
+                //Another branch still needs the current buffer or is fetching the next one.
+                try {
+                    mChanged.await()
+                } catch (e: InterruptedException) {
+                    Thread.currentThread().interrupt()
+                    throw SourceClosedException()
+                }
+            }
+        } finally {
+            mLock.unlock()
+        }
+    }
+
+    /**
+     * Get the next buffer from the source for every open branch. Called holding [mLock], which
+     * is let go while waiting for the source so the other branches can still close.
+     */
+    @Throws(SourceClosedException::class)
+    private fun fetch() {
+        val source = mSource!!
+        val info = MediaCodec.BufferInfo()
+        var buffer: ByteBuffer? = null
+        mIsFetching = true
+        mLock.unlock()
+        try {
+            val waitStart = System.nanoTime()
+            buffer = source.getBuffer(info)
+            mMetrics.addUpstreamWait(System.nanoTime() - waitStart)
+        } finally {
+            mLock.lock()
+            mIsFetching = false
+            if (buffer != null) {
+                mHolders = mBranches.count { !it.isClosed }
+                if (mHolders == 0 || mIsClosed) {
+                    releaseToSource(buffer)
+                } else {
+                    mBuffer = buffer
+                    MediaHelper.copyBufferInfo(info, mInfo)
+                    mSequence++
+                    mMetrics.addBuffer(info.size)
+                }
+            }
+            mChanged.signalAll()
+        }
+    }
+
+    private fun releaseBuffer(branch: Branch) {
+        mLock.lock()
+        try {
+            if (branch.isHolding) {
+                branch.isHolding = false
+                dropHolder()
+            }
+        } finally {
+            mLock.unlock()
+        }
+    }
+
+    /**
+     * One fewer branch needs the current buffer. Called holding [mLock].
+     */
+    private fun dropHolder() {
+        mHolders--
+        if (mHolders <= 0) {
+            val buffer = mBuffer
+            mBuffer = null
+            if (buffer != null) {
+                releaseToSource(buffer)
+            }
+        }
+        mChanged.signalAll()
+    }
+
+    private fun releaseToSource(buffer: ByteBuffer) {
+        try {
+            mSource!!.releaseBuffer(buffer)
+        } catch (e: Exception) {
+            //The source is being closed; nothing else will use the buffer.
+            if (MediaHelper.VERBOSE) Log.v(TAG, "Unable to release buffer", e)
+        }
+    }
+
+    private fun closeBranch(branch: Branch) {
+        var source: PipedMediaByteBufferSource? = null
+        mLock.lock()
+        try {
+            if (branch.isClosed) {
+                return
+            }
+            branch.isClosed = true
+            //Stop waiting on this branch for the current buffer, whether or not it took it.
+            if (branch.isHolding || (mBuffer != null && branch.next == mSequence)) {
+                branch.isHolding = false
+                dropHolder()
+            }
+            if (mBranches.all { it.isClosed } && !mIsClosed) {
+                mIsClosed = true
+                source = mSource
+            }
+            mChanged.signalAll()
+        } finally {
+            mLock.unlock()
+        }
+        source?.close()
+    }
+
+    private fun isDone(branch: Branch): Boolean {
+        mLock.lock()
+        try {
+            if (mIsClosed || branch.isClosed) {
+                return true
+            }
+            //Only done once the branch has taken every buffer fetched so far.
+            if (branch.next != mSequence + 1 || mIsFetching) {
+                return false
+            }
+        } finally {
+            mLock.unlock()
+        }
+        return mSource!!.isDone
+    }
+
+    private inner class Branch : PipedMediaByteBufferSource {
+        //Number of the next buffer this branch will take.
+        var next = 0L
+        //Whether this branch has taken the current buffer and not released it yet.
+        var isHolding = false
+        var isClosed = false
+
+        override fun getMediaType(): MediaHelper.MediaType? {
+            return mSource?.mediaType
+        }
+
+        @Throws(IOException::class, SourceUnacceptableException::class)
+        override fun setup() {
+            this@PipedMediaTee.setup()
+        }
+
+        override fun getOutputFormat(): MediaFormat? {
+            return mOutputFormat
+        }
+
+        override fun isDone(): Boolean {
+            return isDone(this)
+        }
+
+        override fun getMetrics(): PipeMetrics {
+            return mMetrics
+        }
+
+        @Throws(SourceClosedException::class)
+        override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+            val source = getBuffer(info)
+            buffer.clear()
+            buffer.put(source)
+            buffer.flip()
+            releaseBuffer(source)
+        }
+
+        @Throws(SourceClosedException::class)
+        override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+            return getBuffer(this, info)
+        }
+
+        override fun releaseBuffer(buffer: ByteBuffer) {
+            releaseBuffer(this)
+        }
+
+        override fun close() {
+            closeBranch(this)
+        }
+    }
+
+    companion object {
+        private val TAG = "PipedMediaTee"
+    }
+}
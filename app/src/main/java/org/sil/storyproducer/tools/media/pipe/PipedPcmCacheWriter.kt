@@ -0,0 +1,147 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ *
+ * This media pipeline component passes decoded audio straight through from its source while
+ * writing a copy to a PCM file for [DecodedAudioCache], so a cache miss costs no more than
+ * decoding did before. The file is written under a temporary name and only renamed into place
+ * once the source has reached the end of its stream; if the pipeline stops early or writing
+ * fails, the temporary file is deleted and the audio keeps flowing.
+ */
+class PipedPcmCacheWriter
+/**
+ * @param mSource source of raw audio, not yet set up.
+ * @param mTemp file to write while the audio is streaming.
+ * @param mFile cache entry to rename [mTemp] to when it is complete.
+ */
+(private val mSource: PipedMediaByteBufferSource, private val mTemp: File, private val mFile: File) : PipedMediaByteBufferSource {
+
+    private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
+
+    private var mStream: FileOutputStream? = null
+    private var mChannel: FileChannel? = null
+
+    override fun getMediaType(): MediaHelper.MediaType {
+        return MediaHelper.MediaType.AUDIO
+    }
+
+    override fun getOutputFormat(): MediaFormat {
+        return mSource.outputFormat
+    }
+
+    override fun isDone(): Boolean {
+        return mSource.isDone
+    }
+
+    override fun getMetrics(): PipeMetrics? {
+        return mSource.metrics
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    override fun setup() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+
+        mSource.setup()
+        val format = mSource.outputFormat
+        try {
+            val stream = FileOutputStream(mTemp)
+            mStream = stream
+            mChannel = stream.channel
+            PipedPcmFileSource.writeHeader(stream.channel,
+                    format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT))
+        } catch (e: IOException) {
+            abandon(e)
+        }
+
+        mComponentState = PipedMediaSource.State.SETUP
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        mSource.fillBuffer(buffer, info)
+        write(buffer, info)
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer? {
+        val buffer = mSource.getBuffer(info) ?: return null
+        write(buffer, info)
+        return buffer
+    }
+
+    @Throws(InvalidBufferException::class, SourceClosedException::class)
+    override fun releaseBuffer(buffer: ByteBuffer) {
+        mSource.releaseBuffer(buffer)
+    }
+
+    /**
+     * Copy the data of a buffer on its way to the consumer into the cache file, leaving the
+     * buffer as it was.
+     */
+    private fun write(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        val channel = mChannel ?: return
+        try {
+            val data = buffer.duplicate()
+            data.limit(info.offset + info.size)
+            data.position(info.offset)
+            while (data.hasRemaining()) {
+                channel.write(data)
+            }
+            if ((info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 || mSource.isDone) {
+                commit()
+            }
+        } catch (e: IOException) {
+            abandon(e)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun commit() {
+        mChannel = null
+        mStream!!.close()
+        mStream = null
+        if (!mTemp.renameTo(mFile)) {
+            throw IOException("Unable to rename ${mTemp.name}")
+        }
+        DecodedAudioCache.trimToSize(mFile.parentFile!!, DecodedAudioCache.maxBytes)
+    }
+
+    private fun abandon(e: IOException?) {
+        if (e != null) {
+            Log.w(TAG, "Unable to cache decoded audio in ${mFile.name}", e)
+        }
+        mChannel = null
+        try {
+            mStream?.close()
+        } catch (e: IOException) {
+            //Nothing useful to do here.
+        }
+        mStream = null
+        mTemp.delete()
+    }
+
+    override fun close() {
+        //An unfinished file would only hold part of the audio.
+        if (mStream != null) {
+            abandon(null)
+        }
+        mComponentState = PipedMediaSource.State.CLOSED
+        mSource.close()
+    }
+
+    companion object {
+        private val TAG = "PipedPcmCacheWriter"
+    }
+}
@@ -0,0 +1,198 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+
+/**
+ *
+ * This media pipeline component streams raw audio from a PCM file written by [writeHeader]
+ * (see [DecodedAudioCache]). The file is memory-mapped a window at a time and buffers are
+ * handed out as read-only views of the mapping, so no data is copied.
+ */
+class PipedPcmFileSource
+/**
+ * @param mFile PCM file with a header from [writeHeader].
+ */
+(private val mFile: File) : PipedMediaByteBufferSource {
+
+    private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
+
+    private var mOutputFormat: MediaFormat? = null
+    private var mSampleRate = 0
+    private var mFrameSize = 0
+
+    private var mRandomAccessFile: RandomAccessFile? = null
+    private var mChannel: FileChannel? = null
+    private var mWindow: MappedByteBuffer? = null
+    private var mWindowStart: Long = 0
+
+    private var mPosition: Long = HEADER_SIZE.toLong()
+    private var mEnd: Long = 0
+
+    private val mMetrics = PipeMetrics(TAG)
+
+    val file: File get() = mFile
+
+    override fun getMediaType(): MediaHelper.MediaType {
+        return MediaHelper.MediaType.AUDIO
+    }
+
+    override fun getOutputFormat(): MediaFormat? {
+        return mOutputFormat
+    }
+
+    override fun getMetrics(): PipeMetrics {
+        return mMetrics
+    }
+
+    override fun isDone(): Boolean {
+        return mPosition >= mEnd
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    override fun setup() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+
+        val file = RandomAccessFile(mFile, "r")
+        mRandomAccessFile = file
+        mChannel = file.channel
+        mEnd = mChannel!!.size()
+
+        val header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder())
+        if (mEnd < HEADER_SIZE || mChannel!!.read(header, 0) != HEADER_SIZE) {
+            throw SourceUnacceptableException("PCM file is truncated: $mFile")
+        }
+        header.flip()
+        if (header.int != MAGIC || header.int != VERSION) {
+            throw SourceUnacceptableException("Not a PCM cache file: $mFile")
+        }
+        mSampleRate = header.int
+        val channelCount = header.int
+        if (mSampleRate <= 0 || channelCount <= 0) {
+            throw SourceUnacceptableException("Bad PCM format in $mFile")
+        }
+        mFrameSize = 2 * channelCount
+        //Ignore a trailing partial frame.
+        mEnd = HEADER_SIZE + (mEnd - HEADER_SIZE) / mFrameSize * mFrameSize
+
+        mOutputFormat = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
+        mOutputFormat!!.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate)
+        mOutputFormat!!.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount)
+
+        mComponentState = PipedMediaSource.State.SETUP
+        mMetrics.register()
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        val src = nextBuffer(buffer.remaining(), info)
+        buffer.put(src)
+        buffer.flip()
+        info.offset = 0
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+        return nextBuffer(BUFFER_SIZE, info)
+    }
+
+    override fun releaseBuffer(buffer: ByteBuffer) {
+        //Buffers are views of the mapping; there is nothing to give back.
+    }
+
+    @Throws(SourceClosedException::class)
+    private fun nextBuffer(maxBytes: Int, info: MediaCodec.BufferInfo): ByteBuffer {
+        if (mComponentState == PipedMediaSource.State.CLOSED) {
+            throw SourceClosedException()
+        }
+
+        val window = mapWindow()
+        val start = (mPosition - mWindowStart).toInt()
+        //Only hand out whole frames.
+        val length = Math.min(maxBytes, window.capacity() - start) / mFrameSize * mFrameSize
+
+        val view = window.duplicate()
+        view.limit(start + length)
+        view.position(start)
+        val buffer = view.slice()
+
+        val presentationTimeUs = (mPosition - HEADER_SIZE) / mFrameSize * 1000000L / mSampleRate
+        mPosition += length
+        info.set(0, length, presentationTimeUs, if (isDone) MediaCodec.BUFFER_FLAG_END_OF_STREAM else 0)
+        mMetrics.addBuffer(length)
+        return buffer
+    }
+
+    /**
+     * Make sure the current position is inside the mapped window, moving the window if needed.
+     */
+    private fun mapWindow(): MappedByteBuffer {
+        val window = mWindow
+        if (window != null && mPosition < mWindowStart + window.capacity()) {
+            return window
+        }
+
+        try {
+            mWindowStart = mPosition
+            val size = Math.min(WINDOW_SIZE.toLong(), mEnd - mPosition)
+            val mapped = mChannel!!.map(FileChannel.MapMode.READ_ONLY, mWindowStart, size)
+            mapped.order(ByteOrder.nativeOrder())
+            mWindow = mapped
+            return mapped
+        } catch (e: IOException) {
+            Log.e(TAG, "Unable to map $mFile", e)
+            throw SourceClosedException()
+        }
+    }
+
+    override fun close() {
+        mComponentState = PipedMediaSource.State.CLOSED
+        mWindow = null
+        try {
+            mRandomAccessFile?.close()
+        } catch (e: IOException) {
+            //Nothing useful to do here.
+        }
+        mRandomAccessFile = null
+        mChannel = null
+    }
+
+    companion object {
+        private val TAG = "PipedPcmFileSource"
+
+        private const val MAGIC = 0x50434D31 //"PCM1"
+        private const val VERSION = 1
+
+        /** Size in bytes of the header preceding the samples. */
+        const val HEADER_SIZE = 16
+
+        //Kept a multiple of every frame size so windows never split a frame.
+        private const val WINDOW_SIZE = 4 * 1024 * 1024
+        private const val BUFFER_SIZE = 16 * 1024
+
+        /**
+         * Write the header of a PCM file. The 16-bit native order samples follow it directly.
+         */
+        @Throws(IOException::class)
+        fun writeHeader(channel: WritableByteChannel, sampleRate: Int, channelCount: Int) {
+            val header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder())
+            header.putInt(MAGIC).putInt(VERSION).putInt(sampleRate).putInt(channelCount)
+            header.flip()
+            while (header.hasRemaining()) {
+                channel.write(header)
+            }
+        }
+    }
+}
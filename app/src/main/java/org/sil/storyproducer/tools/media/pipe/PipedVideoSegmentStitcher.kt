@@ -0,0 +1,255 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ *
+ * This media pipeline component encodes consecutive segments of a video stream concurrently
+ * and presents them to [PipedMediaMuxer] as a single encoded stream, without re-encoding.
+ *
+ * Each segment comes from its own encoder (or from a store of segments encoded earlier), so each
+ * one starts on a keyframe. Segments are [EncodedVideoSegment]s, replayed in order once they are
+ * ready; muxing starts as soon as the first segment is finished. Presentation times are only
+ * nudged forward if a segment would overlap the one before it.
+ *
+ * All segments must produce the same codec specific data. If they do not, the stream fails
+ * with a [SourceClosedException] so the caller can fall back to a single encoder.
+ */
+class PipedVideoSegmentStitcher
+/**
+ * @param mSegments tasks producing each segment, in presentation order. They are run on worker
+ * threads, which are interrupted if the stitcher is closed early.
+ * @param mWorkers number of segments produced at once.
+ */
+(private val mSegments: List<() -> EncodedVideoSegment>, private val mWorkers: Int) : PipedMediaByteBufferSource {
+
+    @Volatile
+    private var mComponentState: PipedMediaSource.State = PipedMediaSource.State.UNINITIALIZED
+
+    private var mExecutor: ExecutorService? = null
+    private val mFutures = ArrayList<Future<EncodedVideoSegment>>()
+
+    private var mOutputFormat: MediaFormat? = null
+
+    private var mSegmentIndex = -1
+    private var mSegment: EncodedVideoSegment? = null
+    private var mSampleIndex = 0
+    private var mLastPresentationTimeUs: Long = -1
+    private var mFailed = false
+
+    private var mBuffer: ByteBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE)
+
+    private val mMetrics = PipeMetrics(TAG)
+
+    override fun getMediaType(): MediaHelper.MediaType {
+        return MediaHelper.MediaType.VIDEO
+    }
+
+    override fun getOutputFormat(): MediaFormat? {
+        return mOutputFormat
+    }
+
+    override fun getMetrics(): PipeMetrics {
+        return mMetrics
+    }
+
+    @Throws(IOException::class, SourceUnacceptableException::class)
+    override fun setup() {
+        if (mComponentState != PipedMediaSource.State.UNINITIALIZED) {
+            return
+        }
+        if (mSegments.isEmpty()) {
+            throw SourceUnacceptableException("No segments provided!")
+        }
+        mMetrics.register()
+
+        val executor = Executors.newFixedThreadPool(Math.max(1, Math.min(mWorkers, mSegments.size)))
+        mExecutor = executor
+        //Keep the components of each segment in the same pipeline as the stitcher.
+        val group = PipelineScheduler.currentGroup
+        for (i in mSegments.indices) {
+            mFutures.add(executor.submit(Callable { group.enter { encodeSegment(i) } }))
+        }
+        executor.shutdown()
+
+        mComponentState = PipedMediaSource.State.RUNNING
+
+        //The muxer needs the format before anything can be written.
+        if (!nextSegment()) {
+            throw SourceUnacceptableException("First segment failed!")
+        }
+        mOutputFormat = mSegment!!.format
+    }
+
+    override fun isDone(): Boolean {
+        //Report failures through getBuffer so the muxer knows the stream is incomplete.
+        return !mFailed && !hasSample()
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+        buffer.clear()
+        buffer.put(getBuffer(info))
+        buffer.flip()
+    }
+
+    @Throws(SourceClosedException::class)
+    override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+        if (mComponentState == PipedMediaSource.State.CLOSED || mFailed || !hasSample()) {
+            throw SourceClosedException()
+        }
+
+        val segment = mSegment!!
+        val size = segment.getSize(mSampleIndex)
+        if (size > mBuffer.capacity()) {
+            mBuffer = ByteBuffer.allocateDirect(Integer.highestOneBit(size - 1) shl 1)
+        }
+        try {
+            segment.readSample(mSampleIndex, mBuffer)
+        } catch (e: IOException) {
+            Log.e(TAG, "Unable to read segment $mSegmentIndex", e)
+            mFailed = true
+            throw SourceClosedException()
+        }
+
+        var presentationTimeUs = segment.getPresentationTimeUs(mSampleIndex)
+        if (presentationTimeUs <= mLastPresentationTimeUs) {
+            presentationTimeUs = mLastPresentationTimeUs + 1
+        }
+        mLastPresentationTimeUs = presentationTimeUs
+        info.set(0, size, presentationTimeUs, segment.getFlags(mSampleIndex))
+
+        mSampleIndex++
+        mMetrics.addBuffer(size)
+        return mBuffer
+    }
+
+    override fun releaseBuffer(buffer: ByteBuffer) {
+        //The read buffer is reused for the next sample.
+    }
+
+    /**
+     * Move to the next sample, waiting for later segments to finish encoding as needed.
+     * @return whether there is a sample to return.
+     */
+    private fun hasSample(): Boolean {
+        while (!mFailed && mComponentState != PipedMediaSource.State.CLOSED) {
+            val segment = mSegment
+            if (segment != null && mSampleIndex < segment.count) {
+                return true
+            }
+            if (!nextSegment()) {
+                return false
+            }
+        }
+        return false
+    }
+
+    /**
+     * Release the current segment and wait for the next.
+     * @return false if there are no more segments or the next one failed.
+     */
+    private fun nextSegment(): Boolean {
+        mSegment?.delete()
+        mSegment = null
+        mSampleIndex = 0
+        if (mSegmentIndex + 1 >= mFutures.size) {
+            return false
+        }
+        mSegmentIndex++
+
+        val segment: EncodedVideoSegment
+        val waitStart = System.nanoTime()
+        try {
+            segment = mFutures[mSegmentIndex].get()
+            mMetrics.addUpstreamWait(System.nanoTime() - waitStart)
+        } catch (e: InterruptedException) {
+            Log.w(TAG, "Interrupted waiting for segment $mSegmentIndex", e)
+            mFailed = true
+            return false
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "Segment $mSegmentIndex failed", e.cause)
+            mFailed = true
+            return false
+        }
+        mSegment = segment
+
+        val format = mOutputFormat
+        if (format != null && !hasSameCodecData(format, segment.format)) {
+            Log.e(TAG, "Segment $mSegmentIndex has different codec specific data; it cannot be stitched.")
+            mFailed = true
+            return false
+        }
+        if (MediaHelper.VERBOSE) Log.v(TAG, "Stitching segment $mSegmentIndex (${segment.count} samples)")
+        return true
+    }
+
+    /**
+     * Produce one segment on a worker thread.
+     */
+    @Throws(Exception::class)
+    private fun encodeSegment(index: Int): EncodedVideoSegment {
+        val start = System.currentTimeMillis()
+        val segment = mSegments[index]()
+        if (mComponentState == PipedMediaSource.State.CLOSED) {
+            segment.delete()
+            throw SourceClosedException()
+        }
+        Log.i(TAG, "Segment $index: ${segment.count} frames ready in "
+                + MediaHelper.getDecimal((System.currentTimeMillis() - start) / 1000.0) + " seconds")
+        return segment
+    }
+
+    override fun close() {
+        mComponentState = PipedMediaSource.State.CLOSED
+        mExecutor?.shutdownNow()
+        //Segments already handed over are deleted here; others are deleted by their workers.
+        for (future in mFutures) {
+            if (future.isDone && !future.isCancelled) {
+                try {
+                    future.get().delete()
+                } catch (e: ExecutionException) {
+                    //Already cleaned up by the worker.
+                } catch (e: InterruptedException) {
+                    //Nothing more to do.
+                }
+            }
+        }
+        mSegment = null
+    }
+
+    companion object {
+        private val TAG = "PipedVideoStitcher"
+
+        private const val INITIAL_BUFFER_SIZE = 256 * 1024
+
+        private val CODEC_DATA_KEYS = arrayOf("csd-0", "csd-1", "csd-2")
+
+        /**
+         * Check that two encoder output formats can share one track.
+         */
+        fun hasSameCodecData(a: MediaFormat, b: MediaFormat?): Boolean {
+            if (b == null || a.getString(MediaFormat.KEY_MIME) != b.getString(MediaFormat.KEY_MIME)) {
+                return false
+            }
+            for (key in CODEC_DATA_KEYS) {
+                val aData = if (a.containsKey(key)) a.getByteBuffer(key) else null
+                val bData = if (b.containsKey(key)) b.getByteBuffer(key) else null
+                if (aData != bData) {
+                    return false
+                }
+            }
+            return true
+        }
+    }
+}
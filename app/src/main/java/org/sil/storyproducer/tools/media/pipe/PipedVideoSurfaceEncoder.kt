@@ -5,6 +5,7 @@ import android.graphics.Canvas
 import android.media.*
 import android.media.MediaCodecInfo.CodecCapabilities.*
 import android.os.Build
+import android.util.Log
 import androidx.core.math.MathUtils
 import android.view.Surface
 import org.sil.storyproducer.tools.media.MediaHelper
@@ -23,6 +24,10 @@ import kotlin.math.max
  * This component takes raw canvas frames of a video and outputs an encoded video stream.
  *
  * Sources for this component must implement [Source].
+ *
+ * Frames the source reports as unchanged are not drawn or encoded; the previous frame is simply
+ * shown for longer. At least one frame is still encoded every [MAX_HOLD_US], so players can seek
+ * into long still slides and the encoder's rate control keeps up.
  */
 class PipedVideoSurfaceEncoder : PipedMediaCodec() {
     override val componentName: String
@@ -39,6 +44,13 @@ class PipedVideoSurfaceEncoder : PipedMediaCodec() {
     private val mStartPresentationTime: Long = System.nanoTime()/1000
     private var mCurrentPresentationTime: Long = 0
 
+    private var mMaxHeldFrames = 0
+    private var mHeldFrames = 0
+
+    /** Number of frames the source reported unchanged and that were not drawn. */
+    var skippedFrameCount = 0
+        private set
+
     override fun getMediaType(): MediaHelper.MediaType {
         return MediaHelper.MediaType.VIDEO
     }
@@ -64,9 +76,12 @@ class PipedVideoSurfaceEncoder : PipedMediaCodec() {
 
         mSource!!.setup()
         mConfigureFormat = mSource!!.outputFormat
+        if (mConfigureFormat!!.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            mMaxHeldFrames = (mConfigureFormat!!.getInteger(MediaFormat.KEY_FRAME_RATE) * MAX_HOLD_US / 1000000).toInt() - 1
+        }
 
         mCodec = MediaCodec.createByCodecName(selectCodec(mConfigureFormat!!.getString(MediaFormat.KEY_MIME)!!)!!.name)
-        mCodec!!.configure(mConfigureFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        configureCodec(mConfigureFormat!!, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
 
         mSurface = mCodec!!.createInputSurface()
 
@@ -82,15 +97,28 @@ class PipedVideoSurfaceEncoder : PipedMediaCodec() {
 
         while (mComponentState != PipedMediaSource.State.CLOSED && !mSource!!.isDone) {
 
+            //Let the previous frame stand in for an identical one.
+            if (mHeldFrames < mMaxHeldFrames && mSource!!.isNextFrameUnchanged()) {
+                mSource!!.skipFrame()
+                mHeldFrames++
+                skippedFrameCount++
+                continue
+            }
+            mHeldFrames = 0
+
             //For video creation, it should be able to create one slide from one image.
             //If there is something holding it up, keep going but give it time to process.
             //give it 100ms to process a frame.
             var waitTries = 0
+            val waitStart = System.nanoTime()
             while(mPresentationTimeQueue.size > 3 && waitTries++ < 10){
                 //Really, for async processing we would use MediaCodec.Callback(), but maybe we can
                 //just count the number of buffers used through looking at the time queue.
                 Thread.sleep(10)
             }
+            if (waitTries > 0) {
+                mMetrics.addDownstreamWait(System.nanoTime() - waitStart)
+            }
             // 4/6/2022 - DKH, Issue 639: Logcat reports this error: FrameEvents: updateAcquireFence: Did not find frame.
             // The following code was previously used to allow the use of hardware Codec video
             // encoding.
@@ -109,7 +137,9 @@ class PipedVideoSurfaceEncoder : PipedMediaCodec() {
             // provides better performance in most cases.
             mCanvas = mSurface!!.lockCanvas(null)  // force use of software video codec encoder
 
+            val drawStart = System.nanoTime()
             mCurrentPresentationTime = mSource!!.fillCanvas(mCanvas!!)
+            mMetrics.addUpstreamWait(System.nanoTime() - drawStart)
 
             synchronized(mPresentationTimeQueue) {
                 mPresentationTimeQueue.add(mCurrentPresentationTime)
@@ -121,6 +151,9 @@ class PipedVideoSurfaceEncoder : PipedMediaCodec() {
             mCodec!!.signalEndOfInputStream()
         }
 
+        if (skippedFrameCount > 0) {
+            Log.i(TAG, "Skipped $skippedFrameCount unchanged frames")
+        }
         mSource!!.close()
     }
 
@@ -144,10 +177,27 @@ class PipedVideoSurfaceEncoder : PipedMediaCodec() {
          * @return the presentation time (in microseconds) of the drawn frame.
          */
         fun fillCanvas(canv: Canvas): Long
+
+        /**
+         * Whether the next frame would look exactly like the last one drawn. The last frame of
+         * the source should never be reported unchanged, so that the video lasts as long as it.
+         */
+        fun isNextFrameUnchanged(): Boolean {
+            return false
+        }
+
+        /**
+         * Move past the next frame without drawing it. Only called after [isNextFrameUnchanged]
+         * returned true.
+         * @return the presentation time (in microseconds) of the skipped frame.
+         */
+        fun skipFrame(): Long
     }
 
     companion object {
         private val TAG = "PipedVideoSurfaceEnc"
 
+        /** Longest time, in microseconds, one encoded frame is shown in place of unchanged ones. */
+        const val MAX_HOLD_US = 1000000L
     }
 }
@@ -0,0 +1,302 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.util.Log
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ *
+ * Runs the work of media pipeline components on one shared pool of threads, instead of each
+ * component starting a thread of its own.
+ *
+ * Components launch their work as [Task]s. A blocking task (see [launch]) holds a thread until it
+ * finishes. A cooperative task (see [launchCooperative]) is a step function which is only run while
+ * it can make progress; when its output queue is full it returns [Step.WAIT] and gives its thread
+ * back until the consumer [wakes][Task.wake] it. That is the pipeline's backpressure.
+ *
+ * Tasks belong to a [Group], usually one per export, which is the single place to stop a pipeline
+ * and to find out what went wrong in it. Tasks launched while a group is [entered][Group.enter]
+ * (including from other tasks of that group) join that group.
+ *
+ * Each pool keeps a core of threads alive between components and exports. A scheduled task never
+ * queues for a thread: a step may still wait inside a component for its source (such as
+ * [ByteBufferQueue.getFilledBuffer]), and the source it waits on must be able to run. So cooperative
+ * tasks get a thread each while they are scheduled, up to [MAX_STEP_THREADS], and give it back when
+ * they wait. Blocking tasks get a thread each from a second pool, up to [MAX_BLOCKING_THREADS]. A
+ * task launched beyond either limit fails its group instead of starting yet another thread.
+ */
+object PipelineScheduler {
+    private val TAG = "PipelineScheduler"
+
+    internal val CORE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors())
+    //Comfortably more than the codecs, muxer tracks and loaders of the largest export...
+    internal const val MAX_BLOCKING_THREADS = 64
+    //...and than its resamplers, concatenators and mixers.
+    internal const val MAX_STEP_THREADS = 64
+    private const val KEEP_ALIVE_SECONDS = 30L
+
+    private val mThreadsCreated = AtomicInteger()
+    private val mCurrentGroup = ThreadLocal<Group?>()
+    private val mDefaultGroup = Group("default")
+
+    private val mThreadFactory = ThreadFactory { runnable ->
+        val thread = Thread(runnable, "pipe-" + mThreadsCreated.incrementAndGet())
+        thread.isDaemon = true
+        thread
+    }
+
+    private val mBlockingExecutor = ThreadPoolExecutor(CORE_THREADS, MAX_BLOCKING_THREADS, KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, SynchronousQueue<Runnable>(), mThreadFactory)
+
+    private val mStepExecutor = ThreadPoolExecutor(CORE_THREADS, MAX_STEP_THREADS, KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, SynchronousQueue<Runnable>(), mThreadFactory)
+
+    /** Number of pool threads started since the process started. */
+    val threadsCreated: Int get() = mThreadsCreated.get()
+
+    /** Number of pool threads currently alive. */
+    val poolSize: Int get() = mBlockingExecutor.poolSize + mStepExecutor.poolSize
+
+    /** Largest number of pool threads that have been alive at once (at most, as the pools peak separately). */
+    val largestPoolSize: Int get() = mBlockingExecutor.largestPoolSize + mStepExecutor.largestPoolSize
+
+    enum class Step {
+        /** The step made progress and the task should run again right away. */
+        CONTINUE,
+        /** The task cannot make progress until it is woken. */
+        WAIT,
+        /** The task is finished. */
+        DONE
+    }
+
+    /**
+     * Run a blocking piece of work, such as a codec input loop, until it returns.
+     */
+    fun launch(name: String, work: () -> Unit): Task {
+        val task = Task(name, currentGroup, null, work)
+        task.wake()
+        return task
+    }
+
+    /**
+     * Run [step] repeatedly while it returns [Step.CONTINUE]. After [Step.WAIT] it is only run
+     * again once [Task.wake] is called.
+     */
+    fun launchCooperative(name: String, step: () -> Step): Task {
+        val task = Task(name, currentGroup, step, null)
+        task.wake()
+        return task
+    }
+
+    /** The group new tasks launched from this thread join. */
+    val currentGroup: Group
+        get() = mCurrentGroup.get() ?: mDefaultGroup
+
+    /**
+     * The tasks of one pipeline.
+     */
+    class Group(val name: String) {
+        private val mTasks = CopyOnWriteArrayList<Task>()
+        private val mError = AtomicReference<Throwable?>()
+        private val mLaunched = AtomicInteger()
+        private val mMetrics = CopyOnWriteArrayList<PipeMetrics>()
+
+        @Volatile
+        var isCancelled = false
+            private set
+
+        /** The first exception thrown by any task of this group, if any. */
+        val error: Throwable? get() = mError.get()
+
+        /** Number of tasks launched in this group. */
+        val launchedCount: Int get() = mLaunched.get()
+
+        /** The metrics of every component set up in this group, in the order they were set up. */
+        val metrics: List<PipeMetrics> get() = mMetrics
+
+        /**
+         * Add the metrics of a component to this group. Registering the same metrics again has no effect.
+         */
+        fun register(metrics: PipeMetrics) {
+            //Nobody reports on components outside a pipeline, and the default group lives forever.
+            if (this === mDefaultGroup) return
+            mMetrics.addIfAbsent(metrics)
+        }
+
+        /**
+         * Run [block] with this group as the group of any task launched from it.
+         */
+        fun <T> enter(block: () -> T): T {
+            val previous = mCurrentGroup.get()
+            mCurrentGroup.set(this)
+            try {
+                return block()
+            } finally {
+                mCurrentGroup.set(previous)
+            }
+        }
+
+        /**
+         * Stop every unfinished task of this group. Blocking tasks are interrupted; cooperative
+         * tasks are not run again.
+         */
+        fun cancel() {
+            isCancelled = true
+            for (task in mTasks) {
+                task.cancel()
+            }
+        }
+
+        internal fun add(task: Task) {
+            mLaunched.incrementAndGet()
+            mTasks.add(task)
+        }
+
+        internal fun finished(task: Task, error: Throwable?) {
+            mTasks.remove(task)
+            if (error != null && mError.compareAndSet(null, error)) {
+                Log.e(TAG, "$name: ${task.name} failed", error)
+            }
+        }
+    }
+
+    /**
+     * The work of one pipeline component.
+     */
+    class Task internal constructor(val name: String, private val mGroup: Group,
+                                    private val mStep: (() -> Step)?, private val mWork: (() -> Unit)?) : Runnable {
+        private val mState = AtomicInteger(IDLE)
+        private val mFinished = CountDownLatch(1)
+        @Volatile
+        private var mThread: Thread? = null
+        @Volatile
+        private var mCancelled = false
+
+        init {
+            mGroup.add(this)
+        }
+
+        val isFinished: Boolean get() = mState.get() == FINISHED
+
+        /**
+         * Schedule the task to run if it is waiting. Safe to call from any thread at any time.
+         */
+        fun wake() {
+            while (true) {
+                when (mState.get()) {
+                    IDLE -> if (mState.compareAndSet(IDLE, SCHEDULED)) {
+                        submit()
+                        return
+                    }
+                    RUNNING -> if (mState.compareAndSet(RUNNING, RUNNING_WOKEN)) return
+                    else -> return
+                }
+            }
+        }
+
+        private fun submit() {
+            try {
+                if (mWork != null) {
+                    mBlockingExecutor.execute(this)
+                } else {
+                    mStepExecutor.execute(this)
+                }
+            } catch (e: Exception) {
+                finish(e)
+            }
+        }
+
+        override fun run() {
+            mState.set(RUNNING)
+            mThread = Thread.currentThread()
+            val previous = mCurrentGroup.get()
+            mCurrentGroup.set(mGroup)
+            try {
+                if (mWork != null) {
+                    if (!mCancelled && !mGroup.isCancelled) {
+                        mWork.invoke()
+                    }
+                    finish(null)
+                    return
+                }
+
+                while (true) {
+                    val step = if (mCancelled || mGroup.isCancelled) Step.DONE else mStep!!.invoke()
+                    if (step == Step.DONE) {
+                        finish(null)
+                        return
+                    }
+                    if (step == Step.WAIT) {
+                        //Give the thread back unless someone woke the task while this step ran.
+                        if (mState.compareAndSet(RUNNING, IDLE)) {
+                            //A cancel that came in while this step ran could not finish the task.
+                            if (mCancelled) finishIfIdle()
+                            return
+                        }
+                        mState.set(RUNNING)
+                    }
+                }
+            } catch (e: Throwable) {
+                finish(e)
+            } finally {
+                //The pool clears any late interrupt before the thread runs its next task.
+                mThread = null
+                mCurrentGroup.set(previous)
+            }
+        }
+
+        private fun finish(error: Throwable?) {
+            if (mState.getAndSet(FINISHED) == FINISHED) {
+                return
+            }
+            if (MediaHelper.VERBOSE) Log.v(TAG, "$name finished")
+            mGroup.finished(this, error)
+            mFinished.countDown()
+        }
+
+        /**
+         * Stop the task. A waiting cooperative task finishes immediately.
+         */
+        fun cancel() {
+            mCancelled = true
+            if (!finishIfIdle()) {
+                mThread?.interrupt()
+            }
+        }
+
+        private fun finishIfIdle(): Boolean {
+            if (mState.compareAndSet(IDLE, FINISHED)) {
+                mGroup.finished(this, null)
+                mFinished.countDown()
+                return true
+            }
+            return false
+        }
+
+        /**
+         * Wait for the task to finish.
+         */
+        @Throws(InterruptedException::class)
+        fun join() {
+            if (Thread.currentThread() === mThread) {
+                return
+            }
+            mFinished.await()
+        }
+
+        companion object {
+            private const val IDLE = 0
+            private const val SCHEDULED = 1
+            private const val RUNNING = 2
+            private const val RUNNING_WOKEN = 3
+            private const val FINISHED = 4
+        }
+    }
+}
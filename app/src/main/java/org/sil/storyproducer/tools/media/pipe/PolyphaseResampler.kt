@@ -0,0 +1,342 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.min
+import kotlin.math.roundToInt
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ *
+ * Streaming polyphase windowed-sinc resampler for interleaved 16-bit PCM.
+ *
+ * The conversion ratio is reduced to L/M (output/input). Each of the L phases has [TAPS]
+ * Kaiser-windowed sinc coefficients, precomputed once per ratio and shared by every instance.
+ * Output samples are produced with integer phase arithmetic, so the number of output frames is
+ * exactly ceil(inputFrames * L / M) once [flush] has been called.
+ *
+ * By default the inner loop runs in fixed point (Q14 coefficients, 32-bit accumulators).
+ * The floating point path is used when the volume is too large for that to be safe.
+ *
+ * This class has no Android dependencies. Not thread-safe.
+ */
+class PolyphaseResampler
+/**
+ * @param inRate sample rate of the input.
+ * @param outRate sample rate of the output.
+ * @param inChannels channel count of the input (1 or 2).
+ * @param outChannels channel count of the output (1 or 2).
+ * @param volume scaling factor applied to every sample.
+ */
+@JvmOverloads constructor(inRate: Int, outRate: Int, private val inChannels: Int, private val outChannels: Int,
+                          private val volume: Float = 1f) {
+
+    //Channels actually filtered: stereo is mixed down before filtering, mono is duplicated after.
+    private val workChannels = min(inChannels, outChannels)
+
+    private val mL: Int
+    private val mM: Int
+    private val mPassThrough: Boolean
+    private val mTable: Table?
+    private val mFixedCoefficients: IntArray?
+    private val mFloatCoefficients: FloatArray?
+
+    //Working frames (interleaved by workChannels). Frame mPos is the centre of the next output.
+    private var mInput = ShortArray(INITIAL_CAPACITY)
+    private var mFrames = 0
+    private var mPos = 0
+    private var mPhase = 0
+
+    private var mFlushed = false
+
+    init {
+        val g = gcd(inRate, outRate)
+        mL = outRate / g
+        mM = inRate / g
+        mPassThrough = mL == mM
+
+        if (mPassThrough) {
+            mTable = null
+            mFixedCoefficients = null
+            mFloatCoefficients = null
+        } else {
+            val table = getTable(mL, mM)
+            mTable = table
+            if (volume <= MAX_FIXED_VOLUME) {
+                mFixedCoefficients = if (volume == 1f) table.fixed
+                        else IntArray(table.coefficients.size) { (table.coefficients[it] * volume * FIXED_ONE).roundToInt() }
+                mFloatCoefficients = null
+            } else {
+                mFixedCoefficients = null
+                mFloatCoefficients = FloatArray(table.coefficients.size) { table.coefficients[it] * volume }
+            }
+            //Zero history so the first output is centred on the first input frame.
+            mFrames = HALF - 1
+            mPos = HALF - 1
+        }
+    }
+
+    /**
+     * Add input samples.
+     * @param src interleaved samples with [inChannels] channels.
+     * @param offset index of the first sample in [src].
+     * @param length number of samples (not frames) to add.
+     */
+    fun write(src: ShortArray, offset: Int, length: Int) {
+        val frames = length / inChannels
+        compactAndReserve(frames)
+
+        var w = mFrames * workChannels
+        if (inChannels == 2 && workChannels == 1) {
+            for (i in 0 until frames) {
+                val s = offset + i * 2
+                mInput[w++] = ((src[s] + src[s + 1]) shr 1).toShort()
+            }
+        } else {
+            System.arraycopy(src, offset, mInput, w, frames * workChannels)
+        }
+        mFrames += frames
+    }
+
+    /**
+     * Signal the end of input so the remaining output can be drained with [read].
+     */
+    fun flush() {
+        if (mFlushed) return
+        mFlushed = true
+        if (!mPassThrough) {
+            //Zero lookahead for the last real frames.
+            compactAndReserve(HALF)
+            mInput.fill(0, mFrames * workChannels, (mFrames + HALF) * workChannels)
+            mFrames += HALF
+        }
+    }
+
+    /**
+     * Produce as many output samples as the buffered input allows.
+     * @param dest interleaved output with [outChannels] channels.
+     * @param offset index of the first sample written in [dest].
+     * @param maxSamples maximum number of samples (not frames) to write.
+     * @return the number of samples written, always a whole number of frames.
+     */
+    fun read(dest: ShortArray, offset: Int, maxSamples: Int): Int {
+        val maxFrames = maxSamples / outChannels
+        val frames = when {
+            mPassThrough -> readPassThrough(dest, offset, maxFrames)
+            mFixedCoefficients != null -> readFixed(dest, offset, maxFrames, mFixedCoefficients)
+            else -> readFloat(dest, offset, maxFrames, mFloatCoefficients!!)
+        }
+        return frames * outChannels
+    }
+
+    private fun readPassThrough(dest: ShortArray, offset: Int, maxFrames: Int): Int {
+        val frames = min(maxFrames, mFrames - mPos)
+        var r = mPos * workChannels
+        var w = offset
+        for (i in 0 until frames) {
+            for (c in 0 until workChannels) {
+                val sample = if (volume == 1f) mInput[r++] else saturate((mInput[r++] * volume).toInt())
+                dest[w++] = sample
+                if (outChannels > workChannels) dest[w++] = sample
+            }
+        }
+        mPos += frames
+        return frames
+    }
+
+    private fun readFixed(dest: ShortArray, offset: Int, maxFrames: Int, coefficients: IntArray): Int {
+        val table = mTable!!
+        val input = mInput
+        val wc = workChannels
+        var w = offset
+        var frames = 0
+        while (frames < maxFrames && mPos + HALF < mFrames) {
+            val c0 = table.phaseIndex(mPhase) * TAPS
+            val first = (mPos - HALF + 1) * wc
+            for (c in 0 until wc) {
+                var acc = FIXED_ROUND
+                var j = first + c
+                for (k in c0 until c0 + TAPS) {
+                    acc += coefficients[k] * input[j]
+                    j += wc
+                }
+                val sample = saturate(acc shr FIXED_SHIFT)
+                dest[w++] = sample
+                if (outChannels > wc) dest[w++] = sample
+            }
+            advance()
+            frames++
+        }
+        return frames
+    }
+
+    private fun readFloat(dest: ShortArray, offset: Int, maxFrames: Int, coefficients: FloatArray): Int {
+        val table = mTable!!
+        val input = mInput
+        val wc = workChannels
+        var w = offset
+        var frames = 0
+        while (frames < maxFrames && mPos + HALF < mFrames) {
+            val c0 = table.phaseIndex(mPhase) * TAPS
+            val first = (mPos - HALF + 1) * wc
+            for (c in 0 until wc) {
+                var acc = 0f
+                var j = first + c
+                for (k in c0 until c0 + TAPS) {
+                    acc += coefficients[k] * input[j]
+                    j += wc
+                }
+                val sample = saturate(acc.roundToInt())
+                dest[w++] = sample
+                if (outChannels > wc) dest[w++] = sample
+            }
+            advance()
+            frames++
+        }
+        return frames
+    }
+
+    private fun advance() {
+        mPhase += mM
+        if (mPhase >= mL) {
+            mPos += mPhase / mL
+            mPhase %= mL
+        }
+    }
+
+    /**
+     * Drop frames no longer needed as history and make room for [frames] more.
+     */
+    private fun compactAndReserve(frames: Int) {
+        val history = if (mPassThrough) 0 else HALF - 1
+        val drop = min(mPos - history, mFrames)
+        if (drop > 0) {
+            System.arraycopy(mInput, drop * workChannels, mInput, 0, (mFrames - drop) * workChannels)
+            mFrames -= drop
+            mPos -= drop
+        }
+        val needed = (mFrames + frames) * workChannels
+        if (needed > mInput.size) {
+            mInput = mInput.copyOf(Integer.highestOneBit(needed - 1) shl 1)
+        }
+    }
+
+    /**
+     * Coefficients for one L/M ratio, stored phase-major: [phase * TAPS + tap].
+     */
+    private class Table(val l: Int, val phases: Int, val coefficients: FloatArray, val fixed: IntArray) {
+        fun phaseIndex(phase: Int): Int {
+            //Ratios with very many phases share the nearest precomputed one.
+            return if (phases == l) phase else (phase.toLong() * phases / l).toInt()
+        }
+    }
+
+    companion object {
+        /** Coefficients per phase. */
+        const val TAPS = 32
+        private const val HALF = TAPS / 2
+
+        //Kaiser window beta; about 80 dB of stopband attenuation.
+        private const val KAISER_BETA = 8.0
+        //Cutoff as a fraction of the lower Nyquist frequency, leaving room for the transition band.
+        private const val ROLLOFF = 0.95
+        private const val MAX_PHASES = 1024
+
+        private const val FIXED_SHIFT = 14
+        private const val FIXED_ONE = 1 shl FIXED_SHIFT
+        private const val FIXED_ROUND = 1 shl (FIXED_SHIFT - 1)
+        //Keeps the worst case accumulator inside 32 bits.
+        private const val MAX_FIXED_VOLUME = 2f
+
+        private const val INITIAL_CAPACITY = 8 * 1024
+
+        private val tables = HashMap<Long, Table>()
+
+        /** Sample rate pairs precomputed the first time a resampler is created. */
+        private val COMMON_RATES = arrayOf(
+                intArrayOf(48000, 44100), intArrayOf(22050, 44100), intArrayOf(16000, 44100),
+                intArrayOf(8000, 44100), intArrayOf(32000, 44100), intArrayOf(11025, 44100))
+
+        private fun getTable(l: Int, m: Int): Table {
+            synchronized(tables) {
+                if (tables.isEmpty()) {
+                    for (rates in COMMON_RATES) {
+                        val g = gcd(rates[0], rates[1])
+                        tables[key(rates[1] / g, rates[0] / g)] = buildTable(rates[1] / g, rates[0] / g)
+                    }
+                }
+                return tables.getOrPut(key(l, m)) { buildTable(l, m) }
+            }
+        }
+
+        private fun key(l: Int, m: Int): Long = (l.toLong() shl 32) or m.toLong()
+
+        private fun buildTable(l: Int, m: Int): Table {
+            val phases = min(l, MAX_PHASES)
+            val cutoff = min(1.0, l.toDouble() / m) * ROLLOFF
+            val coefficients = FloatArray(phases * TAPS)
+            val fixed = IntArray(phases * TAPS)
+            val taps = DoubleArray(TAPS)
+            val i0Beta = besselI0(KAISER_BETA)
+
+            for (p in 0 until phases) {
+                //Distance, in input frames, from the output instant to each tap.
+                var sum = 0.0
+                for (k in 0 until TAPS) {
+                    val d = HALF - 1 - k + p.toDouble() / phases
+                    val x = cutoff * d
+                    val sinc = if (x == 0.0) 1.0 else sin(PI * x) / (PI * x)
+                    val r = d / HALF
+                    val window = if (abs(r) >= 1) 0.0 else besselI0(KAISER_BETA * sqrt(1 - r * r)) / i0Beta
+                    taps[k] = sinc * window
+                    sum += taps[k]
+                }
+
+                //Normalize each phase to unity DC gain; put fixed point rounding error on the centre tap.
+                var fixedSum = 0
+                for (k in 0 until TAPS) {
+                    val c = taps[k] / sum
+                    coefficients[p * TAPS + k] = c.toFloat()
+                    fixed[p * TAPS + k] = (c * FIXED_ONE).roundToInt()
+                    fixedSum += fixed[p * TAPS + k]
+                }
+                fixed[p * TAPS + HALF - 1] += FIXED_ONE - fixedSum
+            }
+            return Table(l, phases, coefficients, fixed)
+        }
+
+        private fun besselI0(x: Double): Double {
+            var sum = 1.0
+            var term = 1.0
+            var k = 1
+            while (k < 50) {
+                val h = x / (2 * k)
+                term *= h * h
+                sum += term
+                if (term < 1e-12 * sum) break
+                k++
+            }
+            return sum
+        }
+
+        private fun gcd(a: Int, b: Int): Int {
+            var x = a
+            var y = b
+            while (y != 0) {
+                val t = x % y
+                x = y
+                y = t
+            }
+            return x
+        }
+
+        private fun saturate(sample: Int): Short {
+            return when {
+                sample > Short.MAX_VALUE -> Short.MAX_VALUE
+                sample < Short.MIN_VALUE -> Short.MIN_VALUE
+                else -> sample.toShort()
+            }
+        }
+    }
+}
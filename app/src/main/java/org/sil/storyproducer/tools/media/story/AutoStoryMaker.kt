@@ -3,9 +3,11 @@ package org.sil.storyproducer.tools.media.story
 import android.content.Context
 import android.content.SharedPreferences
 import android.media.MediaCodecInfo
+import android.media.MediaCodecList
 import android.media.MediaFormat
 import android.media.MediaMuxer
 import android.net.Uri
+import android.os.Build
 import android.os.Bundle
 import android.util.Log
 import android.widget.Toast
@@ -17,9 +19,11 @@ import org.sil.storyproducer.model.*
 import org.sil.storyproducer.R
 import org.sil.storyproducer.service.SlideService
 import org.sil.storyproducer.tools.file.copyToWorkspacePath
-import org.sil.storyproducer.tools.file.getStoryUri
+import org.sil.storyproducer.tools.file.getChildInputStream
+import org.sil.storyproducer.tools.media.AudioInfoIndex
 import org.sil.storyproducer.tools.media.MediaHelper
 import org.sil.storyproducer.tools.media.graphics.KenBurnsEffect
+import org.sil.storyproducer.tools.selectCodec
 import org.sil.storyproducer.viewmodel.SlideViewModelBuilder
 import java.io.Closeable
 import java.io.File
@@ -31,16 +35,22 @@ import java.util.*
  * AutoStoryMaker is a layer of abstraction above [StoryMaker] that handles all of the
  * parameters for StoryMaker according to some defaults, structure of projects/templates, and
  * minimal customization.
+ *
+ * @param story the story to export.
+ * @param workDir local directory for the videos while they are being made. Exports running at
+ * the same time must each have their own.
  */
-class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
+class AutoStoryMaker(private val context: Context, story: Story = Workspace.activeStory,
+                     workDir: File = context.filesDir) : Thread(), Closeable {
 
     val mContext = context
-    var videoRelPath: String = Workspace.activeStory.title.replace(' ', '_') + VIDEO_MP4_EXT
+    private val mStory = story
+    var videoRelPath: String = mStory.title.replace(' ', '_') + VIDEO_MP4_EXT
     val video3gpPath: String get(){return File(videoRelPath).nameWithoutExtension + VIDEO_3GP_EXT}
 
     // bits per second for video
-    private var videoTempFile: File = File(context.filesDir,"temp$VIDEO_MP4_EXT")
-    private var video3gpFile: File = File(context.filesDir,"temp$VIDEO_3GP_EXT")
+    private var videoTempFile: File = File(workDir,"temp$VIDEO_MP4_EXT")
+    private var video3gpFile: File = File(workDir,"temp$VIDEO_3GP_EXT")
 
     var mIncludeBackgroundMusic = true
     var mIncludePictures = true
@@ -51,6 +61,8 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
     private var mLogProgress = false
 
     private var mStoryMaker: StoryMaker? = null
+    //The 3GP video made in the same pass as the MP4, if this device can.
+    private var m3GPOutput: StoryOutput? = null
     private var time3GPms = 0
     private var allVideosDone = false
 
@@ -60,6 +72,10 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
     val isSuccess: Boolean
         get() = mStoryMaker != null && mStoryMaker!!.isSuccess
 
+    /** Performance report of the export, once it has finished. */
+    val perfReport: PerfReport?
+        get() = mStoryMaker?.perfReport
+
     val progress: Double
         get() {
             if (mStoryMaker == null) {
@@ -67,13 +83,13 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
             } else {
                 if (!mStoryMaker!!.isDone) {
                     //Still making main video
-                    return if (isVideoWidescreen)
+                    return if (isVideoWidescreen || m3GPOutput != null)
                             mStoryMaker!!.progress
                         else
                             mStoryMaker!!.progress / 2
                 }else {
                     //making 3gp video
-                    return if (isVideoWidescreen)
+                    return if (isVideoWidescreen || m3GPOutput != null)
                         mStoryMaker!!.progress
                     else
                         0.5 + time3GPms*1000.0/mStoryMaker!!.storyDuration / 2
@@ -93,6 +109,20 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         videoTempFile.delete()  //just in case it's still there.
         mStoryMaker = StoryMaker(context, videoTempFile, outputFormat, videoFormat, audioFormat,
                 pages, AUDIO_TRANSITION_US, SLIDE_CROSS_FADE_US)
+        mStoryMaker!!.videoWorkers = VIDEO_WORKERS
+        val segmentStore = VideoSegmentStore(context, mDirRoot = mStory.title)
+        if (isKeepingSegments()) {
+            mStoryMaker!!.segmentStore = segmentStore
+        } else {
+            //Segments kept while the setting was on would never be used or updated again.
+            segmentStore.clear()
+        }
+        if (!isVideoWidescreen && videoFormat != null && can3GPInSamePass()) {
+            video3gpFile.delete()  //just in case it's still there.
+            val output = StoryOutput(video3gpFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_3GPP, generate3GPVideoFormat(), audioFormat)
+            mStoryMaker!!.addOutput(output)
+            m3GPOutput = output
+        }
 
         watchProgress()
 
@@ -108,11 +138,16 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         duration += System.currentTimeMillis()
         Log.i(TAG, "Stopped making story after "
                 + MediaHelper.getDecimal(duration / 1000.toDouble()) + " seconds")
+        logPerfReport("Export", perfReport)
+        val perfFile = PerfReport.getFile(videoTempFile)
 
         if (isSuccess) {
             Log.v(TAG, "Moving completed video to " + videoRelPath)
             copyToWorkspacePath(context,Uri.fromFile(videoTempFile),"$VIDEO_DIR/$videoRelPath")
-            Workspace.activeStory.addVideo(videoRelPath)
+            mStory.addVideo(videoRelPath)
+            if (perfFile.exists()) {
+                copyToWorkspacePath(context, Uri.fromFile(perfFile), "$VIDEO_DIR/$videoRelPath${PerfReport.EXTENSION}")
+            }
 
             val params = Bundle()
             params.putString("video_name", videoRelPath)
@@ -120,7 +155,9 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
 
             //Make 3gp video before you delete the temp video - it's made from that.
             if (!isVideoWidescreen) {   // but not if doing wide screen
-                if(mIncludePictures)
+                if (m3GPOutput?.isSuccess == true) {
+                    save3GPVideo()
+                } else if(mIncludePictures)
                     make3GPVideo()
             }
 
@@ -129,25 +166,74 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         } else {
             Log.w(TAG, "Deleting incomplete temporary video")
             videoTempFile.delete()
+            video3gpFile.delete()
         }
+        perfFile.delete()
         allVideosDone = true
     }
 
+    /**
+     * Log where the pipeline of an export spent its time.
+     */
+    private fun logPerfReport(name: String, report: PerfReport?) {
+        if (report == null) {
+            return
+        }
+        val drawer = report.getComponent(StoryFrameDrawer.TAG)
+        Log.i(TAG, "$name: ${report.renderMs} ms, ${report.cpuMs} ms of CPU, "
+                + (if (drawer != null) "${drawer.buffers} frames drawn at "
+                    + MediaHelper.getDecimal(drawer.buffersPerWorkSecond) + " fps (p99 ${drawer.workP99Ms} ms)" else "no frames drawn"))
+        for (c in report.components) {
+            Log.d(TAG, "$name: ${c.name} x${c.instances}: ${c.buffers} buffers, ${c.bytes} bytes, "
+                    + "waited ${c.upstreamWaitMs} ms upstream and ${c.downstreamWaitMs} ms downstream"
+                    + (if (c.queueSamples > 0) ", queue " + MediaHelper.getDecimal(c.queueMeanFilled)
+                        + " of ${c.queueCapacity} full on average" else ""))
+        }
+    }
+
+    /**
+     * Whether the video of each slide is kept after the export, so the next one can reuse it.
+     */
+    private fun isKeepingSegments(): Boolean {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(KEEP_SEGMENTS_PREF, false)
+    }
+
+    /**
+     * Whether the 3GP video can be rendered alongside the MP4 rather than transcoded from it.
+     */
+    private fun can3GPInSamePass(): Boolean {
+        //MediaMuxer only writes 3GP files from Android 8.
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && selectCodec(VIDEO_3GP_MIME) != null
+    }
+
+    private fun save3GPVideo() {
+        Log.v(TAG, "Moving completed 3gp video to " + video3gpPath)
+        copyToWorkspacePath(context,Uri.fromFile(video3gpFile),"$VIDEO_DIR/$video3gpPath")
+        mStory.addVideo(video3gpPath)
+        video3gpFile.delete()
+    }
+
+    /**
+     * Transcode the MP4 into the 3GP video, for devices that cannot render both in one pass.
+     */
     private fun make3GPVideo() {
         Log.v(TAG, "Creating 3gp video" + video3gpPath)
         video3gpFile.delete()  //just in case it's still there.
 
         try{
 
-            Config.resetStatistics()
-            Config.enableStatisticsCallback { newStatistics -> time3GPms = newStatistics.time }
-            FFmpeg.execute("-i ${videoTempFile.absolutePath} " +
-                    "-f 3gp -vcodec $VIDEO_3GP_CODEC -framerate $VIDEO_3GP_FRAMERATE -vf " +
-                    "scale=${VIDEO_3GP_WIDTH}x$VIDEO_3GP_HEIGHT -acodec $VIDEO_3GP_AUDIO" +
-                    " -b:v $VIDEO_3GP_BITRATE " + video3gpFile.absolutePath)
-            Log.w(TAG,FFmpeg.getLastCommandOutput() ?: "No FFMPEG output")
+            //FFmpeg runs one command at a time, so exports running together take turns.
+            synchronized(FFMPEG_LOCK) {
+                Config.resetStatistics()
+                Config.enableStatisticsCallback { newStatistics -> time3GPms = newStatistics.time }
+                FFmpeg.execute("-i ${videoTempFile.absolutePath} " +
+                        "-f 3gp -vcodec $VIDEO_3GP_CODEC -framerate $VIDEO_3GP_FRAMERATE -vf " +
+                        "scale=${VIDEO_3GP_WIDTH}x$VIDEO_3GP_HEIGHT -acodec $VIDEO_3GP_AUDIO" +
+                        " -b:v $VIDEO_3GP_BITRATE " + video3gpFile.absolutePath)
+                Log.w(TAG,FFmpeg.getLastCommandOutput() ?: "No FFMPEG output")
+            }
             copyToWorkspacePath(context,Uri.fromFile(video3gpFile),"$VIDEO_DIR/$video3gpPath")
-            Workspace.activeStory.addVideo(video3gpPath)
+            mStory.addVideo(video3gpPath)
         } catch(e:Exception) {
             FirebaseCrashlytics.getInstance().recordException(e)
         }
@@ -155,19 +241,19 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         video3gpFile.delete()
     }
 
-    private fun generatePages(): Array<StoryPage>? {
+    internal fun generatePages(): Array<StoryPage>? {
         //TODO: add hymn to count
         val pages: MutableList<StoryPage> = mutableListOf()
 
         var lastSoundtrack = ""
         var lastSoundtrackVolume = 0.0f
-        val slides = Workspace.activeStory.slides.toCollection(mutableListOf())
+        val slides = mStory.slides.toCollection(mutableListOf())
         var iSlide = 0
 
         // Create Local Credits Slide
         var slide = Slide()
         slide.slideType = SlideType.COPYRIGHT
-        slide.content = Workspace.activeStory.localCredits + "\n" +
+        slide.content = mStory.localCredits + "\n" +
                     context.getString(R.string.license_attribution) + 
                     "${SimpleDateFormat("yyyy", Locale.US).format(GregorianCalendar().time)}"
         slide.translatedContent = slide.content
@@ -229,11 +315,12 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
             //error
             var duration = 5000000L  // 5 seconds, microseconds.
             if (audio != "") {
-                duration = MediaHelper.getAudioDuration(context, getStoryUri(audio)!!)
+                duration = AudioInfoIndex.getDuration(context, audio, mStory.title)
             }
 
-            pages.add(StoryPage(image, audio, duration, kbfx, overlayText, soundtrack,soundtrackVolume,slide.slideType))
+            pages.add(StoryPage(image, audio, duration, kbfx, overlayText, soundtrack,soundtrackVolume,slide.slideType, mStory.title))
         }
+        AudioInfoIndex.save(context, mStory.title)
 
         return pages.toTypedArray()
     }
@@ -270,7 +357,7 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         }
     }
 
-    private fun generateVideoFormat(): MediaFormat? {
+    internal fun generateVideoFormat(): MediaFormat? {
         //If no video component, use null format.
         val videoRect = SlideService(mContext).getVideoScreenRect(true, true)
         val videoFormat = MediaFormat.createVideoFormat(VIDEO_MP4_CODEC, videoRect.width(), videoRect.height())
@@ -283,6 +370,17 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         return videoFormat
     }
 
+    private fun generate3GPVideoFormat(): MediaFormat {
+        val videoFormat = MediaFormat.createVideoFormat(VIDEO_3GP_MIME, VIDEO_3GP_WIDTH, VIDEO_3GP_HEIGHT)
+        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, VIDEO_MP4_COLOR)
+        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, VIDEO_3GP_FRAMERATE)
+        videoFormat.setInteger(MediaFormat.KEY_CAPTURE_RATE, VIDEO_3GP_FRAMERATE)
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, VIDEO_3GP_BITRATE)
+        videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VIDEO_MP4_IFRAME_INTERVAL)
+
+        return videoFormat
+    }
+
     fun generateAudioFormat(): MediaFormat {
 
         val audioFormat = MediaHelper.createFormat(AUDIO_MIME_TYPE)
@@ -297,8 +395,63 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
     companion object {
         private val TAG = "AutoStoryMaker"
 
-        private val SLIDE_CROSS_FADE_US: Long = 750000
-        private val AUDIO_TRANSITION_US: Long = 500000
+        /** Held while running FFmpeg, which only runs one command at a time. */
+        internal val FFMPEG_LOCK = Any()
+
+        private const val KEEP_SEGMENTS_PREF = "export_keep_segments"
+
+        /**
+         * Read the performance report saved beside an exported video.
+         * @param videoRelPath name of the video in the videos directory.
+         * @return the report, or null if the video has none.
+         */
+        fun readPerfReport(context: Context, videoRelPath: String): PerfReport? {
+            val input = getChildInputStream(context, "$VIDEO_DIR/$videoRelPath${PerfReport.EXTENSION}") ?: return null
+            return PerfReport.fromJson(input.bufferedReader().use { it.readText() })
+        }
+
+        /**
+         * Most exports that can run at the same time without needing more codecs of any kind
+         * than the device can open at once.
+         */
+        fun getMaxConcurrentExports(): Int {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                return 1
+            }
+            //The codecs one export holds open at once: a video encoder per worker, the H.263
+            //encoder of a 3GP made in the same pass, the AAC encoder both videos share and the
+            //decoders of the narration and soundtrack of two slides fading into each other.
+            val perExport = listOf(
+                    Triple(VIDEO_MP4_CODEC, true, VIDEO_WORKERS),
+                    Triple(VIDEO_3GP_MIME, true, 1),
+                    Triple(AUDIO_MIME_TYPE, true, 1),
+                    Triple(AUDIO_MIME_TYPE, false, AUDIO_DECODERS))
+            var max = Int.MAX_VALUE
+            for ((mimeType, isEncoder, count) in perExport) {
+                val instances = getMaxInstances(mimeType, isEncoder) ?: continue
+                max = Math.min(max, instances / count)
+            }
+            return if (max == Int.MAX_VALUE) 1 else Math.max(1, max)
+        }
+
+        /**
+         * Number of instances of the codec an export would use for a type that the device can
+         * open at once, or null if it has none.
+         */
+        private fun getMaxInstances(mimeType: String, isEncoder: Boolean): Int? {
+            val codec = if (isEncoder) {
+                selectCodec(mimeType)
+            } else {
+                //The decoder MediaCodec.createDecoderByType picks.
+                MediaCodecList(MediaCodecList.REGULAR_CODECS).codecInfos.firstOrNull { info ->
+                    !info.isEncoder && info.supportedTypes.any { it.equals(mimeType, ignoreCase = true) }
+                }
+            }
+            return codec?.getCapabilitiesForType(mimeType)?.maxSupportedInstances
+        }
+
+        internal val SLIDE_CROSS_FADE_US: Long = 750000
+        internal val AUDIO_TRANSITION_US: Long = 500000
 
 
         private val VIDEO_MP4_EXT = ".mp4"
@@ -309,9 +462,12 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
         private val VIDEO_MP4_BITRATE = 5000000
         private val VIDEO_MP4_FRAMERATE = 30
         private val VIDEO_MP4_IFRAME_INTERVAL = 8           // 5 second between I-frames
+        //Each video worker holds its own encoder and slide bitmaps, so keep this small.
+        internal val VIDEO_WORKERS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2))
 
         private val VIDEO_3GP_EXT = ".3gp"
         private val VIDEO_3GP_CODEC = "h263"
+        private val VIDEO_3GP_MIME = MediaFormat.MIMETYPE_VIDEO_H263
         private val VIDEO_3GP_WIDTH = 176
         private val VIDEO_3GP_HEIGHT = 144
         private val VIDEO_3GP_AUDIO = "aac"
@@ -320,6 +476,7 @@ class AutoStoryMaker(private val context: Context) : Thread(), Closeable {
 
         // parameters for the audio encoder
         private val AUDIO_MIME_TYPE = "audio/mp4a-latm" //MediaFormat.MIMETYPE_AUDIO_AAC;
+        private const val AUDIO_DECODERS = 4
         private val AUDIO_SAMPLE_RATE = 44100
         private val AUDIO_CHANNEL_COUNT = 1
         private val AUDIO_BIT_RATE = 64000
@@ -0,0 +1,82 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.util.Log
+import com.squareup.moshi.JsonClass
+import org.sil.storyproducer.service.PersistenceService
+import org.sil.storyproducer.tools.media.pipe.PipeStats
+import java.io.File
+import java.io.IOException
+
+/**
+ * What one export cost and where its pipeline spent its time, written beside the video by
+ * [StoryMaker] (see [getFile]).
+ *
+ * Times are in milliseconds. [components] has one entry per kind of pipeline component, summed
+ * over every instance of it (e.g. one decoder per narration). The bitmap counts are those of the
+ * export's [RenderBitmapCache].
+ */
+@JsonClass(generateAdapter = true)
+class PerfReport(var video: String,
+                 var success: Boolean,
+                 var segmented: Boolean,
+                 var storyDurationMs: Long,
+                 var renderMs: Long,
+                 var cpuMs: Long,
+                 var tasks: Int,
+                 var largestPoolSize: Int,
+                 var threadsStarted: Int,
+                 var segments: Int,
+                 var reusedSegments: Int,
+                 var components: List<PipeStats>,
+                 var bitmapHits: Int = 0,
+                 var bitmapMisses: Int = 0,
+                 var bitmapEvictions: Int = 0,
+                 var bitmapReuses: Int = 0) {
+
+    /**
+     * Look up the stats of a component by name, e.g. "StoryFrameDrawer".
+     */
+    fun getComponent(name: String): PipeStats? {
+        return components.firstOrNull { it.name == name }
+    }
+
+    fun toJson(): String {
+        return jsonAdapter(PersistenceService.moshi).indent("  ").toJson(this)
+    }
+
+    /**
+     * Write the report to a file. Failures are logged; the export does not depend on the report.
+     */
+    fun write(file: File) {
+        try {
+            file.writeText(toJson())
+        } catch (e: IOException) {
+            Log.w(TAG, "Unable to write perf report $file", e)
+        }
+    }
+
+    companion object {
+        private val TAG = "PerfReport"
+
+        const val EXTENSION = ".perf.json"
+
+        /**
+         * The report file for a video, e.g. story.mp4.perf.json beside story.mp4.
+         */
+        fun getFile(video: File): File {
+            return File(video.path + EXTENSION)
+        }
+
+        /**
+         * @return the report, or null if the JSON cannot be read.
+         */
+        fun fromJson(json: String): PerfReport? {
+            return try {
+                jsonAdapter(PersistenceService.moshi).fromJson(json)
+            } catch (e: Exception) {
+                Log.w(TAG, "Unable to read perf report", e)
+                null
+            }
+        }
+    }
+}
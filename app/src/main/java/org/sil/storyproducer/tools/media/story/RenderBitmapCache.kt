@@ -0,0 +1,202 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.graphics.Bitmap
+import android.util.Log
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Slide images decoded for one export, shared by every [StoryFrameDrawer] of that export and
+ * bounded by a byte budget.
+ *
+ * Images in use are held with [acquire] or [put] and given back with [release]. Once nothing
+ * holds an image it may be evicted, least recently used first, when the cache needs room. Evicted
+ * images are not thrown away right away: the next decode can reuse one as its
+ * [android.graphics.BitmapFactory.Options.inBitmap] (see [takeReusable]), so rendering a story
+ * does not allocate a new large bitmap for every slide.
+ *
+ * @param maxBytes byte budget for cached and reusable images together. Images in use may take
+ * the cache past it for a while.
+ */
+internal class RenderBitmapCache(val maxBytes: Long = getDefaultMaxBytes()) {
+
+    private class Entry(val bitmap: Bitmap, val downsample: Int, val letterbox: Boolean) {
+        var refs = 0
+    }
+
+    //In access order, so the first idle entry is the least recently used.
+    private val mEntries = LinkedHashMap<String, Entry>(16, 0.75f, true)
+    private val mReusable = ArrayList<Bitmap>()
+    private var mCachedBytes: Long = 0
+    private var mReusableBytes: Long = 0
+
+    private val mHits = AtomicInteger()
+    private val mMisses = AtomicInteger()
+    private val mEvictions = AtomicInteger()
+    private val mReuses = AtomicInteger()
+
+    /** Number of [acquire] calls that found the image. */
+    val hitCount: Int get() = mHits.get()
+
+    /** Number of [acquire] calls that did not find the image. */
+    val missCount: Int get() = mMisses.get()
+
+    /** Number of images evicted to make room. */
+    val evictionCount: Int get() = mEvictions.get()
+
+    /** Number of evicted images handed out for reuse. */
+    val reuseCount: Int get() = mReuses.get()
+
+    /** Bytes held by cached and reusable images. */
+    val size: Long
+        @Synchronized get() = mCachedBytes + mReusableBytes
+
+    /**
+     * Get and hold a cached image.
+     * @return the image, or null if it is not cached.
+     */
+    @Synchronized
+    fun acquire(key: String): SlideBitmapLoader.SlideBitmap? {
+        val entry = mEntries[key]
+        if (entry == null) {
+            mMisses.incrementAndGet()
+            return null
+        }
+        mHits.incrementAndGet()
+        entry.refs++
+        return SlideBitmapLoader.SlideBitmap(key, entry.bitmap, entry.downsample, entry.letterbox)
+    }
+
+    /**
+     * Add a newly decoded image and hold it. If another thread added the same image first, that
+     * one is returned instead and the new one becomes reusable.
+     */
+    @Synchronized
+    fun put(key: String, bitmap: Bitmap, downsample: Int, letterbox: Boolean): SlideBitmapLoader.SlideBitmap {
+        var entry = mEntries[key]
+        if (entry == null) {
+            entry = Entry(bitmap, downsample, letterbox)
+            mEntries[key] = entry
+            mCachedBytes += bitmap.allocationByteCount
+        } else if (entry.bitmap !== bitmap) {
+            addReusable(bitmap)
+        }
+        entry.refs++
+        trimToSize(maxBytes)
+        return SlideBitmapLoader.SlideBitmap(key, entry.bitmap, entry.downsample, entry.letterbox)
+    }
+
+    /**
+     * Stop holding an image from [acquire] or [put].
+     */
+    @Synchronized
+    fun release(slideBitmap: SlideBitmapLoader.SlideBitmap) {
+        val entry = mEntries[slideBitmap.key]
+        if (entry != null && entry.bitmap === slideBitmap.bitmap && entry.refs > 0) {
+            entry.refs--
+        }
+        trimToSize(maxBytes)
+    }
+
+    /**
+     * Make room for a new image of [byteCount] bytes and take a bitmap it may be decoded into.
+     * @return a mutable bitmap of at least [byteCount] bytes no longer used by anyone, or null.
+     */
+    @Synchronized
+    fun takeReusable(byteCount: Int): Bitmap? {
+        trimToSize(maxBytes - byteCount)
+
+        var best: Bitmap? = null
+        for (bitmap in mReusable) {
+            if (bitmap.allocationByteCount >= byteCount &&
+                    (best == null || bitmap.allocationByteCount < best.allocationByteCount)) {
+                best = bitmap
+            }
+        }
+        if (best != null) {
+            mReusable.remove(best)
+            mReusableBytes -= best.allocationByteCount
+            mReuses.incrementAndGet()
+        }
+        return best
+    }
+
+    /**
+     * Give back a bitmap from [takeReusable] that could not be used after all.
+     */
+    @Synchronized
+    fun returnReusable(bitmap: Bitmap) {
+        addReusable(bitmap)
+        trimToSize(maxBytes)
+    }
+
+    /**
+     * Drop every image. Images still held are left to the garbage collector.
+     */
+    @Synchronized
+    fun clear() {
+        for (bitmap in mReusable) {
+            bitmap.recycle()
+        }
+        mReusable.clear()
+        for (entry in mEntries.values) {
+            if (entry.refs == 0) {
+                entry.bitmap.recycle()
+            }
+        }
+        mEntries.clear()
+        mCachedBytes = 0
+        mReusableBytes = 0
+    }
+
+    private fun addReusable(bitmap: Bitmap) {
+        if (bitmap.isMutable && !bitmap.isRecycled) {
+            mReusable.add(bitmap)
+            mReusableBytes += bitmap.allocationByteCount
+        }
+    }
+
+    /**
+     * Evict idle images, least recently used first, into the reusable pool until the cached
+     * images fit in [budget], then drop reusable bitmaps, largest first, until everything fits in
+     * [maxBytes].
+     */
+    private fun trimToSize(budget: Long) {
+        if (mCachedBytes > budget) {
+            val iterator = mEntries.entries.iterator()
+            while (mCachedBytes > budget && iterator.hasNext()) {
+                val entry = iterator.next().value
+                if (entry.refs == 0) {
+                    iterator.remove()
+                    mCachedBytes -= entry.bitmap.allocationByteCount
+                    mEvictions.incrementAndGet()
+                    addReusable(entry.bitmap)
+                    if (MediaHelper.VERBOSE) Log.v(TAG, "Evicted ${entry.bitmap.width}x${entry.bitmap.height} image")
+                }
+            }
+        }
+        //Keep the evicted bitmaps for the next decode, as long as the budget allows.
+        if (mCachedBytes + mReusableBytes > maxBytes) {
+            mReusable.sortBy { it.allocationByteCount }
+            while (mCachedBytes + mReusableBytes > maxBytes && mReusable.isNotEmpty()) {
+                val bitmap = mReusable.removeAt(mReusable.size - 1)
+                mReusableBytes -= bitmap.allocationByteCount
+                bitmap.recycle()
+            }
+        }
+    }
+
+    companion object {
+        private val TAG = "RenderBitmapCache"
+
+        private const val MIN_BYTES = 16L * 1024 * 1024
+        private const val MAX_BYTES = 96L * 1024 * 1024
+
+        /**
+         * An eighth of the heap, within reasonable bounds.
+         */
+        fun getDefaultMaxBytes(): Long {
+            return Math.max(MIN_BYTES, Math.min(MAX_BYTES, Runtime.getRuntime().maxMemory() / 8))
+        }
+    }
+}
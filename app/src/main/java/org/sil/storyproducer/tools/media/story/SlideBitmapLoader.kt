@@ -0,0 +1,255 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.Log
+import org.sil.storyproducer.model.SlideType
+import org.sil.storyproducer.service.SlideService
+import org.sil.storyproducer.tools.file.getStoryChildInputStream
+import org.sil.storyproducer.tools.media.pipe.PipelineScheduler
+import java.io.Closeable
+import java.io.IOException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Decodes and prepares the slide images drawn by [StoryFrameDrawer].
+ *
+ * While slide N is being drawn, the images of the next [mLookAhead] slides are decoded on
+ * [PipelineScheduler] threads, so the drawer does not stall at the start of each cross-fade.
+ * Images are held in a [RenderBitmapCache] shared with the other drawers of the export, so an
+ * image is decoded once even when several segments show it, and decodes reuse the memory of
+ * evicted images. The loader holds the images of the slides in its window and releases the
+ * others.
+ *
+ * @param mWidth width of the video.
+ * @param mHeight height of the video.
+ * @param mLookAhead number of slides after the current one to prepare ahead of time, or 0 to
+ * decode each image on the drawing thread when it is first needed.
+ */
+internal class SlideBitmapLoader(private val context: Context, private val mPages: Array<StoryPage>,
+                                 private val mWidth: Int, private val mHeight: Int,
+                                 private val mLookAhead: Int = LOOK_AHEAD,
+                                 private val mCache: RenderBitmapCache = RenderBitmapCache()) : Closeable {
+
+    /**
+     * A prepared slide image.
+     * @param key the image path it is cached under.
+     * @param downsample the sample size the image was decoded with.
+     * @param letterbox whether the image should be fit inside the frame with bars around it
+     * rather than cropped to fill it (see [org.sil.storyproducer.tools.BitmapScaler.centerFitRectF]).
+     */
+    class SlideBitmap(val key: String, val bitmap: Bitmap, val downsample: Int, val letterbox: Boolean)
+
+    /**
+     * The image of one slide window entry. Once [drop]ped, a decode that is still running
+     * releases its image as soon as it is done.
+     */
+    private inner class Load(page: StoryPage) {
+        val task = FutureTask<SlideBitmap> { completed(prepare(page)) }
+        private var mDropped = false
+        private var mResult: SlideBitmap? = null
+
+        @Synchronized
+        private fun completed(result: SlideBitmap): SlideBitmap {
+            if (mDropped) {
+                mCache.release(result)
+            } else {
+                mResult = result
+            }
+            return result
+        }
+
+        @Synchronized
+        fun drop() {
+            mDropped = true
+            task.cancel(false)
+            mResult?.let { mCache.release(it) }
+            mResult = null
+        }
+    }
+
+    //Only touched by the drawing thread.
+    private val mLoads = HashMap<String, Load>()
+    private var mFirstPage = 0
+
+    //Letterboxing follows the video setting, as [SlideService.scaleImage] does.
+    private val mVideoRatio = SlideService(context).getVideoScreenRatio(true)
+
+    /** Number of times the drawing thread had to wait for an image. */
+    var lateCount = 0
+        private set
+
+    /**
+     * Start preparing the slides from [pageIndex] to the end of the look-ahead window, and drop
+     * the images of slides before it.
+     */
+    fun advanceTo(pageIndex: Int) {
+        val first = Math.max(0, pageIndex)
+        if (first == mFirstPage && mLoads.isNotEmpty()) {
+            return
+        }
+        mFirstPage = first
+
+        val last = Math.min(mPages.size - 1, first + mLookAhead)
+        val window = HashSet<String>()
+        for (i in first..last) {
+            window.add(mPages[i].imRelPath)
+        }
+        val iterator = mLoads.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (!window.contains(entry.key)) {
+                entry.value.drop()
+                iterator.remove()
+            }
+        }
+
+        if (mLookAhead > 0) {
+            for (i in first..last) {
+                load(i)
+            }
+        }
+    }
+
+    /**
+     * Get the image of a slide, waiting for it to be prepared if needed.
+     * @return the image, or null if it could not be prepared in time.
+     */
+    fun get(pageIndex: Int): SlideBitmap? {
+        val future = load(pageIndex).task
+        if (!future.isDone) {
+            if (mLookAhead == 0) {
+                future.run()
+            } else {
+                lateCount++
+                Log.d(TAG, "Waiting for the image of slide $pageIndex")
+            }
+        }
+        try {
+            return future.get(DECODE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        } catch (e: TimeoutException) {
+            Log.w(TAG, "Image of slide $pageIndex was not ready in time")
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "Unable to prepare the image of slide $pageIndex", e.cause)
+            //Try again with the next frame.
+            mLoads.remove(mPages[pageIndex].imRelPath)?.drop()
+        } catch (e: InterruptedException) {
+            //The pipeline is being stopped.
+            Thread.currentThread().interrupt()
+        }
+        return null
+    }
+
+    private fun load(pageIndex: Int): Load {
+        val page = mPages[pageIndex]
+        var load = mLoads[page.imRelPath]
+        if (load == null) {
+            load = Load(page)
+            mLoads[page.imRelPath] = load
+            if (mLookAhead > 0) {
+                val task = load.task
+                PipelineScheduler.launch("$TAG[$pageIndex]") { task.run() }
+            }
+        }
+        return load
+    }
+
+    /**
+     * Get a slide image from the cache, or decode it at a size suitable for the video.
+     */
+    private fun prepare(page: StoryPage): SlideBitmap {
+        val cached = mCache.acquire(page.imRelPath)
+        if (cached != null) {
+            return cached
+        }
+        val slideService = SlideService(context)
+        var ds = 1
+        val bitmap = decode(page.imRelPath, page.dirRoot) { ds = it }
+                ?: slideService.genDefaultImage()
+        //Letterboxing is left to the drawer, which draws the bars around the image directly.
+        val letterbox = page.sType == SlideType.NUMBEREDPAGE &&
+                page.kenBurnsEffect == null &&
+                slideService.shouldScaleForAspectRatio(bitmap.width, bitmap.height, mVideoRatio)
+        return mCache.put(page.imRelPath, bitmap, ds, letterbox)
+    }
+
+    /**
+     * Decode an image with the same sample size and density as
+     * [org.sil.storyproducer.tools.file.getDownsample] and [SlideService.getImage] would give it,
+     * into an evicted image from the cache when one is big enough.
+     * @return the image, or null if it cannot be read.
+     */
+    private fun decode(relPath: String, dirRoot: String, onDownsample: (Int) -> Unit): Bitmap? {
+        if (relPath == "") {
+            return null
+        }
+        val bounds = BitmapFactory.Options()
+        bounds.inJustDecodeBounds = true
+        decodeStream(relPath, dirRoot, bounds)
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null
+        }
+        val ds = Math.max(1, Math.min(bounds.outHeight / (mHeight * 2), bounds.outWidth / (mWidth * 2)))
+        onDownsample(ds)
+
+        //Decoders round the sample size down to a power of two.
+        val sample = Integer.highestOneBit(ds)
+        val byteCount = ((bounds.outWidth + sample - 1) / sample) * ((bounds.outHeight + sample - 1) / sample) * 4
+        val reusable = mCache.takeReusable(byteCount)
+
+        val options = BitmapFactory.Options()
+        options.inSampleSize = ds
+        options.inTargetDensity = 1
+        options.inMutable = true
+        if (reusable != null) {
+            options.inBitmap = reusable
+            try {
+                val bitmap = decodeStream(relPath, dirRoot, options)
+                if (bitmap != null) {
+                    return bitmap
+                }
+            } catch (e: IllegalArgumentException) {
+                //The image did not fit the reused bitmap after all.
+                Log.d(TAG, "Unable to reuse a bitmap for $relPath", e)
+            }
+            mCache.returnReusable(reusable)
+            options.inBitmap = null
+        }
+        return decodeStream(relPath, dirRoot, options)
+    }
+
+    private fun decodeStream(relPath: String, dirRoot: String, options: BitmapFactory.Options): Bitmap? {
+        val iStream = getStoryChildInputStream(context, relPath, dirRoot) ?: return null
+        return try {
+            iStream.use {
+                val bitmap = BitmapFactory.decodeStream(it, null, options)
+                bitmap?.density = Bitmap.DENSITY_NONE
+                bitmap
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Unable to read image $relPath", e)
+            null
+        }
+    }
+
+    override fun close() {
+        for (load in mLoads.values) {
+            load.drop()
+        }
+        mLoads.clear()
+    }
+
+    companion object {
+        private val TAG = "SlideBitmapLoader"
+
+        /** Number of slides after the current one prepared ahead of time. */
+        const val LOOK_AHEAD = 2
+
+        //Decoding even a large image takes well under a second; past this, something is wrong.
+        private const val DECODE_TIMEOUT_MS = 5000L
+    }
+}
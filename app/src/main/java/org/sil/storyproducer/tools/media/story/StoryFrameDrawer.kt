@@ -1,23 +1,41 @@
 package org.sil.storyproducer.tools.media.story
 
 import android.content.Context
-import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Paint
+import android.graphics.RectF
 import android.media.MediaFormat
 import android.util.Log
 import org.sil.storyproducer.model.SlideType
-import org.sil.storyproducer.model.Workspace
 import org.sil.storyproducer.service.SlideService
 import org.sil.storyproducer.tools.BitmapScaler
-import org.sil.storyproducer.tools.file.getDownsample
 import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.graphics.TextOverlay
+import org.sil.storyproducer.tools.media.pipe.PipeMetrics
 import org.sil.storyproducer.tools.media.pipe.PipedVideoSurfaceEncoder
 
 /**
  * This class knows how to draw the frames provided to it by [StoryMaker].
+ *
+ * A drawer may be limited to a range of frames so that several drawers can render segments of
+ * the same story at once (see [planSegments]). Frames are a pure function of their index, so a
+ * segment looks exactly like the same frames drawn by a drawer for the whole story.
+ *
+ * Slide images are decoded ahead of time by a [SlideBitmapLoader] (see [slideLookAhead]) into
+ * a [RenderBitmapCache], which the drawers of one export share.
+ *
+ * While a slide without Ken Burns motion is shown alone, every frame is the same, so the drawer
+ * reports those frames as unchanged (see [isNextFrameUnchanged]) and they are not drawn again.
+ *
+ * @param mStartFrame index of the first frame to draw.
+ * @param mEndFrame index after the last frame to draw, or [Int.MAX_VALUE] to draw to the end of the story.
+ * @param mFrameOriginUs time of frame 0. A segment starting at a slide boundary (see
+ * [planPageSegments]) counts its frames from there, so its frames do not depend on earlier slides.
  */
-internal class StoryFrameDrawer(private val context: Context, private val mVideoFormat: MediaFormat, private val mPages: Array<StoryPage>, private val mAudioTransitionUs: Long, slideCrossFadeUs: Long) : PipedVideoSurfaceEncoder.Source {
+internal class StoryFrameDrawer(private val context: Context, private val mVideoFormat: MediaFormat, private val mPages: Array<StoryPage>, private val mAudioTransitionUs: Long, slideCrossFadeUs: Long,
+                                private val mStartFrame: Int = 0, private val mEndFrame: Int = Int.MAX_VALUE,
+                                private val mFrameOriginUs: Long = 0,
+                                bitmapCache: RenderBitmapCache = RenderBitmapCache()) : PipedVideoSurfaceEncoder.Source {
     private val xTime: Long //transition (cross fade) time
 
     private val mFrameRate: Int
@@ -26,6 +44,10 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
     private val mHeight: Int
 
     private val mBitmapPaint: Paint
+    private val mBarPaint: Paint
+
+    //Letterboxed images are fit inside this rect, which has the aspect ratio of the video setting.
+    private val mLetterboxRect: RectF
 
     private var slideIndex = -1 //starts at -1 to allow initial transition
     private var slideAudioStart: Long = 0
@@ -48,24 +70,17 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
 
     private var mIsVideoDone = false
 
-    private var bitmaps: MutableMap<String,Bitmap?> = mutableMapOf()
-    private var downsamples: MutableMap<String,Int> = mutableMapOf()
-
-    init {
+    //Whether the last frame drawn showed the current slide alone, complete and without motion.
+    private var mLastFrameStill = false
+    private var mSkippedFrames = 0
 
-        var correctedSlideTransitionUs = slideCrossFadeUs
+    private val mLoader: SlideBitmapLoader
 
-        //mSlideTransition must never exceed the length of slides in terms of audio.
-        //Pre-process pages and clip the slide transition time to fit in all cases.
-        for (page in mPages) {
-            val totalPageUs = page.audioDuration + mAudioTransitionUs
-            if (correctedSlideTransitionUs > totalPageUs) {
-                correctedSlideTransitionUs = totalPageUs
-                Log.d(TAG, "Corrected slide transition from $slideCrossFadeUs to $correctedSlideTransitionUs")
-            }
-        }
+    //Frames drawn and the time spent drawing each of them.
+    private val mMetrics = PipeMetrics(TAG)
 
-        xTime = correctedSlideTransitionUs
+    init {
+        xTime = getCorrectedCrossFade(mPages, mAudioTransitionUs, slideCrossFadeUs)
 
         mFrameRate = mVideoFormat.getInteger(MediaFormat.KEY_FRAME_RATE)
 
@@ -76,6 +91,21 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
         mBitmapPaint.isAntiAlias = true
         mBitmapPaint.isFilterBitmap = true
         mBitmapPaint.isDither = true
+
+        val slideService = SlideService(context)
+        mBarPaint = Paint()
+        mBarPaint.color = slideService.getLetterboxColor()
+        mBarPaint.style = Paint.Style.FILL
+        val ratio = slideService.getVideoScreenRatio(true)
+        mLetterboxRect = if (ratio > mWidth.toFloat() / mHeight) {
+            val barWidth = (mHeight * ratio - mWidth) / 2
+            RectF(-barWidth, 0f, mWidth + barWidth, mHeight.toFloat())
+        } else {
+            val barHeight = (mWidth / ratio - mHeight) / 2
+            RectF(0f, -barHeight, mWidth.toFloat(), mHeight + barHeight)
+        }
+
+        mLoader = SlideBitmapLoader(context, mPages, mWidth, mHeight, slideLookAhead, bitmapCache)
     }
 
     override fun getMediaType(): MediaHelper.MediaType {
@@ -90,7 +120,27 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
         return mIsVideoDone
     }
 
-    override fun setup() {}
+    override fun getMetrics(): PipeMetrics {
+        return mMetrics
+    }
+
+    override fun setup() {
+        mMetrics.register()
+        //Replay the slide bookkeeping (but not the drawing) of the frames before this segment.
+        while (mCurrentFrame < mStartFrame) {
+            advanceSlide(getFrameTime(mCurrentFrame))
+            mCurrentFrame++
+        }
+        //A frame origin may skip several slides at once.
+        val firstTime = getFrameTime(mCurrentFrame)
+        while (!mIsVideoDone && firstTime > slideXEnd) {
+            advanceSlide(firstTime)
+        }
+    }
+
+    private fun getFrameTime(frame: Int): Long {
+        return mFrameOriginUs + MediaHelper.getTimeFromIndex(mFrameRate.toLong(), frame)
+    }
 
     override fun fillCanvas(canv: Canvas): Long {
 
@@ -106,26 +156,15 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
         // Visible time
 
         //Each time this is called, go forward 1/30 of a second.
-        val cTime = MediaHelper.getTimeFromIndex(mFrameRate.toLong(), mCurrentFrame)
-
-        if(cTime > slideXEnd){
-            //go to the next slide
-            slideIndex++
+        val drawStart = System.nanoTime()
+        val cTime = getFrameTime(mCurrentFrame)
 
-            if (slideIndex >= mPages.size) {
-                mIsVideoDone = true
-            } else {
-                slideAudioStart = slideAudioEnd
-                slideAudioEnd += mPages[slideIndex].getDuration(mAudioTransitionUs)
-
-                if (slideIndex + 1 < mPages.size) {
-                    nSlideAudioEnd = slideAudioEnd + mPages[slideIndex + 1].getDuration(mAudioTransitionUs)
-                }
-            }
-        }
+        advanceSlide(cTime)
+        mLoader.advanceTo(slideIndex)
 
-        drawFrame(canv, slideIndex, cTime - slideVisStart, slideVisDur,
+        val complete = drawFrame(canv, slideIndex, cTime - slideVisStart, slideVisDur,
                 1f)
+        mLastFrameStill = complete && isStill(cTime)
 
         if (cTime >= slideXStart) {
             var alpha = (cTime - slideXStart) / xTime.toFloat()
@@ -135,55 +174,91 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
                     alpha)
         }
 
-        //clear image cache to save memory.
-        if(slideIndex >= 1 && slideIndex < mPages.size) {
-            if (bitmaps.containsKey(mPages[slideIndex - 1].imRelPath) &&
-                    mPages[slideIndex - 1].imRelPath != mPages[slideIndex].imRelPath) {
-                bitmaps.remove(mPages[slideIndex - 1].imRelPath)
-            }
+        mCurrentFrame++
+        if (mCurrentFrame >= mEndFrame) {
+            mIsVideoDone = true
         }
 
-        mCurrentFrame++
+        mMetrics.addWorkSample(System.nanoTime() - drawStart)
+        mMetrics.addBuffer(0)
+        return cTime
+    }
 
+    override fun isNextFrameUnchanged(): Boolean {
+        //The last frame is always drawn, so the video lasts until its end.
+        if (!skipStillFrames || !mLastFrameStill || mCurrentFrame >= mEndFrame - 1) {
+            return false
+        }
+        return isStill(getFrameTime(mCurrentFrame))
+    }
+
+    override fun skipFrame(): Long {
+        val cTime = getFrameTime(mCurrentFrame)
+        mCurrentFrame++
+        mSkippedFrames++
         return cTime
     }
 
+    /**
+     * Whether the frame at [cTime] shows the current slide alone and without motion, i.e. before
+     * the next cross-fade starts (and so before the slide changes).
+     */
+    private fun isStill(cTime: Long): Boolean {
+        return slideIndex >= 0 && slideIndex < mPages.size &&
+                cTime < slideXStart && mPages[slideIndex].kenBurnsEffect == null
+    }
+
+    private fun advanceSlide(cTime: Long) {
+        if(cTime > slideXEnd){
+            //go to the next slide
+            slideIndex++
+
+            if (slideIndex >= mPages.size) {
+                mIsVideoDone = true
+            } else {
+                slideAudioStart = slideAudioEnd
+                slideAudioEnd += mPages[slideIndex].getDuration(mAudioTransitionUs)
+
+                if (slideIndex + 1 < mPages.size) {
+                    nSlideAudioEnd = slideAudioEnd + mPages[slideIndex + 1].getDuration(mAudioTransitionUs)
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the slide image was drawn, rather than black in its place.
+     */
     private fun drawFrame(canv: Canvas, pageIndex: Int, timeOffsetUs: Long, imgDurationUs: Long,
-                          alpha: Float) {
+                          alpha: Float): Boolean {
         //In edge cases, draw a black frame with alpha value.
         if (pageIndex < 0 || pageIndex >= mPages.size) {
             canv.drawARGB((alpha * 255).toInt(), 0, 0, 0)
-            return
+            return false
         }
 
         val page = mPages[pageIndex]
-        if(!bitmaps.containsKey(page.imRelPath)){
-            val ds = getDownsample(context,page.imRelPath,mWidth*2, mHeight*2)
-            downsamples[page.imRelPath] = ds
-            val newBitmap = SlideService(context).getImage(page.imRelPath, ds, true, Workspace.activeStory)
-            if (page.sType == SlideType.NUMBEREDPAGE &&
-                    page.kenBurnsEffect == null &&
-                    SlideService(context).shouldScaleForAspectRatio(
-                            newBitmap.width, newBitmap.height, SlideService(context).getVideoScreenRatio(true)))
-                bitmaps[page.imRelPath] = SlideService(context).scaleImage(newBitmap, mWidth, mHeight, true)
-            else
-                bitmaps[page.imRelPath] = newBitmap
-        }
-        val bitmap = bitmaps[page.imRelPath]
-        val downSample = downsamples[page.imRelPath]!!
-
-        if (bitmap != null) {
+        val slideBitmap = mLoader.get(pageIndex)
+
+        if (slideBitmap != null) {
+            val bitmap = slideBitmap.bitmap
+            val downSample = slideBitmap.downsample
+
             val position = (timeOffsetUs / imgDurationUs.toDouble()).toFloat()
 
             //If ken burns, then interpolate
             val drawRect = page.kenBurnsEffect?.
                     revInterpolate(position,mWidth,mHeight,bitmap.width,bitmap.height,downSample*1f) ?:
+                if (slideBitmap.letterbox) getLetterboxedRect(bitmap.height, bitmap.width) else
                 //else, fit to crop the height and width to show everything.
                 BitmapScaler.centerCropRectF(
                         bitmap.height, bitmap.width, mHeight, mWidth)
 
             mBitmapPaint.alpha = (alpha * 255).toInt()
 
+            if (slideBitmap.letterbox) {
+                drawBars(canv, drawRect, alpha)
+            }
             canv.drawBitmap(bitmap, null, drawRect, mBitmapPaint)
         } else {
             //If there is no picture, draw black background for text overlay.
@@ -197,16 +272,148 @@ internal class StoryFrameDrawer(private val context: Context, private val mVideo
             // Other pages (eg: NONE, FRONTCOVER, LOCALSONG, LOCALCREDITS, COPYRIGHT, ENDPAGE),
             // do not need a background for the text
             if (page.sType == SlideType.NUMBEREDPAGE) it?.drawTextBG(true)
-            it?.setAlpha(alpha)
-            it?.draw(canv)
+            //Overlays are shared by the drawers of neighbouring segments.
+            if (it != null) synchronized(it) {
+                it.setRasterized(rasterizeTextOverlays)
+                it.setAlpha(alpha)
+                it.draw(canv)
+            }
         }
+        return slideBitmap != null
+    }
+
+    /**
+     * The whole image centered in [mLetterboxRect], with edges on whole pixels so the bars meet
+     * the image without a seam.
+     */
+    private fun getLetterboxedRect(bh: Int, bw: Int): RectF {
+        val fit = BitmapScaler.centerFitRectF(bh, bw, Math.round(mLetterboxRect.height()), Math.round(mLetterboxRect.width()))
+        fit.offset(mLetterboxRect.left, mLetterboxRect.top)
+        return RectF(Math.round(fit.left).toFloat(), Math.round(fit.top).toFloat(),
+                Math.round(fit.right).toFloat(), Math.round(fit.bottom).toFloat())
+    }
+
+    /**
+     * Fill the frame around a letterboxed image with the bar color. Only the bars are drawn, so
+     * they fade in with the image exactly as if both were one bitmap.
+     */
+    private fun drawBars(canv: Canvas, image: RectF, alpha: Float) {
+        val w = mWidth.toFloat()
+        val h = mHeight.toFloat()
+        mBarPaint.alpha = (alpha * 255).toInt()
+        if (image.top > 0) canv.drawRect(0f, 0f, w, image.top, mBarPaint)
+        if (image.bottom < h) canv.drawRect(0f, image.bottom, w, h, mBarPaint)
+        if (image.left > 0) canv.drawRect(0f, image.top, image.left, image.bottom, mBarPaint)
+        if (image.right < w) canv.drawRect(image.right, image.top, w, image.bottom, mBarPaint)
     }
 
     override fun close() {
-        bitmaps.clear()
+        mLoader.close()
+        if (mMetrics.buffers > 0) {
+            val stats = mMetrics.getStats()
+            Log.i(TAG, "Drew ${stats.buffers} frames and skipped $mSkippedFrames unchanged ones; frame time "
+                    + "p50 ${stats.workP50Ms} ms, p90 ${stats.workP90Ms} ms, p99 ${stats.workP99Ms} ms; "
+                    + "waited for ${mLoader.lateCount} slide images")
+        }
     }
 
     companion object {
-        private val TAG = "StoryFrameDrawer"
+        //Also the name of the drawer in perf reports.
+        val TAG = "StoryFrameDrawer"
+
+        /**
+         * Number of slides after the current one whose images are decoded in the background, or 0
+         * to decode each image on the drawing thread when it is first needed.
+         */
+        @Volatile
+        var slideLookAhead = SlideBitmapLoader.LOOK_AHEAD
+
+        /**
+         * Whether frames identical to the previous one are reported as unchanged, so the encoder
+         * does not draw them.
+         */
+        @Volatile
+        var skipStillFrames = true
+
+        /**
+         * Whether text overlays are drawn once into a layer and blitted on each frame, rather than
+         * laid out and stroked again for every frame (see [TextOverlay.setRasterized]).
+         */
+        @Volatile
+        var rasterizeTextOverlays = true
+
+        /**
+         * The slide cross-fade time must never exceed the length of slides in terms of audio.
+         * @return the cross-fade time clipped to fit every page.
+         */
+        fun getCorrectedCrossFade(pages: Array<StoryPage>, audioTransitionUs: Long, slideCrossFadeUs: Long): Long {
+            var correctedSlideTransitionUs = slideCrossFadeUs
+            for (page in pages) {
+                val totalPageUs = page.audioDuration + audioTransitionUs
+                if (correctedSlideTransitionUs > totalPageUs) {
+                    correctedSlideTransitionUs = totalPageUs
+                    Log.d(TAG, "Corrected slide transition from $slideCrossFadeUs to $correctedSlideTransitionUs")
+                }
+            }
+            return correctedSlideTransitionUs
+        }
+
+        /**
+         * Split the story into at most [segmentCount] segments of roughly equal length.
+         * Segments only start once a cross-fade has finished, so no fade is split between encoders.
+         * @return the first frame of each segment, starting with 0.
+         */
+        fun planSegments(pages: Array<StoryPage>, audioTransitionUs: Long, slideCrossFadeUs: Long, frameRate: Int, segmentCount: Int): IntArray {
+            val xTime = getCorrectedCrossFade(pages, audioTransitionUs, slideCrossFadeUs)
+            val total = StoryMaker.getStoryDuration(pages, audioTransitionUs)
+
+            val starts = ArrayList<Int>()
+            starts.add(0)
+            var pageEnd: Long = 0
+            var target = 1
+            for (i in 0 until pages.size - 1) {
+                pageEnd += pages[i].getDuration(audioTransitionUs)
+                if (target >= segmentCount) break
+                //Cut at the first page boundary at or past the next even share of the story.
+                if (pageEnd >= total * target / segmentCount) {
+                    val frame = firstFrameAfter(pageEnd + xTime / 2, frameRate)
+                    if (frame > starts.last()) {
+                        starts.add(frame)
+                    }
+                    while (target < segmentCount && pageEnd >= total * target / segmentCount) target++
+                }
+            }
+            return starts.toIntArray()
+        }
+
+        /**
+         * Split the story at every slide boundary, once the cross-fade into the next slide has
+         * finished. Each segment then only shows its own page and the fade into the next one, and
+         * looks the same wherever the page lands in the story, provided its frames are counted from
+         * the segment start (see [mFrameOriginUs]).
+         * @return the start time, in microseconds, of the segment for each page, starting with 0.
+         */
+        fun planPageSegments(pages: Array<StoryPage>, audioTransitionUs: Long, slideCrossFadeUs: Long): LongArray {
+            val xTime = getCorrectedCrossFade(pages, audioTransitionUs, slideCrossFadeUs)
+            val starts = LongArray(pages.size)
+            var pageEnd: Long = 0
+            for (i in 1 until pages.size) {
+                pageEnd += pages[i - 1].getDuration(audioTransitionUs)
+                starts[i] = pageEnd + xTime / 2 + 1
+            }
+            return starts
+        }
+
+        /** The number of frames, counted from a segment start, that fall within [durationUs]. */
+        fun getFrameCount(durationUs: Long, frameRate: Int): Int {
+            return firstFrameAfter(durationUs - 1, frameRate)
+        }
+
+        /** The index of the first frame strictly after [timeUs]. */
+        private fun firstFrameAfter(timeUs: Long, frameRate: Int): Int {
+            var frame = (timeUs * frameRate / 1000000L).toInt()
+            while (MediaHelper.getTimeFromIndex(frameRate.toLong(), frame) <= timeUs) frame++
+            return frame
+        }
     }
 }
@@ -2,16 +2,26 @@ package org.sil.storyproducer.tools.media.story
 
 import android.content.Context
 import android.media.MediaFormat
+import android.os.Process
 import android.util.Log
 
+import org.sil.storyproducer.tools.media.MediaHelper
+import org.sil.storyproducer.tools.media.pipe.EncodedVideoSegment
+import org.sil.storyproducer.tools.media.pipe.PipeMetrics
 import org.sil.storyproducer.tools.media.pipe.PipedAudioConcatenator
 import org.sil.storyproducer.tools.media.pipe.PipedAudioMixer
+import org.sil.storyproducer.tools.media.pipe.PipedMediaByteBufferSource
 import org.sil.storyproducer.tools.media.pipe.PipedMediaEncoder
 import org.sil.storyproducer.tools.media.pipe.PipedMediaMuxer
+import org.sil.storyproducer.tools.media.pipe.PipedMediaTee
+import org.sil.storyproducer.tools.media.pipe.PipedVideoSegmentStitcher
 import org.sil.storyproducer.tools.media.pipe.PipedVideoSurfaceEncoder
+import org.sil.storyproducer.tools.media.pipe.PipelineScheduler
+import org.sil.storyproducer.tools.sha1Hex
 
 import java.io.Closeable
 import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * StoryMaker handles all the brunt work of constructing a media pipeline for a given set of StoryPages.
@@ -37,13 +47,49 @@ class StoryMaker
 
     val storyDuration: Long
 
+    @Volatile
     private var mMuxer: PipedMediaMuxer? = null
+    @Volatile
+    private var mPipeline: PipelineScheduler.Group? = null
+    @Volatile
+    private var mIsClosed = false
     var isDone = false
         private set
 
+    /**
+     * Number of video segments encoded at once. With more than one, the story is split at slide
+     * boundaries and the segments are stitched together when muxing.
+     */
+    var videoWorkers = 1
+
+    /**
+     * Where the video segments of earlier exports are kept. When set, the story is split at every
+     * slide boundary and only segments whose slides changed since they were stored are encoded.
+     */
+    var segmentStore: VideoSegmentStore? = null
+
+    private var mSegmentKeys: List<String> = emptyList()
+    private val mBitmapCache = RenderBitmapCache()
+    private val mExtraOutputs = ArrayList<StoryOutput>()
+    private val mReusedSegments = AtomicInteger()
+
+    /** Number of video segments taken from [segmentStore] by the last render. */
+    val reusedSegmentCount: Int
+        get() = mReusedSegments.get()
+
+    /** Number of video segments in the last render, or 0 if it was not segmented. */
+    val segmentCount: Int
+        get() = mSegmentKeys.size
+
     var isSuccess = false
         private set
 
+    /**
+     * Performance report of the last render, also written beside the output file (see [PerfReport.getFile]).
+     */
+    var perfReport: PerfReport? = null
+        private set
+
     val progress: Double
         get() {
             if (isDone) {
@@ -77,6 +123,18 @@ class StoryMaker
             return 0.0
         }
 
+    /**
+     * Render the story into another file during the same pass as the main output (see [StoryOutput]).
+     * Must be called before [churn].
+     */
+    fun addOutput(output: StoryOutput) {
+        if (output.audioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) != mSampleRate
+                || output.audioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != mChannelCount) {
+            throw IllegalArgumentException("Extra outputs must have the sample rate and channel count of the main output")
+        }
+        mExtraOutputs.add(output)
+    }
+
     init {
 
         mSampleRate = mAudioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
@@ -94,24 +152,78 @@ class StoryMaker
             Log.e(TAG, "StoryMaker already finished!")
         }
 
+        val start = System.currentTimeMillis()
+        val cpuStart = Process.getElapsedCpuTime()
+        val threadsStart = PipelineScheduler.threadsCreated
+        val segmented = mVideoFormat != null && (videoWorkers > 1 || segmentStore != null) && mPages.size > 1
+        isSuccess = render(segmented)
+        if (isSuccess && segmented) {
+            segmentStore?.retainOnly(mSegmentKeys)
+        }
+        if (!isSuccess && segmented && !mIsClosed) {
+            Log.w(TAG, "Segmented video failed; rendering as a single stream instead.")
+            //Stored segments may be what failed, e.g. after an encoder update changed the codec data.
+            segmentStore?.clear()
+            isSuccess = render(false)
+        }
+        Log.i(TAG, "Rendered " + (if (segmented) "with $videoWorkers video workers" else "as a single stream")
+                + (if (segmentStore != null) " reusing $reusedSegmentCount of $segmentCount segments" else "")
+                + " in " + MediaHelper.getDecimal((System.currentTimeMillis() - start) / 1000.0) + " seconds")
+        val cpuMs = Process.getElapsedCpuTime() - cpuStart
+        Log.i(TAG, "Pipeline ran ${mPipeline?.launchedCount} tasks on at most ${PipelineScheduler.largestPoolSize} threads"
+                + " (${PipelineScheduler.threadsCreated - threadsStart} started) using $cpuMs ms of CPU")
+
+        val report = PerfReport(mOutputFile.name, isSuccess, segmented, storyDuration / 1000,
+                System.currentTimeMillis() - start, cpuMs, mPipeline?.launchedCount ?: 0,
+                PipelineScheduler.largestPoolSize, PipelineScheduler.threadsCreated - threadsStart,
+                segmentCount, reusedSegmentCount, PipeMetrics.aggregate(mPipeline?.metrics ?: emptyList()),
+                mBitmapCache.hitCount, mBitmapCache.missCount, mBitmapCache.evictionCount, mBitmapCache.reuseCount)
+        Log.i(TAG, "Slide image cache: ${mBitmapCache.hitCount} hits, ${mBitmapCache.missCount} misses, "
+                + "${mBitmapCache.evictionCount} evictions, ${mBitmapCache.reuseCount} bitmaps reused")
+        mBitmapCache.clear()
+        report.write(PerfReport.getFile(mOutputFile))
+        perfReport = report
+
+        isDone = true
+
+        return isSuccess
+    }
+
+    private fun render(segmented: Boolean): Boolean {
+        var success = false
         val soundtrackConcatenator = PipedAudioConcatenator(context,0, mSampleRate, mChannelCount)
         soundtrackConcatenator.setFadeOut(SOUNDTRACK_FADE_OUT_US)
         val narrationConcatenator = PipedAudioConcatenator(context, mAudioTransitionUs, mSampleRate, mChannelCount)
         val audioMixer = PipedAudioMixer()
         val audioEncoder = PipedMediaEncoder(mAudioFormat)
         var videoDrawer: StoryFrameDrawer? = null
-        var videoEncoder: PipedVideoSurfaceEncoder? = null
+        var videoEncoder: PipedMediaByteBufferSource? = null
         if (mVideoFormat != null) {
-            videoDrawer = StoryFrameDrawer(context, mVideoFormat, mPages, mAudioTransitionUs, mSlideCrossFadeUs)
-            videoEncoder = PipedVideoSurfaceEncoder()
+            if (segmented) {
+                val store = segmentStore
+                videoEncoder = if (store != null) createStoredVideo(mVideoFormat, store) else createSegmentedVideo(mVideoFormat)
+            } else {
+                videoDrawer = StoryFrameDrawer(context, mVideoFormat, mPages, mAudioTransitionUs, mSlideCrossFadeUs,
+                        bitmapCache = mBitmapCache)
+                val surfaceEncoder = PipedVideoSurfaceEncoder()
+                surfaceEncoder.addSource(videoDrawer)
+                videoEncoder = surfaceEncoder
+            }
         }
         mMuxer = PipedMediaMuxer(mOutputFile.absolutePath, mOutputFormat)
+        val pipeline = PipelineScheduler.Group(TAG)
+        mPipeline = pipeline
+        val extras = ArrayList<ExtraRender>()
 
         try {
-            mMuxer!!.addSource(audioEncoder)
+            for (output in mExtraOutputs) {
+                output.isSuccess = false
+                extras.add(ExtraRender(output))
+            }
 
             var soundtrackDuration: Long = 0
             var lastSoundtrack = ""
+            var lastSoundtrackRoot = ""
             var soundtrackVolume: Float
             var lastSoundtrackVolume = 0.0f
             for (page in mPages) {
@@ -127,7 +239,7 @@ class StoryMaker
                 if (soundtrack != lastSoundtrack) {
                     //add the accumulated "last soundtrack" to the concatenator
                     if (lastSoundtrack != "") {
-                        soundtrackConcatenator.addSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
+                        soundtrackConcatenator.addSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume, lastSoundtrackRoot)
                     } else if (soundtrackDuration > 0) {
                         //Else, we need to add blank time.
                         soundtrackConcatenator.addSource(null, soundtrackDuration, lastSoundtrackVolume)
@@ -135,6 +247,7 @@ class StoryMaker
 
                     //Start the next soundtrack accumulator
                     lastSoundtrack = soundtrack
+                    lastSoundtrackRoot = page.dirRoot
                     lastSoundtrackVolume = soundtrackVolume
                     //The next soundtrack will at least play for "page duration"
                     soundtrackDuration = pageDuration
@@ -143,30 +256,38 @@ class StoryMaker
                     soundtrackDuration += pageDuration
                 }
 
-                narrationConcatenator.addSourcePath(narration, audioDuration)
+                narrationConcatenator.addSourcePath(narration, audioDuration, 1.0f, page.dirRoot)
             }
 
             //Add last soundtrack
             if (lastSoundtrack != "") {
-                soundtrackConcatenator.addLoopingSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume)
+                soundtrackConcatenator.addLoopingSourcePath(lastSoundtrack, soundtrackDuration, lastSoundtrackVolume, lastSoundtrackRoot)
             }
 
             //Add soundtrack only if there is one!
-            if(soundtrackConcatenator.anyNonNull()) {
-                audioEncoder.addSource(audioMixer)
+            val storyAudio = if(soundtrackConcatenator.anyNonNull()) {
                 audioMixer.addSource(narrationConcatenator)
                 audioMixer.addSource(soundtrackConcatenator)
+                audioMixer
             } else {
                 //no mixing needed - bypass.
-                audioEncoder.addSource(narrationConcatenator)
+                narrationConcatenator
             }
+            connectAudio(storyAudio, audioEncoder, extras)
 
             if (mVideoFormat != null) {
                 mMuxer!!.addSource(videoEncoder!!)
-
-                videoEncoder.addSource(videoDrawer!!)
             }
-            isSuccess = mMuxer!!.crunch()
+            success = pipeline.enter {
+                val tasks = extras.map { extra ->
+                    PipelineScheduler.launch("$TAG[${extra.output.file.name}]") { extra.crunch() }
+                }
+                val mainSuccess = mMuxer!!.crunch()
+                for (task in tasks) {
+                    task.join()
+                }
+                mainSuccess
+            }
             Log.i(TAG, "Video saved to $mOutputFile")
         } catch (e: Exception) {
             Log.e(TAG, "Error in story making", e)
@@ -176,29 +297,222 @@ class StoryMaker
             narrationConcatenator.close()
             audioMixer.close()
             audioEncoder.close()
-            if (mVideoFormat != null) {
-                videoDrawer!!.close()
-                videoEncoder!!.close()
-            }
+            videoDrawer?.close()
+            videoEncoder?.close()
             mMuxer!!.close()
+            for (extra in extras) {
+                extra.close()
+            }
+            pipeline.cancel()
         }
 
-        isDone = true
+        return success
+    }
 
-        return isSuccess
+    /**
+     * Feed the story audio to the main audio encoder and to every extra output. Outputs with the
+     * main audio format share its encoded audio; the others get their own encoder.
+     */
+    private fun connectAudio(storyAudio: PipedMediaByteBufferSource, audioEncoder: PipedMediaEncoder, extras: List<ExtraRender>) {
+        val shared = extras.filter { isSameAudioFormat(it.output.audioFormat, mAudioFormat) }
+        val separate = extras.filter { !shared.contains(it) }
+
+        if (separate.isEmpty()) {
+            audioEncoder.addSource(storyAudio)
+        } else {
+            val pcmTee = PipedMediaTee()
+            pcmTee.addSource(storyAudio)
+            audioEncoder.addSource(pcmTee.addBranch())
+            for (extra in separate) {
+                val encoder = PipedMediaEncoder(extra.output.audioFormat)
+                encoder.addSource(pcmTee.addBranch())
+                extra.audioEncoder = encoder
+                extra.muxer.addSource(encoder)
+            }
+        }
+
+        if (shared.isEmpty()) {
+            mMuxer!!.addSource(audioEncoder)
+        } else {
+            val encodedTee = PipedMediaTee()
+            encodedTee.addSource(audioEncoder)
+            mMuxer!!.addSource(encodedTee.addBranch())
+            for (extra in shared) {
+                extra.muxer.addSource(encodedTee.addBranch())
+            }
+        }
+    }
+
+    /**
+     * The components rendering one [StoryOutput] alongside the main output. Its video is drawn
+     * by a drawer of its own, sharing the slide images of the main drawers.
+     */
+    private inner class ExtraRender(val output: StoryOutput) {
+        val muxer = PipedMediaMuxer(output.file.absolutePath, output.outputFormat)
+        var audioEncoder: PipedMediaEncoder? = null
+        private var mDrawer: StoryFrameDrawer? = null
+        private var mVideoEncoder: PipedVideoSurfaceEncoder? = null
+
+        init {
+            if (output.videoFormat != null) {
+                val drawer = StoryFrameDrawer(context, output.videoFormat, mPages, mAudioTransitionUs, mSlideCrossFadeUs,
+                        bitmapCache = mBitmapCache)
+                val encoder = PipedVideoSurfaceEncoder()
+                encoder.addSource(drawer)
+                muxer.addSource(encoder)
+                mDrawer = drawer
+                mVideoEncoder = encoder
+            }
+        }
+
+        /**
+         * Mux this output. A failure only fails this output; its branches of the shared audio
+         * are closed, so the main output carries on.
+         */
+        fun crunch() {
+            output.isSuccess = try {
+                muxer.crunch()
+            } catch (e: Exception) {
+                Log.e(TAG, "Error making ${output.file.name}", e)
+                muxer.close()
+                false
+            }
+            if (output.isSuccess) {
+                Log.i(TAG, "Video saved to ${output.file}")
+            }
+        }
+
+        fun close() {
+            mDrawer?.close()
+            mVideoEncoder?.close()
+            audioEncoder?.close()
+            muxer.close()
+        }
+    }
+
+    /**
+     * Split the video at slide boundaries into segments that are encoded concurrently.
+     */
+    private fun createSegmentedVideo(videoFormat: MediaFormat): PipedMediaByteBufferSource {
+        val frameRate = videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE)
+        //A few segments per worker keeps the workers busy when slides differ in length.
+        val starts = StoryFrameDrawer.planSegments(mPages, mAudioTransitionUs, mSlideCrossFadeUs,
+                frameRate, videoWorkers * SEGMENTS_PER_WORKER)
+
+        val scratchDir = mOutputFile.absoluteFile.parentFile!!
+        val segments = ArrayList<() -> EncodedVideoSegment>()
+        for (i in starts.indices) {
+            val endFrame = if (i + 1 < starts.size) starts[i + 1] else Int.MAX_VALUE
+            segments.add {
+                val drawer = StoryFrameDrawer(context, videoFormat, mPages, mAudioTransitionUs, mSlideCrossFadeUs, starts[i], endFrame,
+                        bitmapCache = mBitmapCache)
+                val encoder = PipedVideoSurfaceEncoder()
+                encoder.addSource(drawer)
+                EncodedVideoSegment.encode(encoder, scratchDir, 0)
+            }
+        }
+        mSegmentKeys = emptyList()
+        Log.i(TAG, "Encoding video in ${starts.size} segments with $videoWorkers workers")
+        return PipedVideoSegmentStitcher(segments, videoWorkers)
+    }
+
+    /**
+     * Split the video into one segment per slide, taking each segment from the store if it is
+     * there and encoding (and storing) it otherwise.
+     *
+     * A segment shows its own page and the cross-fade into the next, with frames counted from the
+     * segment start, so its key only needs those two pages, their position at either end of the
+     * story and the video settings. Editing one slide therefore only changes the keys of its own
+     * segment and the one fading into it.
+     */
+    private fun createStoredVideo(videoFormat: MediaFormat, store: VideoSegmentStore): PipedMediaByteBufferSource {
+        val frameRate = videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE)
+        val xTime = StoryFrameDrawer.getCorrectedCrossFade(mPages, mAudioTransitionUs, mSlideCrossFadeUs)
+        val starts = StoryFrameDrawer.planPageSegments(mPages, mAudioTransitionUs, mSlideCrossFadeUs)
+        val settings = getVideoSettings(videoFormat) + "|$mAudioTransitionUs|$xTime"
+        val scratchDir = mOutputFile.absoluteFile.parentFile!!
+
+        val keys = ArrayList<String>()
+        val segments = ArrayList<() -> EncodedVideoSegment>()
+        mReusedSegments.set(0)
+        for (i in starts.indices) {
+            val startUs = starts[i]
+            val isLast = i + 1 >= starts.size
+            val endFrame = if (isLast) Int.MAX_VALUE else StoryFrameDrawer.getFrameCount(starts[i + 1] - startUs, frameRate)
+            val nextPage = if (isLast) "" else mPages[i + 1].getVideoFingerprint(context)
+            //The first page fades in from black and the last two end without a following fade.
+            val position = if (i == 0) "first" else Math.min(mPages.size - i, 3).toString()
+            val key = sha1Hex("$settings|$position|${mPages[i].getVideoFingerprint(context)}|$nextPage")
+            keys.add(key)
+
+            segments.add {
+                val stored = store.load(key, startUs)
+                if (stored != null) {
+                    mReusedSegments.incrementAndGet()
+                    stored
+                } else {
+                    val drawer = StoryFrameDrawer(context, videoFormat, mPages, mAudioTransitionUs, mSlideCrossFadeUs, 0, endFrame, startUs,
+                            bitmapCache = mBitmapCache)
+                    val encoder = PipedVideoSurfaceEncoder()
+                    encoder.addSource(drawer)
+                    val segment = EncodedVideoSegment.encode(encoder, scratchDir, startUs)
+                    store.save(key, segment)
+                    segment
+                }
+            }
+        }
+        mSegmentKeys = keys
+        Log.i(TAG, "Assembling video from ${starts.size} slide segments with $videoWorkers workers")
+        return PipedVideoSegmentStitcher(segments, videoWorkers)
+    }
+
+    private fun getVideoSettings(videoFormat: MediaFormat): String {
+        val sb = StringBuilder("$SEGMENT_FORMAT_VERSION|").append(videoFormat.getString(MediaFormat.KEY_MIME))
+        for (key in VIDEO_SETTING_KEYS) {
+            sb.append('|').append(if (videoFormat.containsKey(key)) videoFormat.getInteger(key) else "")
+        }
+        return sb.toString()
     }
 
     override fun close() {
+        mIsClosed = true
         if (mMuxer != null) {
             Log.i(TAG, "Closing media pipeline. Subsequent logged errors may not be cause for concern.")
             mMuxer!!.close()
         }
+        mPipeline?.cancel()
         isDone = true
     }
 
     companion object {
         private val TAG = "StoryMaker"
         private val SOUNDTRACK_FADE_OUT_US: Long = 1000000
+        private val SEGMENTS_PER_WORKER = 2
+
+        //Bump when the way frames are drawn changes, so stored segments are not reused.
+        private val SEGMENT_FORMAT_VERSION = 4
+        private val VIDEO_SETTING_KEYS = arrayOf(MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT, MediaFormat.KEY_BIT_RATE,
+                MediaFormat.KEY_FRAME_RATE, MediaFormat.KEY_I_FRAME_INTERVAL, MediaFormat.KEY_COLOR_FORMAT)
+
+        private val AUDIO_FORMAT_KEYS = arrayOf(MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT,
+                MediaFormat.KEY_BIT_RATE, MediaFormat.KEY_AAC_PROFILE)
+
+        /**
+         * Check whether two audio formats would produce the same encoded audio.
+         */
+        fun isSameAudioFormat(a: MediaFormat, b: MediaFormat): Boolean {
+            if (a.getString(MediaFormat.KEY_MIME) != b.getString(MediaFormat.KEY_MIME)) {
+                return false
+            }
+            for (key in AUDIO_FORMAT_KEYS) {
+                val aValue = if (a.containsKey(key)) a.getInteger(key) else null
+                val bValue = if (b.containsKey(key)) b.getInteger(key) else null
+                if (aValue != bValue) {
+                    return false
+                }
+            }
+            return true
+        }
 
         /**
          * Get the expected duration, in microseconds, of the produced video.
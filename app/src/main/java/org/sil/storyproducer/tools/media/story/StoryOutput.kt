@@ -0,0 +1,27 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.media.MediaFormat
+import java.io.File
+
+/**
+ * Another file for [StoryMaker] to render the story into during the same pass as its main output,
+ * e.g. a low resolution 3GP copy of an MP4 export (see [StoryMaker.addOutput]).
+ *
+ * The narration and soundtrack are only decoded and mixed once for every output. If [audioFormat]
+ * matches the main audio format, the encoded audio is shared as well. Video frames are drawn for
+ * each output at its own size and frame rate, from the same slides and timeline.
+ *
+ * @param file output file.
+ * @param outputFormat the format of the output media file
+ * (from [android.media.MediaMuxer.OutputFormat]).
+ * @param videoFormat desired output video format, or null for no video.
+ * @param audioFormat desired output audio format. It must have the sample rate and channel count
+ * of the main audio format.
+ */
+class StoryOutput(val file: File, val outputFormat: Int, val videoFormat: MediaFormat?, val audioFormat: MediaFormat) {
+
+    /** Whether the last render finished this output. */
+    @Volatile
+    var isSuccess = false
+        internal set
+}
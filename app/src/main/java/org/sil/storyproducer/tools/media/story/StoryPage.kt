@@ -1,8 +1,15 @@
 package org.sil.storyproducer.tools.media.story
 
+import android.content.Context
 import org.sil.storyproducer.model.SlideType
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.getStoryChildInputStream
+import org.sil.storyproducer.tools.file.getStoryFileStats
 import org.sil.storyproducer.tools.media.graphics.KenBurnsEffect
 import org.sil.storyproducer.tools.media.graphics.TextOverlay
+import org.sil.storyproducer.tools.toHex
+import java.io.IOException
+import java.security.MessageDigest
 
 /**
  * One StoryPage represents a unit of a story that will go into video format. Each StoryPage has
@@ -12,7 +19,11 @@ import org.sil.storyproducer.tools.media.graphics.TextOverlay
 class StoryPage
 
 (val imRelPath: String = "", val narrationAudioPath: String = "", private val mDuration: Long, val kenBurnsEffect: KenBurnsEffect? = null,
- val textOverlay: TextOverlay? = null, val soundtrackAudioPath: String = "", val soundtrackVolume: Float = 0.25f, val sType: SlideType = SlideType.NONE) {
+ val textOverlay: TextOverlay? = null, val soundtrackAudioPath: String = "", val soundtrackVolume: Float = 0.25f, val sType: SlideType = SlideType.NONE,
+ val dirRoot: String = Workspace.activeDirRoot) {
+
+    @Volatile
+    private var mVideoFingerprint: String? = null
 
     /**
      * Get the audio duration without any transition time.
@@ -29,4 +40,48 @@ class StoryPage
         //audio duration plus two half audio transition periods of silence on either end
         return audioDuration + audioTransition
     }
-}
\ No newline at end of file
+
+    /**
+     * Get a hash of everything that affects how this page looks in the video: the image path and
+     * bytes, duration, Ken Burns effect, text overlay and slide type. It is computed once.
+     */
+    fun getVideoFingerprint(context: Context): String {
+        mVideoFingerprint?.let { return it }
+
+        val digest = MessageDigest.getInstance("SHA-1")
+        digest.update("$imRelPath|$mDuration|${kenBurnsEffect?.getFingerprint()}|${textOverlay?.getFingerprint()}|$sType|".toByteArray())
+        if (imRelPath != "") {
+            try {
+                getStoryChildInputStream(context, imRelPath, dirRoot)?.use {
+                    val buffer = ByteArray(BUFFER_SIZE)
+                    var read = it.read(buffer)
+                    while (read >= 0) {
+                        digest.update(buffer, 0, read)
+                        read = it.read(buffer)
+                    }
+                }
+            } catch (e: IOException) {
+                //A missing image is drawn as black, which the path alone describes.
+            }
+        }
+        val fingerprint = digest.digest().toHex()
+        mVideoFingerprint = fingerprint
+        return fingerprint
+    }
+
+    /**
+     * Get a hash of all the content of this page: what [getVideoFingerprint] covers plus the
+     * narration file, soundtrack and soundtrack volume.
+     */
+    fun getFingerprint(context: Context): String {
+        val narrationStats = getStoryFileStats(context, narrationAudioPath, dirRoot)
+        val digest = MessageDigest.getInstance("SHA-1")
+        digest.update(("${getVideoFingerprint(context)}|$narrationAudioPath|${narrationStats?.joinToString(",")}|"
+                + "$soundtrackAudioPath|$soundtrackVolume").toByteArray())
+        return digest.digest().toHex()
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+    }
+}
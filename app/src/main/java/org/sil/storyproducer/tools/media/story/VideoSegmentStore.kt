@@ -0,0 +1,91 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.content.Context
+import android.util.Log
+import org.sil.storyproducer.model.PROJECT_DIR
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.deleteStoryFile
+import org.sil.storyproducer.tools.file.getChildDocuments
+import org.sil.storyproducer.tools.file.getStoryChildInputStream
+import org.sil.storyproducer.tools.file.getStoryChildOutputStream
+import org.sil.storyproducer.tools.media.pipe.EncodedVideoSegment
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.File
+
+/**
+ * Keeps the video segments of the last export in the story's project directory, so the next
+ * export only has to encode the segments whose slides changed.
+ *
+ * Segments are stored under a key that covers everything their frames depend on (see
+ * [StoryMaker]); a segment is never updated in place, only replaced under a new key.
+ *
+ * @param mRelDir story relative directory of the stored segments.
+ * @param mScratchDir local directory for segments while they are being muxed.
+ * @param mDirRoot story directory the segments are stored in.
+ */
+class VideoSegmentStore(private val context: Context, private val mRelDir: String = "$PROJECT_DIR/$SEGMENT_DIR",
+                        private val mScratchDir: File = context.cacheDir,
+                        private val mDirRoot: String = Workspace.activeDirRoot) {
+
+    /**
+     * Load a stored segment.
+     * @param startUs presentation time at which the segment starts in this export.
+     * @return the segment, or null if there is no complete segment under that key.
+     */
+    fun load(key: String, startUs: Long): EncodedVideoSegment? {
+        val relPath = getRelPath(key)
+        val input = getStoryChildInputStream(context, relPath, mDirRoot) ?: return null
+        try {
+            return BufferedInputStream(input).use { EncodedVideoSegment.read(it, mScratchDir, startUs) }
+        } catch (e: Exception) {
+            Log.w(TAG, "Discarding unreadable segment $key", e)
+            deleteStoryFile(context, relPath, mDirRoot)
+            return null
+        }
+    }
+
+    /**
+     * Store a segment under a key. Failures are logged; the segment is simply encoded again next time.
+     */
+    fun save(key: String, segment: EncodedVideoSegment) {
+        val relPath = getRelPath(key)
+        try {
+            val output = getStoryChildOutputStream(context, relPath, "", mDirRoot) ?: return
+            BufferedOutputStream(output).use { segment.write(it) }
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to store segment $key", e)
+            deleteStoryFile(context, relPath, mDirRoot)
+        }
+    }
+
+    /**
+     * Delete every stored segment that is not in [keys].
+     */
+    fun retainOnly(keys: Collection<String>) {
+        val keep = keys.map { it + EXTENSION }.toHashSet()
+        for (name in getChildDocuments(context, "$mDirRoot/$mRelDir")) {
+            if (!keep.contains(name)) {
+                deleteStoryFile(context, "$mRelDir/$name", mDirRoot)
+            }
+        }
+    }
+
+    /**
+     * Delete every stored segment.
+     */
+    fun clear() {
+        retainOnly(emptyList())
+    }
+
+    private fun getRelPath(key: String): String {
+        return "$mRelDir/$key$EXTENSION"
+    }
+
+    companion object {
+        private val TAG = "VideoSegmentStore"
+
+        const val SEGMENT_DIR = "segments"
+        private const val EXTENSION = ".seg"
+    }
+}
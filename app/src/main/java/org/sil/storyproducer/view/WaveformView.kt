@@ -0,0 +1,116 @@
+package org.sil.storyproducer.view
+
+import android.content.Context
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.util.AttributeSet
+import android.view.View
+import androidx.core.content.ContextCompat
+import org.sil.storyproducer.R
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.media.WaveformPeaks
+import org.sil.storyproducer.tools.media.WaveformStore
+import java.util.concurrent.Future
+
+/**
+ * Draws the waveform of a recording from its stored peaks (see [WaveformStore]).
+ *
+ * The peaks are loaded in the background while the view is attached to a window. Detaching it,
+ * setting another recording or [clear]ing it cancels the load, so a list only decodes the
+ * recordings it shows.
+ */
+class WaveformView @JvmOverloads constructor(context: Context, attrs: AttributeSet? = null, defStyleAttr: Int = 0)
+    : View(context, attrs, defStyleAttr) {
+
+    private val mPaint = Paint()
+    private var mPeaks: WaveformPeaks? = null
+    private var mRelPath = ""
+    private var mDirRoot = ""
+    private var mRequest: Future<*>? = null
+
+    init {
+        mPaint.color = ContextCompat.getColor(context, R.color.white)
+        mPaint.strokeWidth = 1f
+    }
+
+    /**
+     * Show the waveform of a recording, once its peaks are loaded.
+     */
+    fun setRecording(relPath: String, dirRoot: String = Workspace.activeDirRoot) {
+        if (relPath == mRelPath && dirRoot == mDirRoot) {
+            return
+        }
+        clear()
+        mRelPath = relPath
+        mDirRoot = dirRoot
+        if (isAttachedToWindow) {
+            load()
+        }
+    }
+
+    /**
+     * Stop loading and show nothing.
+     */
+    fun clear() {
+        cancelLoad()
+        mRelPath = ""
+        mDirRoot = ""
+        if (mPeaks != null) {
+            mPeaks = null
+            invalidate()
+        }
+    }
+
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        if (mRelPath != "" && mPeaks == null) {
+            load()
+        }
+    }
+
+    override fun onDetachedFromWindow() {
+        //Scrolled away or closed; loading starts again if it comes back.
+        cancelLoad()
+        super.onDetachedFromWindow()
+    }
+
+    private fun load() {
+        if (mRequest != null) {
+            return
+        }
+        val relPath = mRelPath
+        val dirRoot = mDirRoot
+        mRequest = WaveformStore.load(context, relPath, dirRoot) { peaks ->
+            if (relPath == mRelPath && dirRoot == mDirRoot) {
+                mRequest = null
+                mPeaks = peaks
+                invalidate()
+            }
+        }
+    }
+
+    private fun cancelLoad() {
+        mRequest?.cancel(true)
+        mRequest = null
+    }
+
+    override fun onDraw(canvas: Canvas) {
+        super.onDraw(canvas)
+        val peaks = mPeaks ?: return
+        val width = width - paddingLeft - paddingRight
+        val height = height - paddingTop - paddingBottom
+        if (width <= 0 || height <= 0 || peaks.size == 0) {
+            return
+        }
+
+        val middle = paddingTop + height / 2f
+        val scale = height / 2f / 128
+        for (x in 0 until width) {
+            val slice = x * peaks.size / width
+            val left = (paddingLeft + x).toFloat()
+            //At least a pixel high, so silence still shows as a line.
+            canvas.drawLine(left, middle - Math.max(peaks.max[slice] * scale, 0.5f),
+                    left, middle - Math.min(peaks.min[slice] * scale, -0.5f), mPaint)
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.sil.storyproducer.model
+
+import android.graphics.Rect
+import com.squareup.moshi.Moshi
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class StorySummaryIndexTest {
+
+    @Test
+    fun matches_When_StoryFileIsUnchanged_Should_ReturnTrue() {
+        val summary = StorySummary("01 Creation")
+        summary.size = 1234
+        summary.modified = 5678
+
+        Assert.assertTrue(summary.matches(longArrayOf(1234, 5678)))
+        Assert.assertFalse(summary.matches(longArrayOf(1234, 9999)))
+        Assert.assertFalse(summary.matches(longArrayOf(4321, 5678)))
+    }
+
+    @Test
+    fun update_Should_CopyWhatTheListShows() {
+        val story = makeStory("201 Lost Coin", 5)
+        story.langCode = "en"
+        story.slides[2].translateReviseAudioFiles.add("translation.m4a")
+        story.addVideo("201 Lost Coin.mp4")
+
+        val summary = StorySummary(story.title)
+        summary.update(story)
+
+        Assert.assertEquals("en", summary.langCode)
+        Assert.assertEquals("Subtitle 0", summary.subtitle)
+        Assert.assertEquals("1.jpg", summary.imageFile)
+        Assert.assertTrue(summary.inProgress)
+        Assert.assertTrue(summary.isComplete)
+        Assert.assertEquals(Story.StoryType.NEW_TESTAMENT, summary.type)
+    }
+
+    @Test
+    fun update_When_StoryHasNoPages_Should_LeaveTheImageEmpty() {
+        val summary = StorySummary("Empty")
+        summary.update(Story("Empty", ArrayList()))
+
+        Assert.assertEquals("", summary.subtitle)
+        Assert.assertEquals("", summary.imageFile)
+        Assert.assertFalse(summary.inProgress)
+        Assert.assertFalse(summary.isComplete)
+    }
+
+    @Test
+    fun jsonAdapter_Should_KeepEverySummary() {
+        val adapter = StorySummaryList.jsonAdapter(Moshi.Builder().build())
+        val list = StorySummaryList(listOf(makeSummary(makeStory("01 Creation", 3)),
+                makeSummary(makeStory("02 Fall", 3))))
+
+        val read = adapter.fromJson(adapter.toJson(list))!!
+
+        Assert.assertEquals(listOf("01 Creation", "02 Fall"), read.stories.map { it.title })
+        Assert.assertEquals("1.jpg", read.stories[1].imageFile)
+        Assert.assertTrue(read.stories[0].matches(longArrayOf(100, 200)))
+    }
+
+    @Test
+    fun fromJson_When_ReadingTheStoryList_Should_GiveWhatEveryStoryWouldInAFractionOfTheText() {
+        val moshi = Moshi.Builder().add(RectAdapter()).add(UriAdapter()).build()
+        val storyAdapter = Story.jsonAdapter(moshi)
+        val listAdapter = StorySummaryList.jsonAdapter(moshi)
+        //Stories with a typical number of pages.
+        val stories = (0 until 50).map { makeStory("%03d Story".format(it), 30) }
+        val storyFiles = stories.map { storyAdapter.toJson(it) }
+        val indexFile = listAdapter.toJson(StorySummaryList(stories.map { makeSummary(it) }))
+
+        val fromStories = storyFiles.map { makeSummary(storyAdapter.fromJson(it)!!) }
+        val fromIndex = listAdapter.fromJson(indexFile)!!.stories
+
+        Assert.assertEquals(fromStories.map { it.title }, fromIndex.map { it.title })
+        Assert.assertEquals(fromStories.map { it.imageFile }, fromIndex.map { it.imageFile })
+        Assert.assertEquals(fromStories.map { it.subtitle }, fromIndex.map { it.subtitle })
+        Assert.assertTrue(indexFile.length * 10 < storyFiles.sumBy { it.length })
+    }
+
+    private fun makeStory(title: String, slideCount: Int): Story {
+        val slides = (0 until slideCount).map { i ->
+            Slide().apply {
+                subtitle = "Subtitle $i"
+                imageFile = "$i.jpg"
+                content = "The text of page $i, which is usually a sentence or two long."
+                translatedContent = "The translation of page $i."
+                crop = Rect(0, 0, 1500, 1125)
+                startMotion = Rect(0, 0, 1500, 1125)
+                endMotion = Rect(100, 75, 1400, 1050)
+                translateReviseAudioFiles.add("Translation $i|translation_$i.m4a")
+                voiceStudioAudioFiles.add("Voice $i|voice_$i.m4a")
+            }
+        }
+        return Story(title, slides)
+    }
+
+    private fun makeSummary(story: Story): StorySummary {
+        val summary = StorySummary(story.title)
+        summary.update(story)
+        summary.size = 100
+        summary.modified = 200
+        return summary
+    }
+}
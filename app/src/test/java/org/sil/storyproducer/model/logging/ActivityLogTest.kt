@@ -0,0 +1,185 @@
+package org.sil.storyproducer.model.logging
+
+import android.content.Context
+import androidx.documentfile.provider.DocumentFile
+import androidx.test.core.app.ApplicationProvider
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.shadows.ShadowLooper
+import org.sil.storyproducer.model.Phase
+import org.sil.storyproducer.model.PhaseType
+import org.sil.storyproducer.model.Story
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.service.PersistenceService
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class ActivityLogTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var context: Context
+
+    @Before
+    fun setup() {
+        context = ApplicationProvider.getApplicationContext()
+        Workspace.workdocfile = DocumentFile.fromFile(folder.root)
+        //Nothing left waiting by another test.
+        PersistenceService.flush()
+    }
+
+    @Test
+    fun decode_When_EncodedEntry_Should_ReturnTheSameEntry() {
+        val entry = LogEntry("Fri Jun 04 2021 3:07 PM", "Draft Playback", Phase(PhaseType.TRANSLATE_REVISE), 3, 3)
+
+        val read = ActivityLog.decode(ActivityLog.encode(entry))!!
+
+        Assert.assertEquals(entry.dateTimeString, read.dateTimeString)
+        Assert.assertEquals(entry.description, read.description)
+        Assert.assertEquals(PhaseType.TRANSLATE_REVISE, read.phase.phaseType)
+        Assert.assertEquals(3, read.startSlideNum)
+        Assert.assertEquals(3, read.endSlideNum)
+    }
+
+    @Test
+    fun encode_When_DescriptionHasSeparators_Should_WriteOneLine() {
+        val description = "Tab\there, a new line\nand a back\\slash\\t"
+        val entry = LogEntry("Fri Jun 04 2021 3:07 PM", description, Phase(PhaseType.LEARN), 1, 4)
+
+        val line = ActivityLog.encode(entry)
+
+        Assert.assertFalse(line.contains('\n'))
+        Assert.assertEquals(description, ActivityLog.decode(line)!!.description)
+    }
+
+    @Test
+    fun decode_When_LineIsCutShort_Should_ReturnNull() {
+        val line = ActivityLog.encode(LogEntry("Fri Jun 04 2021 3:07 PM", "Draft Recording", Phase(PhaseType.TRANSLATE_REVISE), 2, 2))
+
+        Assert.assertNull(ActivityLog.decode(line.substring(0, line.lastIndexOf('\t'))))
+        Assert.assertNull(ActivityLog.decode("Fri Jun 04 2021 3:07 PM\tNOT_A_PHASE\t2\t2\tDraft Recording"))
+    }
+
+    @Test
+    fun slideNums_Should_MatchAppliesToSlideNum() {
+        val entries = listOf(
+                LogEntry("", "", Phase(PhaseType.LEARN), 2, 5),
+                LogEntry("", "", Phase(PhaseType.LEARN), 5, 2),
+                LogEntry("", "", Phase(PhaseType.TRANSLATE_REVISE), 2, 5),
+                LogEntry("", "", Phase(PhaseType.COMMUNITY_WORK), 4, 4))
+
+        for (entry in entries) {
+            for (slideNum in 0..7) {
+                Assert.assertEquals(entry.appliesToSlideNum(slideNum), slideNum in entry.slideNums)
+            }
+        }
+    }
+
+    @Test
+    fun migrate_Should_MoveTheLogIntoTheLogFile() {
+        val story = Story(STORY, ArrayList())
+        val entries = listOf(entry("Draft Recording", 1), entry("Draft Playback", 2))
+        story.activityLogs.addAll(entries)
+
+        ActivityLog.migrate(context, story)
+        PersistenceService.flush()
+
+        Assert.assertTrue(story.activityLogs.isEmpty())
+        Assert.assertEquals(entries.joinToString("") { ActivityLog.encode(it) + "\n" }, logFile().readText())
+    }
+
+    @Test
+    fun migrate_When_LogFileCannotBeWritten_Should_KeepTheLogInTheStory() {
+        val story = Story(STORY, ArrayList())
+        story.activityLogs.add(entry("Draft Recording", 1))
+        //A file where the project folder should be.
+        val project = File(folder.root, "$STORY/project")
+        project.parentFile!!.mkdirs()
+        project.writeText("")
+
+        ActivityLog.migrate(context, story)
+        PersistenceService.flush()
+
+        Assert.assertEquals(listOf("Draft Recording"), story.activityLogs.map { it.description })
+    }
+
+    @Test
+    fun migrate_When_LogWasAlreadyMoved_Should_NotMoveItAgain() {
+        val story = Story(STORY, ArrayList())
+        val entries = listOf(entry("Draft Recording", 1), entry("Draft Playback", 2))
+        story.activityLogs.addAll(entries)
+        //Moved before, but the app stopped before the story.json was saved without it.
+        val logged = entries.joinToString("") { ActivityLog.encode(it) + "\n" } +
+                ActivityLog.encode(entry("Comment Recording", 3)) + "\n"
+        writeLog(logged)
+
+        ActivityLog.migrate(context, story)
+        PersistenceService.flush()
+
+        Assert.assertTrue(story.activityLogs.isEmpty())
+        Assert.assertEquals(logged, logFile().readText())
+    }
+
+    @Test
+    fun getEntries_When_EntryIsAddedWhileTheLogIsRead_Should_IndexIt() {
+        val story = Story(STORY, ArrayList())
+        val first = entry("Draft Recording", 1)
+        writeLog(ActivityLog.encode(first) + "\n")
+        var loaded: List<LogEntry>? = null
+
+        ActivityLog.getEntries(context, story, 1) { loaded = it }
+        ActivityLog.add(context, story, entry("Draft Playback", 1))
+        ActivityLog.add(context, story, entry("Comment Recording", 2))
+        PersistenceService.flush()
+        ShadowLooper.idleMainLooper()
+
+        Assert.assertEquals(listOf("Draft Recording"), loaded!!.map { it.description })
+
+        ActivityLog.getEntries(context, story, 1) { loaded = it }
+        ShadowLooper.idleMainLooper()
+
+        Assert.assertEquals(listOf("Draft Recording", "Draft Playback"), loaded!!.map { it.description })
+    }
+
+    @Test
+    fun getEntries_When_EntryIsAddedAfterTheLogWasRead_Should_IndexIt() {
+        val story = Story(STORY, ArrayList())
+        var loaded: List<LogEntry>? = null
+        ActivityLog.getEntries(context, story, 4) { loaded = it }
+        PersistenceService.flush()
+        ShadowLooper.idleMainLooper()
+        Assert.assertEquals(emptyList<LogEntry>(), loaded)
+
+        ActivityLog.add(context, story, entry("Draft Recording", 4))
+        PersistenceService.flush()
+        ActivityLog.getEntries(context, story, 4) { loaded = it }
+        ShadowLooper.idleMainLooper()
+
+        Assert.assertEquals(listOf("Draft Recording"), loaded!!.map { it.description })
+        Assert.assertEquals(ActivityLog.encode(loaded!![0]) + "\n", logFile().readText())
+    }
+
+    private fun entry(description: String, slideNum: Int): LogEntry {
+        return LogEntry("Fri Jun 04 2021 3:07 PM", description, Phase(PhaseType.TRANSLATE_REVISE), slideNum, slideNum)
+    }
+
+    private fun logFile(): File {
+        return File(folder.root, "$STORY/${ActivityLog.LOG_FILE}")
+    }
+
+    private fun writeLog(text: String) {
+        val file = logFile()
+        file.parentFile!!.mkdirs()
+        file.writeText(text)
+    }
+
+    companion object {
+        private const val STORY = "Story"
+    }
+}
@@ -0,0 +1,123 @@
+package org.sil.storyproducer.service
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class ExportQueueTest {
+
+    private lateinit var context: Context
+
+    @Before
+    fun setup() {
+        context = ApplicationProvider.getApplicationContext()
+        File(context.filesDir, "export_queue.json").delete()
+        ExportQueue.unload()
+    }
+
+    @After
+    fun tearDown() {
+        ExportQueue.unload()
+    }
+
+    @Test
+    fun finish_When_AttemptsRemain_Should_QueueJobAgainAfterTheOthers() {
+        val first = ExportJob("Story A", "a.mp4")
+        val second = ExportJob("Story B", "b.mp4")
+        ExportQueue.enqueue(context, first)
+        ExportQueue.enqueue(context, second)
+
+        val job = ExportQueue.takeNext(context)!!
+        ExportQueue.finish(context, job, false, "codec error")
+
+        Assert.assertSame(first, job)
+        Assert.assertEquals(ExportJob.Status.QUEUED, first.status)
+        Assert.assertEquals("codec error", first.error)
+        Assert.assertSame(second, ExportQueue.takeNext(context))
+        Assert.assertSame(first, ExportQueue.takeNext(context))
+        Assert.assertEquals(2, first.attempts)
+    }
+
+    @Test
+    fun finish_When_OutOfAttempts_Should_FailJob() {
+        val job = ExportJob("Story A", "a.mp4")
+        ExportQueue.enqueue(context, job)
+
+        for (i in 0 until ExportQueue.MAX_ATTEMPTS) {
+            Assert.assertSame(job, ExportQueue.takeNext(context))
+            ExportQueue.finish(context, job, false, "codec error")
+        }
+
+        Assert.assertEquals(ExportJob.Status.FAILED, job.status)
+        Assert.assertNull(ExportQueue.takeNext(context))
+    }
+
+    @Test
+    fun cancel_When_Queued_Should_NeverRunJob() {
+        val job = ExportJob("Story A", "a.mp4")
+        ExportQueue.enqueue(context, job)
+
+        ExportQueue.cancel(context, job.id)
+
+        Assert.assertEquals(ExportJob.Status.CANCELLED, job.status)
+        Assert.assertNull(ExportQueue.takeNext(context))
+    }
+
+    @Test
+    fun getJobs_When_AppWasClosedDuringExport_Should_QueueRunningJobAgain() {
+        val done = ExportJob("Story A", "a.mp4")
+        val running = ExportJob("Story B", "b.mp4", includeSong = true)
+        ExportQueue.enqueue(context, done)
+        ExportQueue.enqueue(context, running)
+        ExportQueue.finish(context, ExportQueue.takeNext(context)!!, true, "")
+        ExportQueue.takeNext(context)
+
+        //Read the saved queue, as when the app starts again.
+        ExportQueue.unload()
+        val jobs = ExportQueue.getJobs(context)
+
+        Assert.assertEquals(listOf(done.id, running.id), jobs.map { it.id })
+        Assert.assertEquals(ExportJob.Status.DONE, jobs[0].status)
+        Assert.assertEquals(ExportJob.Status.QUEUED, jobs[1].status)
+        Assert.assertEquals(1, jobs[1].attempts)
+        Assert.assertTrue(jobs[1].includeSong)
+    }
+
+    @Test
+    fun enqueue_When_StoryHasUnfinishedJob_Should_RejectJob() {
+        val first = ExportJob("Story A", "a.mp4")
+        val second = ExportJob("Story A", "a_Tx.mp4", includeText = true)
+        Assert.assertTrue(ExportQueue.enqueue(context, first))
+
+        Assert.assertFalse(ExportQueue.enqueue(context, second))
+        Assert.assertEquals(listOf(first.id), ExportQueue.getJobs(context).map { it.id })
+
+        ExportQueue.finish(context, ExportQueue.takeNext(context)!!, true, "")
+        Assert.assertTrue(ExportQueue.enqueue(context, second))
+        Assert.assertSame(second, ExportQueue.getUnfinishedJob(context, "Story A"))
+    }
+
+    @Test
+    fun enqueue_Should_DropFinishedJobsFromTheSavedQueue() {
+        val done = ExportJob("Story A", "a.mp4")
+        val failed = ExportJob("Story B", "b.mp4")
+        ExportQueue.enqueue(context, done)
+        ExportQueue.enqueue(context, failed)
+        ExportQueue.finish(context, ExportQueue.takeNext(context)!!, true, "")
+        ExportQueue.finish(context, ExportQueue.takeNext(context)!!, false, "no codec", canRetry = false)
+        Assert.assertEquals(2, ExportQueue.getJobs(context).size)
+
+        val next = ExportJob("Story C", "c.mp4")
+        ExportQueue.enqueue(context, next)
+        ExportQueue.unload()
+
+        Assert.assertEquals(listOf(next.id), ExportQueue.getJobs(context).map { it.id })
+    }
+}
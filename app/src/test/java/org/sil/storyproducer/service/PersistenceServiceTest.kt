@@ -0,0 +1,111 @@
+package org.sil.storyproducer.service
+
+import android.content.Context
+import androidx.documentfile.provider.DocumentFile
+import androidx.test.core.app.ApplicationProvider
+import com.squareup.moshi.JsonAdapter
+import com.squareup.moshi.JsonReader
+import com.squareup.moshi.JsonWriter
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.sil.storyproducer.model.Workspace
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class PersistenceServiceTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var context: Context
+
+    @Before
+    fun setup() {
+        context = ApplicationProvider.getApplicationContext()
+        Workspace.workdocfile = DocumentFile.fromFile(folder.root)
+        //Nothing left waiting by another test.
+        PersistenceService.flush()
+    }
+
+    @Test
+    fun markChanged_Should_WriteOnlyOnceTheChangesStop() {
+        val writes = AtomicInteger()
+
+        PersistenceService.markChanged("test:debounce") { writes.incrementAndGet() }
+        Thread.sleep(PersistenceService.DEBOUNCE_MS / 2)
+        Assert.assertEquals(0, writes.get())
+
+        val deadline = System.currentTimeMillis() + PersistenceService.DEBOUNCE_MS * 3
+        while (writes.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50)
+        }
+        Assert.assertEquals(1, writes.get())
+    }
+
+    @Test
+    fun markChanged_When_SameFileChangesAgain_Should_OnlyWriteTheLastChange() {
+        val written = CopyOnWriteArrayList<Int>()
+        val coalesced = PersistenceService.coalescedCount
+
+        for (i in 1..3) {
+            PersistenceService.markChanged("test:coalesce") { written.add(i) }
+        }
+        PersistenceService.markChanged("test:other") { written.add(0) }
+        PersistenceService.flush()
+
+        Assert.assertEquals(listOf(3, 0), written)
+        Assert.assertEquals(coalesced + 2, PersistenceService.coalescedCount)
+    }
+
+    @Test
+    fun writeText_Should_ReplaceTheFileWithoutLeavingATemporaryFile() {
+        val file = storyFile("old")
+
+        Assert.assertTrue(PersistenceService.writeText(context, REL_PATH, STORY, "new"))
+
+        Assert.assertEquals("new", file.readText())
+        Assert.assertEquals(listOf(file.name), file.parentFile!!.list()!!.toList())
+    }
+
+    @Test
+    fun writeJson_When_WritingFails_Should_KeepTheOldFile() {
+        val file = storyFile("old")
+        val failing = object : JsonAdapter<String>() {
+            override fun fromJson(reader: JsonReader): String? = null
+            override fun toJson(writer: JsonWriter, value: String?) {
+                writer.beginObject()
+                throw IOException("disk full")
+            }
+        }
+
+        try {
+            PersistenceService.writeJson(context, REL_PATH, STORY, failing, "new")
+            Assert.fail("The failure was not reported")
+        } catch (e: IOException) {
+            //Expected.
+        }
+
+        Assert.assertEquals("old", file.readText())
+        Assert.assertEquals(listOf(file.name), file.parentFile!!.list()!!.toList())
+    }
+
+    private fun storyFile(text: String): File {
+        val file = File(folder.root, "$STORY/$REL_PATH")
+        file.parentFile!!.mkdirs()
+        file.writeText(text)
+        return file
+    }
+
+    companion object {
+        private const val STORY = "Story"
+        private const val REL_PATH = "project/test.json"
+    }
+}
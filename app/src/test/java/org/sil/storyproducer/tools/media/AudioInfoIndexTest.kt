@@ -0,0 +1,136 @@
+package org.sil.storyproducer.tools.media
+
+import android.content.Context
+import android.media.MediaMetadataRetriever
+import androidx.documentfile.provider.DocumentFile
+import androidx.test.core.app.ApplicationProvider
+import com.squareup.moshi.Moshi
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.shadows.ShadowMediaMetadataRetriever
+import org.robolectric.shadows.util.DataSource
+import org.sil.storyproducer.model.Workspace
+import org.sil.storyproducer.tools.file.getStoryUri
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class AudioInfoIndexTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var context: Context
+    private lateinit var audio: File
+
+    @Before
+    fun setup() {
+        context = ApplicationProvider.getApplicationContext()
+        Workspace.workdocfile = DocumentFile.fromFile(folder.root)
+        audio = File(folder.newFolder(STORY, "audio"), "1.m4a")
+        audio.writeBytes(ByteArray(100))
+        AudioInfoIndex.unload()
+    }
+
+    @After
+    fun tearDown() {
+        AudioInfoIndex.unload()
+    }
+
+    @Test
+    fun getDuration_When_FileIsIndexed_Should_NotProbeItAgain() {
+        setProbedDuration(3000)
+        Assert.assertEquals(3000000L, AudioInfoIndex.getDuration(context, AUDIO, STORY))
+
+        setProbedDuration(5000)
+
+        Assert.assertEquals(3000000L, AudioInfoIndex.getDuration(context, AUDIO, STORY))
+    }
+
+    @Test
+    fun getDuration_When_FileSizeChanged_Should_ProbeItAgain() {
+        setProbedDuration(3000)
+        AudioInfoIndex.getDuration(context, AUDIO, STORY)
+
+        setProbedDuration(5000)
+        audio.appendBytes(ByteArray(10))
+
+        Assert.assertEquals(5000000L, AudioInfoIndex.getDuration(context, AUDIO, STORY))
+    }
+
+    @Test
+    fun getDuration_When_FileModifiedTimeChanged_Should_ProbeItAgain() {
+        setProbedDuration(3000)
+        AudioInfoIndex.getDuration(context, AUDIO, STORY)
+
+        setProbedDuration(5000)
+        Assert.assertTrue(audio.setLastModified(audio.lastModified() - 60000))
+
+        Assert.assertEquals(5000000L, AudioInfoIndex.getDuration(context, AUDIO, STORY))
+    }
+
+    @Test
+    fun update_Should_ReplaceTheEntry() {
+        setProbedDuration(3000)
+        AudioInfoIndex.getDuration(context, AUDIO, STORY)
+
+        setProbedDuration(5000)
+        AudioInfoIndex.update(context, AUDIO, STORY)
+        //Only a probe could see this one.
+        setProbedDuration(7000)
+
+        Assert.assertEquals(5000000L, AudioInfoIndex.getDuration(context, AUDIO, STORY))
+    }
+
+    @Test
+    fun matches_When_FileIsUnchanged_Should_ReturnTrue() {
+        val info = AudioInfo(1234, 5678, 3000000)
+
+        Assert.assertTrue(info.matches(longArrayOf(1234, 5678)))
+    }
+
+    @Test
+    fun matches_When_FileWasRewritten_Should_ReturnFalse() {
+        val info = AudioInfo(1234, 5678, 3000000)
+
+        Assert.assertFalse(info.matches(longArrayOf(1234, 9999)))
+        Assert.assertFalse(info.matches(longArrayOf(4321, 5678)))
+    }
+
+    @Test
+    fun jsonAdapter_Should_KeepEveryEntry() {
+        val adapter = AudioInfoList.jsonAdapter(Moshi.Builder().build())
+        val list = AudioInfoList(hashMapOf(
+                "audio/1.m4a" to AudioInfo(100, 200, 3000000, "audio/mp4", 705600, 44100),
+                "audio/2.m4a" to AudioInfo(300, 400, 0)))
+
+        val read = adapter.fromJson(adapter.toJson(list))!!
+
+        Assert.assertEquals(2, read.files.size)
+        val first = read.files["audio/1.m4a"]!!
+        Assert.assertEquals(3000000L, first.durationUs)
+        Assert.assertEquals("audio/mp4", first.mimeType)
+        Assert.assertEquals(705600, first.bitRate)
+        Assert.assertEquals(44100, first.sampleRate)
+        Assert.assertTrue(first.matches(longArrayOf(100, 200)))
+        Assert.assertEquals("", read.files["audio/2.m4a"]!!.mimeType)
+    }
+
+    /**
+     * Set the duration the next probe of the test file reads.
+     */
+    private fun setProbedDuration(ms: Long) {
+        ShadowMediaMetadataRetriever.addMetadata(DataSource.toDataSource(context, getStoryUri(AUDIO, STORY)!!),
+                MediaMetadataRetriever.METADATA_KEY_DURATION, ms.toString())
+    }
+
+    companion object {
+        private const val STORY = "Story"
+        private const val AUDIO = "audio/1.m4a"
+    }
+}
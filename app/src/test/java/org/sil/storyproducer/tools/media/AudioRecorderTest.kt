@@ -0,0 +1,116 @@
+package org.sil.storyproducer.tools.media
+
+import com.googlecode.mp4parser.FileDataSourceImpl
+import com.googlecode.mp4parser.authoring.Movie
+import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator
+import com.googlecode.mp4parser.authoring.tracks.AACTrackImpl
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+
+class AudioRecorderTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun appendByRemuxing_When_FormatsMatch_Should_CopyEverySample() {
+        val org = recording("org", RATE_44100, 1, 5)
+        val append = recording("append", RATE_44100, 1, 3)
+        val dest = File(folder.root, "joined.m4a")
+
+        Assert.assertTrue(join(org, append, dest))
+
+        val track = MovieCreator.build(dest.path).tracks.single()
+        Assert.assertEquals(8, track.samples.size)
+        Assert.assertEquals(44100L, track.trackMetaData.timescale)
+        //1024 samples of audio per AAC frame.
+        Assert.assertEquals(8 * 1024L, track.duration)
+    }
+
+    @Test
+    fun appendByRemuxing_When_SampleRatesDiffer_Should_ReturnFalse() {
+        val org = recording("org", RATE_44100, 1, 5)
+        val append = recording("append", RATE_22050, 1, 3)
+        val dest = File(folder.root, "joined.m4a")
+
+        //concatenateAudioFiles re-encodes both recordings instead.
+        Assert.assertFalse(join(org, append, dest))
+        Assert.assertFalse(dest.exists())
+    }
+
+    @Test
+    fun appendByRemuxing_When_ChannelCountsDiffer_Should_ReturnFalse() {
+        val org = recording("org", RATE_44100, 1, 5)
+        val append = recording("append", RATE_44100, 2, 3)
+        val dest = File(folder.root, "joined.m4a")
+
+        Assert.assertFalse(join(org, append, dest))
+        Assert.assertFalse(dest.exists())
+    }
+
+    @Test
+    fun appendByRemuxing_When_AacProfilesDiffer_Should_ReturnFalse() {
+        //Same rate and channels, but a different AudioSpecificConfig, as from another encoder.
+        val org = recording("org", RATE_44100, 1, 5)
+        val append = recording("append", RATE_44100, 1, 3, PROFILE_MAIN)
+        val dest = File(folder.root, "joined.m4a")
+
+        Assert.assertFalse(join(org, append, dest))
+        Assert.assertFalse(dest.exists())
+    }
+
+    private fun join(org: File, append: File, dest: File): Boolean {
+        FileInputStream(org).use { orgStream ->
+            FileInputStream(append).use { appendStream ->
+                return AudioRecorder.appendByRemuxing(orgStream.channel, appendStream.channel, dest)
+            }
+        }
+    }
+
+    /**
+     * Write an MP4 file holding one AAC track of silent frames, as the recorder would.
+     */
+    private fun recording(name: String, frequencyIndex: Int, channels: Int, count: Int, profile: Int = PROFILE_LC): File {
+        val adts = File(folder.root, "$name.aac")
+        adts.writeBytes(adtsFrames(frequencyIndex, channels, count, profile))
+        val movie = Movie()
+        movie.addTrack(AACTrackImpl(FileDataSourceImpl(adts)))
+        val file = File(folder.root, "$name.m4a")
+        FileOutputStream(file).channel.use { DefaultMp4Builder().build(movie).writeContainer(it) }
+        return file
+    }
+
+    /**
+     * AAC frames with an ADTS header each and nothing after it but padding.
+     */
+    private fun adtsFrames(frequencyIndex: Int, channels: Int, count: Int, profile: Int): ByteArray {
+        val length = 7 + PAYLOAD_BYTES
+        val header = byteArrayOf(0xFF.toByte(), 0xF1.toByte(),
+                ((profile shl 6) or (frequencyIndex shl 2) or (channels shr 2)).toByte(),
+                (((channels and 3) shl 6) or (length shr 11)).toByte(),
+                ((length shr 3) and 0xFF).toByte(),
+                (((length and 7) shl 5) or 0x1F).toByte(),
+                0xFC.toByte())
+        var frames = ByteArray(0)
+        for (i in 0 until count) {
+            frames += header + ByteArray(PAYLOAD_BYTES)
+        }
+        return frames
+    }
+
+    companion object {
+        //ADTS sampling frequency indexes.
+        private const val RATE_44100 = 4
+        private const val RATE_22050 = 7
+        //ADTS profiles, one less than the audio object type.
+        private const val PROFILE_MAIN = 0
+        private const val PROFILE_LC = 1
+        private const val PAYLOAD_BYTES = 16
+    }
+}
@@ -0,0 +1,118 @@
+package org.sil.storyproducer.tools.media
+
+import org.junit.Assert
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+
+class Mp3ConcatenatorTest {
+
+    @Test
+    fun getFrameLength_When_128kAt44100_Should_Be417() {
+        Assert.assertTrue(Mp3Concatenator.isValidHeader(STEREO_44100))
+        Assert.assertEquals(417, Mp3Concatenator.getFrameLength(STEREO_44100))
+        Assert.assertEquals(44100, Mp3Concatenator.getSampleRate(STEREO_44100))
+    }
+
+    @Test
+    fun isValidHeader_When_NotLayer3_Should_ReturnFalse() {
+        //Layer II
+        Assert.assertFalse(Mp3Concatenator.isValidHeader(STEREO_44100 or 0x40000))
+    }
+
+    @Test
+    fun concatenate_Should_WriteAnInfoFrameThenEveryFrame() {
+        val output = ByteArrayOutputStream()
+
+        val joined = Mp3Concatenator.concatenate(listOf(open(frames(STEREO_44100, 3, 1)), open(frames(STEREO_44100, 2, 2))), output)
+
+        Assert.assertTrue(joined)
+        val bytes = output.toByteArray()
+        val infoLength = Mp3Concatenator.getFrameLength(readInt(bytes, 0))
+        Assert.assertEquals(infoLength + 5 * 417, bytes.size)
+        Assert.assertEquals("Info", String(bytes, 36, 4, Charsets.US_ASCII))
+        Assert.assertEquals(5, readInt(bytes, 44))
+        //The frames follow in order.
+        Assert.assertEquals(1.toByte(), bytes[infoLength + 4])
+        Assert.assertEquals(2.toByte(), bytes[infoLength + 3 * 417 + 4])
+    }
+
+    @Test
+    fun concatenate_When_InputHasXingFrame_Should_DropIt() {
+        val xing = Mp3Concatenator.createInfoFrame(STEREO_44100, 10, 4170, true)
+        val output = ByteArrayOutputStream()
+
+        Mp3Concatenator.concatenate(listOf(open(xing + frames(STEREO_44100, 2, 1)), open(frames(STEREO_44100, 2, 2))), output)
+
+        Assert.assertEquals(4, readInt(output.toByteArray(), 44))
+    }
+
+    @Test
+    fun concatenate_When_InputHasId3Tag_Should_SkipIt() {
+        //ID3v2.3 with 20 bytes of tag data, which would look like frame headers.
+        val id3 = byteArrayOf('I'.toByte(), 'D'.toByte(), '3'.toByte(), 3, 0, 0, 0, 0, 0, 20) + ByteArray(20) { -1 }
+        val output = ByteArrayOutputStream()
+
+        Mp3Concatenator.concatenate(listOf(open(id3 + frames(STEREO_44100, 2, 1)), open(frames(STEREO_44100, 1, 2))), output)
+
+        Assert.assertEquals(3, readInt(output.toByteArray(), 44))
+    }
+
+    @Test
+    fun concatenate_When_InputHasCrcProtectedInfoFrame_Should_DropIt() {
+        //The tag follows the 2 byte CRC and the side information.
+        val info = frames(STEREO_44100_CRC, 1, 0)
+        "Info".toByteArray(Charsets.US_ASCII).copyInto(info, 4 + 2 + 32)
+        val output = ByteArrayOutputStream()
+
+        Mp3Concatenator.concatenate(listOf(open(info + frames(STEREO_44100_CRC, 2, 1)), open(frames(STEREO_44100_CRC, 1, 2))), output)
+
+        Assert.assertEquals(3, readInt(output.toByteArray(), 44))
+    }
+
+    @Test
+    fun concatenate_When_SampleRatesDiffer_Should_WriteNothing() {
+        val output = ByteArrayOutputStream()
+
+        val joined = Mp3Concatenator.concatenate(listOf(open(frames(STEREO_44100, 2, 1)), open(frames(STEREO_48000, 2, 2))), output)
+
+        Assert.assertFalse(joined)
+        Assert.assertEquals(0, output.size())
+    }
+
+    @Test
+    fun concatenate_When_NoFrames_Should_ReturnFalse() {
+        val output = ByteArrayOutputStream()
+
+        Assert.assertFalse(Mp3Concatenator.concatenate(listOf(open(ByteArray(100))), output))
+        Assert.assertEquals(0, output.size())
+    }
+
+    private fun frames(header: Int, count: Int, fill: Byte): ByteArray {
+        val length = Mp3Concatenator.getFrameLength(header)
+        val bytes = ByteArray(length * count) { fill }
+        for (i in 0 until count) {
+            bytes[i * length] = (header ushr 24).toByte()
+            bytes[i * length + 1] = (header ushr 16).toByte()
+            bytes[i * length + 2] = (header ushr 8).toByte()
+            bytes[i * length + 3] = header.toByte()
+        }
+        return bytes
+    }
+
+    private fun open(bytes: ByteArray): () -> InputStream = { ByteArrayInputStream(bytes) }
+
+    private fun readInt(bytes: ByteArray, offset: Int): Int {
+        return ((bytes[offset].toInt() and 0xFF) shl 24) or ((bytes[offset + 1].toInt() and 0xFF) shl 16) or
+                ((bytes[offset + 2].toInt() and 0xFF) shl 8) or (bytes[offset + 3].toInt() and 0xFF)
+    }
+
+    companion object {
+        //MPEG-1 layer III, 128 kbit/s, joint stereo, no CRC.
+        private val STEREO_44100 = 0xFFFB9064.toInt()
+        private val STEREO_48000 = 0xFFFB9464.toInt()
+        //The same with a CRC after the header.
+        private val STEREO_44100_CRC = 0xFFFA9064.toInt()
+    }
+}
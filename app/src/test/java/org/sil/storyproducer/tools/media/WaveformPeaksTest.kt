@@ -0,0 +1,105 @@
+package org.sil.storyproducer.tools.media
+
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.sil.storyproducer.tools.media.pipe.PipedPcmFileSource
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+@RunWith(RobolectricTestRunner::class)
+class WaveformPeaksTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun extract_Should_FindTheLowestAndHighestSampleOfEachSlice() {
+        //One second at 1000 Hz: the first half quiet, the second half loud.
+        val samples = ShortArray(1000) { if (it < 500) (if (it % 2 == 0) 256 else -512).toShort() else (if (it % 2 == 0) 32767 else -32768).toShort() }
+        val source = PipedPcmFileSource(writePcm(folder.newFile(), 1000, 1, samples))
+        source.setup()
+
+        val peaks = WaveformPeaks.extract(source, 1000000, 10)!!
+        source.close()
+
+        Assert.assertEquals(10, peaks.size)
+        for (i in 0 until 5) {
+            Assert.assertEquals(1.toByte(), peaks.max[i])
+            Assert.assertEquals((-2).toByte(), peaks.min[i])
+        }
+        for (i in 5 until 10) {
+            Assert.assertEquals(127.toByte(), peaks.max[i])
+            Assert.assertEquals((-128).toByte(), peaks.min[i])
+        }
+    }
+
+    @Test
+    fun extract_When_Stereo_Should_SliceByFrame() {
+        //Left channel loud, right channel quiet, for two seconds at 100 Hz.
+        val samples = ShortArray(400) { (if (it % 2 == 0) 12800 else 0).toShort() }
+        val source = PipedPcmFileSource(writePcm(folder.newFile(), 100, 2, samples))
+        source.setup()
+
+        val peaks = WaveformPeaks.extract(source, 2000000, 4)!!
+        source.close()
+
+        for (i in 0 until 4) {
+            Assert.assertEquals(50.toByte(), peaks.max[i])
+        }
+    }
+
+    @Test
+    fun extract_When_Cancelled_Should_ReturnNull() {
+        val source = PipedPcmFileSource(writePcm(folder.newFile(), 1000, 1, ShortArray(1000)))
+        source.setup()
+
+        Assert.assertNull(WaveformPeaks.extract(source, 1000000) { true })
+        source.close()
+    }
+
+    @Test
+    fun read_Should_ReturnWhatWasWritten() {
+        val peaks = WaveformPeaks(3000000, byteArrayOf(-1, -100, 0), byteArrayOf(1, 100, 127))
+        val stream = ByteArrayOutputStream()
+        peaks.write(stream)
+
+        val read = WaveformPeaks.read(ByteArrayInputStream(stream.toByteArray()))!!
+
+        Assert.assertEquals(3000000L, read.durationUs)
+        Assert.assertArrayEquals(peaks.min, read.min)
+        Assert.assertArrayEquals(peaks.max, read.max)
+    }
+
+    @Test
+    fun write_Should_TakeAFewHundredBytes() {
+        val size = WaveformPeaks.DEFAULT_SIZE
+        val stream = ByteArrayOutputStream()
+
+        WaveformPeaks(600000000, ByteArray(size), ByteArray(size)).write(stream)
+
+        Assert.assertTrue(stream.size() < 500)
+    }
+
+    @Test
+    fun read_When_NotAPeaksFile_Should_ReturnNull() {
+        Assert.assertNull(WaveformPeaks.read(ByteArrayInputStream(ByteArray(16) { 7 })))
+    }
+
+    private fun writePcm(file: File, sampleRate: Int, channelCount: Int, samples: ShortArray): File {
+        FileOutputStream(file).use { stream ->
+            PipedPcmFileSource.writeHeader(stream.channel, sampleRate, channelCount)
+            val data = ByteBuffer.allocate(samples.size * 2).order(ByteOrder.nativeOrder())
+            data.asShortBuffer().put(samples)
+            stream.channel.write(data)
+        }
+        return file
+    }
+}
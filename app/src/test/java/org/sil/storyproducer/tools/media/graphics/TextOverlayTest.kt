@@ -0,0 +1,81 @@
+package org.sil.storyproducer.tools.media.graphics
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class TextOverlayTest {
+
+    @Test
+    fun draw_When_OnlyAlphaChanges_Should_ReuseTheLayer() {
+        val overlay = rasterized("The sower went out to sow")
+        val canvas = canvas(WIDTH, HEIGHT)
+        overlay.draw(canvas)
+
+        for (alpha in floatArrayOf(0.25f, 0.5f, 1f)) {
+            overlay.setAlpha(alpha)
+            overlay.draw(canvas)
+        }
+
+        Assert.assertEquals(1, overlay.layerBuildCount)
+    }
+
+    @Test
+    fun draw_When_FontSizeChanges_Should_RebuildTheLayer() {
+        val overlay = rasterized("The sower went out to sow")
+        val canvas = canvas(WIDTH, HEIGHT)
+        overlay.draw(canvas)
+
+        overlay.setFontSize(24)
+        overlay.draw(canvas)
+        //The same size again is no change.
+        overlay.setFontSize(24)
+        overlay.draw(canvas)
+
+        Assert.assertEquals(2, overlay.layerBuildCount)
+    }
+
+    @Test
+    fun draw_When_CanvasSizeChanges_Should_RebuildTheLayer() {
+        val overlay = rasterized("The sower went out to sow")
+        overlay.draw(canvas(WIDTH, HEIGHT))
+
+        overlay.draw(canvas(WIDTH / 2, HEIGHT / 2))
+        overlay.draw(canvas(WIDTH / 2, HEIGHT / 2))
+
+        Assert.assertEquals(2, overlay.layerBuildCount)
+    }
+
+    @Test
+    fun draw_When_TextChanges_Should_BuildALayerForTheNewText() {
+        //The text of an overlay is fixed, so slides get a new overlay when their text changes.
+        val old = rasterized("The sower went out to sow")
+        val edited = rasterized("A farmer went out to plant his seed")
+        val canvas = canvas(WIDTH, HEIGHT)
+        old.draw(canvas)
+
+        edited.draw(canvas)
+
+        Assert.assertEquals(1, edited.layerBuildCount)
+        Assert.assertNotEquals(old.getFingerprint(), edited.getFingerprint())
+    }
+
+    private fun rasterized(text: String): TextOverlay {
+        val overlay = TextOverlay(text)
+        overlay.setRasterized(true)
+        return overlay
+    }
+
+    private fun canvas(width: Int, height: Int): Canvas {
+        return Canvas(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888))
+    }
+
+    companion object {
+        private const val WIDTH = 320
+        private const val HEIGHT = 240
+    }
+}
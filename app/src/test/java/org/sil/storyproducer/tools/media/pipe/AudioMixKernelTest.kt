@@ -0,0 +1,85 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.junit.MockitoJUnitRunner
+import kotlin.math.PI
+import kotlin.math.sin
+
+@RunWith(MockitoJUnitRunner::class)
+class AudioMixKernelTest {
+
+    private val unity = AudioMixKernel.toFixedGain(1f)
+
+    @Test
+    fun mix_Should_SumSourcesOverValidRangeOnly() {
+        val a = shortArrayOf(9, 1, 2, 3, 9)
+        val b = shortArrayOf(10, 20, 30, 9, 9)
+        val dest = ShortArray(5) { -1 }
+
+        AudioMixKernel.mix(dest, 1, arrayOf<ShortArray?>(a, b), intArrayOf(1, 0), intArrayOf(unity, unity), 2, 3, IntArray(3))
+
+        Assert.assertArrayEquals(shortArrayOf(-1, 11, 22, 33, -1), dest)
+    }
+
+    @Test
+    fun mix_When_SumOverflows_Should_Saturate() {
+        val loud = shortArrayOf(30000, -30000)
+        val dest = ShortArray(2)
+
+        AudioMixKernel.mix(dest, 0, arrayOf<ShortArray?>(loud, loud), intArrayOf(0, 0), intArrayOf(unity, unity), 2, 2, IntArray(2))
+
+        Assert.assertArrayEquals(shortArrayOf(Short.MAX_VALUE, Short.MIN_VALUE), dest)
+    }
+
+    @Test
+    fun mix_Should_ApplyPerSourceGain() {
+        val a = shortArrayOf(1000, -1000)
+        val b = shortArrayOf(1000, 1000)
+        val dest = ShortArray(2)
+
+        AudioMixKernel.mix(dest, 0, arrayOf<ShortArray?>(a, b), intArrayOf(0, 0),
+                intArrayOf(unity, AudioMixKernel.toFixedGain(0.25f)), 2, 2, IntArray(2))
+
+        Assert.assertArrayEquals(shortArrayOf(1250, -750), dest)
+    }
+
+    @Test
+    fun mix_When_NoSources_Should_WriteSilence() {
+        val dest = shortArrayOf(5, 5, 5)
+
+        AudioMixKernel.mix(dest, 0, arrayOf(), intArrayOf(), intArrayOf(), 0, 3, IntArray(3))
+
+        Assert.assertArrayEquals(shortArrayOf(0, 0, 0), dest)
+    }
+
+    @Test
+    fun mix_When_ManySourcesAtEachGain_Should_MatchSummingEachSample() {
+        //Loud enough sines that some of the sums saturate.
+        val length = 4096
+        for (sourceCount in intArrayOf(2, 4, 8)) {
+            val sources = Array<ShortArray?>(sourceCount) { s ->
+                ShortArray(length + s) { i -> (12000 * sin(2 * PI * (220 * (s + 1)) * i / SAMPLE_RATE)).toInt().toShort() }
+            }
+            val positions = IntArray(sourceCount) { it }
+            val gains = IntArray(sourceCount) { AudioMixKernel.toFixedGain(if (it % 2 == 0) 1f else 0.8f) }
+            val dest = ShortArray(length + 1)
+
+            AudioMixKernel.mix(dest, 1, sources, positions, gains, sourceCount, length, IntArray(length))
+
+            for (i in 0 until length) {
+                var sum = 0
+                for (s in 0 until sourceCount) {
+                    sum += sources[s]!![positions[s] + i] * gains[s]
+                }
+                val expected = (sum shr 8).coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt())
+                Assert.assertEquals("$sourceCount sources, sample $i", expected, dest[1 + i].toInt())
+            }
+        }
+    }
+
+    companion object {
+        private const val SAMPLE_RATE = 44100
+    }
+}
@@ -0,0 +1,114 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.junit.MockitoJUnitRunner
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@RunWith(MockitoJUnitRunner::class)
+class ByteBufferPoolTest {
+
+    @Test
+    fun get_Should_RoundCapacityUpToPowerOfTwo() {
+        val pool = ByteBufferPool(1000)
+
+        Assert.assertEquals(1024, pool.get().capacity())
+        Assert.assertEquals(4096, pool.get(4096).capacity())
+        Assert.assertEquals(8192, pool.get(4097).capacity())
+    }
+
+    @Test
+    fun get_When_Direct_Should_AllocateDirectBuffers() {
+        Assert.assertTrue(ByteBufferPool(1024, true).get().isDirect)
+        Assert.assertFalse(ByteBufferPool(1024).get().isDirect)
+    }
+
+    @Test
+    fun get_When_BufferWasReleased_Should_ReuseItAndCountHit() {
+        val pool = ByteBufferPool(1024)
+        val buffer = pool.get()
+        buffer.putInt(42)
+        pool.release(buffer)
+
+        val reused = pool.get()
+
+        Assert.assertSame(buffer, reused)
+        Assert.assertEquals(0, reused.position())
+        Assert.assertEquals(1, pool.missCount)
+        Assert.assertEquals(1, pool.hitCount)
+    }
+
+    @Test
+    fun get_When_SizeClassDiffers_Should_NotReuse() {
+        val pool = ByteBufferPool(1024)
+        pool.release(pool.get(1024))
+
+        Assert.assertEquals(2048, pool.get(2048).capacity())
+        Assert.assertEquals(2, pool.missCount)
+    }
+
+    @Test
+    fun outstandingCount_Should_TrackUnreleasedBuffers() {
+        val pool = ByteBufferPool(1024)
+        val a = pool.get()
+        pool.get()
+        Assert.assertEquals(2, pool.outstandingCount)
+
+        pool.release(a)
+        Assert.assertEquals(1, pool.outstandingCount)
+    }
+
+    @Test(expected = InvalidBufferException::class)
+    fun release_When_BufferIsForeign_Should_Throw() {
+        val pool = ByteBufferPool(1024)
+        pool.get()
+
+        pool.release(ByteBuffer.allocate(1024))
+    }
+
+    @Test(expected = InvalidBufferException::class)
+    fun release_When_BufferReleasedTwice_Should_Throw() {
+        val pool = ByteBufferPool(1024)
+        val buffer = pool.get()
+        pool.release(buffer)
+
+        pool.release(buffer)
+    }
+
+    @Test
+    fun owns_Should_RecognizeManyBuffers() {
+        val pool = ByteBufferPool(64)
+        val buffers = List(500) { pool.get() }
+
+        for (buffer in buffers) {
+            Assert.assertTrue(pool.owns(buffer))
+        }
+        Assert.assertFalse(pool.owns(ByteBuffer.allocate(64)))
+    }
+
+    @Test
+    fun getAndRelease_When_Concurrent_Should_NotLeak() {
+        val pool = ByteBufferPool(256)
+        val threadCount = 4
+        val executor = Executors.newFixedThreadPool(threadCount)
+        val done = CountDownLatch(threadCount)
+
+        for (t in 0 until threadCount) {
+            executor.execute {
+                for (i in 0 until 10000) {
+                    pool.release(pool.get())
+                }
+                done.countDown()
+            }
+        }
+
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS))
+        executor.shutdown()
+        Assert.assertEquals(0, pool.outstandingCount)
+        Assert.assertEquals(40000L, pool.hitCount + pool.missCount)
+    }
+}
@@ -0,0 +1,134 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class ByteBufferQueueTest {
+
+    @Test
+    fun getEmptyBuffer_When_AllBuffersAreOut_Should_TimeOut() {
+        val queue = ByteBufferQueue(2, 64)
+
+        Assert.assertNotNull(queue.getEmptyBuffer(1000))
+        Assert.assertNotNull(queue.getEmptyBuffer(1000))
+        Assert.assertNull(queue.getEmptyBuffer(1000))
+    }
+
+    @Test(expected = InvalidBufferException::class)
+    fun releaseUsedBuffer_When_BufferIsForeign_Should_Throw() {
+        val queue = ByteBufferQueue(2, 64)
+        queue.getEmptyBuffer(1000)
+
+        queue.releaseUsedBuffer(ByteBuffer.allocate(64))
+    }
+
+    @Test
+    fun releaseUsedBuffer_Should_NotifyReleaseListener() {
+        val queue = ByteBufferQueue(1, 64)
+        var releases = 0
+        queue.setReleaseListener(Runnable { releases++ })
+        val buffer = queue.pollEmptyBuffer()!!
+        Assert.assertNull(queue.pollEmptyBuffer())
+
+        queue.releaseUsedBuffer(buffer)
+
+        Assert.assertEquals(1, releases)
+        Assert.assertNotNull(queue.pollEmptyBuffer())
+    }
+
+    @Test
+    fun getFilledCount_Should_CountBuffersNotYetTaken() {
+        val queue = ByteBufferQueue(3, 64)
+        val info = MediaCodec.BufferInfo()
+        Assert.assertEquals(0, queue.filledCount)
+
+        queue.sendFilledBuffer(queue.pollEmptyBuffer()!!, info)
+        queue.sendFilledBuffer(queue.pollEmptyBuffer()!!, info)
+        Assert.assertEquals(2, queue.filledCount)
+
+        queue.releaseUsedBuffer(queue.getFilledBuffer(info))
+        Assert.assertEquals(1, queue.filledCount)
+    }
+
+    @Test
+    fun getFilledBuffer_Should_ReturnBuffersInOrderWithTheirInfo() {
+        val queue = ByteBufferQueue(4, 64)
+        val info = MediaCodec.BufferInfo()
+
+        for (i in 0 until 3) {
+            val buffer = queue.getEmptyBuffer(1000)!!
+            buffer.putInt(i)
+            info.set(0, 4, i * 10L, 0)
+            queue.sendFilledBuffer(buffer, info)
+        }
+        Assert.assertFalse(queue.isEmpty)
+
+        for (i in 0 until 3) {
+            val buffer = queue.getFilledBuffer(info)
+            Assert.assertEquals(i, buffer.getInt(0))
+            Assert.assertEquals(i * 10L, info.presentationTimeUs)
+            queue.releaseUsedBuffer(buffer)
+        }
+        Assert.assertTrue(queue.isEmpty)
+    }
+
+    @Test
+    fun getEmptyBuffer_When_ConsumerReleases_Should_WakeProducer() {
+        val queue = ByteBufferQueue(1, 64)
+        val info = MediaCodec.BufferInfo()
+        queue.sendFilledBuffer(queue.getEmptyBuffer(1000)!!, info)
+
+        val consumer = Thread(Runnable {
+            Thread.sleep(50)
+            queue.releaseUsedBuffer(queue.getFilledBuffer(info))
+        })
+        consumer.start()
+
+        //Far longer than the consumer needs; the producer should be woken well before this.
+        Assert.assertNotNull(queue.getEmptyBuffer(TimeUnit.SECONDS.toMicros(5)))
+        consumer.join()
+    }
+
+    @Test
+    fun getFilledBuffer_When_HandedBetweenThreads_Should_ReceiveEveryBufferInOrder() {
+        val queue = ByteBufferQueue(BUFFER_COUNT)
+        var received = 0
+        var outOfOrder = 0
+
+        val consumer = Thread(Runnable {
+            val info = MediaCodec.BufferInfo()
+            while (received < HANDOFF_BUFFERS) {
+                val buffer = queue.getFilledBuffer(info)
+                if (info.presentationTimeUs != received.toLong()) {
+                    outOfOrder++
+                }
+                queue.releaseUsedBuffer(buffer)
+                received++
+            }
+        })
+        consumer.start()
+
+        val info = MediaCodec.BufferInfo()
+        for (i in 0 until HANDOFF_BUFFERS) {
+            val buffer = queue.getEmptyBuffer(TimeUnit.SECONDS.toMicros(5))!!
+            info.set(0, 0, i.toLong(), 0)
+            queue.sendFilledBuffer(buffer, info)
+        }
+        consumer.join(TimeUnit.SECONDS.toMillis(30))
+
+        Assert.assertEquals(HANDOFF_BUFFERS, received)
+        Assert.assertEquals(0, outOfOrder)
+        Assert.assertTrue(queue.isEmpty)
+    }
+
+    companion object {
+        private const val BUFFER_COUNT = 8
+        private const val HANDOFF_BUFFERS = 20000
+    }
+}
@@ -0,0 +1,186 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+@RunWith(RobolectricTestRunner::class)
+class DecodedAudioCacheTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun pcmFileSource_Should_StreamSamplesInOrderWithFormat() {
+        val samples = ShortArray(50000) { (it % 1000).toShort() }
+        val source = PipedPcmFileSource(writePcm(folder.newFile(), 44100, 2, samples))
+        source.setup()
+
+        Assert.assertEquals(44100, source.outputFormat!!.getInteger(MediaFormat.KEY_SAMPLE_RATE))
+        Assert.assertEquals(2, source.outputFormat!!.getInteger(MediaFormat.KEY_CHANNEL_COUNT))
+
+        val info = MediaCodec.BufferInfo()
+        val read = ArrayList<Short>()
+        var lastFlags = 0
+        while (!source.isDone) {
+            val buffer = source.getBuffer(info)
+            Assert.assertEquals((read.size / 2) * 1000000L / 44100, info.presentationTimeUs)
+            val shorts = buffer.order(ByteOrder.nativeOrder()).asShortBuffer()
+            while (shorts.hasRemaining()) read.add(shorts.get())
+            lastFlags = info.flags
+            source.releaseBuffer(buffer)
+        }
+        source.close()
+
+        Assert.assertArrayEquals(samples, read.toShortArray())
+        Assert.assertEquals(MediaCodec.BUFFER_FLAG_END_OF_STREAM, lastFlags)
+    }
+
+    @Test
+    fun pcmFileSource_When_FillingSmallBuffers_Should_OnlyCopyWholeFrames() {
+        val source = PipedPcmFileSource(writePcm(folder.newFile(), 8000, 2, ShortArray(10) { it.toShort() }))
+        source.setup()
+        val buffer = ByteBuffer.allocate(6)
+        val info = MediaCodec.BufferInfo()
+
+        source.fillBuffer(buffer, info)
+
+        Assert.assertEquals(4, info.size)
+        Assert.assertEquals(4, buffer.limit())
+    }
+
+    @Test(expected = SourceUnacceptableException::class)
+    fun pcmFileSource_When_FileIsNotPcm_Should_BeUnacceptable() {
+        val file = folder.newFile()
+        file.writeBytes(ByteArray(64) { 7 })
+
+        PipedPcmFileSource(file).setup()
+    }
+
+    @Test
+    fun cacheWriter_Should_PassAudioThroughAndSaveItOnceDone() {
+        val samples = ShortArray(50000) { (it % 1000).toShort() }
+        val dir = folder.newFolder()
+        val temp = File(dir, "entry.pcm.1.tmp")
+        val entry = File(dir, "entry.pcm")
+        val writer = PipedPcmCacheWriter(PipedPcmFileSource(writePcm(folder.newFile(), 22050, 1, samples)), temp, entry)
+        writer.setup()
+
+        val info = MediaCodec.BufferInfo()
+        var bufferCount = 0
+        while (!writer.isDone) {
+            val buffer = writer.getBuffer(info)!!
+            //Each buffer reaches the consumer as soon as it is decoded, not after the whole file.
+            bufferCount++
+            Assert.assertEquals(writer.isDone, entry.exists())
+            writer.releaseBuffer(buffer)
+        }
+        writer.close()
+
+        Assert.assertTrue(bufferCount > 1)
+        Assert.assertTrue(entry.exists())
+        Assert.assertFalse(temp.exists())
+        Assert.assertArrayEquals(samples, readPcm(entry))
+    }
+
+    @Test
+    fun cacheWriter_When_ClosedEarly_Should_NotSaveAnEntry() {
+        val dir = folder.newFolder()
+        val temp = File(dir, "entry.pcm.1.tmp")
+        val entry = File(dir, "entry.pcm")
+        val writer = PipedPcmCacheWriter(PipedPcmFileSource(writePcm(folder.newFile(), 22050, 1, ShortArray(50000))), temp, entry)
+        writer.setup()
+
+        writer.releaseBuffer(writer.getBuffer(MediaCodec.BufferInfo())!!)
+        writer.close()
+
+        Assert.assertFalse(entry.exists())
+        Assert.assertFalse(temp.exists())
+    }
+
+    @Test
+    fun cacheWriter_When_FillingBuffers_Should_SaveWhatWasFilled() {
+        val samples = ShortArray(3000) { it.toShort() }
+        val dir = folder.newFolder()
+        val entry = File(dir, "entry.pcm")
+        val writer = PipedPcmCacheWriter(PipedPcmFileSource(writePcm(folder.newFile(), 8000, 2, samples)),
+                File(dir, "entry.pcm.1.tmp"), entry)
+        writer.setup()
+
+        val buffer = ByteBuffer.allocate(1000)
+        val info = MediaCodec.BufferInfo()
+        while (!writer.isDone) {
+            buffer.clear()
+            writer.fillBuffer(buffer, info)
+        }
+        writer.close()
+
+        Assert.assertArrayEquals(samples, readPcm(entry))
+    }
+
+    @Test
+    fun trimToSize_Should_EvictLeastRecentlyUsedFirst() {
+        val dir = folder.newFolder()
+        val oldest = entry(dir, "a", 1000)
+        val newest = entry(dir, "b", 3000)
+        val middle = entry(dir, "c", 2000)
+
+        DecodedAudioCache.trimToSize(dir, 2500)
+
+        Assert.assertFalse(oldest.exists())
+        Assert.assertFalse(middle.exists())
+        Assert.assertTrue(newest.exists())
+    }
+
+    @Test
+    fun trimToSize_When_WithinBudget_Should_KeepEverything() {
+        val dir = folder.newFolder()
+        val a = entry(dir, "a", 1000)
+        val b = entry(dir, "b", 2000)
+
+        DecodedAudioCache.trimToSize(dir, 5000)
+
+        Assert.assertTrue(a.exists())
+        Assert.assertTrue(b.exists())
+    }
+
+    /** Make a 1000 byte cache entry last used at [time]. */
+    private fun entry(dir: File, name: String, time: Long): File {
+        val file = File(dir, "$name.pcm")
+        file.writeBytes(ByteArray(1000))
+        file.setLastModified(time * 1000)
+        return file
+    }
+
+    private fun readPcm(file: File): ShortArray {
+        val source = PipedPcmFileSource(file)
+        source.setup()
+        val info = MediaCodec.BufferInfo()
+        val read = ArrayList<Short>()
+        while (!source.isDone) {
+            val shorts = source.getBuffer(info).order(ByteOrder.nativeOrder()).asShortBuffer()
+            while (shorts.hasRemaining()) read.add(shorts.get())
+        }
+        source.close()
+        return read.toShortArray()
+    }
+
+    private fun writePcm(file: File, sampleRate: Int, channelCount: Int, samples: ShortArray): File {
+        FileOutputStream(file).use { stream ->
+            PipedPcmFileSource.writeHeader(stream.channel, sampleRate, channelCount)
+            val data = ByteBuffer.allocate(samples.size * 2).order(ByteOrder.nativeOrder())
+            data.asShortBuffer().put(samples)
+            stream.channel.write(data)
+        }
+        return file
+    }
+}
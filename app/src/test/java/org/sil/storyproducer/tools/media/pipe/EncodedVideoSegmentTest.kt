@@ -0,0 +1,88 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+
+@RunWith(RobolectricTestRunner::class)
+class EncodedVideoSegmentTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun read_When_Written_Should_RestoreSamplesAtNewStartTime() {
+        val segment = EncodedVideoSegment.encode(FrameSource(5, 1000000), folder.root, 1000000)
+        val bytes = ByteArrayOutputStream()
+        segment.write(bytes)
+        segment.delete()
+
+        val restored = EncodedVideoSegment.read(ByteArrayInputStream(bytes.toByteArray()), folder.root, 4000000)
+
+        Assert.assertEquals(5, restored.count)
+        Assert.assertEquals(ByteBuffer.wrap(byteArrayOf(1, 2, 3)), restored.format!!.getByteBuffer("csd-0"))
+        val buffer = ByteBuffer.allocate(64)
+        for (i in 0 until restored.count) {
+            restored.readSample(i, buffer)
+            Assert.assertEquals(i + 1, buffer.remaining())
+            Assert.assertEquals(i.toByte(), buffer.get(0))
+            Assert.assertEquals(4000000L + i * 33333, restored.getPresentationTimeUs(i))
+        }
+        Assert.assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, restored.getFlags(0))
+        restored.delete()
+    }
+
+    @Test(expected = IOException::class)
+    fun read_When_Truncated_Should_Throw() {
+        val segment = EncodedVideoSegment.encode(FrameSource(5, 0), folder.root, 0)
+        val bytes = ByteArrayOutputStream()
+        segment.write(bytes)
+        segment.delete()
+        val data = bytes.toByteArray()
+
+        EncodedVideoSegment.read(ByteArrayInputStream(data.copyOf(data.size - 8)), folder.root, 0)
+    }
+
+    /**
+     * Stands in for an encoder; hands out numbered frames of growing size.
+     */
+    private class FrameSource(private val frames: Int, private val startUs: Long) : PipedMediaByteBufferSource {
+        private var index = 0
+        private val format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 320, 240)
+
+        override fun getMediaType() = MediaHelper.MediaType.VIDEO
+        override fun getOutputFormat() = format
+        override fun isDone() = index >= frames
+
+        override fun setup() {
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(byteArrayOf(1, 2, 3)))
+        }
+
+        override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+            val buffer = ByteBuffer.allocate(index + 1)
+            while (buffer.hasRemaining()) buffer.put(index.toByte())
+            buffer.flip()
+            info.set(0, index + 1, startUs + index * 33333L, if (index == 0) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0)
+            index++
+            return buffer
+        }
+
+        override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+            buffer.put(getBuffer(info))
+        }
+
+        override fun releaseBuffer(buffer: ByteBuffer) {}
+
+        override fun close() {}
+    }
+}
@@ -0,0 +1,108 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.sil.storyproducer.tools.media.story.PerfReport
+
+@RunWith(RobolectricTestRunner::class)
+class PipeMetricsTest {
+
+    @Test
+    fun aggregate_When_NamesRepeat_Should_SumEachName() {
+        val decoderA = PipeMetrics("decoder")
+        decoderA.addBuffer(100)
+        decoderA.addBuffer(50)
+        decoderA.addUpstreamWait(3000000)
+        val decoderB = PipeMetrics("decoder")
+        decoderB.addBuffer(10)
+        decoderB.addUpstreamWait(2000000)
+        val muxer = PipeMetrics("muxer")
+        muxer.addBuffer(7)
+
+        val stats = PipeMetrics.aggregate(listOf(decoderA, muxer, decoderB))
+
+        Assert.assertEquals(listOf("decoder", "muxer"), stats.map { it.name })
+        Assert.assertEquals(2, stats[0].instances)
+        Assert.assertEquals(3L, stats[0].buffers)
+        Assert.assertEquals(160L, stats[0].bytes)
+        Assert.assertEquals(5L, stats[0].upstreamWaitMs)
+        Assert.assertEquals(1, stats[1].instances)
+    }
+
+    @Test
+    fun aggregate_When_QueuesSampled_Should_WeightMeanBySamples() {
+        val a = PipeMetrics("mixer")
+        a.sampleQueue(1, 8)
+        a.sampleQueue(3, 8)
+        val b = PipeMetrics("mixer")
+        b.sampleQueue(8, 8)
+
+        val stats = PipeMetrics.aggregate(listOf(a, b))[0]
+
+        Assert.assertEquals(3L, stats.queueSamples)
+        Assert.assertEquals(4.0, stats.queueMeanFilled, 1e-9)
+        Assert.assertEquals(8, stats.queueMaxFilled)
+        Assert.assertEquals(8, stats.queueCapacity)
+    }
+
+    @Test
+    fun getStats_When_WorkMeasured_Should_ReportFramesPerWorkSecond() {
+        val drawer = PipeMetrics("drawer")
+        for (i in 0 until 30) {
+            drawer.addWork(10000000)
+            drawer.addBuffer(0)
+        }
+
+        val stats = drawer.getStats()
+
+        Assert.assertEquals(300L, stats.workMs)
+        Assert.assertEquals(100.0, stats.buffersPerWorkSecond, 1e-9)
+    }
+
+    @Test
+    fun aggregate_When_WorkSampled_Should_MergeSamplesForPercentiles() {
+        val a = PipeMetrics("drawer")
+        for (i in 0 until 90) a.addWorkSample(1000000)
+        val b = PipeMetrics("drawer")
+        for (i in 0 until 10) b.addWorkSample(50000000)
+
+        val single = a.getStats()
+        Assert.assertEquals(1.1, single.workP99Ms, 1e-9)
+
+        val stats = PipeMetrics.aggregate(listOf(a, b))[0]
+        Assert.assertEquals(1.1, stats.workP50Ms, 1e-9)
+        Assert.assertEquals(1.1, stats.workP90Ms, 1e-9)
+        Assert.assertEquals(50.1, stats.workP99Ms, 1e-9)
+    }
+
+    @Test
+    fun register_When_OutsideAnyGroup_Should_NotBeKept() {
+        val metrics = PipeMetrics("orphan")
+        metrics.register()
+        Assert.assertFalse(PipelineScheduler.currentGroup.metrics.contains(metrics))
+
+        val group = PipelineScheduler.Group("test")
+        group.enter { metrics.register() }
+        group.enter { metrics.register() }
+        Assert.assertEquals(listOf(metrics), group.metrics)
+    }
+
+    @Test
+    fun perfReport_When_WrittenAsJson_Should_ReadBack() {
+        val drawer = PipeMetrics("StoryFrameDrawer")
+        drawer.addWork(20000000)
+        drawer.addBuffer(0)
+        val report = PerfReport("story.mp4", true, false, 12000, 3400, 5600, 9, 4, 2, 0, 0,
+                PipeMetrics.aggregate(listOf(drawer)))
+
+        val read = PerfReport.fromJson(report.toJson())!!
+
+        Assert.assertEquals("story.mp4", read.video)
+        Assert.assertEquals(3400L, read.renderMs)
+        Assert.assertEquals(1L, read.getComponent("StoryFrameDrawer")!!.buffers)
+        Assert.assertEquals(50.0, read.getComponent("StoryFrameDrawer")!!.buffersPerWorkSecond, 1e-9)
+        Assert.assertNull(read.getComponent("missing"))
+    }
+}
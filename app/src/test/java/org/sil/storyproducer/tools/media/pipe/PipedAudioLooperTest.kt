@@ -0,0 +1,125 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+@RunWith(RobolectricTestRunner::class)
+class PipedAudioLooperTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun looper_Should_LoopSampleAccuratelyWithOneSource() {
+        val clip = ShortArray(3000) { (it - 1500).toShort() }
+        var instantiations = 0
+        val looper = PipedAudioLooper({ instantiations++; ClipSource(clip, 8000, 1) }, null, 2000000, 8000, 1)
+        looper.setup()
+
+        val output = readAll(looper)
+
+        Assert.assertEquals(1, instantiations)
+        Assert.assertEquals(16000, output.size)
+        for (i in output.indices) {
+            if (output[i] != clip[i % clip.size]) {
+                Assert.fail("Discontinuity at sample $i")
+            }
+        }
+    }
+
+    @Test
+    fun looper_When_Stereo_Should_NotSplitFramesAtLoopPoint() {
+        val clip = ShortArray(1002) { (if (it % 2 == 0) it / 2 else -(it / 2)).toShort() }
+        val looper = PipedAudioLooper({ ClipSource(clip, 8000, 2) }, null, 500000, 8000, 2)
+        looper.setup()
+
+        val output = readAll(looper)
+
+        Assert.assertTrue(output.size > clip.size)
+        Assert.assertEquals(0, output.size % 2)
+        for (i in output.indices) {
+            Assert.assertEquals(clip[i % clip.size], output[i])
+        }
+    }
+
+    @Test
+    fun decode_When_LargerThanSpillSize_Should_MapTheSameSamples() {
+        val clip = ShortArray(20000) { (it * 7).toShort() }
+
+        val heapSource = ClipSource(clip, 8000, 1)
+        val mappedSource = ClipSource(clip, 8000, 1)
+        heapSource.setup()
+        mappedSource.setup()
+
+        val onHeap = PcmClip.decode(heapSource, folder.root, Int.MAX_VALUE)
+        val mapped = PcmClip.decode(mappedSource, folder.root, 1000)
+
+        Assert.assertFalse(onHeap.isMapped)
+        Assert.assertTrue(mapped.isMapped)
+        Assert.assertEquals(clip.size, mapped.sampleCount)
+        val heapSamples = ShortArray(clip.size)
+        val mappedSamples = ShortArray(clip.size)
+        onHeap.read(0, heapSamples, 0, clip.size)
+        mapped.read(0, mappedSamples, 0, clip.size)
+        Assert.assertArrayEquals(clip, heapSamples)
+        Assert.assertArrayEquals(clip, mappedSamples)
+        //The spill file is unlinked once mapped.
+        Assert.assertEquals(0, folder.root.listFiles()!!.size)
+    }
+
+    private fun readAll(source: PipedMediaByteBufferSource): ShortArray {
+        val info = MediaCodec.BufferInfo()
+        val samples = ArrayList<Short>()
+        while (!source.isDone) {
+            val buffer = source.getBuffer(info)
+            val shorts = MediaHelper.getShortBuffer(buffer)
+            while (shorts.hasRemaining()) samples.add(shorts.get())
+            source.releaseBuffer(buffer)
+        }
+        source.close()
+        return samples.toShortArray()
+    }
+
+    /**
+     * Stands in for a decoder; hands out a fixed clip in odd-sized chunks.
+     */
+    private class ClipSource(private val clip: ShortArray, private val sampleRate: Int, private val channelCount: Int) : PipedMediaByteBufferSource {
+        private var pos = 0
+        private val format = MediaHelper.createFormat(MediaHelper.MIMETYPE_RAW_AUDIO)
+
+        override fun getMediaType() = MediaHelper.MediaType.AUDIO
+        override fun getOutputFormat() = format
+        override fun isDone() = pos >= clip.size
+
+        override fun setup() {
+            format.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate)
+            format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount)
+        }
+
+        override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+            val length = Math.min(1234 * channelCount, clip.size - pos)
+            val buffer = ByteBuffer.allocate(length * 2).order(ByteOrder.nativeOrder())
+            buffer.asShortBuffer().put(clip, pos, length)
+            pos += length
+            info.set(0, length * 2, 0, if (isDone) MediaCodec.BUFFER_FLAG_END_OF_STREAM else 0)
+            return buffer
+        }
+
+        override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+            buffer.put(getBuffer(info))
+        }
+
+        override fun releaseBuffer(buffer: ByteBuffer) {}
+
+        override fun close() {}
+    }
+}
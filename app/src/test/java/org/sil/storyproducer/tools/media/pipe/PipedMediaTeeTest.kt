@@ -0,0 +1,121 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.sil.storyproducer.tools.media.MediaHelper
+import java.nio.ByteBuffer
+
+@RunWith(RobolectricTestRunner::class)
+class PipedMediaTeeTest {
+
+    @Test
+    fun branches_Should_EachGetEveryBufferInOrder() {
+        val source = CountingSource(20)
+        val tee = PipedMediaTee()
+        tee.addSource(source)
+        val branches = listOf(tee.addBranch(), tee.addBranch())
+        val received = branches.map { ArrayList<Int>() }
+
+        val threads = branches.mapIndexed { i, branch ->
+            Thread { readAll(branch, received[i]) }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join(5000) }
+
+        val expected = (0 until 20).toList()
+        Assert.assertEquals(expected, received[0])
+        Assert.assertEquals(expected, received[1])
+        Assert.assertEquals(20, source.released)
+        Assert.assertTrue(source.isClosed)
+    }
+
+    @Test
+    fun close_When_OneBranchStops_Should_LetTheOtherContinue() {
+        val source = CountingSource(10)
+        val tee = PipedMediaTee()
+        tee.addSource(source)
+        val first = tee.addBranch()
+        val second = tee.addBranch()
+        first.setup()
+
+        val info = MediaCodec.BufferInfo()
+        first.releaseBuffer(first.getBuffer(info))
+        first.close()
+        Assert.assertFalse(source.isClosed)
+
+        val received = ArrayList<Int>()
+        readAll(second, received)
+
+        Assert.assertEquals((0 until 10).toList(), received)
+        Assert.assertTrue(source.isClosed)
+    }
+
+    @Test
+    fun getOutputFormat_Should_ReadTheSourceFormatOnceForEveryBranch() {
+        val source = CountingSource(1)
+        val tee = PipedMediaTee()
+        tee.addSource(source)
+        val branches = listOf(tee.addBranch(), tee.addBranch())
+
+        branches.forEach { it.setup() }
+        val formats = branches.map { it.outputFormat }
+
+        Assert.assertEquals(1, source.formatReads)
+        Assert.assertSame(formats[0], formats[1])
+    }
+
+    private fun readAll(branch: PipedMediaByteBufferSource, received: MutableList<Int>) {
+        branch.setup()
+        val info = MediaCodec.BufferInfo()
+        while (!branch.isDone) {
+            val buffer = branch.getBuffer(info)
+            received.add(buffer.getInt(buffer.position()))
+            branch.releaseBuffer(buffer)
+        }
+        branch.close()
+    }
+
+    /**
+     * Gives out one buffer at a time holding its number.
+     */
+    private class CountingSource(private val count: Int) : PipedMediaByteBufferSource {
+        private val mBuffer = ByteBuffer.allocate(4)
+        private var mNext = 0
+        private val mFormat = MediaFormat()
+        var released = 0
+        var isClosed = false
+        var formatReads = 0
+
+        override fun getMediaType() = MediaHelper.MediaType.AUDIO
+        override fun setup() {}
+        override fun getOutputFormat(): MediaFormat {
+            formatReads++
+            return mFormat
+        }
+        override fun isDone() = mNext >= count
+
+        override fun fillBuffer(buffer: ByteBuffer, info: MediaCodec.BufferInfo) {
+            throw UnsupportedOperationException()
+        }
+
+        override fun getBuffer(info: MediaCodec.BufferInfo): ByteBuffer {
+            mBuffer.clear()
+            mBuffer.putInt(mNext++)
+            mBuffer.flip()
+            info.set(0, 4, mNext * 1000L, 0)
+            return mBuffer
+        }
+
+        override fun releaseBuffer(buffer: ByteBuffer) {
+            released++
+        }
+
+        override fun close() {
+            isClosed = true
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class PipelineSchedulerTest {
+
+    @Test
+    fun launchCooperative_When_Waiting_Should_ResumeOnlyWhenWoken() {
+        val limit = AtomicInteger(3)
+        val steps = AtomicInteger()
+        val waiting = CountDownLatch(1)
+        val task = PipelineScheduler.launchCooperative("producer") {
+            when {
+                steps.get() >= 10 -> PipelineScheduler.Step.DONE
+                steps.get() >= limit.get() -> {
+                    waiting.countDown()
+                    PipelineScheduler.Step.WAIT
+                }
+                else -> {
+                    steps.incrementAndGet()
+                    PipelineScheduler.Step.CONTINUE
+                }
+            }
+        }
+
+        Assert.assertTrue(waiting.await(5, TimeUnit.SECONDS))
+        Thread.sleep(50)
+        Assert.assertEquals(3, steps.get())
+        Assert.assertFalse(task.isFinished)
+
+        limit.set(10)
+        task.wake()
+        task.join()
+
+        Assert.assertEquals(10, steps.get())
+    }
+
+    @Test
+    fun group_Should_CollectTasksLaunchedFromItsTasksAndTheirErrors() {
+        val group = PipelineScheduler.Group("test")
+        val inner = arrayOfNulls<PipelineScheduler.Task>(1)
+        val outer = group.enter {
+            PipelineScheduler.launch("outer") {
+                inner[0] = PipelineScheduler.launch("inner") { throw IllegalStateException("broken") }
+            }
+        }
+
+        outer.join()
+        inner[0]!!.join()
+
+        Assert.assertEquals(2, group.launchedCount)
+        Assert.assertTrue(group.error is IllegalStateException)
+    }
+
+    @Test
+    fun cancel_When_TaskIsWaiting_Should_FinishIt() {
+        val group = PipelineScheduler.Group("test")
+        val waiting = CountDownLatch(1)
+        val task = group.enter {
+            PipelineScheduler.launchCooperative("idle") {
+                waiting.countDown()
+                PipelineScheduler.Step.WAIT
+            }
+        }
+        Assert.assertTrue(waiting.await(5, TimeUnit.SECONDS))
+
+        group.cancel()
+        task.join()
+
+        Assert.assertTrue(task.isFinished)
+        Assert.assertNull(group.error)
+    }
+
+    @Test
+    fun launch_When_EveryBlockingThreadIsBusy_Should_FailTheGroupInsteadOfGrowing() {
+        val group = PipelineScheduler.Group("test")
+        val release = CountDownLatch(1)
+        val tasks = group.enter {
+            (0 until PipelineScheduler.MAX_BLOCKING_THREADS).map {
+                PipelineScheduler.launch("blocked $it") { release.await() }
+            }
+        }
+
+        val extra = group.enter { PipelineScheduler.launch("extra") {} }
+        release.countDown()
+        tasks.forEach { it.join() }
+
+        Assert.assertTrue(extra.isFinished)
+        Assert.assertTrue(group.error is RejectedExecutionException)
+    }
+
+    @Test
+    fun launchCooperative_When_MoreStagesWaitOnTheirSourceThanThereAreCores_Should_Finish() {
+        //Like a mixer waiting on a concatenator waiting on a resampler, each step waits for its
+        //source inside the step. The stages furthest downstream are launched first.
+        val stages = PipelineScheduler.CORE_THREADS + 2
+        val queues = (0..stages).map { LinkedBlockingQueue<Int>() }
+        val received = ArrayList<Int>()
+        val group = PipelineScheduler.Group("test")
+
+        val tasks = group.enter {
+            (stages - 1 downTo 0).map { i ->
+                PipelineScheduler.launchCooperative("stage $i") {
+                    val value = queues[i].take()
+                    queues[i + 1].put(value)
+                    if (value == END) PipelineScheduler.Step.DONE else PipelineScheduler.Step.CONTINUE
+                }
+            }
+        }
+        for (value in listOf(1, 2, 3, END)) {
+            queues[0].put(value)
+        }
+
+        for (i in 0 until 4) {
+            val value = queues[stages].poll(5, TimeUnit.SECONDS)
+            Assert.assertNotNull("The pipeline stalled", value)
+            received.add(value!!)
+        }
+        tasks.forEach { it.join() }
+
+        Assert.assertEquals(listOf(1, 2, 3, END), received)
+        Assert.assertNull(group.error)
+    }
+
+    companion object {
+        private const val END = -1
+    }
+}
@@ -0,0 +1,140 @@
+package org.sil.storyproducer.tools.media.pipe
+
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.junit.MockitoJUnitRunner
+import kotlin.math.PI
+import kotlin.math.floor
+import kotlin.math.log10
+import kotlin.math.roundToInt
+import kotlin.math.sin
+
+@RunWith(MockitoJUnitRunner::class)
+class PolyphaseResamplerTest {
+
+    @Test
+    fun read_When_Flushed_Should_ProduceExactFrameCount() {
+        for (rates in RATES) {
+            val input = sine(rates[0], 1000.0, 12345, 1)
+            val output = resample(PolyphaseResampler(rates[0], rates[1], 1, 1), input, 1000)
+
+            val expected = Math.ceil(12345.0 * rates[1] / rates[0]).toInt()
+            Assert.assertEquals("${rates[0]} -> ${rates[1]}", expected, output.size)
+        }
+    }
+
+    @Test
+    fun read_When_RatesMatch_Should_PassSamplesThrough() {
+        val input = shortArrayOf(1, -2, 3, -4)
+
+        val output = resample(PolyphaseResampler(44100, 44100, 1, 1), input, 4)
+
+        Assert.assertArrayEquals(input, output)
+    }
+
+    @Test
+    fun read_When_MonoToStereo_Should_DuplicateChannels() {
+        val output = resample(PolyphaseResampler(22050, 44100, 1, 2), sine(22050, 500.0, 2000, 1), 512)
+
+        Assert.assertEquals(8000, output.size)
+        for (i in output.indices step 2) {
+            Assert.assertEquals(output[i], output[i + 1])
+        }
+    }
+
+    @Test
+    fun read_When_StereoToMono_Should_AverageChannels() {
+        //Left and right cancel out, so the mono output must be silent.
+        val input = ShortArray(4000) { (if (it % 2 == 0) 8000 else -8000).toShort() }
+
+        val output = resample(PolyphaseResampler(48000, 44100, 2, 1), input, 700)
+
+        Assert.assertTrue(output.all { it.toInt() == 0 })
+    }
+
+    @Test
+    fun read_Should_BeIndependentOfBufferSizes() {
+        val input = sine(48000, 3000.0, 20000, 1)
+
+        val whole = resample(PolyphaseResampler(48000, 44100, 1, 1), input, input.size)
+        val pieces = resample(PolyphaseResampler(48000, 44100, 1, 1), input, 37)
+
+        Assert.assertArrayEquals(whole, pieces)
+    }
+
+    @Test
+    fun read_Should_BeatLinearInterpolationSnr() {
+        for (rates in RATES) {
+            for (frequency in doubleArrayOf(1000.0, 5000.0)) {
+                val input = sine(rates[0], frequency, rates[0], 1)
+                val polyphase = snr(resample(PolyphaseResampler(rates[0], rates[1], 1, 1), input, 4096), rates[1], frequency)
+                val linear = snr(linearResample(input, rates[0], rates[1]), rates[1], frequency)
+
+                val name = "${rates[0]} -> ${rates[1]} at ${frequency.toInt()} Hz: polyphase $polyphase dB, linear $linear dB"
+                Assert.assertTrue(name, polyphase > MIN_SNR_DB)
+                Assert.assertTrue(name, polyphase > linear + MIN_SNR_GAIN_DB)
+            }
+        }
+    }
+
+    private fun resample(resampler: PolyphaseResampler, input: ShortArray, chunk: Int): ShortArray {
+        val out = ShortArray(input.size * 6 + 1024)
+        val temp = ShortArray(4096)
+        var written = 0
+        var pos = 0
+        while (pos < input.size) {
+            val length = Math.min(chunk, input.size - pos)
+            resampler.write(input, pos, length)
+            pos += length
+            written += drain(resampler, temp, out, written)
+        }
+        resampler.flush()
+        written += drain(resampler, temp, out, written)
+        return out.copyOf(written)
+    }
+
+    private fun drain(resampler: PolyphaseResampler, temp: ShortArray, out: ShortArray, offset: Int): Int {
+        var written = 0
+        while (true) {
+            val n = resampler.read(temp, 0, temp.size)
+            if (n == 0) return written
+            System.arraycopy(temp, 0, out, offset + written, n)
+            written += n
+        }
+    }
+
+    private fun sine(rate: Int, frequency: Double, frames: Int, channels: Int): ShortArray {
+        return ShortArray(frames * channels) { (AMPLITUDE * sin(2 * PI * frequency * (it / channels) / rate)).roundToInt().toShort() }
+    }
+
+    /** The previous PipedAudioResampler algorithm. */
+    private fun linearResample(input: ShortArray, inRate: Int, outRate: Int): ShortArray {
+        return ShortArray((input.size.toLong() * outRate / inRate).toInt()) {
+            val t = it.toDouble() * inRate / outRate
+            val i = floor(t).toInt()
+            val w = t - i
+            (input[Math.min(i, input.size - 1)] * (1 - w) + input[Math.min(i + 1, input.size - 1)] * w).toShort()
+        }
+    }
+
+    /** Signal to noise ratio against the ideal sine, ignoring the first and last tenth. */
+    private fun snr(output: ShortArray, rate: Int, frequency: Double): Double {
+        var signal = 0.0
+        var noise = 0.0
+        for (i in output.size / 10 until output.size * 9 / 10) {
+            val ideal = AMPLITUDE * sin(2 * PI * frequency * i / rate)
+            signal += ideal * ideal
+            noise += (output[i] - ideal) * (output[i] - ideal)
+        }
+        return 10 * log10(signal / noise)
+    }
+
+    companion object {
+        private const val AMPLITUDE = 16000.0
+        private const val MIN_SNR_DB = 70.0
+        //Linear interpolation loses at least this much more to aliasing at every rate tested.
+        private const val MIN_SNR_GAIN_DB = 10.0
+        private val RATES = arrayOf(intArrayOf(48000, 44100), intArrayOf(22050, 44100), intArrayOf(16000, 44100))
+    }
+}
@@ -0,0 +1,84 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.graphics.Bitmap
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class RenderBitmapCacheTest {
+
+    @Test
+    fun acquire_Should_CountHitsAndMisses() {
+        val cache = RenderBitmapCache(10 * IMAGE_BYTES)
+        Assert.assertNull(cache.acquire("1.jpg"))
+        cache.release(cache.put("1.jpg", image(), 2, false))
+
+        val hit = cache.acquire("1.jpg")!!
+
+        Assert.assertEquals(2, hit.downsample)
+        Assert.assertEquals(1, cache.hitCount)
+        Assert.assertEquals(1, cache.missCount)
+    }
+
+    @Test
+    fun put_When_OverBudget_Should_EvictLeastRecentlyUsedIdleImage() {
+        val cache = RenderBitmapCache(2 * IMAGE_BYTES)
+        cache.release(cache.put("1.jpg", image(), 1, false))
+        cache.release(cache.put("2.jpg", image(), 1, false))
+        //Use 1.jpg again, so 2.jpg is the least recently used.
+        cache.release(cache.acquire("1.jpg")!!)
+
+        cache.put("3.jpg", image(), 1, false)
+
+        Assert.assertEquals(1, cache.evictionCount)
+        Assert.assertNotNull(cache.acquire("1.jpg"))
+        Assert.assertNull(cache.acquire("2.jpg"))
+        Assert.assertTrue(cache.size <= 2 * IMAGE_BYTES)
+    }
+
+    @Test
+    fun put_When_ImagesAreHeld_Should_NotEvictThem() {
+        val cache = RenderBitmapCache(IMAGE_BYTES)
+        val first = cache.put("1.jpg", image(), 1, false)
+        cache.put("2.jpg", image(), 1, false)
+
+        Assert.assertEquals(0, cache.evictionCount)
+        Assert.assertSame(first.bitmap, cache.acquire("1.jpg")!!.bitmap)
+    }
+
+    @Test
+    fun takeReusable_When_ImageWasEvicted_Should_HandOutItsBitmap() {
+        val cache = RenderBitmapCache(IMAGE_BYTES)
+        val evicted = image()
+        cache.release(cache.put("1.jpg", evicted, 1, true))
+
+        val reusable = cache.takeReusable(IMAGE_BYTES.toInt())
+
+        Assert.assertSame(evicted, reusable)
+        Assert.assertEquals(1, cache.evictionCount)
+        Assert.assertEquals(1, cache.reuseCount)
+        Assert.assertNull(cache.acquire("1.jpg"))
+        Assert.assertNull(cache.takeReusable(IMAGE_BYTES.toInt()))
+    }
+
+    @Test
+    fun takeReusable_When_BitmapsAreTooSmall_Should_ReturnNull() {
+        val cache = RenderBitmapCache(10 * IMAGE_BYTES)
+        cache.returnReusable(image())
+
+        Assert.assertNull(cache.takeReusable(2 * IMAGE_BYTES.toInt()))
+        Assert.assertEquals(0, cache.reuseCount)
+    }
+
+    private fun image(): Bitmap {
+        return Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888)
+    }
+
+    companion object {
+        private const val WIDTH = 64
+        private const val HEIGHT = 48
+        private const val IMAGE_BYTES = WIDTH * HEIGHT * 4L
+    }
+}
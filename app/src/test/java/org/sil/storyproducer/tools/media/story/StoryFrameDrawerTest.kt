@@ -0,0 +1,118 @@
+package org.sil.storyproducer.tools.media.story
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.media.MediaFormat
+import androidx.test.core.app.ApplicationProvider
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class StoryFrameDrawerTest {
+
+    @Test
+    fun planSegments_When_OneSegment_Should_StartAtZeroOnly() {
+        val starts = StoryFrameDrawer.planSegments(pages(9500000, 4), TRANSITION_US, CROSS_FADE_US, 30, 1)
+
+        Assert.assertArrayEquals(intArrayOf(0), starts)
+    }
+
+    @Test
+    fun planSegments_Should_CutAfterTheCrossFadeAtSlideBoundaries() {
+        //Four ten second pages: the half way cut follows page 2 once its fade has finished.
+        val starts = StoryFrameDrawer.planSegments(pages(9500000, 4), TRANSITION_US, CROSS_FADE_US, 30, 2)
+
+        //20s + 375ms is frame 611.25, so the first frame after it is 612.
+        Assert.assertArrayEquals(intArrayOf(0, 612), starts)
+    }
+
+    @Test
+    fun planSegments_When_MoreSegmentsThanPages_Should_CutAtEveryPage() {
+        val starts = StoryFrameDrawer.planSegments(pages(9500000, 3), TRANSITION_US, CROSS_FADE_US, 30, 16)
+
+        Assert.assertEquals(3, starts.size)
+        for (i in 1 until starts.size) {
+            Assert.assertTrue(starts[i] > starts[i - 1])
+        }
+    }
+
+    @Test
+    fun planPageSegments_Should_StartEachPageOnceItsFadeInHasFinished() {
+        val starts = StoryFrameDrawer.planPageSegments(pages(9500000, 3), TRANSITION_US, CROSS_FADE_US)
+
+        Assert.assertArrayEquals(longArrayOf(0, 10375001, 20375001), starts)
+    }
+
+    @Test
+    fun getFrameCount_When_SegmentLengthChanges_Should_OnlyDependOnLength() {
+        //Page segments count frames from their own start, so a one slide edit leaves the rest alone.
+        Assert.assertEquals(300, StoryFrameDrawer.getFrameCount(10000000, 30))
+        Assert.assertEquals(301, StoryFrameDrawer.getFrameCount(10000001, 30))
+        Assert.assertEquals(0, StoryFrameDrawer.getFrameCount(0, 30))
+    }
+
+    @Test
+    fun getCorrectedCrossFade_When_PageIsShort_Should_ClipToPage() {
+        val pages = arrayOf(StoryPage(mDuration = 9500000), StoryPage(mDuration = 100000))
+
+        Assert.assertEquals(600000L, StoryFrameDrawer.getCorrectedCrossFade(pages, TRANSITION_US, CROSS_FADE_US))
+    }
+
+    @Test
+    fun isNextFrameUnchanged_When_SlidesAreStill_Should_SkipFramesButKeepTheirTimes() {
+        val still = drawAll(true)
+        val everyFrame = drawAll(false)
+
+        //Every frame still gets its time at the declared frame rate, only fewer are drawn.
+        Assert.assertEquals(everyFrame.times, still.times)
+        //Three 5s slides at 30 fps, the frame at 15s and the one after it that finds the story done.
+        Assert.assertEquals(452, everyFrame.times.size)
+        Assert.assertEquals(everyFrame.times.size, everyFrame.drawn)
+        //Only the fade in (frames 0-12), the two cross-fades (139-162 and 289-312) and the last
+        //two frames need drawing.
+        Assert.assertEquals(13 + 24 + 24 + 2, still.drawn)
+    }
+
+    private class DrawResult(val times: List<Long>, val drawn: Int)
+
+    private fun drawAll(skipStillFrames: Boolean): DrawResult {
+        val format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, WIDTH, HEIGHT)
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30)
+        val canvas = Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888))
+
+        val skip = StoryFrameDrawer.skipStillFrames
+        StoryFrameDrawer.skipStillFrames = skipStillFrames
+        try {
+            val drawer = StoryFrameDrawer(ApplicationProvider.getApplicationContext(), format,
+                    pages(4500000, 3), TRANSITION_US, CROSS_FADE_US)
+            val times = ArrayList<Long>()
+            var drawn = 0
+            drawer.setup()
+            while (!drawer.isDone) {
+                if (drawer.isNextFrameUnchanged()) {
+                    times.add(drawer.skipFrame())
+                } else {
+                    times.add(drawer.fillCanvas(canvas))
+                    drawn++
+                }
+            }
+            drawer.close()
+            return DrawResult(times, drawn)
+        } finally {
+            StoryFrameDrawer.skipStillFrames = skip
+        }
+    }
+
+    private fun pages(durationUs: Long, count: Int): Array<StoryPage> {
+        return Array(count) { StoryPage(mDuration = durationUs) }
+    }
+
+    companion object {
+        private const val TRANSITION_US = 500000L
+        private const val CROSS_FADE_US = 750000L
+        private const val WIDTH = 320
+        private const val HEIGHT = 240
+    }
+}